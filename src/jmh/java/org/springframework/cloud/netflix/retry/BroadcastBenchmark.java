@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.retry.stats.DefaultStatisticsRepository;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter.DataWithMediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * Cost of fanning one frame out to a number of subscribers that write to memory, with
+ * the queues drained on the calling thread.
+ *
+ * @author Dave Syer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BroadcastBenchmark {
+
+	@Param({ "1", "100", "1000" })
+	private int emitters;
+
+	private HystrixStreamBroadcaster broadcaster;
+
+	private HystrixStreamFrame frame;
+
+	@Setup
+	public void start() throws IOException {
+		DefaultStatisticsRepository repository = new DefaultStatisticsRepository();
+		repository.setRetryStatisticsFactory(new RollingRetryStatisticsFactory());
+		for (int i = 0; i < 10; i++) {
+			String name = "label-" + i;
+			repository.addStarted(name);
+			repository.addComplete(name);
+		}
+		this.frame = new HystrixMetricsCollector(repository)
+				.snapshot().getFull();
+		this.broadcaster = new HystrixStreamBroadcaster(new SyncTaskExecutor());
+		for (int i = 0; i < this.emitters; i++) {
+			this.broadcaster.subscribe(new MemoryEmitter());
+		}
+	}
+
+	@TearDown
+	public void close() {
+		this.broadcaster.clear();
+	}
+
+	@Benchmark
+	public void broadcast() {
+		this.broadcaster.broadcast(this.frame);
+	}
+
+	private static class MemoryEmitter extends SseEmitter {
+
+		private volatile Object last;
+
+		@Override
+		public void send(SseEventBuilder builder) throws IOException {
+			for (DataWithMediaType data : builder.build()) {
+				this.last = data.getData();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.retry.RetryListener;
+import org.springframework.retry.annotation.CircuitBreaker;
+import org.springframework.retry.annotation.EnableRetry;
+import org.springframework.retry.stats.StatisticsListener;
+import org.springframework.retry.stats.StatisticsRepository;
+
+/**
+ * Throughput of a call through a <code>@CircuitBreaker</code> with all the listeners
+ * that record metrics for the stream, at increasing levels of contention on a single
+ * label.
+ *
+ * @author Dave Syer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RecordingBenchmark {
+
+	private AnnotationConfigApplicationContext context;
+
+	private Service service;
+
+	@Setup
+	public void start() {
+		this.context = new AnnotationConfigApplicationContext(TestConfiguration.class);
+		this.service = this.context.getBean(Service.class);
+	}
+
+	@TearDown
+	public void close() {
+		this.context.close();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Object threads1() {
+		return this.service.call();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Object threads4() {
+		return this.service.call();
+	}
+
+	@Benchmark
+	@Threads(16)
+	public Object threads16() {
+		return this.service.call();
+	}
+
+	@Benchmark
+	@Threads(64)
+	public Object threads64() {
+		return this.service.call();
+	}
+
+	@Configuration
+	@EnableRetry(proxyTargetClass = true)
+	protected static class TestConfiguration {
+
+		@Bean
+		public StatisticsRepository statisticsRepository() {
+			BoundedStatisticsRepository repository = new BoundedStatisticsRepository();
+			repository.setRetryStatisticsFactory(new RollingRetryStatisticsFactory());
+			return repository;
+		}
+
+		@Bean
+		public RetryListener retryStatisticsListener(StatisticsRepository repository) {
+			return new StatisticsListener(repository);
+		}
+
+		@Bean
+		public LatencyListener latencyListener() {
+			return new LatencyListener();
+		}
+
+		@Bean
+		public ConcurrencyListener concurrencyListener() {
+			return new ConcurrencyListener();
+		}
+
+		@Bean
+		public Service service() {
+			return new Service();
+		}
+
+	}
+
+	public static class Service {
+
+		@CircuitBreaker(label = "benchmark")
+		public String call() {
+			return "OK";
+		}
+
+	}
+
+}
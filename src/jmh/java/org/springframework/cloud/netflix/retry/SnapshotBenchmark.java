@@ -0,0 +1,124 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.springframework.retry.stats.DefaultStatisticsRepository;
+
+/**
+ * Cost of one tick of the stream: building the metrics for all the labels from the
+ * statistics, and serializing them into a frame. The serialization benchmarks also
+ * count the bytes written, so bytes per frame is <code>bytes</code> divided by the
+ * number of operations. The <code>jackson</code> benchmark is the baseline for
+ * <code>serialize</code>: the same frame written by a plain {@link ObjectMapper}.
+ *
+ * @author Dave Syer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SnapshotBenchmark {
+
+	private static final byte[] DATA = "data:".getBytes();
+
+	private static final byte[] END = "\n\n".getBytes();
+
+	@Param({ "10", "1000", "10000" })
+	private int labels;
+
+	private HystrixMetricsCollector collector;
+
+	private ObjectMapper objectMapper = new ObjectMapper();
+
+	private HystrixMetricsWriter writer = new HystrixMetricsWriter();
+
+	private List<HystrixMetrics> metrics = new ArrayList<>();
+
+	@Setup
+	public void start() {
+		DefaultStatisticsRepository repository = new DefaultStatisticsRepository();
+		repository.setRetryStatisticsFactory(new RollingRetryStatisticsFactory());
+		for (int i = 0; i < this.labels; i++) {
+			String name = "label-" + i;
+			repository.addStarted(name);
+			repository.addComplete(name);
+		}
+		this.collector = new HystrixMetricsCollector(repository, this.writer);
+		for (HystrixStreamSnapshot.Entry entry : this.collector.snapshot()
+				.getEntries()) {
+			this.metrics.add(entry.getMetrics());
+		}
+	}
+
+	@Benchmark
+	public HystrixStreamSnapshot snapshot() {
+		return this.collector.snapshot();
+	}
+
+	@Benchmark
+	public HystrixStreamFrame serialize(Bytes bytes) {
+		HystrixStreamFrame frame = this.writer.write(this.metrics);
+		bytes.bytes += frame.getBytes().length;
+		return frame;
+	}
+
+	@Benchmark
+	public byte[] jackson(Bytes bytes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (HystrixMetrics item : this.metrics) {
+			out.write(DATA);
+			out.write(this.objectMapper.writeValueAsBytes(item));
+			out.write(END);
+		}
+		byte[] frame = out.toByteArray();
+		bytes.bytes += frame.length;
+		return frame;
+	}
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Bytes {
+
+		public long bytes;
+
+	}
+
+}
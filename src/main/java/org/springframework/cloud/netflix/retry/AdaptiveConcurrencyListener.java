@@ -0,0 +1,233 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.retry.RetryCallback;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.listener.RetryListenerSupport;
+
+/**
+ * A {@link org.springframework.retry.RetryListener} that adapts the size of each
+ * {@link Bulkhead} made by a {@link BulkheadPostProcessor} to the latency and errors
+ * of the calls behind it, with a {@link GradientLimit} per label. Calls over the limit
+ * are rejected by the bulkhead and go to the <code>@Recover</code> method, and the
+ * current limit shows in the Hystrix stream as the semaphore size, next to the number
+ * of calls in flight.
+ * <p>
+ * Each attempt is a sample: its round trip time, the number of calls in flight in the
+ * bulkhead and whether it failed. Calls that were rejected by the bulkhead or short
+ * circuited never reached the downstream, so they are not samples. The start times
+ * are kept in a stack per thread, because the retry contexts of circuit breakers are
+ * shared.
+ *
+ * @author Dave Syer
+ *
+ */
+public class AdaptiveConcurrencyListener extends RetryListenerSupport
+		implements LabelEvictionListener {
+
+	private final BulkheadPostProcessor bulkheads;
+
+	private final ConcurrentMap<String, GradientLimit> limits = new ConcurrentHashMap<>();
+
+	private final ThreadLocal<Timers> timers = new ThreadLocal<Timers>() {
+		@Override
+		protected Timers initialValue() {
+			return new Timers();
+		}
+	};
+
+	private int initialLimit = 20;
+
+	private int minLimit = 1;
+
+	private int maxLimit = 200;
+
+	private double tolerance = 2;
+
+	private int probeInterval = 1000;
+
+	/**
+	 * @param bulkheads the source of the bulkheads to adjust
+	 */
+	public AdaptiveConcurrencyListener(BulkheadPostProcessor bulkheads) {
+		this.bulkheads = bulkheads;
+	}
+
+	/**
+	 * The limit for a label before there are any samples (default 20).
+	 *
+	 * @param initialLimit the initial limit to set
+	 */
+	public void setInitialLimit(int initialLimit) {
+		this.initialLimit = initialLimit;
+	}
+
+	/**
+	 * The lowest the limit for a label can go (default 1).
+	 *
+	 * @param minLimit the minimum limit to set
+	 */
+	public void setMinLimit(int minLimit) {
+		this.minLimit = minLimit;
+	}
+
+	/**
+	 * The highest the limit for a label can go (default 200).
+	 *
+	 * @param maxLimit the maximum limit to set
+	 */
+	public void setMaxLimit(int maxLimit) {
+		this.maxLimit = maxLimit;
+	}
+
+	/**
+	 * How much longer than the shortest recent latency calls can take before the limit
+	 * comes down (default 2).
+	 *
+	 * @param tolerance the tolerance to set
+	 * @see GradientLimit#setTolerance(double)
+	 */
+	public void setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * The number of samples between measurements of the latency with no queueing
+	 * (default 1000).
+	 *
+	 * @param probeInterval the probe interval to set
+	 * @see GradientLimit#setProbeInterval(int)
+	 */
+	public void setProbeInterval(int probeInterval) {
+		this.probeInterval = probeInterval;
+	}
+
+	/**
+	 * @param name the label of a circuit breaker
+	 * @return the limit for the label or null if it has not been sampled
+	 */
+	public GradientLimit getLimit(String name) {
+		return this.limits.get(name);
+	}
+
+	@Override
+	public <T, E extends Throwable> boolean open(RetryContext context,
+			RetryCallback<T, E> callback) {
+		// An async call only reaches the listeners when it is over
+		this.timers.get().push(AsyncRetryPostProcessor.getAttempted(System.nanoTime()));
+		return true;
+	}
+
+	@Override
+	public <T, E extends Throwable> void onError(RetryContext context,
+			RetryCallback<T, E> callback, Throwable throwable) {
+		Timers timers = this.timers.get();
+		if (timers.isEmpty()) {
+			return;
+		}
+		long now = System.nanoTime();
+		if (!(throwable instanceof BulkheadRejectedException)) {
+			sample(context, now - timers.attempt(), true);
+		}
+		timers.attempt(now);
+	}
+
+	@Override
+	public <T, E extends Throwable> void close(RetryContext context,
+			RetryCallback<T, E> callback, Throwable throwable) {
+		Timers timers = this.timers.get();
+		if (timers.isEmpty()) {
+			return;
+		}
+		long attempt = timers.pop();
+		if (throwable == null && !context.hasAttribute(RetryContext.EXHAUSTED)) {
+			sample(context, System.nanoTime() - attempt, false);
+		}
+	}
+
+	@Override
+	public void evicted(String name) {
+		this.limits.remove(name);
+	}
+
+	private void sample(RetryContext context, long rtt, boolean dropped) {
+		String name = (String) context.getAttribute(RetryContext.NAME);
+		Bulkhead bulkhead = name == null ? null : this.bulkheads.getBulkhead(name);
+		if (bulkhead == null) {
+			return;
+		}
+		GradientLimit limit = this.limits.get(name);
+		if (limit == null) {
+			limit = new GradientLimit(this.initialLimit, this.minLimit, this.maxLimit);
+			limit.setTolerance(this.tolerance);
+			limit.setProbeInterval(this.probeInterval);
+			GradientLimit existing = this.limits.putIfAbsent(name, limit);
+			if (existing == null) {
+				bulkhead.setLimit(limit.getLimit());
+			}
+			else {
+				limit = existing;
+			}
+		}
+		// The call that finished has already left the bulkhead
+		int value = limit.update(rtt, bulkhead.getInFlight() + 1, dropped);
+		if (value != bulkhead.getLimit()) {
+			bulkhead.setLimit(value);
+		}
+	}
+
+	/**
+	 * Start times of the current attempts of the retries in progress on one thread
+	 * (more than one if they are nested).
+	 */
+	private static class Timers {
+
+		private long[] times = new long[4];
+
+		private int depth;
+
+		public boolean isEmpty() {
+			return this.depth == 0;
+		}
+
+		public void push(long now) {
+			if (this.depth == this.times.length) {
+				this.times = Arrays.copyOf(this.times, this.depth * 2);
+			}
+			this.times[this.depth++] = now;
+		}
+
+		public long attempt() {
+			return this.times[this.depth - 1];
+		}
+
+		public void attempt(long now) {
+			this.times[this.depth - 1] = now;
+		}
+
+		public long pop() {
+			return this.times[--this.depth];
+		}
+
+	}
+
+}
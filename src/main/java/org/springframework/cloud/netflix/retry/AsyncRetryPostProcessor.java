@@ -0,0 +1,698 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+import org.springframework.aop.Advisor;
+import org.springframework.aop.MethodMatcher;
+import org.springframework.aop.Pointcut;
+import org.springframework.aop.ProxyMethodInvocation;
+import org.springframework.aop.framework.AbstractAdvisingBeanPostProcessor;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.framework.AdvisorChainFactory;
+import org.springframework.aop.framework.DefaultAdvisorChainFactory;
+import org.springframework.aop.framework.ReflectiveMethodInvocation;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.aop.support.DefaultPointcutAdvisor;
+import org.springframework.aop.support.StaticMethodMatcherPointcut;
+import org.springframework.aop.support.annotation.AnnotationMethodMatcher;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.RetryStatistics;
+import org.springframework.retry.annotation.AnnotationAwareRetryOperationsInterceptor;
+import org.springframework.retry.annotation.CircuitBreaker;
+import org.springframework.retry.backoff.BackOffContext;
+import org.springframework.retry.backoff.BackOffPolicy;
+import org.springframework.retry.backoff.ExponentialBackOffPolicy;
+import org.springframework.retry.backoff.Sleeper;
+import org.springframework.retry.backoff.SleepingBackOffPolicy;
+import org.springframework.retry.policy.CircuitBreakerRetryPolicy;
+import org.springframework.retry.support.RetrySynchronizationManager;
+import org.springframework.util.ClassUtils;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Makes calls to <code>@CircuitBreaker</code> methods that return a
+ * {@link CompletableFuture}, a {@link CompletionStage} or a Reactor <code>Mono</code>
+ * without blocking the caller, retrying failed attempts after a backoff. No thread is
+ * parked while a call is in progress: each attempt after the first is scheduled on a
+ * shared {@link HashedWheelTimer} and started on an executor (the common fork-join
+ * pool by default), and the backoff comes from a spring-retry
+ * {@link SleepingBackOffPolicy} that is never allowed to sleep.
+ * <p>
+ * Only the outcome of a whole call goes through the circuit breaker, once it is known.
+ * It is replayed through the rest of the interceptors in place of the method, so the
+ * breaker state, the retry statistics and listeners and the <code>@Recover</code>
+ * method all see it as they would a synchronous call, and the latency listeners
+ * measure from when the call really started. A call is not started at all while the
+ * circuit is open (it goes straight to the breaker to be short circuited), and the
+ * retries stop as soon as the circuit opens or the caller cancels the future. Failed
+ * attempts that are retried are not seen by the breaker. By default there is only one
+ * attempt, so nothing is retried.
+ * <p>
+ * Each attempt goes through the interceptors inside the circuit breaker (e.g. a
+ * bulkhead) on its own, so an attempt they reject is retried like any other failure.
+ * The outcome goes through the breaker and the interceptors outside it, but not
+ * through the ones inside again.
+ * <p>
+ * The state of a circuit breaker is private to its retry policy, so whether it is open
+ * is worked out from the calls that have passed through it. If it turns out to have
+ * closed earlier than that, the call goes through synchronously as if it were not
+ * async at all.
+ * <p>
+ * Register it as a <code>static</code> bean so that it is in place before the beans
+ * it has to advise are created.
+ *
+ * @author Dave Syer
+ *
+ */
+@SuppressWarnings("serial")
+public class AsyncRetryPostProcessor extends AbstractAdvisingBeanPostProcessor
+		implements HystrixMetricsContributor, DisposableBean {
+
+	private static final boolean REACTOR_PRESENT = ClassUtils.isPresent(
+			"reactor.core.publisher.Mono",
+			AsyncRetryPostProcessor.class.getClassLoader());
+
+	private static final ThreadLocal<Call> COMPLETING = new ThreadLocal<>();
+
+	private static final AdvisorChainFactory CHAIN_FACTORY = new DefaultAdvisorChainFactory();
+
+	private final Advisor attemptAdvisor;
+
+	private final ConcurrentMap<Method, Circuit> circuits = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+
+	private final HashedWheelTimer timer;
+
+	private Executor executor = ForkJoinPool.commonPool();
+
+	private SleepingBackOffPolicy<?> backOffPolicy = new ExponentialBackOffPolicy();
+
+	private int maxAttempts = 1;
+
+	private Map<String, Integer> maxAttemptsPerLabel = Collections.emptyMap();
+
+	/**
+	 * Create a processor with a timer that ticks every 10ms.
+	 */
+	public AsyncRetryPostProcessor() {
+		this(10, 512);
+	}
+
+	/**
+	 * @param tick the resolution of the backoff in milliseconds
+	 * @param wheelSize the number of ticks in a turn of the timer wheel
+	 */
+	public AsyncRetryPostProcessor(long tick, int wheelSize) {
+		this.timer = new HashedWheelTimer(tick, wheelSize);
+		Pointcut pointcut = new StaticMethodMatcherPointcut() {
+
+			private final MethodMatcher annotated = new AnnotationMethodMatcher(
+					CircuitBreaker.class);
+
+			@Override
+			public boolean matches(Method method, Class<?> targetClass) {
+				return isAsync(method.getReturnType())
+						&& this.annotated.matches(method, targetClass);
+			}
+
+		};
+		this.advisor = new DefaultPointcutAdvisor(pointcut, new AsyncInterceptor());
+		this.attemptAdvisor = new DefaultPointcutAdvisor(pointcut,
+				new AttemptInterceptor());
+		setBeforeExistingAdvisors(true);
+	}
+
+	/**
+	 * The executor that starts the attempts after the first (default the common
+	 * fork-join pool).
+	 *
+	 * @param executor the executor to set
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * The backoff between attempts (default exponential, starting at 100ms). It is
+	 * given a sleeper that records the backoff instead of sleeping.
+	 *
+	 * @param backOffPolicy the backoff policy to set
+	 */
+	public void setBackOffPolicy(SleepingBackOffPolicy<?> backOffPolicy) {
+		this.backOffPolicy = backOffPolicy;
+	}
+
+	/**
+	 * The number of attempts at a call unless there is a specific number for the label
+	 * (default 1, i.e. no retries).
+	 *
+	 * @param maxAttempts the maximum number of attempts to set
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Numbers of attempts for specific labels, overriding the default.
+	 *
+	 * @param maxAttemptsPerLabel the maximum numbers of attempts keyed by label
+	 */
+	public void setMaxAttemptsPerLabel(Map<String, Integer> maxAttemptsPerLabel) {
+		this.maxAttemptsPerLabel = new HashMap<>(maxAttemptsPerLabel);
+	}
+
+	/**
+	 * @param name the label of a circuit breaker
+	 * @return the maximum number of attempts at a call
+	 */
+	public int getMaxAttempts(String name) {
+		Integer maxAttempts = this.maxAttemptsPerLabel.get(name);
+		return maxAttempts == null ? this.maxAttempts : maxAttempts;
+	}
+
+	/**
+	 * @param name the label of a circuit breaker
+	 * @return the number of async calls in progress
+	 */
+	public int getInFlight(String name) {
+		AtomicInteger inFlight = this.inFlight.get(name);
+		return inFlight == null ? 0 : inFlight.get();
+	}
+
+	@Override
+	public Object postProcessAfterInitialization(Object bean, String beanName) {
+		Object result = super.postProcessAfterInitialization(bean, beanName);
+		if (result instanceof Advised && isEligible(bean, beanName)) {
+			// Innermost, so it can stand in for the method
+			((Advised) result).addAdvisor(this.attemptAdvisor);
+		}
+		return result;
+	}
+
+	@Override
+	public void destroy() {
+		this.timer.stop();
+	}
+
+	@Override
+	public void contribute(RetryStatistics statistics, HystrixMetrics metrics) {
+		AtomicInteger inFlight = this.inFlight.get(statistics.getName());
+		if (inFlight == null) {
+			return;
+		}
+		metrics.setCurrentConcurrentExecutionCount(
+				metrics.getCurrentConcurrentExecutionCount() + inFlight.get());
+	}
+
+	/**
+	 * When the async call whose outcome is passing through the circuit breaker on the
+	 * current thread started, so that listeners can measure its latency.
+	 *
+	 * @param now the current time from {@link System#nanoTime()}
+	 * @return the start of the call, or now if there is none
+	 */
+	static long getStarted(long now) {
+		Call call = COMPLETING.get();
+		return call == null ? now : call.started;
+	}
+
+	/**
+	 * When the last attempt of the async call whose outcome is passing through the
+	 * circuit breaker on the current thread started.
+	 *
+	 * @param now the current time from {@link System#nanoTime()}
+	 * @return the start of the attempt, or now if there is none
+	 */
+	static long getAttempted(long now) {
+		Call call = COMPLETING.get();
+		return call == null ? now : call.attempted;
+	}
+
+	private static boolean isAsync(Class<?> type) {
+		return type == CompletableFuture.class || type == CompletionStage.class
+				|| REACTOR_PRESENT && Reactive.isMono(type);
+	}
+
+	private static CompletionStage<?> toStage(Object value) {
+		if (value instanceof CompletionStage) {
+			return (CompletionStage<?>) value;
+		}
+		return REACTOR_PRESENT ? Reactive.toStage(value) : null;
+	}
+
+	private static Throwable unwrap(Throwable error) {
+		while ((error instanceof CompletionException
+				|| error instanceof ExecutionException) && error.getCause() != null) {
+			error = error.getCause();
+		}
+		return error;
+	}
+
+	private Circuit getCircuit(ProxyMethodInvocation invocation) {
+		Method method = invocation.getMethod();
+		Circuit circuit = this.circuits.get(method);
+		if (circuit == null) {
+			CircuitBreaker annotation = CircuitBreakerLabels.getAnnotation(method,
+					invocation.getThis());
+			String label = CircuitBreakerLabels.getLabel(method, invocation.getThis());
+			this.inFlight.putIfAbsent(label, new AtomicInteger());
+			List<Object> outcome = null;
+			List<Object> attempt = null;
+			if (invocation.getProxy() instanceof Advised) {
+				List<Object> chain = CHAIN_FACTORY
+						.getInterceptorsAndDynamicInterceptionAdvice(
+								(Advised) invocation.getProxy(), method,
+								AopUtils.getTargetClass(invocation.getThis()));
+				// Split the chain after the circuit breaker
+				int start = 0;
+				int end = 0;
+				for (int i = 0; i < chain.size(); i++) {
+					Object interceptor = chain.get(i);
+					if (interceptor instanceof AsyncInterceptor) {
+						start = i + 1;
+						end = Math.max(end, start);
+					}
+					else if (interceptor instanceof AnnotationAwareRetryOperationsInterceptor) {
+						end = i + 1;
+					}
+				}
+				Object attempts = this.attemptAdvisor.getAdvice();
+				outcome = new ArrayList<>(chain.subList(start, end));
+				outcome.add(attempts);
+				attempt = new ArrayList<>(chain.subList(end, chain.size()));
+				attempt.remove(attempts);
+			}
+			circuit = new Circuit(annotation == null ? 20000 : annotation.resetTimeout(),
+					this.inFlight.get(label), getMaxAttempts(label), outcome, attempt);
+			Circuit existing = this.circuits.putIfAbsent(method, circuit);
+			if (existing != null) {
+				circuit = existing;
+			}
+		}
+		return circuit;
+	}
+
+	private class AsyncInterceptor implements MethodInterceptor {
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			if (!(invocation instanceof ProxyMethodInvocation)) {
+				return invocation.proceed();
+			}
+			final ProxyMethodInvocation proxied = (ProxyMethodInvocation) invocation;
+			final Circuit circuit = getCircuit(proxied);
+			if (REACTOR_PRESENT
+					&& Reactive.isMono(invocation.getMethod().getReturnType())) {
+				// A Mono does nothing until it is subscribed
+				return Reactive.defer(new Supplier<CompletableFuture<Object>>() {
+					@Override
+					public CompletableFuture<Object> get() {
+						return new Call(proxied, circuit, true).start();
+					}
+				});
+			}
+			return new Call(proxied, circuit, false).start();
+		}
+
+	}
+
+	private class AttemptInterceptor implements MethodInterceptor {
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			Call call = COMPLETING.get();
+			if (call == null || !call.matches(invocation)) {
+				return invocation.proceed();
+			}
+			// The circuit breaker let the outcome through, so this is its context
+			call.circuit.context = RetrySynchronizationManager.getContext();
+			// Calls made from here on (e.g. by a fallback) are not part of this one
+			COMPLETING.remove();
+			if (!call.called) {
+				// The circuit closed before the call expected, and it is too late for it
+				// to be async
+				return call.proceed(false);
+			}
+			if (call.error != null) {
+				throw call.error;
+			}
+			return call.mono ? Reactive.just(call.value)
+					: CompletableFuture.completedFuture(call.value);
+		}
+
+	}
+
+	/**
+	 * One async call, from the first attempt to the outcome that the caller sees. The
+	 * attempts run one after another, so the state needs no synchronization.
+	 */
+	private class Call implements Sleeper {
+
+		private final ProxyMethodInvocation invocation;
+
+		private final Circuit circuit;
+
+		private final boolean mono;
+
+		private final CompletableFuture<Object> result = new CompletableFuture<>();
+
+		private final long started = System.nanoTime();
+
+		private long attempted;
+
+		private int attempts;
+
+		private BackOffPolicy backOff;
+
+		private BackOffContext backOffContext;
+
+		private long delay;
+
+		private boolean called;
+
+		private Object value;
+
+		private Throwable error;
+
+		private Call(ProxyMethodInvocation invocation, Circuit circuit, boolean mono) {
+			this.invocation = invocation;
+			this.circuit = circuit;
+			this.mono = mono;
+		}
+
+		private CompletableFuture<Object> start() {
+			this.circuit.inFlight.incrementAndGet();
+			attempt();
+			return this.result;
+		}
+
+		private boolean matches(MethodInvocation invocation) {
+			return this.invocation.getMethod().equals(invocation.getMethod())
+					&& this.invocation.getThis() == invocation.getThis();
+		}
+
+		private void attempt() {
+			if (this.result.isDone()) {
+				// Cancelled by the caller
+				this.circuit.inFlight.decrementAndGet();
+				return;
+			}
+			this.attempts++;
+			this.attempted = System.nanoTime();
+			if (this.circuit.isOpen(System.currentTimeMillis())) {
+				complete(false, null, null);
+				return;
+			}
+			CompletionStage<?> stage;
+			try {
+				stage = toStage(proceed(false));
+			}
+			catch (Throwable e) {
+				failed(e);
+				return;
+			}
+			if (stage == null) {
+				complete(true, null, null);
+				return;
+			}
+			stage.whenComplete(new BiConsumer<Object, Throwable>() {
+				@Override
+				public void accept(Object value, Throwable error) {
+					if (error == null) {
+						complete(true, value, null);
+					}
+					else {
+						failed(unwrap(error));
+					}
+				}
+			});
+		}
+
+		private void failed(Throwable error) {
+			if (error instanceof Exception && this.attempts < this.circuit.maxAttempts
+					&& !this.result.isDone()
+					&& !this.circuit.isOpen(System.currentTimeMillis())
+					&& timer.schedule(new Retry(this), backOff())) {
+				return;
+			}
+			complete(true, null, error);
+		}
+
+		private long backOff() {
+			if (this.backOff == null) {
+				this.backOff = AsyncRetryPostProcessor.this.backOffPolicy
+						.withSleeper(this);
+				this.backOffContext = this.backOff.start(null);
+			}
+			this.delay = 0;
+			this.backOff.backOff(this.backOffContext);
+			return this.delay;
+		}
+
+		@Override
+		public void sleep(long backOffPeriod) {
+			this.delay = backOffPeriod;
+		}
+
+		/**
+		 * Pass the outcome of the call through the circuit breaker.
+		 *
+		 * @param called whether the method was called (if not the circuit was open)
+		 * @param value the value it returned
+		 * @param error the error it failed with
+		 */
+		private void complete(boolean called, Object value, Throwable error) {
+			this.called = called;
+			this.value = value;
+			this.error = error;
+			long begin = System.currentTimeMillis();
+			Call previous = COMPLETING.get();
+			COMPLETING.set(this);
+			Object result;
+			try {
+				result = proceed(true);
+			}
+			catch (Throwable e) {
+				finish(null, e);
+				return;
+			}
+			finally {
+				if (previous == null) {
+					COMPLETING.remove();
+				}
+				else {
+					COMPLETING.set(previous);
+				}
+				this.circuit.observe(begin);
+			}
+			CompletionStage<?> stage = toStage(result);
+			if (stage == null) {
+				finish(null, null);
+				return;
+			}
+			stage.whenComplete(new BiConsumer<Object, Throwable>() {
+				@Override
+				public void accept(Object value, Throwable error) {
+					finish(value, error == null ? null : unwrap(error));
+				}
+			});
+		}
+
+		/**
+		 * Go through the part of the interceptor chain for the outcome (up to the
+		 * circuit breaker) or for an attempt (inside it).
+		 *
+		 * @param outcome whether it is the outcome of the call
+		 * @return the result of the invocation
+		 * @throws Throwable if the invocation fails
+		 */
+		private Object proceed(boolean outcome) throws Throwable {
+			List<Object> chain = outcome ? this.circuit.outcome : this.circuit.attempt;
+			if (chain == null) {
+				// The proxy is opaque, so the chain cannot be split and the attempts
+				// have to call the method directly
+				return outcome ? this.invocation.invocableClone().proceed()
+						: AopUtils.invokeJoinpointUsingReflection(
+								this.invocation.getThis(), this.invocation.getMethod(),
+								this.invocation.getArguments());
+			}
+			return new PartialInvocation(this.invocation, chain).proceed();
+		}
+
+		private void finish(Object value, Throwable error) {
+			this.circuit.inFlight.decrementAndGet();
+			if (error == null) {
+				this.result.complete(value);
+			}
+			else {
+				this.result.completeExceptionally(error);
+			}
+		}
+
+	}
+
+	/**
+	 * The backoff before the next attempt at a call.
+	 */
+	private class Retry extends HashedWheelTimer.Timeout {
+
+		private final Call call;
+
+		private Retry(Call call) {
+			this.call = call;
+		}
+
+		@Override
+		protected void expired() {
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						Retry.this.call.attempt();
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				this.call.complete(true, null, e);
+			}
+		}
+
+	}
+
+	/**
+	 * A call to the proxied method that goes through part of its interceptor chain.
+	 */
+	private static class PartialInvocation extends ReflectiveMethodInvocation {
+
+		private PartialInvocation(ProxyMethodInvocation invocation, List<Object> chain) {
+			super(invocation.getProxy(), invocation.getThis(), invocation.getMethod(),
+					invocation.getArguments(),
+					AopUtils.getTargetClass(invocation.getThis()), chain);
+		}
+
+	}
+
+	/**
+	 * What is known about the circuit breaker of one method from the outcomes that
+	 * have passed through it. It is taken to have opened when the call that opened it
+	 * started, which is no later than the breaker itself, so it is never taken to be
+	 * open once the breaker would have closed again.
+	 */
+	private static class Circuit {
+
+		private final long resetTimeout;
+
+		private final AtomicInteger inFlight;
+
+		private final int maxAttempts;
+
+		private final List<Object> outcome;
+
+		private final List<Object> attempt;
+
+		private volatile RetryContext context;
+
+		private volatile long opened;
+
+		private Circuit(long resetTimeout, AtomicInteger inFlight, int maxAttempts,
+				List<Object> outcome, List<Object> attempt) {
+			this.resetTimeout = resetTimeout;
+			this.inFlight = inFlight;
+			this.maxAttempts = maxAttempts;
+			this.outcome = outcome;
+			this.attempt = attempt;
+		}
+
+		private boolean isOpen(long now) {
+			if (!isFlagged()) {
+				return false;
+			}
+			long opened = this.opened;
+			return opened == 0 || now - opened <= this.resetTimeout;
+		}
+
+		private void observe(long begin) {
+			if (!isFlagged()) {
+				this.opened = 0;
+			}
+			else if (this.opened == 0) {
+				this.opened = begin;
+			}
+		}
+
+		private boolean isFlagged() {
+			RetryContext context = this.context;
+			return context != null && Boolean.TRUE.equals(
+					context.getAttribute(CircuitBreakerRetryPolicy.CIRCUIT_OPEN));
+		}
+
+	}
+
+	/**
+	 * Keeps the optional Reactor dependency out of the way if it is not there.
+	 */
+	private static class Reactive {
+
+		private static boolean isMono(Class<?> type) {
+			return type == Mono.class;
+		}
+
+		private static CompletionStage<?> toStage(Object value) {
+			return value instanceof Mono ? ((Mono<?>) value).toFuture() : null;
+		}
+
+		private static Object just(Object value) {
+			return Mono.justOrEmpty(value);
+		}
+
+		private static Object defer(final Supplier<CompletableFuture<Object>> call) {
+			return Mono.defer(new Supplier<Mono<Object>>() {
+				@Override
+				public Mono<Object> get() {
+					return Mono.fromFuture(call.get());
+				}
+			});
+		}
+
+	}
+
+}
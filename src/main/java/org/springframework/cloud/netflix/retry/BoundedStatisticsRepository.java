@@ -0,0 +1,303 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.retry.RetryStatistics;
+import org.springframework.retry.stats.DefaultRetryStatisticsFactory;
+import org.springframework.retry.stats.MutableRetryStatistics;
+import org.springframework.retry.stats.RetryStatisticsFactory;
+import org.springframework.retry.stats.StatisticsRepository;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link StatisticsRepository} with a limit on the number of labels it holds, for
+ * applications that generate labels dynamically (e.g. per tenant or per downstream
+ * host). When the limit is reached the label that was recorded least recently is
+ * evicted to make room, and optionally labels that have recorded nothing for a while
+ * are evicted as they expire.
+ * <p>
+ * The labels are spread over a number of shards, each a concurrent map, so recording
+ * is a lock-free lookup and a volatile write of the time, and a lock is only taken
+ * (on a single shard) to add a new label. The maximum is divided between the shards,
+ * so the total number of labels never goes over it, but it can fall a little short if
+ * the labels do not hash evenly. Only recording counts as activity: reading the
+ * statistics, e.g. to publish them, does not keep a label alive.
+ * <p>
+ * Listeners and other components that keep their own state per label can implement
+ * {@link LabelEvictionListener} to be told when a label is evicted, so that their
+ * state is bounded too. The post processors that advise <code>@CircuitBreaker</code>
+ * methods do not need to, because their labels come from the annotations, so there
+ * are only as many as there are annotated methods.
+ *
+ * @author Dave Syer
+ *
+ */
+public class BoundedStatisticsRepository implements StatisticsRepository {
+
+	private final Shard[] shards;
+
+	private final AtomicLong evicted = new AtomicLong();
+
+	private RetryStatisticsFactory factory = new DefaultRetryStatisticsFactory();
+
+	private List<LabelEvictionListener> evictionListeners = Collections.emptyList();
+
+	private int maxLabels = 10000;
+
+	private long timeToIdle = 0;
+
+	/**
+	 * Create a repository with 16 shards.
+	 */
+	public BoundedStatisticsRepository() {
+		this(16);
+	}
+
+	/**
+	 * @param shards the number of shards (rounded up to a power of two)
+	 */
+	public BoundedStatisticsRepository(int shards) {
+		Assert.isTrue(shards > 0, "Number of shards must be positive");
+		int count = Integer.highestOneBit(shards);
+		if (count < shards) {
+			count <<= 1;
+		}
+		Assert.isTrue(count <= this.maxLabels,
+				"Number of shards must not be more than the max labels");
+		this.shards = new Shard[count];
+		for (int i = 0; i < count; i++) {
+			this.shards[i] = new Shard(i);
+		}
+	}
+
+	public void setRetryStatisticsFactory(RetryStatisticsFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * Components to tell when a label is evicted.
+	 *
+	 * @param evictionListeners the listeners to set
+	 */
+	@Autowired(required = false)
+	public void setEvictionListeners(List<LabelEvictionListener> evictionListeners) {
+		this.evictionListeners = new ArrayList<>(evictionListeners);
+	}
+
+	/**
+	 * The maximum number of labels to keep statistics for (default 10000). It has to
+	 * be at least the number of shards, so that every shard can hold a label.
+	 *
+	 * @param maxLabels the max labels to set
+	 */
+	public void setMaxLabels(int maxLabels) {
+		Assert.isTrue(maxLabels >= this.shards.length,
+				"Max labels must be at least the number of shards ("
+						+ this.shards.length + ")");
+		this.maxLabels = maxLabels;
+	}
+
+	/**
+	 * The time in milliseconds after which a label that has recorded nothing is
+	 * evicted (default 0, meaning never).
+	 *
+	 * @param timeToIdle the time to idle to set
+	 */
+	public void setTimeToIdle(long timeToIdle) {
+		this.timeToIdle = timeToIdle;
+	}
+
+	/**
+	 * @return the number of labels currently held
+	 */
+	public int getLiveCount() {
+		int count = 0;
+		for (Shard shard : this.shards) {
+			count += shard.entries.size();
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of labels evicted since the repository was created
+	 */
+	public long getEvictedCount() {
+		return this.evicted.get();
+	}
+
+	@Override
+	public RetryStatistics findOne(String name) {
+		Entry entry = shard(name).entries.get(name);
+		return entry == null ? null : entry.statistics;
+	}
+
+	@Override
+	public Iterable<RetryStatistics> findAll() {
+		expire(System.currentTimeMillis());
+		List<RetryStatistics> list = new ArrayList<>(getLiveCount());
+		for (Shard shard : this.shards) {
+			for (Entry entry : shard.entries.values()) {
+				list.add(entry.statistics);
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void addStarted(String name) {
+		getStatistics(name, System.currentTimeMillis()).incrementStartedCount();
+	}
+
+	@Override
+	public void addError(String name) {
+		getStatistics(name, System.currentTimeMillis()).incrementErrorCount();
+	}
+
+	@Override
+	public void addRecovery(String name) {
+		getStatistics(name, System.currentTimeMillis()).incrementRecoveryCount();
+	}
+
+	@Override
+	public void addComplete(String name) {
+		getStatistics(name, System.currentTimeMillis()).incrementCompleteCount();
+	}
+
+	@Override
+	public void addAbort(String name) {
+		getStatistics(name, System.currentTimeMillis()).incrementAbortCount();
+	}
+
+	MutableRetryStatistics getStatistics(String name, long now) {
+		Shard shard = shard(name);
+		Entry entry = shard.entries.get(name);
+		if (entry == null) {
+			entry = shard.create(name, now);
+		}
+		else {
+			entry.touch(now);
+		}
+		return entry.statistics;
+	}
+
+	/**
+	 * Evict the labels that have been idle for longer than the time to idle.
+	 *
+	 * @param now the current time
+	 */
+	void expire(long now) {
+		if (this.timeToIdle <= 0) {
+			return;
+		}
+		long limit = now - this.timeToIdle;
+		for (Shard shard : this.shards) {
+			for (Map.Entry<String, Entry> item : shard.entries.entrySet()) {
+				if (item.getValue().touched < limit
+						&& shard.entries.remove(item.getKey(), item.getValue())) {
+					evicted(item.getKey());
+				}
+			}
+		}
+	}
+
+	private void evicted(String name) {
+		this.evicted.incrementAndGet();
+		for (LabelEvictionListener listener : this.evictionListeners) {
+			listener.evicted(name);
+		}
+	}
+
+	private Shard shard(String name) {
+		int hash = name.hashCode();
+		// Spread the bits, the same as HashMap, because the index uses the low ones
+		hash ^= hash >>> 16;
+		return this.shards[hash & (this.shards.length - 1)];
+	}
+
+	private class Shard {
+
+		private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+		private final int index;
+
+		private Shard(int index) {
+			this.index = index;
+		}
+
+		private synchronized Entry create(String name, long now) {
+			Entry entry = this.entries.get(name);
+			if (entry != null) {
+				entry.touch(now);
+				return entry;
+			}
+			// Rounded down, with the remainder spread over the first shards
+			int limit = maxLabels / shards.length
+					+ (this.index < maxLabels % shards.length ? 1 : 0);
+			while (this.entries.size() >= limit) {
+				evictLeastRecentlyUsed();
+			}
+			entry = new Entry(factory.create(name), now);
+			this.entries.put(name, entry);
+			return entry;
+		}
+
+		private void evictLeastRecentlyUsed() {
+			String oldest = null;
+			long time = Long.MAX_VALUE;
+			for (Entry entry : this.entries.values()) {
+				if (entry.touched < time) {
+					time = entry.touched;
+					oldest = entry.statistics.getName();
+				}
+			}
+			if (oldest != null && this.entries.remove(oldest) != null) {
+				evicted(oldest);
+			}
+		}
+
+	}
+
+	private static class Entry {
+
+		private final MutableRetryStatistics statistics;
+
+		private volatile long touched;
+
+		private Entry(MutableRetryStatistics statistics, long now) {
+			this.statistics = statistics;
+			this.touched = now;
+		}
+
+		private void touch(long now) {
+			// Only write when the time has moved on, to keep the cache line shared
+			if (this.touched != now) {
+				this.touched = now;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.util.Assert;
+
+/**
+ * A limit on the number of calls in flight for one label, like a Hystrix semaphore.
+ * A call that would go over the limit is rejected straight away rather than queued, so
+ * a slow downstream cannot tie up more than its share of the caller's threads. The
+ * limit can be changed while calls are in flight, and calls already admitted are not
+ * affected if it goes down.
+ *
+ * @author Dave Syer
+ *
+ */
+public class Bulkhead {
+
+	private final String name;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final RollingCounters rejected;
+
+	private volatile int limit;
+
+	/**
+	 * Create a bulkhead counting rejections over the last 10 seconds in 10 buckets.
+	 *
+	 * @param name the label of the calls
+	 * @param limit the maximum number of calls in flight
+	 */
+	public Bulkhead(String name, int limit) {
+		this(name, limit, 10000, 10);
+	}
+
+	/**
+	 * @param name the label of the calls
+	 * @param limit the maximum number of calls in flight
+	 * @param window the length of the rolling window for rejections in milliseconds
+	 * @param bucketCount the number of intervals the window is divided into
+	 */
+	public Bulkhead(String name, int limit, long window, int bucketCount) {
+		this.name = name;
+		this.rejected = new RollingCounters(1, window, bucketCount);
+		setLimit(limit);
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public int getLimit() {
+		return this.limit;
+	}
+
+	/**
+	 * @param limit the maximum number of calls in flight
+	 */
+	public void setLimit(int limit) {
+		Assert.isTrue(limit > 0, "Limit must be positive");
+		this.limit = limit;
+	}
+
+	/**
+	 * @return the number of calls in flight
+	 */
+	public int getInFlight() {
+		return this.inFlight.get();
+	}
+
+	/**
+	 * @return the number of calls rejected in the rolling window
+	 */
+	public long getRollingRejectedCount() {
+		return this.rejected.sum(0, System.currentTimeMillis());
+	}
+
+	/**
+	 * Admit a call if there is room for it. A call that is admitted must be
+	 * {@link #release() released} when it finishes.
+	 *
+	 * @return true if the call can go ahead
+	 */
+	public boolean tryAcquire() {
+		int current = this.inFlight.get();
+		while (current < this.limit) {
+			if (this.inFlight.compareAndSet(current, current + 1)) {
+				return true;
+			}
+			current = this.inFlight.get();
+		}
+		this.rejected.increment(0, System.currentTimeMillis());
+		return false;
+	}
+
+	/**
+	 * Signal that an admitted call has finished.
+	 */
+	public void release() {
+		this.inFlight.decrementAndGet();
+	}
+
+	@Override
+	public String toString() {
+		return "Bulkhead [name=" + this.name + ", limit=" + this.limit + ", inFlight="
+				+ this.inFlight + "]";
+	}
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+import org.springframework.aop.framework.AbstractAdvisingBeanPostProcessor;
+import org.springframework.aop.support.DefaultPointcutAdvisor;
+import org.springframework.aop.support.annotation.AnnotationMatchingPointcut;
+import org.springframework.retry.RetryStatistics;
+import org.springframework.retry.annotation.CircuitBreaker;
+
+/**
+ * Puts a {@link Bulkhead} around every <code>@CircuitBreaker</code> method, one per
+ * label, so that a call is rejected immediately when there are too many in flight
+ * with the same label, and contributes the limits and the number of rejections to the
+ * Hystrix stream.
+ * <p>
+ * The bulkhead goes inside the circuit breaker, so a rejected call fails with a
+ * {@link BulkheadRejectedException} and goes to the <code>@Recover</code> method like
+ * any other failure, and an open circuit is not held up by the bulkhead at all. As in
+ * Hystrix, rejections count as errors towards opening the circuit, so a downstream
+ * that stays too slow for its limit is cut off.
+ * <p>
+ * Register it as a <code>static</code> bean so that it is in place before the beans
+ * it has to advise are created.
+ *
+ * @author Dave Syer
+ *
+ */
+@SuppressWarnings("serial")
+public class BulkheadPostProcessor extends AbstractAdvisingBeanPostProcessor
+		implements HystrixMetricsContributor {
+
+	private final ConcurrentMap<String, Bulkhead> bulkheads = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<Method, Bulkhead> methods = new ConcurrentHashMap<>();
+
+	private int maxConcurrentRequests = 10;
+
+	private Map<String, Integer> limits = Collections.emptyMap();
+
+	private long window = 10000;
+
+	private int bucketCount = 10;
+
+	public BulkheadPostProcessor() {
+		this.advisor = new DefaultPointcutAdvisor(
+				AnnotationMatchingPointcut.forMethodAnnotation(CircuitBreaker.class),
+				new BulkheadInterceptor());
+	}
+
+	/**
+	 * The maximum number of calls in flight per label unless there is a specific
+	 * limit for the label (default 10, the same as Hystrix).
+	 *
+	 * @param maxConcurrentRequests the limit to set
+	 */
+	public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+		this.maxConcurrentRequests = maxConcurrentRequests;
+		for (Bulkhead bulkhead : this.bulkheads.values()) {
+			bulkhead.setLimit(getLimit(bulkhead.getName()));
+		}
+	}
+
+	/**
+	 * Limits for specific labels, overriding the default.
+	 *
+	 * @param limits the maximum number of calls in flight keyed by label
+	 */
+	public void setLimits(Map<String, Integer> limits) {
+		this.limits = new HashMap<>(limits);
+		for (Bulkhead bulkhead : this.bulkheads.values()) {
+			bulkhead.setLimit(getLimit(bulkhead.getName()));
+		}
+	}
+
+	/**
+	 * The length of the rolling window for the rejections in milliseconds (default
+	 * 10000).
+	 *
+	 * @param window the window to set
+	 */
+	public void setWindow(long window) {
+		this.window = window;
+	}
+
+	/**
+	 * The number of buckets the rolling window is divided into (default 10).
+	 *
+	 * @param bucketCount the bucket count to set
+	 */
+	public void setBucketCount(int bucketCount) {
+		this.bucketCount = bucketCount;
+	}
+
+	/**
+	 * @param name the label of a circuit breaker
+	 * @return the bulkhead for that label or null if it has not been called
+	 */
+	public Bulkhead getBulkhead(String name) {
+		return this.bulkheads.get(name);
+	}
+
+	@Override
+	public void contribute(RetryStatistics statistics, HystrixMetrics metrics) {
+		Bulkhead bulkhead = this.bulkheads.get(statistics.getName());
+		if (bulkhead == null) {
+			return;
+		}
+		metrics.setPropertyValue_executionIsolationStrategy("SEMAPHORE");
+		metrics.setPropertyValue_executionIsolationSemaphoreMaxConcurrentRequests(
+				bulkhead.getLimit());
+		metrics.setRollingCountSemaphoreRejected(
+				metrics.getRollingCountSemaphoreRejected()
+						+ bulkhead.getRollingRejectedCount());
+	}
+
+	private int getLimit(String name) {
+		Integer limit = this.limits.get(name);
+		return limit == null ? this.maxConcurrentRequests : limit;
+	}
+
+	private Bulkhead getBulkhead(MethodInvocation invocation) {
+		Method method = invocation.getMethod();
+		Bulkhead bulkhead = this.methods.get(method);
+		if (bulkhead == null) {
+			String name = CircuitBreakerLabels.getLabel(method, invocation.getThis());
+			bulkhead = this.bulkheads.get(name);
+			if (bulkhead == null) {
+				this.bulkheads.putIfAbsent(name, new Bulkhead(name, getLimit(name),
+						this.window, this.bucketCount));
+				bulkhead = this.bulkheads.get(name);
+			}
+			this.methods.put(method, bulkhead);
+		}
+		return bulkhead;
+	}
+
+	private class BulkheadInterceptor implements MethodInterceptor {
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			Bulkhead bulkhead = getBulkhead(invocation);
+			if (!bulkhead.tryAcquire()) {
+				throw new BulkheadRejectedException(bulkhead.getName(),
+						bulkhead.getLimit());
+			}
+			try {
+				return invocation.proceed();
+			}
+			finally {
+				bulkhead.release();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+/**
+ * Thrown instead of making a call when its {@link Bulkhead} is full. There is no stack
+ * trace, because rejections come in floods when a downstream is slow, and the place
+ * they come from is always the same.
+ *
+ * @author Dave Syer
+ *
+ */
+@SuppressWarnings("serial")
+public class BulkheadRejectedException extends RuntimeException {
+
+	private final String name;
+
+	public BulkheadRejectedException(String name, int limit) {
+		super("Too many calls in flight for " + name + " (limit " + limit + ")", null,
+				false, false);
+		this.name = name;
+	}
+
+	/**
+	 * @return the label of the bulkhead that rejected the call
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+}
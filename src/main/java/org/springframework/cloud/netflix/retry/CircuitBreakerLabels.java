@@ -0,0 +1,63 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.lang.reflect.Method;
+
+import org.springframework.aop.support.AopUtils;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.retry.annotation.CircuitBreaker;
+import org.springframework.util.StringUtils;
+
+/**
+ * Works out the label of a <code>@CircuitBreaker</code> method in the same way as the
+ * circuit breaker itself, so that data kept outside the retry context can be matched
+ * up with the statistics for the circuit.
+ *
+ * @author Dave Syer
+ *
+ */
+abstract class CircuitBreakerLabels {
+
+	/**
+	 * @param method the method being called (possibly on an interface)
+	 * @param target the target of the call (may be null)
+	 * @return the label of the circuit breaker on the method
+	 */
+	static String getLabel(Method method, Object target) {
+		CircuitBreaker circuit = getAnnotation(method, target);
+		// The same default as the circuit breaker itself
+		return circuit != null && StringUtils.hasText(circuit.label()) ? circuit.label()
+				: method.toGenericString();
+	}
+
+	/**
+	 * @param method the method being called (possibly on an interface)
+	 * @param target the target of the call (may be null)
+	 * @return the circuit breaker annotation on the method or null if there is none
+	 */
+	static CircuitBreaker getAnnotation(Method method, Object target) {
+		CircuitBreaker circuit = AnnotationUtils.findAnnotation(method,
+				CircuitBreaker.class);
+		if (circuit == null && target != null) {
+			circuit = AnnotationUtils.findAnnotation(AopUtils.getMostSpecificMethod(
+					method, AopUtils.getTargetClass(target)), CircuitBreaker.class);
+		}
+		return circuit;
+	}
+
+}
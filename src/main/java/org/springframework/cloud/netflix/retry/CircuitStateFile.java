@@ -0,0 +1,277 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.util.Assert;
+
+/**
+ * A memory-mapped file with a fixed number of fixed size slots, each holding the
+ * checkpointed circuit state of one label. Writing a checkpoint is a few stores into
+ * the mapping, with no system calls, and the operating system writes the pages back
+ * to disk in its own time, so the state survives the process (but not necessarily
+ * the machine) crashing unless {@link #force()} is called.
+ * <p>
+ * Each slot starts with a sequence number that is odd while the slot is being
+ * written, so a slot that was torn by a crash is ignored when the file is read. A
+ * label is assigned a slot the first time it is written and keeps it, and labels that
+ * arrive when all the slots are taken, or that are too long for a slot, are not
+ * saved. A file with a different layout is wiped when it is opened.
+ * <p>
+ * Not thread safe: a single thread is expected to write the checkpoints.
+ *
+ * @author Dave Syer
+ *
+ */
+class CircuitStateFile {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int MAGIC = 0x43495243;
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER = 64;
+
+	static final int SLOT = 512;
+
+	private static final int SEQUENCE = 0;
+
+	private static final int TIME = 8;
+
+	private static final int OPENED = 16;
+
+	private static final int OPEN = 24;
+
+	private static final int SHORT_COUNT = 28;
+
+	private static final int COUNTS = 32;
+
+	private static final int LABEL_LENGTH = COUNTS
+			+ 8 * RollingRetryStatistics.SHORT_CIRCUIT;
+
+	private static final int LABEL = LABEL_LENGTH + 2;
+
+	static final int MAX_LABEL = SLOT - LABEL;
+
+	private final MappedByteBuffer buffer;
+
+	private final int slots;
+
+	private final Map<String, Integer> index = new HashMap<>();
+
+	private int next;
+
+	/**
+	 * Open the file, creating it or wiping it if necessary.
+	 *
+	 * @param file the file to map
+	 * @param slots the number of labels it can hold
+	 * @throws IOException if the file cannot be mapped
+	 */
+	CircuitStateFile(File file, int slots) throws IOException {
+		Assert.isTrue(slots > 0, "Number of slots must be positive");
+		this.slots = slots;
+		long size = HEADER + (long) slots * SLOT;
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.exists()) {
+			parent.mkdirs();
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			boolean valid = raf.length() == size;
+			raf.setLength(size);
+			// The mapping stays valid when the channel is closed
+			this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			if (!valid || this.buffer.getInt(0) != MAGIC
+					|| this.buffer.getInt(4) != VERSION
+					|| this.buffer.getInt(8) != slots
+					|| this.buffer.getInt(12) != SLOT) {
+				wipe();
+			}
+		}
+		for (int slot = 0; slot < slots; slot++) {
+			String label = label(slot);
+			if (label != null) {
+				this.index.put(label, slot);
+			}
+		}
+	}
+
+	/**
+	 * @return the consistent states in the file
+	 */
+	List<CircuitState> read() {
+		List<CircuitState> states = new ArrayList<>();
+		for (int slot : this.index.values()) {
+			int offset = offset(slot);
+			long sequence = this.buffer.getLong(offset + SEQUENCE);
+			if ((sequence & 1) != 0) {
+				continue;
+			}
+			CircuitState state = new CircuitState(label(slot));
+			state.time = this.buffer.getLong(offset + TIME);
+			state.opened = this.buffer.getLong(offset + OPENED);
+			state.open = this.buffer.getInt(offset + OPEN) != 0;
+			state.shortCount = this.buffer.getInt(offset + SHORT_COUNT);
+			for (int field = 1; field < state.counts.length; field++) {
+				state.counts[field] = this.buffer
+						.getLong(offset + COUNTS + 8 * (field - 1));
+			}
+			if (this.buffer.getLong(offset + SEQUENCE) == sequence) {
+				states.add(state);
+			}
+		}
+		return states;
+	}
+
+	/**
+	 * Save the state for a label in its slot, assigning one if it has not got one.
+	 *
+	 * @param state the state to save
+	 * @return true if it was saved
+	 */
+	boolean write(CircuitState state) {
+		Integer slot = this.index.get(state.name);
+		if (slot == null) {
+			slot = assign(state.name);
+			if (slot == null) {
+				return false;
+			}
+		}
+		int offset = offset(slot);
+		long sequence = this.buffer.getLong(offset + SEQUENCE);
+		this.buffer.putLong(offset + SEQUENCE, sequence | 1);
+		this.buffer.putLong(offset + TIME, state.time);
+		this.buffer.putLong(offset + OPENED, state.opened);
+		this.buffer.putInt(offset + OPEN, state.open ? 1 : 0);
+		this.buffer.putInt(offset + SHORT_COUNT, state.shortCount);
+		for (int field = 1; field < state.counts.length; field++) {
+			this.buffer.putLong(offset + COUNTS + 8 * (field - 1), state.counts[field]);
+		}
+		this.buffer.putLong(offset + SEQUENCE, (sequence | 1) + 1);
+		return true;
+	}
+
+	/**
+	 * Write the changes through to the disk.
+	 */
+	void force() {
+		this.buffer.force();
+	}
+
+	private Integer assign(String name) {
+		byte[] bytes = name.getBytes(UTF8);
+		if (bytes.length > MAX_LABEL) {
+			return null;
+		}
+		while (this.next < this.slots && label(this.next) != null) {
+			this.next++;
+		}
+		if (this.next >= this.slots) {
+			return null;
+		}
+		int slot = this.next++;
+		int offset = offset(slot);
+		this.buffer.putLong(offset + SEQUENCE, 1);
+		for (int i = 0; i < bytes.length; i++) {
+			this.buffer.put(offset + LABEL + i, bytes[i]);
+		}
+		this.buffer.putShort(offset + LABEL_LENGTH, (short) bytes.length);
+		this.index.put(name, slot);
+		return slot;
+	}
+
+	private String label(int slot) {
+		int offset = offset(slot);
+		int length = this.buffer.getShort(offset + LABEL_LENGTH);
+		if (length <= 0 || length > MAX_LABEL) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = this.buffer.get(offset + LABEL + i);
+		}
+		return new String(bytes, UTF8);
+	}
+
+	private void wipe() {
+		for (int i = 0; i < this.buffer.capacity(); i += 8) {
+			this.buffer.putLong(i, 0);
+		}
+		this.buffer.putInt(0, MAGIC);
+		this.buffer.putInt(4, VERSION);
+		this.buffer.putInt(8, this.slots);
+		this.buffer.putInt(12, SLOT);
+	}
+
+	private int offset(int slot) {
+		return HEADER + slot * SLOT;
+	}
+
+	/**
+	 * The checkpointed state of one label.
+	 */
+	static class CircuitState {
+
+		final String name;
+
+		/**
+		 * The time of the checkpoint.
+		 */
+		long time;
+
+		/**
+		 * The last time the circuit was seen to be opened or short circuiting, or 0.
+		 */
+		long opened;
+
+		boolean open;
+
+		int shortCount;
+
+		/**
+		 * The rolling counts indexed by the fields of {@link RollingRetryStatistics}.
+		 */
+		final long[] counts = new long[RollingRetryStatistics.SHORT_CIRCUIT + 1];
+
+		CircuitState(String name) {
+			this.name = name;
+		}
+
+		CircuitState copy() {
+			CircuitState copy = new CircuitState(this.name);
+			copy.time = this.time;
+			copy.opened = this.opened;
+			copy.open = this.open;
+			copy.shortCount = this.shortCount;
+			System.arraycopy(this.counts, 0, copy.counts, 0, this.counts.length);
+			return copy;
+		}
+
+	}
+
+}
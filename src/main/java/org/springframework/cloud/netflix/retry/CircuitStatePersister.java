@@ -0,0 +1,404 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.aop.framework.AbstractAdvisingBeanPostProcessor;
+import org.springframework.aop.support.DefaultPointcutAdvisor;
+import org.springframework.aop.support.annotation.AnnotationMatchingPointcut;
+import org.springframework.cloud.netflix.retry.CircuitStateFile.CircuitState;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.core.AttributeAccessor;
+import org.springframework.retry.RetryCallback;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.RetryListener;
+import org.springframework.retry.RetryStatistics;
+import org.springframework.retry.annotation.CircuitBreaker;
+import org.springframework.retry.policy.CircuitBreakerRetryPolicy;
+import org.springframework.retry.stats.StatisticsRepository;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link RetryListener} that checkpoints the circuit state and rolling counts of
+ * every label in a {@link StatisticsRepository} to a memory-mapped file at a fixed
+ * interval, and restores them when the application starts again, so that a restarted
+ * instance does not immediately hammer a downstream that the previous one had short
+ * circuited.
+ * <p>
+ * The file is read when the persister is created, i.e. before the application takes
+ * any traffic. Circuits that were open at the last checkpoint stay open until the
+ * reset timeout has passed since they were last seen open. The circuit breakers
+ * themselves cannot be restored, because their state is private to the retry policy,
+ * so the persister is also a post processor that puts an advisor inside every
+ * <code>@CircuitBreaker</code> method. While the circuit for its label is held open, a
+ * call is not made and fails with a {@link CircuitHeldOpenException} instead, so it
+ * goes to the <code>@Recover</code> method like any other failure, and it is counted
+ * as a short circuit. The circuit breaker counts it as a failure too, so if the calls
+ * keep coming it opens again by itself. Circuits are only held open for annotated
+ * methods, not for a {@link org.springframework.retry.support.RetryTemplate} that is
+ * used directly.
+ * <p>
+ * The statistics for a label are restored when it is first called, because the
+ * repository only creates them then, and the cumulative counts start again from
+ * zero. The rolling counts are only restored if the statistics are
+ * {@link RollingRetryStatistics}, i.e. the repository was given a
+ * {@link RollingRetryStatisticsFactory}, and the checkpoint is still within their
+ * window. With any other statistics only the circuit state is restored.
+ * <p>
+ * Register it as a <code>static</code> bean so that it is in place before the beans
+ * it has to advise are created.
+ *
+ * @author Dave Syer
+ *
+ */
+@SuppressWarnings("serial")
+public class CircuitStatePersister extends AbstractAdvisingBeanPostProcessor
+		implements RetryListener, SmartLifecycle {
+
+	private static Log logger = LogFactory.getLog(CircuitStatePersister.class);
+
+	private final StatisticsRepository repository;
+
+	private final CircuitStateFile file;
+
+	private final ConcurrentMap<String, CircuitState> restored = new ConcurrentHashMap<>();
+
+	/**
+	 * The time each circuit that is held open was last seen open, keyed by label.
+	 */
+	private final ConcurrentMap<String, Long> held = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<Method, String> labels = new ConcurrentHashMap<>();
+
+	private final Map<String, CircuitState> checkpoints = new HashMap<>();
+
+	private long resetTimeout = 20000;
+
+	private long interval = 1000;
+
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Create a persister with room for 1024 labels in the file.
+	 *
+	 * @param repository the repository to checkpoint
+	 * @param file the file to keep the state in
+	 */
+	public CircuitStatePersister(StatisticsRepository repository, File file) {
+		this(repository, file, 1024);
+	}
+
+	/**
+	 * @param repository the repository to checkpoint
+	 * @param file the file to keep the state in
+	 * @param slots the maximum number of labels to keep
+	 */
+	public CircuitStatePersister(StatisticsRepository repository, File file,
+			int slots) {
+		this.repository = repository;
+		try {
+			this.file = new CircuitStateFile(file, slots);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Cannot map circuit state file: " + file,
+					e);
+		}
+		for (CircuitState state : this.file.read()) {
+			this.checkpoints.put(state.name, state);
+			// The checkpoints are updated in place, so keep what was read apart
+			this.restored.put(state.name, state.copy());
+			if (state.open && state.opened > 0) {
+				this.held.put(state.name, state.opened);
+			}
+		}
+		this.advisor = new DefaultPointcutAdvisor(
+				AnnotationMatchingPointcut.forMethodAnnotation(CircuitBreaker.class),
+				new HoldOpenInterceptor());
+	}
+
+	/**
+	 * The time in milliseconds that a restored circuit is held open for after it was
+	 * last seen open (default 20000, the same as the default for a
+	 * {@link CircuitBreaker}).
+	 *
+	 * @param resetTimeout the reset timeout to set
+	 */
+	public void setResetTimeout(long resetTimeout) {
+		this.resetTimeout = resetTimeout;
+	}
+
+	/**
+	 * The interval between checkpoints in milliseconds (default 1000).
+	 *
+	 * @param interval the interval to set
+	 */
+	public void setInterval(long interval) {
+		Assert.isTrue(interval > 0, "Interval must be positive");
+		this.interval = interval;
+	}
+
+	/**
+	 * @param name the label of a circuit breaker
+	 * @return true if the label is being held open after a restart
+	 */
+	public boolean isHeldOpen(String name) {
+		return isHeldOpen(name, System.currentTimeMillis());
+	}
+
+	private boolean isHeldOpen(String name, long now) {
+		Long opened = this.held.get(name);
+		if (opened == null) {
+			return false;
+		}
+		if (now - opened >= this.resetTimeout) {
+			this.held.remove(name, opened);
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public <T, E extends Throwable> boolean open(RetryContext context,
+			RetryCallback<T, E> callback) {
+		String name = (String) context.getAttribute(RetryContext.NAME);
+		if (name != null) {
+			restore(name, System.currentTimeMillis());
+		}
+		return true;
+	}
+
+	@Override
+	public <T, E extends Throwable> void onError(RetryContext context,
+			RetryCallback<T, E> callback, Throwable throwable) {
+	}
+
+	@Override
+	public <T, E extends Throwable> void close(RetryContext context,
+			RetryCallback<T, E> callback, Throwable throwable) {
+		String name = (String) context.getAttribute(RetryContext.NAME);
+		if (name == null) {
+			return;
+		}
+		// The statistics may have only just been created
+		restore(name, System.currentTimeMillis());
+		if (throwable instanceof CircuitHeldOpenException) {
+			// The breaker only saw a failure, so put it right for whichever listener
+			// copies the state to the statistics
+			context.setAttribute(CircuitBreakerRetryPolicy.CIRCUIT_OPEN, true);
+			Object statistics = this.repository.findOne(name);
+			if (statistics instanceof AttributeAccessor) {
+				((AttributeAccessor) statistics)
+						.setAttribute(CircuitBreakerRetryPolicy.CIRCUIT_OPEN, true);
+			}
+			return;
+		}
+		if (throwable == null && !context.hasAttribute(RetryContext.RECOVERED)) {
+			// A call got through and worked, so the downstream is back
+			this.held.remove(name);
+		}
+	}
+
+	/**
+	 * Save the current state of all the labels in the repository to the file.
+	 */
+	public void checkpoint() {
+		checkpoint(System.currentTimeMillis());
+	}
+
+	synchronized void checkpoint(long now) {
+		for (RetryStatistics statistics : this.repository.findAll()) {
+			String name = statistics.getName();
+			if (this.restored.containsKey(name)) {
+				// Not restored yet, so the last checkpoint is still the best there is
+				continue;
+			}
+			boolean open = Boolean.TRUE.equals(
+					attribute(statistics, CircuitBreakerRetryPolicy.CIRCUIT_OPEN));
+			Object count = attribute(statistics,
+					CircuitBreakerRetryPolicy.CIRCUIT_SHORT_COUNT);
+			int shortCount = count instanceof Integer ? (Integer) count : 0;
+			CircuitState state = this.checkpoints.get(name);
+			if (state == null) {
+				state = new CircuitState(name);
+			}
+			if (!open) {
+				state.opened = 0;
+			}
+			else if (!state.open || state.opened == 0
+					|| state.shortCount != shortCount) {
+				// Still short circuiting, so it would be open for another reset timeout
+				state.opened = now;
+			}
+			state.open = open;
+			state.shortCount = shortCount;
+			state.time = now;
+			if (statistics instanceof RollingRetryStatistics) {
+				RollingRetryStatistics rolling = (RollingRetryStatistics) statistics;
+				for (int field = 1; field < state.counts.length; field++) {
+					state.counts[field] = rolling.sum(field, now);
+				}
+			}
+			if (this.file.write(state)) {
+				this.checkpoints.put(name, state);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void start() {
+		if (this.scheduler != null) {
+			return;
+		}
+		CustomizableThreadFactory factory = new CustomizableThreadFactory(
+				"circuitCheckpoint-");
+		factory.setDaemon(true);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(factory);
+		this.scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					checkpoint();
+				}
+				catch (Exception e) {
+					// An exception would cancel the schedule
+					logger.debug("Failed to checkpoint circuit state.", e);
+				}
+			}
+		}, this.interval, this.interval, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (this.scheduler == null) {
+			return;
+		}
+		this.scheduler.shutdown();
+		this.scheduler = null;
+		checkpoint();
+		this.file.force();
+	}
+
+	@Override
+	public synchronized boolean isRunning() {
+		return this.scheduler != null;
+	}
+
+	@Override
+	public int getPhase() {
+		return 0;
+	}
+
+	@Override
+	public boolean isAutoStartup() {
+		return true;
+	}
+
+	@Override
+	public void stop(Runnable callback) {
+		stop();
+		callback.run();
+	}
+
+	private void restore(String name, long now) {
+		CircuitState state = this.restored.get(name);
+		if (state == null) {
+			return;
+		}
+		RetryStatistics statistics = this.repository.findOne(name);
+		if (!(statistics instanceof AttributeAccessor)
+				|| !this.restored.remove(name, state)) {
+			return;
+		}
+		AttributeAccessor attributes = (AttributeAccessor) statistics;
+		if (statistics instanceof RollingRetryStatistics) {
+			((RollingRetryStatistics) statistics).restore(state.counts,
+					state.shortCount, state.time, now);
+		}
+		else {
+			if (logger.isDebugEnabled()) {
+				logger.debug("Rolling counts not restored for " + name
+						+ " (statistics are not RollingRetryStatistics)");
+			}
+			attributes.setAttribute(CircuitBreakerRetryPolicy.CIRCUIT_SHORT_COUNT,
+					state.shortCount);
+		}
+		attributes.setAttribute(CircuitBreakerRetryPolicy.CIRCUIT_OPEN,
+				isHeldOpen(name, now));
+	}
+
+	private void shortCircuit(String name, long now) {
+		RetryStatistics statistics = this.repository.findOne(name);
+		if (statistics instanceof RollingRetryStatistics) {
+			((RollingRetryStatistics) statistics)
+					.increment(RollingRetryStatistics.SHORT_CIRCUIT, now);
+		}
+	}
+
+	private static Object attribute(RetryStatistics statistics, String name) {
+		if (statistics instanceof AttributeAccessor) {
+			return ((AttributeAccessor) statistics).getAttribute(name);
+		}
+		return null;
+	}
+
+	private String getLabel(MethodInvocation invocation) {
+		Method method = invocation.getMethod();
+		String label = this.labels.get(method);
+		if (label == null) {
+			label = CircuitBreakerLabels.getLabel(method, invocation.getThis());
+			this.labels.put(method, label);
+		}
+		return label;
+	}
+
+	/**
+	 * Fails the calls for labels that are held open without making them.
+	 */
+	private class HoldOpenInterceptor implements MethodInterceptor {
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			if (!held.isEmpty()) {
+				String name = getLabel(invocation);
+				long now = System.currentTimeMillis();
+				if (isHeldOpen(name, now)) {
+					shortCircuit(name, now);
+					throw new CircuitHeldOpenException(name);
+				}
+			}
+			return invocation.proceed();
+		}
+
+	}
+
+}
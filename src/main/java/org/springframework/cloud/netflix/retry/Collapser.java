@@ -0,0 +1,58 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method that takes a single key as one whose concurrent calls can be collapsed
+ * into a single call to a batch method on the same bean. The batch method takes a
+ * <code>List</code> of keys and returns a <code>List</code> of results in the same
+ * order, and is normally a <code>@CircuitBreaker</code> method, so that the batch is
+ * protected (and recovered) as a unit. The body of the annotated method is never
+ * called. Needs a {@link CollapserPostProcessor}.
+ *
+ * @author Dave Syer
+ *
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface Collapser {
+
+	/**
+	 * @return the name of the batch method
+	 */
+	String batchMethod();
+
+	/**
+	 * @return the longest time in milliseconds that a call waits for others to join
+	 * its batch
+	 */
+	long delay() default 10;
+
+	/**
+	 * @return the largest number of calls in a batch (a full batch goes straight
+	 * away)
+	 */
+	int maxBatchSize() default 100;
+
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+import org.springframework.aop.ProxyMethodInvocation;
+import org.springframework.aop.framework.AbstractAdvisingBeanPostProcessor;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.aop.support.DefaultPointcutAdvisor;
+import org.springframework.aop.support.annotation.AnnotationMatchingPointcut;
+import org.springframework.core.MethodIntrospector;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.retry.RetryStatistics;
+import org.springframework.util.Assert;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * Collapses concurrent calls to {@link Collapser @Collapser} methods into calls to
+ * their batch methods, and contributes the number of calls that were collapsed and the
+ * distribution of batch sizes to the Hystrix stream, under the label of the circuit
+ * breaker on the batch method.
+ * <p>
+ * There is no timer thread: the first call into an empty batch waits for the others
+ * to join it, for up to the delay of the <code>@Collapser</code> or until the batch is
+ * full, and then makes the batch call itself (through the proxy, so the circuit
+ * breaker and any other advice on the batch method apply), while the other callers
+ * wait for their results. Calls with the same key in a batch share a single slot in
+ * the batch call. If the batch call fails every caller in the batch gets the same
+ * exception.
+ * <p>
+ * Register it as a <code>static</code> bean so that it is in place before the beans
+ * it has to advise are created.
+ *
+ * @author Dave Syer
+ *
+ */
+@SuppressWarnings("serial")
+public class CollapserPostProcessor extends AbstractAdvisingBeanPostProcessor
+		implements HystrixMetricsContributor {
+
+	private final ConcurrentMap<Key, Batcher> batchers = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<String, LatencyHistogram> batchSizes = new ConcurrentHashMap<>();
+
+	private long window = 10000;
+
+	private int bucketCount = 10;
+
+	public CollapserPostProcessor() {
+		this.advisor = new DefaultPointcutAdvisor(
+				AnnotationMatchingPointcut.forMethodAnnotation(Collapser.class),
+				new CollapserInterceptor());
+		setBeforeExistingAdvisors(true);
+	}
+
+	/**
+	 * The length of the rolling window for the batch sizes in milliseconds (default
+	 * 10000).
+	 *
+	 * @param window the window to set
+	 */
+	public void setWindow(long window) {
+		this.window = window;
+	}
+
+	/**
+	 * The number of buckets the rolling window is divided into (default 10).
+	 *
+	 * @param bucketCount the bucket count to set
+	 */
+	public void setBucketCount(int bucketCount) {
+		this.bucketCount = bucketCount;
+	}
+
+	/**
+	 * @param name the label of the circuit breaker on a batch method
+	 * @return the histogram of batch sizes or null if there have been no batches
+	 */
+	public LatencyHistogram getBatchSizes(String name) {
+		return this.batchSizes.get(name);
+	}
+
+	@Override
+	public void contribute(RetryStatistics statistics, HystrixMetrics metrics) {
+		LatencyHistogram sizes = this.batchSizes.get(statistics.getName());
+		if (sizes == null) {
+			return;
+		}
+		LatencyHistogram.Snapshot snapshot = sizes.snapshot();
+		metrics.setRollingCountCollapsedRequests(
+				metrics.getRollingCountCollapsedRequests() + snapshot.getSum());
+		metrics.setBatchSize_mean(snapshot.getMean());
+		metrics.setBatchSize(LatencyListener.latency(snapshot));
+	}
+
+	private Batcher getBatcher(MethodInvocation invocation) {
+		Key key = new Key(invocation.getThis(), invocation.getMethod());
+		Batcher batcher = this.batchers.get(key);
+		if (batcher == null) {
+			this.batchers.putIfAbsent(key, createBatcher(invocation));
+			batcher = this.batchers.get(key);
+		}
+		return batcher;
+	}
+
+	private Batcher createBatcher(MethodInvocation invocation) {
+		Method method = invocation.getMethod();
+		Object target = invocation.getThis();
+		Class<?> targetClass = AopUtils.getTargetClass(target);
+		Collapser collapser = AnnotationUtils.findAnnotation(
+				AopUtils.getMostSpecificMethod(method, targetClass), Collapser.class);
+		if (collapser == null) {
+			collapser = AnnotationUtils.findAnnotation(method, Collapser.class);
+		}
+		Assert.state(method.getParameterTypes().length == 1,
+				"A @Collapser method must take a single key: " + method);
+		Method batchMethod = ReflectionUtils.findMethod(targetClass,
+				collapser.batchMethod(), List.class);
+		Assert.state(
+				batchMethod != null
+						&& List.class.isAssignableFrom(batchMethod.getReturnType()),
+				"No batch method " + collapser.batchMethod()
+						+ "(List) returning a List on " + targetClass.getName());
+		Object proxy = ((ProxyMethodInvocation) invocation).getProxy();
+		Method invocable = MethodIntrospector.selectInvocableMethod(batchMethod,
+				proxy.getClass());
+		ReflectionUtils.makeAccessible(invocable);
+		String label = CircuitBreakerLabels.getLabel(batchMethod, target);
+		LatencyHistogram sizes = this.batchSizes.get(label);
+		if (sizes == null) {
+			this.batchSizes.putIfAbsent(label,
+					new LatencyHistogram(this.window, this.bucketCount));
+			sizes = this.batchSizes.get(label);
+		}
+		return new Batcher(proxy, invocable, collapser, sizes);
+	}
+
+	private class CollapserInterceptor implements MethodInterceptor {
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			return getBatcher(invocation).submit(invocation.getArguments()[0]);
+		}
+
+	}
+
+	/**
+	 * Collects the calls to one method on one target into batches.
+	 */
+	private static class Batcher {
+
+		private final Object proxy;
+
+		private final Method batchMethod;
+
+		private final long delay;
+
+		private final int maxBatchSize;
+
+		private final LatencyHistogram sizes;
+
+		private Batch current;
+
+		private Batcher(Object proxy, Method batchMethod, Collapser collapser,
+				LatencyHistogram sizes) {
+			this.proxy = proxy;
+			this.batchMethod = batchMethod;
+			this.delay = collapser.delay();
+			this.maxBatchSize = Math.max(1, collapser.maxBatchSize());
+			this.sizes = sizes;
+		}
+
+		private Object submit(Object key) throws Throwable {
+			Batch batch;
+			int index;
+			boolean leader = false;
+			synchronized (this) {
+				if (this.current == null) {
+					this.current = new Batch();
+					leader = true;
+				}
+				batch = this.current;
+				index = batch.add(key);
+				if (batch.callers >= this.maxBatchSize) {
+					this.current = null;
+					batch.full.countDown();
+				}
+			}
+			if (leader) {
+				await(batch.full, this.delay);
+				synchronized (this) {
+					if (this.current == batch) {
+						this.current = null;
+					}
+				}
+				dispatch(batch);
+			}
+			else {
+				await(batch.done, -1);
+			}
+			return batch.get(index);
+		}
+
+		private void dispatch(Batch batch) {
+			List<Object> keys = new ArrayList<>(batch.keys.keySet());
+			try {
+				List<?> results = (List<?>) this.batchMethod.invoke(this.proxy, keys);
+				Assert.state(results != null && results.size() == keys.size(),
+						"Batch method " + this.batchMethod.getName() + " returned "
+								+ (results == null ? null : results.size())
+								+ " results for " + keys.size() + " keys");
+				batch.results = results;
+			}
+			catch (InvocationTargetException e) {
+				batch.error = e.getTargetException();
+			}
+			catch (Throwable e) {
+				batch.error = e;
+			}
+			finally {
+				this.sizes.record(batch.callers);
+				batch.done.countDown();
+			}
+		}
+
+		/**
+		 * Wait for a latch without being interrupted (the interrupt is kept for the
+		 * caller), for a time in milliseconds or for ever if the time is negative.
+		 */
+		private static void await(CountDownLatch latch, long millis) {
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+			boolean interrupted = false;
+			try {
+				while (true) {
+					try {
+						if (millis < 0) {
+							latch.await();
+						}
+						else {
+							latch.await(deadline - System.nanoTime(),
+									TimeUnit.NANOSECONDS);
+						}
+						return;
+					}
+					catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			}
+			finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * The calls that are collapsed into one batch call. The keys are only added while
+	 * the batch is current, under the lock of the {@link Batcher}, and the results are
+	 * only read after the batch call is done.
+	 */
+	private static class Batch {
+
+		private final Map<Object, Integer> keys = new LinkedHashMap<>();
+
+		private final CountDownLatch full = new CountDownLatch(1);
+
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		private int callers;
+
+		private List<?> results;
+
+		private Throwable error;
+
+		private int add(Object key) {
+			this.callers++;
+			Integer index = this.keys.get(key);
+			if (index == null) {
+				index = this.keys.size();
+				this.keys.put(key, index);
+			}
+			return index;
+		}
+
+		private Object get(int index) throws Throwable {
+			if (this.error != null) {
+				throw this.error;
+			}
+			return this.results.get(index);
+		}
+
+	}
+
+	/**
+	 * A method on a particular target.
+	 */
+	private static class Key {
+
+		private final Object target;
+
+		private final Method method;
+
+		private Key(Object target, Method method) {
+			this.target = target;
+			this.method = method;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return this.target == other.target && this.method.equals(other.method);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(this.target) + this.method.hashCode();
+		}
+
+	}
+
+}
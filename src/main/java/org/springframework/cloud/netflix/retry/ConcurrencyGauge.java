@@ -0,0 +1,120 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.util.Assert;
+
+/**
+ * Counts the executions in flight and remembers the highest count seen in a rolling
+ * window. The count is an {@link AtomicLong}, so each increment returns the exact
+ * number in flight for the peak in a single atomic operation, without having to add
+ * up a striped counter. The peak is kept in a ring of buckets and raised with a CAS
+ * loop, and a bucket is only written when a new maximum is seen, which is rare once
+ * the load is steady.
+ *
+ * @author Dave Syer
+ *
+ */
+public class ConcurrencyGauge {
+
+	// Each bucket is a pair of longs (time, max) spread out so that neighbours do not
+	// share a cache line
+	private static final int STRIDE = 8;
+
+	private final AtomicLong current = new AtomicLong();
+
+	private final long interval;
+
+	private final int bucketCount;
+
+	private final AtomicLongArray buckets;
+
+	/**
+	 * Create a gauge with a peak over the last 10 seconds in 10 buckets.
+	 */
+	public ConcurrencyGauge() {
+		this(10000, 10);
+	}
+
+	/**
+	 * @param window the length of the rolling window in milliseconds
+	 * @param bucketCount the number of intervals the window is divided into
+	 */
+	public ConcurrencyGauge(long window, int bucketCount) {
+		Assert.isTrue(bucketCount > 0, "Bucket count must be positive");
+		Assert.isTrue(window >= bucketCount,
+				"Window must be at least one millisecond per bucket");
+		this.interval = window / bucketCount;
+		this.bucketCount = bucketCount;
+		this.buckets = new AtomicLongArray(bucketCount * STRIDE);
+		for (int i = 0; i < bucketCount; i++) {
+			this.buckets.set(i * STRIDE, -1);
+		}
+	}
+
+	public void increment() {
+		increment(System.currentTimeMillis());
+	}
+
+	void increment(long now) {
+		long value = this.current.incrementAndGet();
+		long time = now / this.interval;
+		int index = (int) (time % this.bucketCount) * STRIDE;
+		long bucket = this.buckets.get(index);
+		if (bucket < time && this.buckets.compareAndSet(index, bucket, time)) {
+			this.buckets.set(index + 1, 0);
+		}
+		long max = this.buckets.get(index + 1);
+		while (value > max && !this.buckets.compareAndSet(index + 1, max, value)) {
+			max = this.buckets.get(index + 1);
+		}
+	}
+
+	public void decrement() {
+		this.current.decrementAndGet();
+	}
+
+	/**
+	 * @return the number of executions in flight
+	 */
+	public long getCurrent() {
+		return Math.max(0, this.current.get());
+	}
+
+	/**
+	 * @return the highest number of concurrent executions in the rolling window
+	 */
+	public long getRollingMax() {
+		return getRollingMax(System.currentTimeMillis());
+	}
+
+	long getRollingMax(long now) {
+		long current = now / this.interval;
+		long max = 0;
+		for (int i = 0; i < this.bucketCount; i++) {
+			long time = this.buckets.get(i * STRIDE);
+			if (time > current - this.bucketCount && time <= current) {
+				max = Math.max(max, this.buckets.get(i * STRIDE + 1));
+			}
+		}
+		return max;
+	}
+
+}
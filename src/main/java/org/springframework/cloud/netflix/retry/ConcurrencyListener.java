@@ -0,0 +1,173 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.retry.RetryCallback;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.RetryStatistics;
+import org.springframework.retry.listener.RetryListenerSupport;
+
+/**
+ * A {@link org.springframework.retry.RetryListener} that tracks the number of calls in
+ * flight per label with a {@link ConcurrencyGauge}, and contributes the current and
+ * peak values to the Hystrix stream.
+ * <p>
+ * The label of a circuit breaker is only known once it has been called, so the very
+ * first call for a label is not counted. The gauge that was incremented on
+ * {@link #open(RetryContext, RetryCallback) open} is kept in a stack per thread so
+ * that {@link #close(RetryContext, RetryCallback, Throwable) close} always decrements
+ * the same one.
+ *
+ * @author Dave Syer
+ *
+ */
+public class ConcurrencyListener extends RetryListenerSupport
+		implements HystrixMetricsContributor, LabelEvictionListener {
+
+	private final ConcurrentMap<String, ConcurrencyGauge> gauges = new ConcurrentHashMap<>();
+
+	private final ThreadLocal<Gauges> stack = new ThreadLocal<Gauges>() {
+		@Override
+		protected Gauges initialValue() {
+			return new Gauges();
+		}
+	};
+
+	private long window = 10000;
+
+	private int bucketCount = 10;
+
+	/**
+	 * The length of the rolling window for the peak concurrency in milliseconds
+	 * (default 10000).
+	 *
+	 * @param window the window to set
+	 */
+	public void setWindow(long window) {
+		this.window = window;
+	}
+
+	/**
+	 * The number of buckets the rolling window is divided into (default 10).
+	 *
+	 * @param bucketCount the bucket count to set
+	 */
+	public void setBucketCount(int bucketCount) {
+		this.bucketCount = bucketCount;
+	}
+
+	/**
+	 * @param name the label of a retry or circuit breaker
+	 * @return the gauge for that label or null if it has not been called
+	 */
+	public ConcurrencyGauge getGauge(String name) {
+		return this.gauges.get(name);
+	}
+
+	@Override
+	public <T, E extends Throwable> boolean open(RetryContext context,
+			RetryCallback<T, E> callback) {
+		String name = (String) context.getAttribute(RetryContext.NAME);
+		ConcurrencyGauge gauge = name == null ? null : getOrCreateGauge(name);
+		if (gauge != null) {
+			gauge.increment();
+		}
+		this.stack.get().push(gauge);
+		return true;
+	}
+
+	@Override
+	public <T, E extends Throwable> void close(RetryContext context,
+			RetryCallback<T, E> callback, Throwable throwable) {
+		Gauges gauges = this.stack.get();
+		if (gauges.isEmpty()) {
+			return;
+		}
+		ConcurrencyGauge gauge = gauges.pop();
+		if (gauge != null) {
+			gauge.decrement();
+		}
+		else {
+			// Make sure the gauge exists next time
+			String name = (String) context.getAttribute(RetryContext.NAME);
+			if (name != null) {
+				getOrCreateGauge(name);
+			}
+		}
+	}
+
+	@Override
+	public void contribute(RetryStatistics statistics, HystrixMetrics metrics) {
+		ConcurrencyGauge gauge = this.gauges.get(statistics.getName());
+		if (gauge == null) {
+			return;
+		}
+		metrics.setCurrentConcurrentExecutionCount(
+				metrics.getCurrentConcurrentExecutionCount() + gauge.getCurrent());
+		metrics.setRollingMaxConcurrentExecutionCount(gauge.getRollingMax());
+	}
+
+	@Override
+	public void evicted(String name) {
+		this.gauges.remove(name);
+	}
+
+	private ConcurrencyGauge getOrCreateGauge(String name) {
+		ConcurrencyGauge gauge = this.gauges.get(name);
+		if (gauge == null) {
+			gauge = new ConcurrencyGauge(this.window, this.bucketCount);
+			ConcurrencyGauge existing = this.gauges.putIfAbsent(name, gauge);
+			if (existing != null) {
+				gauge = existing;
+			}
+		}
+		return gauge;
+	}
+
+	/**
+	 * The gauges incremented by the retries in progress on one thread.
+	 */
+	private static class Gauges {
+
+		private ConcurrencyGauge[] gauges = new ConcurrencyGauge[4];
+
+		private int depth;
+
+		public boolean isEmpty() {
+			return this.depth == 0;
+		}
+
+		public void push(ConcurrencyGauge gauge) {
+			if (this.depth == this.gauges.length) {
+				this.gauges = Arrays.copyOf(this.gauges, this.depth * 2);
+			}
+			this.gauges[this.depth++] = gauge;
+		}
+
+		public ConcurrencyGauge pop() {
+			ConcurrencyGauge gauge = this.gauges[--this.depth];
+			this.gauges[this.depth] = null;
+			return gauge;
+		}
+
+	}
+
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.net.SocketTimeoutException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import org.springframework.retry.RetryCallback;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.RetryStatistics;
+import org.springframework.retry.listener.RetryListenerSupport;
+import org.springframework.util.ClassUtils;
+import org.springframework.web.client.HttpClientErrorException;
+
+/**
+ * A {@link org.springframework.retry.RetryListener} that sorts the errors from each
+ * attempt into the kinds of failure that Hystrix reports separately (timeouts, bad
+ * requests and rejections), counts them per label over a rolling window, and
+ * contributes the counts to the Hystrix stream. Calls that end by throwing an
+ * exception to the caller (instead of recovering) are counted as well.
+ * <p>
+ * An error is classified by the rule for its class or the nearest superclass that has
+ * one, and anything without a rule is a plain {@link ErrorType#FAILURE}. The result is
+ * cached per exception class, so during an outage, when the error rate is highest,
+ * classifying an error is a single hash lookup. The cause of an error is not looked
+ * at, because then the class would not be enough to decide.
+ *
+ * @author Dave Syer
+ *
+ */
+public class ErrorClassifyingListener extends RetryListenerSupport
+		implements HystrixMetricsContributor, LabelEvictionListener {
+
+	private static final boolean WEB_PRESENT = ClassUtils.isPresent(
+			"org.springframework.web.client.HttpClientErrorException",
+			ErrorClassifyingListener.class.getClassLoader());
+
+	private final ConcurrentMap<String, RollingCounters> counters = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<Class<?>, ErrorType> classified = new ConcurrentHashMap<>();
+
+	private volatile Map<Class<?>, ErrorType> rules;
+
+	private static final int THROWN = ErrorType.values().length;
+
+	private long window = 10000;
+
+	private int bucketCount = 10;
+
+	public ErrorClassifyingListener() {
+		Map<Class<? extends Throwable>, ErrorType> rules = new LinkedHashMap<>();
+		rules.put(TimeoutException.class, ErrorType.TIMEOUT);
+		rules.put(SocketTimeoutException.class, ErrorType.TIMEOUT);
+		if (WEB_PRESENT) {
+			WebRules.addTo(rules);
+		}
+		rules.put(RejectedExecutionException.class, ErrorType.THREAD_POOL_REJECTED);
+		setRules(rules);
+	}
+
+	/**
+	 * The kind of failure for each exception type, replacing the defaults (timeouts
+	 * for {@link TimeoutException} and {@link SocketTimeoutException}, bad requests for
+	 * {@link HttpClientErrorException} if spring-web is present, and thread pool
+	 * rejections for {@link RejectedExecutionException}).
+	 *
+	 * @param rules the rules to set
+	 */
+	public void setRules(Map<Class<? extends Throwable>, ErrorType> rules) {
+		this.rules = new ConcurrentHashMap<Class<?>, ErrorType>(rules);
+		this.classified.clear();
+	}
+
+	/**
+	 * The length of the rolling window for the counts in milliseconds (default 10000).
+	 *
+	 * @param window the window to set
+	 */
+	public void setWindow(long window) {
+		this.window = window;
+	}
+
+	/**
+	 * The number of buckets the rolling window is divided into (default 10).
+	 *
+	 * @param bucketCount the bucket count to set
+	 */
+	public void setBucketCount(int bucketCount) {
+		this.bucketCount = bucketCount;
+	}
+
+	/**
+	 * @param throwable an error from an attempt
+	 * @return the kind of failure it represents
+	 */
+	public ErrorType classify(Throwable throwable) {
+		Class<?> type = throwable.getClass();
+		ErrorType result = this.classified.get(type);
+		if (result == null) {
+			Map<Class<?>, ErrorType> rules = this.rules;
+			for (Class<?> cls = type; cls != null && result == null; cls = cls
+					.getSuperclass()) {
+				result = rules.get(cls);
+			}
+			if (result == null) {
+				result = ErrorType.FAILURE;
+			}
+			this.classified.put(type, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @param name the label of a retry or circuit breaker
+	 * @param type the kind of failure
+	 * @return the number of errors of that kind in the rolling window
+	 */
+	public long getRollingCount(String name, ErrorType type) {
+		RollingCounters counters = this.counters.get(name);
+		return counters == null ? 0
+				: counters.sum(type.ordinal(), System.currentTimeMillis());
+	}
+
+	/**
+	 * @param name the label of a retry or circuit breaker
+	 * @return the number of calls that threw an exception in the rolling window
+	 */
+	public long getRollingExceptionsThrown(String name) {
+		RollingCounters counters = this.counters.get(name);
+		return counters == null ? 0
+				: counters.sum(THROWN, System.currentTimeMillis());
+	}
+
+	@Override
+	public <T, E extends Throwable> void onError(RetryContext context,
+			RetryCallback<T, E> callback, Throwable throwable) {
+		String name = getName(context);
+		if (name == null || throwable == null) {
+			return;
+		}
+		getCounters(name).increment(classify(throwable).ordinal(),
+				System.currentTimeMillis());
+	}
+
+	@Override
+	public <T, E extends Throwable> void close(RetryContext context,
+			RetryCallback<T, E> callback, Throwable throwable) {
+		String name = getName(context);
+		if (name == null || throwable == null
+				|| context.hasAttribute(RetryContext.RECOVERED)) {
+			return;
+		}
+		getCounters(name).increment(THROWN, System.currentTimeMillis());
+	}
+
+	@Override
+	public void contribute(RetryStatistics statistics, HystrixMetrics metrics) {
+		RollingCounters counters = this.counters.get(statistics.getName());
+		if (counters == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		// Added to rather than set, in case another contributor counts some as well
+		metrics.setRollingCountTimeout(metrics.getRollingCountTimeout()
+				+ counters.sum(ErrorType.TIMEOUT.ordinal(), now));
+		metrics.setRollingCountBadRequests(metrics.getRollingCountBadRequests()
+				+ counters.sum(ErrorType.BAD_REQUEST.ordinal(), now));
+		metrics.setRollingCountSemaphoreRejected(
+				metrics.getRollingCountSemaphoreRejected()
+						+ counters.sum(ErrorType.SEMAPHORE_REJECTED.ordinal(), now));
+		metrics.setRollingCountThreadPoolRejected(
+				metrics.getRollingCountThreadPoolRejected()
+						+ counters.sum(ErrorType.THREAD_POOL_REJECTED.ordinal(), now));
+		metrics.setRollingCountExceptionsThrown(
+				metrics.getRollingCountExceptionsThrown() + counters.sum(THROWN, now));
+	}
+
+	@Override
+	public void evicted(String name) {
+		this.counters.remove(name);
+	}
+
+	private RollingCounters getCounters(String name) {
+		RollingCounters counters = this.counters.get(name);
+		if (counters == null) {
+			counters = new RollingCounters(THROWN + 1, this.window, this.bucketCount);
+			RollingCounters existing = this.counters.putIfAbsent(name, counters);
+			if (existing != null) {
+				counters = existing;
+			}
+		}
+		return counters;
+	}
+
+	private String getName(RetryContext context) {
+		return (String) context.getAttribute(RetryContext.NAME);
+	}
+
+	/**
+	 * The kinds of failure that are counted separately.
+	 */
+	public enum ErrorType {
+
+		/**
+		 * The call took too long.
+		 */
+		TIMEOUT,
+
+		/**
+		 * The caller sent something the target could not handle, so it was not
+		 * the target's fault.
+		 */
+		BAD_REQUEST,
+
+		/**
+		 * The call was not made because too many others were in flight.
+		 */
+		SEMAPHORE_REJECTED,
+
+		/**
+		 * The call was not made because a thread pool was saturated.
+		 */
+		THREAD_POOL_REJECTED,
+
+		/**
+		 * Any other error.
+		 */
+		FAILURE;
+
+	}
+
+	/**
+	 * Keeps the optional web dependencies out of the way if they are not there.
+	 */
+	private static class WebRules {
+
+		private static void addTo(Map<Class<? extends Throwable>, ErrorType> rules) {
+			rules.put(HttpClientErrorException.class, ErrorType.BAD_REQUEST);
+		}
+
+	}
+
+}
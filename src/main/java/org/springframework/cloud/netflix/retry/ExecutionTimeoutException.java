@@ -0,0 +1,45 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+/**
+ * Thrown instead of the result of a call that took longer than its execution timeout.
+ * The cause, if there is one, is whatever the call threw when it was interrupted.
+ * There is no stack trace, because it would only show the interceptor.
+ *
+ * @author Dave Syer
+ *
+ */
+@SuppressWarnings("serial")
+public class ExecutionTimeoutException extends RuntimeException {
+
+	private final String name;
+
+	public ExecutionTimeoutException(String name, long timeout, Throwable cause) {
+		super("Call to " + name + " timed out after " + timeout + "ms", cause, false,
+				false);
+		this.name = name;
+	}
+
+	/**
+	 * @return the label of the call that timed out
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+}
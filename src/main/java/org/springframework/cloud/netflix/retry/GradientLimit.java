@@ -0,0 +1,205 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import org.springframework.util.Assert;
+
+/**
+ * A concurrency limit that adapts to the latency of a downstream, in the style of TCP
+ * Vegas. The shortest round trip time seen recently is taken to be the latency with no
+ * queueing. While calls take no longer than that times a tolerance, the limit grows by
+ * about one call per round trip, and when they take longer it is scaled down by the
+ * ratio of the two (the gradient), so the latency of the calls that are let through
+ * stays bounded however much load is offered. An error cuts the limit by a fixed
+ * ratio, as in AIMD. Growing slowly and shrinking quickly means the limit does not
+ * overshoot much while the extra latency of a longer queue is still on its way back.
+ * <p>
+ * Under constant overload the downstream never gets a chance to show its latency with
+ * no queueing, so every so often the limit is dropped to its square root, and once the
+ * calls that were already in flight have drained the shortest round trip time is
+ * measured again from the next few samples. That also lets the limit follow a
+ * downstream that has got permanently slower. The first probe comes early, because
+ * the first samples may well have been taken under load. The limit is only raised
+ * when the calls in flight are close to it, since otherwise there is no evidence that
+ * more would be better.
+ *
+ * @author Dave Syer
+ *
+ */
+public class GradientLimit {
+
+	private static final int PROBE_SAMPLES = 10;
+
+	private final int minLimit;
+
+	private final int maxLimit;
+
+	private double tolerance = 2;
+
+	private double smoothing = 0.2;
+
+	private double backoffRatio = 0.9;
+
+	private int probeInterval = 1000;
+
+	private double limit;
+
+	private long minRtt = Long.MAX_VALUE;
+
+	private long nextMinRtt = Long.MAX_VALUE;
+
+	private int samples;
+
+	private int probe;
+
+	private boolean probed;
+
+	/**
+	 * @param initialLimit the limit to start with
+	 * @param minLimit the lowest the limit can go
+	 * @param maxLimit the highest the limit can go
+	 */
+	public GradientLimit(int initialLimit, int minLimit, int maxLimit) {
+		Assert.isTrue(minLimit > 0, "Minimum limit must be positive");
+		Assert.isTrue(minLimit <= initialLimit && initialLimit <= maxLimit,
+				"Initial limit must be between the minimum and maximum");
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.limit = initialLimit;
+	}
+
+	/**
+	 * How much longer than the shortest round trip time a call can take before the
+	 * limit comes down (default 2, so the latency settles at about twice the
+	 * latency with no queueing).
+	 *
+	 * @param tolerance the tolerance to set
+	 */
+	public void setTolerance(double tolerance) {
+		Assert.isTrue(tolerance >= 1, "Tolerance must be at least 1");
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * The weight of the gradient in each step down of the limit (default 0.2).
+	 *
+	 * @param smoothing the smoothing to set
+	 */
+	public void setSmoothing(double smoothing) {
+		Assert.isTrue(smoothing > 0 && smoothing <= 1,
+				"Smoothing must be between 0 and 1");
+		this.smoothing = smoothing;
+	}
+
+	/**
+	 * The ratio the limit is multiplied by when a call fails (default 0.9).
+	 *
+	 * @param backoffRatio the backoff ratio to set
+	 */
+	public void setBackoffRatio(double backoffRatio) {
+		Assert.isTrue(backoffRatio > 0 && backoffRatio < 1,
+				"Backoff ratio must be between 0 and 1");
+		this.backoffRatio = backoffRatio;
+	}
+
+	/**
+	 * The number of samples between measurements of the latency with no queueing
+	 * (default 1000).
+	 *
+	 * @param probeInterval the probe interval to set
+	 */
+	public void setProbeInterval(int probeInterval) {
+		Assert.isTrue(probeInterval > 0, "Probe interval must be positive");
+		this.probeInterval = probeInterval;
+	}
+
+	/**
+	 * @return the current limit
+	 */
+	public synchronized int getLimit() {
+		return (int) this.limit;
+	}
+
+	/**
+	 * @return the shortest recent round trip time, or -1 if there has not been a
+	 * sample yet
+	 */
+	public synchronized long getMinRtt() {
+		return this.minRtt == Long.MAX_VALUE ? -1 : this.minRtt;
+	}
+
+	/**
+	 * Adjust the limit for a call that has finished.
+	 *
+	 * @param rtt the round trip time of the call (in any unit, as long as it is
+	 * always the same)
+	 * @param inFlight the number of calls in flight when it finished
+	 * @param dropped true if the call failed
+	 * @return the new limit
+	 */
+	public synchronized int update(long rtt, int inFlight, boolean dropped) {
+		if (dropped) {
+			this.limit = Math.max(this.minLimit, this.limit * this.backoffRatio);
+			return (int) this.limit;
+		}
+		rtt = Math.max(1, rtt);
+		if (this.probe > 0) {
+			if (inFlight > this.limit) {
+				// Still draining the queue from before the probe
+				return (int) this.limit;
+			}
+			this.nextMinRtt = Math.min(this.nextMinRtt, rtt);
+			if (--this.probe == 0) {
+				this.minRtt = this.nextMinRtt;
+			}
+			return (int) this.limit;
+		}
+		int interval = this.probed ? this.probeInterval
+				: Math.min(this.probeInterval, 2 * PROBE_SAMPLES);
+		if (++this.samples >= interval) {
+			this.samples = 0;
+			this.probed = true;
+			this.probe = PROBE_SAMPLES;
+			this.nextMinRtt = Long.MAX_VALUE;
+			this.limit = Math.max(this.minLimit, Math.sqrt(this.limit));
+			return (int) this.limit;
+		}
+		this.minRtt = Math.min(this.minRtt, rtt);
+		double gradient = Math.max(0.5,
+				Math.min(1, this.tolerance * this.minRtt / rtt));
+		double limit;
+		if (gradient < 1) {
+			limit = this.limit * (1 - this.smoothing * (1 - gradient));
+		}
+		else if (inFlight >= this.limit / 2) {
+			limit = this.limit + 1 / this.limit;
+		}
+		else {
+			// Not enough load to tell if a higher limit would help
+			return (int) this.limit;
+		}
+		this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, limit));
+		return (int) this.limit;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "GradientLimit [limit=" + (int) this.limit + ", minRtt=" + getMinRtt()
+				+ "]";
+	}
+
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+/**
+ * A timer for large numbers of timeouts that are nearly all cancelled before they
+ * expire, like the ones in Netty and Kafka. Time is divided into ticks, and the
+ * timeouts are kept in a wheel of buckets, one per tick, with the number of whole
+ * turns of the wheel each one still has to wait. A single thread visits one bucket per
+ * tick and expires the timeouts that are due, so a timeout fires up to one tick late,
+ * but the cost of scheduling or cancelling one does not depend on how many there are.
+ * <p>
+ * Scheduling and cancelling only push the timeout onto a lock-free stack for the timer
+ * thread to pick up on its next tick, with the links held in the timeout itself, so
+ * the only allocation is the {@link Timeout}. The timer thread is started by the first
+ * timeout and the callbacks run on it, so they have to be quick.
+ *
+ * @author Dave Syer
+ *
+ */
+class HashedWheelTimer {
+
+	private static Log logger = LogFactory.getLog(HashedWheelTimer.class);
+
+	private static final int WAITING = 0;
+
+	private static final int CANCELLED = 1;
+
+	private static final int EXPIRED = 2;
+
+	private final long tick;
+
+	private final Bucket[] wheel;
+
+	private final int mask;
+
+	private final long start = System.nanoTime();
+
+	private final AtomicReference<Timeout> pending = new AtomicReference<>();
+
+	private final AtomicReference<Timeout> cancelled = new AtomicReference<>();
+
+	private Thread worker;
+
+	/**
+	 * Set once the worker is running, so that only the first timeouts take the lock.
+	 */
+	private volatile boolean started;
+
+	private volatile boolean stopped;
+
+	/**
+	 * Worker thread only: the number of ticks processed so far.
+	 */
+	private long ticks;
+
+	/**
+	 * @param tick the length of a tick in milliseconds
+	 * @param wheelSize the number of buckets (rounded up to a power of two)
+	 */
+	HashedWheelTimer(long tick, int wheelSize) {
+		Assert.isTrue(tick > 0, "Tick must be positive");
+		Assert.isTrue(wheelSize > 0 && wheelSize <= 1 << 20,
+				"Wheel size must be between 1 and 2^20");
+		this.tick = TimeUnit.MILLISECONDS.toNanos(tick);
+		int size = Integer.highestOneBit(wheelSize);
+		if (size < wheelSize) {
+			size <<= 1;
+		}
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			this.wheel[i] = new Bucket();
+		}
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Schedule a timeout.
+	 *
+	 * @param timeout a timeout that has not been scheduled before
+	 * @param delay the delay in milliseconds
+	 * @return false if the timer has been stopped (so the timeout will never expire)
+	 */
+	boolean schedule(Timeout timeout, long delay) {
+		Assert.state(timeout.timer == null, "Timeout has already been scheduled");
+		if (this.stopped || (!this.started && !start())) {
+			return false;
+		}
+		timeout.timer = this;
+		timeout.deadline = System.nanoTime() - this.start
+				+ TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay));
+		Timeout head;
+		do {
+			head = this.pending.get();
+			timeout.nextPending = head;
+		}
+		while (!this.pending.compareAndSet(head, timeout));
+		return true;
+	}
+
+	/**
+	 * Stop the timer thread. Timeouts that have not expired yet never will.
+	 */
+	void stop() {
+		Thread worker;
+		synchronized (this) {
+			this.stopped = true;
+			worker = this.worker;
+		}
+		if (worker != null && worker != Thread.currentThread()) {
+			LockSupport.unpark(worker);
+			try {
+				worker.join(TimeUnit.NANOSECONDS.toMillis(this.tick) + 1000);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private synchronized boolean start() {
+		if (this.stopped) {
+			return false;
+		}
+		if (this.worker == null) {
+			CustomizableThreadFactory factory = new CustomizableThreadFactory(
+					"hystrixTimer-");
+			factory.setDaemon(true);
+			this.worker = factory.newThread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			});
+			this.worker.start();
+			this.started = true;
+		}
+		return true;
+	}
+
+	private void cancelled(Timeout timeout) {
+		Timeout head;
+		do {
+			head = this.cancelled.get();
+			timeout.nextCancelled = head;
+		}
+		while (!this.cancelled.compareAndSet(head, timeout));
+	}
+
+	private void work() {
+		while (!this.stopped) {
+			long end = (this.ticks + 1) * this.tick;
+			long now;
+			while ((now = System.nanoTime() - this.start) < end && !this.stopped) {
+				LockSupport.parkNanos(this, end - now);
+			}
+			if (this.stopped) {
+				return;
+			}
+			// Cancelled first, so a timeout cancelled before it was placed is skipped
+			for (Timeout timeout = this.cancelled.getAndSet(null); timeout != null;) {
+				Timeout next = timeout.nextCancelled;
+				timeout.nextCancelled = null;
+				if (timeout.bucket != null) {
+					timeout.bucket.remove(timeout);
+				}
+				timeout = next;
+			}
+			for (Timeout timeout = this.pending.getAndSet(null); timeout != null;) {
+				Timeout next = timeout.nextPending;
+				timeout.nextPending = null;
+				if (timeout.state == WAITING) {
+					long due = timeout.deadline / this.tick;
+					timeout.rounds = (due - this.ticks) / this.wheel.length;
+					this.wheel[(int) (Math.max(due, this.ticks) & this.mask)]
+							.add(timeout);
+				}
+				timeout = next;
+			}
+			this.wheel[(int) (this.ticks & this.mask)].expire();
+			this.ticks++;
+		}
+	}
+
+	/**
+	 * A single timeout. Extend it to say what happens when it expires.
+	 */
+	abstract static class Timeout {
+
+		private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater
+				.newUpdater(Timeout.class, "state");
+
+		private volatile int state;
+
+		private HashedWheelTimer timer;
+
+		private long deadline;
+
+		private Timeout nextPending;
+
+		private Timeout nextCancelled;
+
+		// The rest are only used by the timer thread
+
+		private long rounds;
+
+		private Bucket bucket;
+
+		private Timeout prev;
+
+		private Timeout next;
+
+		/**
+		 * Cancel the timeout.
+		 *
+		 * @return true if it was cancelled, false if it had already expired (or been
+		 * cancelled)
+		 */
+		boolean cancel() {
+			if (!STATE.compareAndSet(this, WAITING, CANCELLED)) {
+				return false;
+			}
+			if (this.timer != null) {
+				this.timer.cancelled(this);
+			}
+			return true;
+		}
+
+		/**
+		 * @return true if the timeout has expired
+		 */
+		boolean isExpired() {
+			return this.state == EXPIRED;
+		}
+
+		/**
+		 * Called on the timer thread when the timeout expires.
+		 */
+		protected abstract void expired();
+
+		private void expire() {
+			if (STATE.compareAndSet(this, WAITING, EXPIRED)) {
+				try {
+					expired();
+				}
+				catch (Throwable e) {
+					logger.warn("Timeout callback failed", e);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * The timeouts that fall due in one tick of the wheel, in a doubly linked list so
+	 * that a cancelled one can be taken out in constant time.
+	 */
+	private static class Bucket {
+
+		private Timeout head;
+
+		private Timeout tail;
+
+		private void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (this.head == null) {
+				this.head = this.tail = timeout;
+			}
+			else {
+				this.tail.next = timeout;
+				timeout.prev = this.tail;
+				this.tail = timeout;
+			}
+		}
+
+		private void remove(Timeout timeout) {
+			Timeout next = timeout.next;
+			if (timeout.prev != null) {
+				timeout.prev.next = next;
+			}
+			if (next != null) {
+				next.prev = timeout.prev;
+			}
+			if (timeout == this.head) {
+				this.head = next;
+			}
+			if (timeout == this.tail) {
+				this.tail = timeout.prev;
+			}
+			timeout.prev = null;
+			timeout.next = null;
+			timeout.bucket = null;
+		}
+
+		private void expire() {
+			for (Timeout timeout = this.head; timeout != null;) {
+				Timeout next = timeout.next;
+				if (timeout.rounds <= 0) {
+					// This is the tick it was placed for, so it is due
+					remove(timeout);
+					timeout.expire();
+				}
+				else if (timeout.state != WAITING) {
+					remove(timeout);
+				}
+				else {
+					timeout.rounds--;
+				}
+				timeout = next;
+			}
+		}
+
+	}
+
+}
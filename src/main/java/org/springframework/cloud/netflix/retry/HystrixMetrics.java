@@ -73,6 +73,11 @@ public class HystrixMetrics {
 	private Latency latencyExecute = new Latency();
 	private long latencyTotal_mean = 0;
 	private Latency latencyTotal = new Latency();
+	private long batchSize_mean = 0;
+	private Latency batchSize = new Latency();
+	private long rollingCountRetriesDenied = 0;
+	private long currentRetryBudget = 0;
+	private long currentGlobalRetryBudget = 0;
 
 	public String getThreadPool() {
 		return threadPool;
@@ -474,12 +479,52 @@ public class HystrixMetrics {
 		this.latencyTotal = latencyTotal;
 	}
 
+	public long getBatchSize_mean() {
+		return batchSize_mean;
+	}
+
+	public void setBatchSize_mean(long batchSize_mean) {
+		this.batchSize_mean = batchSize_mean;
+	}
+
+	public Latency getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(Latency batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public long getRollingCountRetriesDenied() {
+		return rollingCountRetriesDenied;
+	}
+
+	public void setRollingCountRetriesDenied(long rollingCountRetriesDenied) {
+		this.rollingCountRetriesDenied = rollingCountRetriesDenied;
+	}
+
+	public long getCurrentRetryBudget() {
+		return currentRetryBudget;
+	}
+
+	public void setCurrentRetryBudget(long currentRetryBudget) {
+		this.currentRetryBudget = currentRetryBudget;
+	}
+
+	public long getCurrentGlobalRetryBudget() {
+		return currentGlobalRetryBudget;
+	}
+
+	public void setCurrentGlobalRetryBudget(long currentGlobalRetryBudget) {
+		this.currentGlobalRetryBudget = currentGlobalRetryBudget;
+	}
+
 	public static class Latency {
 		@JsonProperty("100")
 		private long v100 = 0;
 		@JsonProperty("0")
 		private long v0 = 0;
-		@JsonProperty("20")
+		@JsonProperty("25")
 		private long v25 = 0;
 		@JsonProperty("50")
 		private long v50 = 0;
@@ -492,6 +537,78 @@ public class HystrixMetrics {
 		@JsonProperty("99")
 		private long v99 = 0;
 		@JsonProperty("99.5")
-	    private long v995=0;
+		private long v995 = 0;
+
+		public long getV100() {
+			return v100;
+		}
+
+		public void setV100(long v100) {
+			this.v100 = v100;
+		}
+
+		public long getV0() {
+			return v0;
+		}
+
+		public void setV0(long v0) {
+			this.v0 = v0;
+		}
+
+		public long getV25() {
+			return v25;
+		}
+
+		public void setV25(long v25) {
+			this.v25 = v25;
+		}
+
+		public long getV50() {
+			return v50;
+		}
+
+		public void setV50(long v50) {
+			this.v50 = v50;
+		}
+
+		public long getV75() {
+			return v75;
+		}
+
+		public void setV75(long v75) {
+			this.v75 = v75;
+		}
+
+		public long getV90() {
+			return v90;
+		}
+
+		public void setV90(long v90) {
+			this.v90 = v90;
+		}
+
+		public long getV95() {
+			return v95;
+		}
+
+		public void setV95(long v95) {
+			this.v95 = v95;
+		}
+
+		public long getV99() {
+			return v99;
+		}
+
+		public void setV99(long v99) {
+			this.v99 = v99;
+		}
+
+		public long getV995() {
+			return v995;
+		}
+
+		public void setV995(long v995) {
+			this.v995 = v995;
+		}
 	}
 }
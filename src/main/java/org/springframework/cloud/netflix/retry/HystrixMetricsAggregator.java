@@ -0,0 +1,383 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.cloud.netflix.retry.HystrixMetrics.Latency;
+import org.springframework.util.Assert;
+
+/**
+ * Merges the metrics reported by many hosts into one set of cluster-wide metrics per
+ * command, like Turbine does. Only the latest report from each host is kept, and the
+ * cluster totals are updated incrementally by swapping out the previous contribution
+ * of a host for its new one, so the cost of an update does not depend on the number of
+ * hosts and the memory used is bounded by the number of hosts times the number of
+ * commands.
+ * <p>
+ * Counts are summed. Percentages, means and percentiles cannot be summed, so
+ * they are averaged across hosts, weighted by the request count of each host. The
+ * circuit is reported open if it is open on any host. Hosts that have not reported for
+ * a while can be {@link #expire(long) expired} so they drop out of the totals.
+ *
+ * @author Dave Syer
+ *
+ */
+public class HystrixMetricsAggregator {
+
+	private static final int COUNTS = 23;
+
+	private static final int PERCENTILES = 9;
+
+	// Weighted slots: error percentage, the two latency means, the two sets of latency
+	// percentiles, and then the batch size mean and percentiles
+	private static final int BATCH = 3 + 2 * PERCENTILES;
+
+	private static final int WEIGHTED = BATCH + 1 + PERCENTILES;
+
+	private final ConcurrentMap<String, Command> commands = new ConcurrentHashMap<>();
+
+	private long timeout = 30000;
+
+	/**
+	 * The time in milliseconds after which a host that has not reported is dropped
+	 * from the totals (default 30000).
+	 *
+	 * @param timeout the timeout to set
+	 */
+	public void setTimeout(long timeout) {
+		Assert.isTrue(timeout > 0, "Timeout must be positive");
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Replace the contribution of a host to the totals for a command.
+	 *
+	 * @param host an identifier for the host that reported the metrics
+	 * @param metrics the latest metrics for a single command from that host
+	 */
+	public void update(String host, HystrixMetrics metrics) {
+		update(host, metrics, System.currentTimeMillis());
+	}
+
+	void update(String host, HystrixMetrics metrics, long now) {
+		String name = metrics.getName();
+		Command command;
+		do {
+			command = this.commands.get(name);
+			if (command == null) {
+				command = new Command();
+				Command existing = this.commands.putIfAbsent(name, command);
+				if (existing != null) {
+					command = existing;
+				}
+			}
+		}
+		// Try again if it was pruned while we were looking it up
+		while (!command.update(host, metrics, now));
+	}
+
+	/**
+	 * Drop all the contributions from a host, e.g. when it has been shut down.
+	 *
+	 * @param host the host to remove
+	 */
+	public void remove(String host) {
+		for (Command command : this.commands.values()) {
+			command.remove(host);
+		}
+		prune();
+	}
+
+	/**
+	 * Drop the contributions from hosts that have not reported recently.
+	 *
+	 * @param now the current time in milliseconds
+	 */
+	public void expire(long now) {
+		for (Command command : this.commands.values()) {
+			command.expire(now - this.timeout);
+		}
+		prune();
+	}
+
+	private void prune() {
+		for (Iterator<Command> iter = this.commands.values().iterator(); iter
+				.hasNext();) {
+			if (iter.next().retire()) {
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return the cluster-wide metrics, one per command
+	 */
+	public List<HystrixMetrics> getMetrics() {
+		expire(System.currentTimeMillis());
+		List<HystrixMetrics> list = new ArrayList<>();
+		for (Command command : this.commands.values()) {
+			HystrixMetrics metrics = command.getMetrics();
+			if (metrics != null) {
+				list.add(metrics);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * @param name the name of a command
+	 * @return the cluster-wide metrics for the command, or null if there are none
+	 */
+	public HystrixMetrics getMetrics(String name) {
+		Command command = this.commands.get(name);
+		return command == null ? null : command.getMetrics();
+	}
+
+	/**
+	 * @return the number of commands being tracked
+	 */
+	public int size() {
+		return this.commands.size();
+	}
+
+	/**
+	 * The latest values from one host for one command, in a form that can be added to
+	 * and subtracted from the totals.
+	 */
+	private static class Contribution {
+
+		private final long[] counts;
+
+		private final double[] weighted = new double[WEIGHTED];
+
+		private final double weight;
+
+		private final boolean open;
+
+		private final long time;
+
+		private Contribution(HystrixMetrics metrics, long time) {
+			this.counts = counts(metrics);
+			this.weight = Math.max(1, metrics.getRequestCount());
+			this.open = metrics.isCircuitBreakerOpen();
+			this.time = time;
+			double[] values = this.weighted;
+			values[0] = metrics.getErrorPercentage();
+			values[1] = metrics.getLatencyExecute_mean();
+			values[2] = metrics.getLatencyTotal_mean();
+			percentiles(metrics.getLatencyExecute(), values, 3);
+			percentiles(metrics.getLatencyTotal(), values, 3 + PERCENTILES);
+			values[BATCH] = metrics.getBatchSize_mean();
+			percentiles(metrics.getBatchSize(), values, BATCH + 1);
+			for (int i = 0; i < values.length; i++) {
+				values[i] *= this.weight;
+			}
+		}
+
+		private static long[] counts(HystrixMetrics metrics) {
+			return new long[] { metrics.getErrorCount(), metrics.getRequestCount(),
+					metrics.getRollingCountFailure(), metrics.getRollingCountSuccess(),
+					metrics.getRollingCountShortCircuited(),
+					metrics.getRollingCountFallbackSuccess(),
+					metrics.getRollingCountFallbackFailure(),
+					metrics.getRollingCountFallbackMissing(),
+					metrics.getRollingCountFallbackRejection(),
+					metrics.getRollingCountFallbackEmit(),
+					metrics.getRollingCountExceptionsThrown(),
+					metrics.getRollingCountEmit(),
+					metrics.getRollingCountCollapsedRequests(),
+					metrics.getRollingCountBadRequests(),
+					metrics.getRollingCountResponsesFromCache(),
+					metrics.getRollingCountSemaphoreRejected(),
+					metrics.getRollingCountThreadPoolRejected(),
+					metrics.getRollingCountTimeout(),
+					metrics.getRollingMaxConcurrentExecutionCount(),
+					metrics.getCurrentConcurrentExecutionCount(),
+					metrics.getRollingCountRetriesDenied(),
+					metrics.getCurrentRetryBudget(),
+					metrics.getCurrentGlobalRetryBudget() };
+		}
+
+		private static void percentiles(Latency latency, double[] values, int offset) {
+			values[offset++] = latency.getV0();
+			values[offset++] = latency.getV25();
+			values[offset++] = latency.getV50();
+			values[offset++] = latency.getV75();
+			values[offset++] = latency.getV90();
+			values[offset++] = latency.getV95();
+			values[offset++] = latency.getV99();
+			values[offset++] = latency.getV995();
+			values[offset] = latency.getV100();
+		}
+
+	}
+
+	/**
+	 * The running totals for a single command across all hosts.
+	 */
+	private static class Command {
+
+		private final Map<String, Contribution> hosts = new HashMap<>();
+
+		private final long[] counts = new long[COUNTS];
+
+		private final double[] weighted = new double[WEIGHTED];
+
+		private double weight;
+
+		private int open;
+
+		private HystrixMetrics template;
+
+		private boolean retired;
+
+		private synchronized boolean update(String host, HystrixMetrics metrics,
+				long now) {
+			if (this.retired) {
+				return false;
+			}
+			Contribution contribution = new Contribution(metrics, now);
+			Contribution previous = this.hosts.put(host, contribution);
+			if (previous != null) {
+				add(previous, -1);
+			}
+			add(contribution, 1);
+			this.template = metrics;
+			return true;
+		}
+
+		private synchronized void remove(String host) {
+			Contribution previous = this.hosts.remove(host);
+			if (previous != null) {
+				add(previous, -1);
+			}
+		}
+
+		private synchronized void expire(long before) {
+			for (Iterator<Contribution> iter = this.hosts.values().iterator(); iter
+					.hasNext();) {
+				Contribution contribution = iter.next();
+				if (contribution.time < before) {
+					iter.remove();
+					add(contribution, -1);
+				}
+			}
+		}
+
+		private synchronized boolean retire() {
+			if (this.hosts.isEmpty()) {
+				this.retired = true;
+			}
+			return this.retired;
+		}
+
+		private void add(Contribution contribution, int sign) {
+			for (int i = 0; i < this.counts.length; i++) {
+				this.counts[i] += sign * contribution.counts[i];
+			}
+			for (int i = 0; i < WEIGHTED; i++) {
+				this.weighted[i] += sign * contribution.weighted[i];
+			}
+			this.weight += sign * contribution.weight;
+			if (contribution.open) {
+				this.open += sign;
+			}
+			if (this.hosts.isEmpty()) {
+				// Start again from exact zeros so rounding errors do not build up
+				Arrays.fill(this.weighted, 0);
+				this.weight = 0;
+			}
+		}
+
+		private synchronized HystrixMetrics getMetrics() {
+			if (this.hosts.isEmpty()) {
+				return null;
+			}
+			HystrixMetrics metrics = new HystrixMetrics();
+			HystrixMetrics template = this.template;
+			metrics.setName(template.getName());
+			metrics.setGroup(template.getGroup());
+			metrics.setType(template.getType());
+			metrics.setThreadPool(template.getThreadPool());
+			metrics.setPropertyValue_metricsRollingStatisticalWindowInMilliseconds(
+					template.getPropertyValue_metricsRollingStatisticalWindowInMilliseconds());
+			metrics.setReportingHosts(this.hosts.size());
+			long[] counts = this.counts;
+			int i = 0;
+			metrics.setErrorCount(counts[i++]);
+			metrics.setRequestCount(counts[i++]);
+			metrics.setRollingCountFailure(counts[i++]);
+			metrics.setRollingCountSuccess(counts[i++]);
+			metrics.setRollingCountShortCircuited(counts[i++]);
+			metrics.setRollingCountFallbackSuccess(counts[i++]);
+			metrics.setRollingCountFallbackFailure(counts[i++]);
+			metrics.setRollingCountFallbackMissing(counts[i++]);
+			metrics.setRollingCountFallbackRejection(counts[i++]);
+			metrics.setRollingCountFallbackEmit(counts[i++]);
+			metrics.setRollingCountExceptionsThrown(counts[i++]);
+			metrics.setRollingCountEmit(counts[i++]);
+			metrics.setRollingCountCollapsedRequests(counts[i++]);
+			metrics.setRollingCountBadRequests(counts[i++]);
+			metrics.setRollingCountResponsesFromCache(counts[i++]);
+			metrics.setRollingCountSemaphoreRejected(counts[i++]);
+			metrics.setRollingCountThreadPoolRejected(counts[i++]);
+			metrics.setRollingCountTimeout(counts[i++]);
+			metrics.setRollingMaxConcurrentExecutionCount(counts[i++]);
+			metrics.setCurrentConcurrentExecutionCount(counts[i++]);
+			metrics.setRollingCountRetriesDenied(counts[i++]);
+			metrics.setCurrentRetryBudget(counts[i++]);
+			metrics.setCurrentGlobalRetryBudget(counts[i++]);
+			metrics.setCircuitBreakerOpen(this.open > 0);
+			double[] averages = new double[WEIGHTED];
+			for (int j = 0; j < WEIGHTED; j++) {
+				averages[j] = this.weight > 0 ? this.weighted[j] / this.weight : 0;
+			}
+			metrics.setErrorPercentage(averages[0]);
+			metrics.setLatencyExecute_mean(Math.round(averages[1]));
+			metrics.setLatencyTotal_mean(Math.round(averages[2]));
+			metrics.setLatencyExecute(latency(averages, 3));
+			metrics.setLatencyTotal(latency(averages, 3 + PERCENTILES));
+			metrics.setBatchSize_mean(Math.round(averages[BATCH]));
+			metrics.setBatchSize(latency(averages, BATCH + 1));
+			return metrics;
+		}
+
+		private static Latency latency(double[] values, int offset) {
+			Latency latency = new Latency();
+			latency.setV0(Math.round(values[offset++]));
+			latency.setV25(Math.round(values[offset++]));
+			latency.setV50(Math.round(values[offset++]));
+			latency.setV75(Math.round(values[offset++]));
+			latency.setV90(Math.round(values[offset++]));
+			latency.setV95(Math.round(values[offset++]));
+			latency.setV99(Math.round(values[offset++]));
+			latency.setV995(Math.round(values[offset++]));
+			latency.setV100(Math.round(values[offset]));
+			return latency;
+		}
+
+	}
+
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.core.AttributeAccessor;
+import org.springframework.core.annotation.AnnotationAwareOrderComparator;
+import org.springframework.retry.RetryStatistics;
+import org.springframework.retry.policy.CircuitBreakerRetryPolicy;
+import org.springframework.retry.stats.ExponentialAverageRetryStatistics;
+import org.springframework.retry.stats.StatisticsRepository;
+import org.springframework.util.Assert;
+
+/**
+ * Maps the retry statistics in a {@link StatisticsRepository} to {@link HystrixMetrics}
+ * and collects them into a {@link HystrixStreamSnapshot} once per tick, keeping track
+ * of which commands have changed recently. Shared by the different flavours of Hystrix
+ * stream endpoint so that they all report the same thing.
+ *
+ * @author Dave Syer
+ *
+ */
+public class HystrixMetricsCollector {
+
+	private final StatisticsRepository repository;
+
+	private final HystrixMetricsWriter writer;
+
+	private List<HystrixMetricsContributor> contributors = Collections.emptyList();
+
+	private int keyframeInterval = 20;
+
+	private long ticks;
+
+	private Map<String, Change> changes = new HashMap<>();
+
+	public HystrixMetricsCollector(StatisticsRepository repository) {
+		this(repository, new HystrixMetricsWriter());
+	}
+
+	public HystrixMetricsCollector(StatisticsRepository repository,
+			HystrixMetricsWriter writer) {
+		this.repository = repository;
+		this.writer = writer;
+	}
+
+	/**
+	 * Extra sources of metrics for each command, e.g. latency percentiles.
+	 *
+	 * @param contributors the contributors to set
+	 */
+	public void setContributors(List<HystrixMetricsContributor> contributors) {
+		this.contributors = new ArrayList<>(contributors);
+		AnnotationAwareOrderComparator.sort(this.contributors);
+	}
+
+	/**
+	 * The number of ticks between full frames for clients that only want deltas
+	 * (default 20).
+	 *
+	 * @param keyframeInterval the keyframe interval to set
+	 */
+	public void setKeyframeInterval(int keyframeInterval) {
+		Assert.isTrue(keyframeInterval > 0, "Keyframe interval must be positive");
+		this.keyframeInterval = keyframeInterval;
+	}
+
+	/**
+	 * Collect the statistics for all commands, noting which ones have changed since
+	 * the last tick. The snapshot maps the metrics for each command and serializes each
+	 * kind of frame at most once, so that every subscriber receives the same frame.
+	 *
+	 * @return a snapshot for the current tick
+	 */
+	public synchronized HystrixStreamSnapshot snapshot() {
+		return snapshot(this.ticks++);
+	}
+
+	/**
+	 * Build the metrics for all commands as {@link #snapshot()}, but with a tick number
+	 * supplied by the caller. Useful when there are several schedules sharing the
+	 * same collector, each of which needs its own sequence of ticks and keyframes.
+	 *
+	 * @param tick the sequence number of the snapshot
+	 * @return a snapshot for the tick
+	 */
+	public synchronized HystrixStreamSnapshot snapshot(long tick) {
+		long now = System.currentTimeMillis();
+		boolean keyframe = tick % this.keyframeInterval == 0;
+		Map<String, Change> changes = new HashMap<>();
+		List<HystrixStreamSnapshot.Entry> entries = new ArrayList<>();
+		HystrixStreamSnapshot snapshot = new HystrixStreamSnapshot(entries, this,
+				this.writer, tick, keyframe);
+		for (RetryStatistics stats : this.repository.findAll()) {
+			if (stats.getStartedCount() == 0) {
+				continue;
+			}
+			String name = stats.getName();
+			Change change = this.changes.get(name);
+			if (change == null) {
+				change = new Change();
+			}
+			change.update(stats, now);
+			changes.put(name, change);
+			entries.add(snapshot.new Entry(stats,
+					change.isRecent(now, getWindow(stats))));
+		}
+		// Labels that have gone from the repository are forgotten
+		this.changes = changes;
+		return snapshot;
+	}
+
+	/**
+	 * Map the statistics for a single command.
+	 *
+	 * @param stats the statistics
+	 * @return the metrics in Hystrix format
+	 */
+	public HystrixMetrics fetchMetrics(RetryStatistics stats) {
+		HystrixMetrics metrics = new HystrixMetrics();
+		metrics.setName(stats.getName());
+		metrics.setErrorCount(stats.getErrorCount());
+		// The "request count" actually gets divided by the window size to
+		// calculate a rate in the hystrix dashboard, so it's the rolling value we
+		// need here, not the total count:
+		metrics.setRequestCount(getRollingStartedCount(stats));
+		metrics.setErrorPercentage(getRollingErrorRate(stats) * 100);
+		metrics.setRollingCountFailure(getRollingFailureCount(stats));
+		metrics.setRollingCountSuccess(getRollingSuccessCount(stats));
+		metrics.setRollingCountShortCircuited(
+				getRollingFallbackShortCircuitedCount(stats));
+		metrics.setRollingCountFallbackSuccess(
+				getRollingFallbackSuccessCount(stats));
+		metrics.setCircuitBreakerOpen(isCircuitBreakerOpen(stats));
+		if (stats instanceof RollingRetryStatistics) {
+			metrics.setPropertyValue_metricsRollingStatisticalWindowInMilliseconds(
+					((RollingRetryStatistics) stats).getWindow());
+		}
+		for (HystrixMetricsContributor contributor : contributors) {
+			contributor.contribute(stats, metrics);
+		}
+		return metrics;
+	}
+
+	private long getWindow(RetryStatistics stats) {
+		if (stats instanceof RollingRetryStatistics) {
+			return ((RollingRetryStatistics) stats).getWindow();
+		}
+		return 10000;
+	}
+
+	private double getRollingErrorRate(RetryStatistics stats) {
+		if (stats instanceof RollingRetryStatistics) {
+			return ((RollingRetryStatistics) stats).getRollingErrorRate();
+		}
+		if (stats instanceof ExponentialAverageRetryStatistics) {
+			ExponentialAverageRetryStatistics average = (ExponentialAverageRetryStatistics) stats;
+			return average.getRollingErrorRate();
+		}
+		return 0;
+	}
+
+	private boolean isCircuitBreakerOpen(RetryStatistics stats) {
+		if (stats instanceof AttributeAccessor) {
+			Object attribute = ((AttributeAccessor) stats)
+					.getAttribute(CircuitBreakerRetryPolicy.CIRCUIT_OPEN);
+			return attribute == null ? false : (Boolean) attribute;
+		}
+		return false;
+	}
+
+	private int getRollingFallbackShortCircuitedCount(RetryStatistics stats) {
+		if (stats instanceof RollingRetryStatistics) {
+			return ((RollingRetryStatistics) stats).getRollingShortCircuitCount();
+		}
+		if (stats instanceof AttributeAccessor) {
+			Object attribute = ((AttributeAccessor) stats)
+					.getAttribute(CircuitBreakerRetryPolicy.CIRCUIT_SHORT_COUNT);
+			return attribute == null ? 0 : (Integer) attribute;
+		}
+		return 0;
+	}
+
+	private int getShortCircuitCount(RetryStatistics stats) {
+		if (stats instanceof AttributeAccessor) {
+			Object attribute = ((AttributeAccessor) stats)
+					.getAttribute(CircuitBreakerRetryPolicy.CIRCUIT_SHORT_COUNT);
+			return attribute == null ? 0 : (Integer) attribute;
+		}
+		return 0;
+	}
+
+	private int getRollingFallbackSuccessCount(RetryStatistics stats) {
+		if (stats instanceof RollingRetryStatistics) {
+			return ((RollingRetryStatistics) stats).getRollingRecoveryCount();
+		}
+		if (stats instanceof ExponentialAverageRetryStatistics) {
+			ExponentialAverageRetryStatistics average = (ExponentialAverageRetryStatistics) stats;
+			return average.getRollingRecoveryCount();
+		}
+		return 0;
+	}
+
+	private int getRollingStartedCount(RetryStatistics stats) {
+		if (stats instanceof RollingRetryStatistics) {
+			return ((RollingRetryStatistics) stats).getRollingStartedCount();
+		}
+		if (stats instanceof ExponentialAverageRetryStatistics) {
+			ExponentialAverageRetryStatistics average = (ExponentialAverageRetryStatistics) stats;
+			return average.getRollingStartedCount();
+		}
+		return 0;
+	}
+
+	private int getRollingSuccessCount(RetryStatistics stats) {
+		return getRollingStartedCount(stats) - getRollingFailureCount(stats);
+	}
+
+	private int getRollingFailureCount(RetryStatistics stats) {
+		if (stats instanceof RollingRetryStatistics) {
+			RollingRetryStatistics rolling = (RollingRetryStatistics) stats;
+			return rolling.getRollingAbortCount() + rolling.getRollingRecoveryCount();
+		}
+		if (stats instanceof ExponentialAverageRetryStatistics) {
+			ExponentialAverageRetryStatistics average = (ExponentialAverageRetryStatistics) stats;
+			return average.getRollingAbortCount() + getRollingFallbackSuccessCount(stats);
+		}
+		return 0;
+	}
+
+	/**
+	 * Tracks the last time the counters or the circuit state of a command changed.
+	 * Rolling values keep changing for a window after the last activity, so a command
+	 * counts as changed until it has been quiet for that long.
+	 */
+	private class Change {
+
+		// Updated in place on every tick, and never seen before the first
+		private final long[] counters = new long[7];
+
+		private long changed;
+
+		private Change() {
+			Arrays.fill(this.counters, -1);
+		}
+
+		private void update(RetryStatistics stats, long now) {
+			// Not short-circuited, so that all the counters are updated
+			boolean changed = set(0, stats.getStartedCount())
+					| set(1, stats.getCompleteCount()) | set(2, stats.getErrorCount())
+					| set(3, stats.getAbortCount()) | set(4, stats.getRecoveryCount())
+					| set(5, isCircuitBreakerOpen(stats) ? 1 : 0)
+					| set(6, getShortCircuitCount(stats));
+			if (changed) {
+				this.changed = now;
+			}
+		}
+
+		private boolean set(int index, long value) {
+			if (this.counters[index] == value) {
+				return false;
+			}
+			this.counters[index] = value;
+			return true;
+		}
+
+		private boolean isRecent(long now, long window) {
+			return now - this.changed < window;
+		}
+
+	}
+
+}
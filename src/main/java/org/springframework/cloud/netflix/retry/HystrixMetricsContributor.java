@@ -0,0 +1,39 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import org.springframework.retry.RetryStatistics;
+
+/**
+ * Strategy for adding extra data to the {@link HystrixMetrics} for a command before it
+ * is sent to the Hystrix stream. Beans of this type are picked up by the
+ * {@link HystrixStreamEndpoint} and called in order once per command per tick.
+ *
+ * @author Dave Syer
+ *
+ */
+public interface HystrixMetricsContributor {
+
+	/**
+	 * Add to or modify the metrics for a single command.
+	 *
+	 * @param statistics the retry statistics for the command
+	 * @param metrics the metrics that will be sent
+	 */
+	void contribute(RetryStatistics statistics, HystrixMetrics metrics);
+
+}
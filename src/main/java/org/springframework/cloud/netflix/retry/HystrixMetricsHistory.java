@@ -0,0 +1,285 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.springframework.util.Assert;
+
+/**
+ * Recent history of the {@link HystrixMetrics} for each command, so that a dashboard
+ * that connects can be sent the last few minutes straight away instead of waiting for
+ * a rolling window to fill up, and so that the recent behaviour of a command can be
+ * pulled out as JSON after an incident.
+ * <p>
+ * Each command has a ring buffer of rows in a single <code>int[]</code>, one row per
+ * recorded tick, holding the values that the dashboard plots (counts, error
+ * percentage, circuit state, concurrency and the mean latencies of the execution and
+ * of the whole call), so a command costs 64 bytes per tick of history whatever the
+ * number of ticks. The two means are kept apart because they differ whenever a call
+ * spends time outside the method, e.g. in retries. The times of the ticks are kept
+ * once for all commands. A command that has not been recorded for as long as the
+ * history goes back is forgotten.
+ *
+ * @author Dave Syer
+ *
+ */
+public class HystrixMetricsHistory {
+
+	private static final String[] FIELDS = { "requestCount", "errorCount",
+			"errorPercentage", "rollingCountSuccess", "rollingCountFailure",
+			"rollingCountShortCircuited", "rollingCountFallbackSuccess",
+			"rollingCountTimeout", "rollingCountBadRequests",
+			"rollingCountSemaphoreRejected", "isCircuitBreakerOpen",
+			"currentConcurrentExecutionCount", "latencyExecute_mean",
+			"latencyTotal_mean" };
+
+	private static final int ERROR_PERCENTAGE = 2;
+
+	private static final int CIRCUIT_OPEN = 10;
+
+	private final int capacity;
+
+	private final long[] times;
+
+	private final Map<String, Series> series = new TreeMap<>();
+
+	private long ticks;
+
+	/**
+	 * @param capacity the number of ticks to keep
+	 */
+	public HystrixMetricsHistory(int capacity) {
+		Assert.isTrue(capacity > 0, "Capacity must be positive");
+		this.capacity = capacity;
+		this.times = new long[capacity];
+	}
+
+	/**
+	 * @return the number of ticks kept
+	 */
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * Record one tick.
+	 *
+	 * @param metrics the metrics for all the commands
+	 * @param now the time of the tick
+	 */
+	public synchronized void record(List<HystrixMetrics> metrics, long now) {
+		long tick = this.ticks++;
+		int row = (int) (tick % this.capacity);
+		this.times[row] = now;
+		for (HystrixMetrics item : metrics) {
+			Series series = this.series.get(item.getName());
+			if (series == null) {
+				series = new Series(item.getName());
+				this.series.put(item.getName(), series);
+			}
+			series.put(tick, row, item);
+		}
+		for (Iterator<Series> iterator = this.series.values().iterator(); iterator
+				.hasNext();) {
+			if (iterator.next().last <= tick - this.capacity) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return the names of the commands with some history
+	 */
+	public synchronized List<String> getNames() {
+		return new ArrayList<>(this.series.keySet());
+	}
+
+	/**
+	 * The history of the commands that match a filter, in time order, as it would
+	 * have been streamed (but with only the fields that are kept).
+	 *
+	 * @param filter the commands to include (null for all)
+	 * @return the metrics for the commands in each tick, oldest first
+	 */
+	public synchronized List<HystrixMetrics> replay(LabelFilter filter) {
+		List<Series> selected = select(filter);
+		List<HystrixMetrics> result = new ArrayList<>();
+		for (long tick = first(); tick < this.ticks; tick++) {
+			int row = (int) (tick % this.capacity);
+			for (Series series : selected) {
+				if (series.ticks[row] == tick) {
+					result.add(series.get(row, this.times[row]));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The history of the commands that match a filter as columns of values, oldest
+	 * first, keyed by the name of the field in the Hystrix stream (plus
+	 * <code>currentTime</code>).
+	 *
+	 * @param filter the commands to include (null for all)
+	 * @return the columns of values for each command
+	 */
+	public synchronized Map<String, Map<String, Object>> getColumns(LabelFilter filter) {
+		Map<String, Map<String, Object>> result = new LinkedHashMap<>();
+		long first = first();
+		for (Series series : select(filter)) {
+			int count = 0;
+			for (long tick = first; tick < this.ticks; tick++) {
+				if (series.ticks[(int) (tick % this.capacity)] == tick) {
+					count++;
+				}
+			}
+			long[] times = new long[count];
+			Object[] columns = new Object[FIELDS.length];
+			for (int field = 0; field < FIELDS.length; field++) {
+				columns[field] = field == ERROR_PERCENTAGE ? new double[count]
+						: field == CIRCUIT_OPEN ? new boolean[count] : new long[count];
+			}
+			int index = 0;
+			for (long tick = first; tick < this.ticks; tick++) {
+				int row = (int) (tick % this.capacity);
+				if (series.ticks[row] != tick) {
+					continue;
+				}
+				times[index] = this.times[row];
+				for (int field = 0; field < FIELDS.length; field++) {
+					int value = series.values[row * FIELDS.length + field];
+					if (field == ERROR_PERCENTAGE) {
+						((double[]) columns[field])[index] = value / 100.;
+					}
+					else if (field == CIRCUIT_OPEN) {
+						((boolean[]) columns[field])[index] = value != 0;
+					}
+					else {
+						((long[]) columns[field])[index] = value;
+					}
+				}
+				index++;
+			}
+			Map<String, Object> values = new LinkedHashMap<>();
+			values.put("currentTime", times);
+			for (int field = 0; field < FIELDS.length; field++) {
+				values.put(FIELDS[field], columns[field]);
+			}
+			result.put(series.name, values);
+		}
+		return result;
+	}
+
+	private long first() {
+		return Math.max(0, this.ticks - this.capacity);
+	}
+
+	private List<Series> select(LabelFilter filter) {
+		List<Series> selected = new ArrayList<>();
+		for (Series series : this.series.values()) {
+			if (filter == null || filter.matches(series.name)) {
+				selected.add(series);
+			}
+		}
+		return selected;
+	}
+
+	private static int clamp(long value) {
+		return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+	}
+
+	/**
+	 * The rows for a single command. A row belongs to the tick recorded in the same
+	 * position of the ticks array, and is stale if that is not the current tick for
+	 * the row.
+	 */
+	private class Series {
+
+		private final String name;
+
+		private final int[] values = new int[capacity * FIELDS.length];
+
+		private final long[] ticks = new long[capacity];
+
+		private long window;
+
+		private long last;
+
+		private Series(String name) {
+			this.name = name;
+			for (int i = 0; i < capacity; i++) {
+				this.ticks[i] = -1;
+			}
+		}
+
+		private void put(long tick, int row, HystrixMetrics metrics) {
+			int offset = row * FIELDS.length;
+			this.values[offset] = clamp(metrics.getRequestCount());
+			this.values[offset + 1] = clamp(metrics.getErrorCount());
+			this.values[offset + 2] = (int) Math
+					.round(metrics.getErrorPercentage() * 100);
+			this.values[offset + 3] = clamp(metrics.getRollingCountSuccess());
+			this.values[offset + 4] = clamp(metrics.getRollingCountFailure());
+			this.values[offset + 5] = clamp(metrics.getRollingCountShortCircuited());
+			this.values[offset + 6] = clamp(metrics.getRollingCountFallbackSuccess());
+			this.values[offset + 7] = clamp(metrics.getRollingCountTimeout());
+			this.values[offset + 8] = clamp(metrics.getRollingCountBadRequests());
+			this.values[offset + 9] = clamp(metrics.getRollingCountSemaphoreRejected());
+			this.values[offset + 10] = metrics.isCircuitBreakerOpen() ? 1 : 0;
+			this.values[offset + 11] = clamp(
+					metrics.getCurrentConcurrentExecutionCount());
+			this.values[offset + 12] = clamp(metrics.getLatencyExecute_mean());
+			this.values[offset + 13] = clamp(metrics.getLatencyTotal_mean());
+			this.ticks[row] = tick;
+			this.window = metrics
+					.getPropertyValue_metricsRollingStatisticalWindowInMilliseconds();
+			this.last = tick;
+		}
+
+		private HystrixMetrics get(int row, long time) {
+			int offset = row * FIELDS.length;
+			HystrixMetrics metrics = new HystrixMetrics();
+			metrics.setName(this.name);
+			metrics.setCurrentTime(time);
+			metrics.setRequestCount(this.values[offset]);
+			metrics.setErrorCount(this.values[offset + 1]);
+			metrics.setErrorPercentage(this.values[offset + 2] / 100.);
+			metrics.setRollingCountSuccess(this.values[offset + 3]);
+			metrics.setRollingCountFailure(this.values[offset + 4]);
+			metrics.setRollingCountShortCircuited(this.values[offset + 5]);
+			metrics.setRollingCountFallbackSuccess(this.values[offset + 6]);
+			metrics.setRollingCountTimeout(this.values[offset + 7]);
+			metrics.setRollingCountBadRequests(this.values[offset + 8]);
+			metrics.setRollingCountSemaphoreRejected(this.values[offset + 9]);
+			metrics.setCircuitBreakerOpen(this.values[offset + 10] != 0);
+			metrics.setCurrentConcurrentExecutionCount(this.values[offset + 11]);
+			metrics.setLatencyExecute_mean(this.values[offset + 12]);
+			metrics.setLatencyTotal_mean(this.values[offset + 13]);
+			metrics.setPropertyValue_metricsRollingStatisticalWindowInMilliseconds(
+					this.window);
+			return metrics;
+		}
+
+	}
+
+}
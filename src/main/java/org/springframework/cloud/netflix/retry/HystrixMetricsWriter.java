@@ -0,0 +1,564 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+
+import org.springframework.cloud.netflix.retry.HystrixMetrics.Latency;
+import org.springframework.util.Assert;
+import org.springframework.util.ObjectUtils;
+
+/**
+ * Writes {@link HystrixMetrics} as server sent events, producing the same JSON as
+ * Jackson would for the bean, but without reflection and without allocating per
+ * command. About half of the fields of a command never change (the
+ * <code>propertyValue_*</code> settings, the name and so on), so the JSON for those is
+ * encoded once per command and cached, and the counters in between are written as
+ * ASCII digits straight into a buffer that is reused by each thread. The only
+ * allocation per frame is the array that holds the finished frame.
+ * <p>
+ * The one difference from Jackson is that a fractional error percentage is written in
+ * fixed point to six decimal places, rather than with all the digits of
+ * {@link Double#toString(double)}, so that it can go straight into the buffer too.
+ *
+ * @author Dave Syer
+ *
+ */
+public class HystrixMetricsWriter {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte[] DATA = bytes("data:");
+
+	private static final byte[] END = bytes("}\n\n");
+
+	private static final byte[] TRUE = bytes("true");
+
+	private static final byte[] FALSE = bytes("false");
+
+	private static final byte[] NULL = bytes("null");
+
+	private static final byte[] FALLBACK_FAILURE = field("rollingCountFallbackFailure");
+
+	private static final byte[] FALLBACK_EMIT = field("rollingCountFallbackEmit");
+
+	private static final byte[] FAILURE = field("rollingCountFailure");
+
+	private static final byte[] EXCEPTIONS_THROWN = field("rollingCountExceptionsThrown");
+
+	private static final byte[] EMIT = field("rollingCountEmit");
+
+	private static final byte[] COLLAPSED_REQUESTS = field("rollingCountCollapsedRequests");
+
+	private static final byte[] BAD_REQUESTS = field("rollingCountBadRequests");
+
+	private static final byte[] ERROR_PERCENTAGE = field("errorPercentage");
+
+	private static final byte[] ERROR_COUNT = field("errorCount");
+
+	private static final byte[] REQUEST_COUNT = field("requestCount");
+
+	private static final byte[] FALLBACK_REJECTION = field("rollingCountFallbackRejection");
+
+	private static final byte[] FALLBACK_SUCCESS = field("rollingCountFallbackSuccess");
+
+	private static final byte[] RESPONSES_FROM_CACHE = field(
+			"rollingCountResponsesFromCache");
+
+	private static final byte[] SEMAPHORE_REJECTED = field("rollingCountSemaphoreRejected");
+
+	private static final byte[] SHORT_CIRCUITED = field("rollingCountShortCircuited");
+
+	private static final byte[] SUCCESS = field("rollingCountSuccess");
+
+	private static final byte[] THREAD_POOL_REJECTED = field(
+			"rollingCountThreadPoolRejected");
+
+	private static final byte[] TIMEOUT = field("rollingCountTimeout");
+
+	private static final byte[] MAX_CONCURRENT = field(
+			"rollingMaxConcurrentExecutionCount");
+
+	private static final byte[] CURRENT_CONCURRENT = field(
+			"currentConcurrentExecutionCount");
+
+	private static final byte[] EXECUTE_MEAN = field("latencyExecute_mean");
+
+	private static final byte[] EXECUTE = bytes(",\"latencyExecute\":{\"100\":");
+
+	private static final byte[] TOTAL_MEAN = bytes("},\"latencyTotal_mean\":");
+
+	private static final byte[] TOTAL = bytes(",\"latencyTotal\":{\"100\":");
+
+	private static final byte[] BATCH_MEAN = bytes("},\"batchSize_mean\":");
+
+	private static final byte[] BATCH = bytes(",\"batchSize\":{\"100\":");
+
+	private static final byte[] RETRIES_DENIED = bytes(
+			"},\"rollingCountRetriesDenied\":");
+
+	private static final byte[] RETRY_BUDGET = field("currentRetryBudget");
+
+	private static final byte[] GLOBAL_RETRY_BUDGET = field("currentGlobalRetryBudget");
+
+	private static final byte[] P0 = field("0");
+
+	private static final byte[] P25 = field("25");
+
+	private static final byte[] P50 = field("50");
+
+	private static final byte[] P75 = field("75");
+
+	private static final byte[] P90 = field("90");
+
+	private static final byte[] P95 = field("95");
+
+	private static final byte[] P99 = field("99");
+
+	private static final byte[] P995 = field("99.5");
+
+	private static final byte[] CIRCUIT_OPEN = field("circuitBreakerOpen");
+
+	private static final byte[] IS_CIRCUIT_OPEN = field("isCircuitBreakerOpen");
+
+	private static final long NEGATIVE_ZERO = Double.doubleToRawLongBits(-0.);
+
+	private static final long FRACTION = 1000000;
+
+	private final ConcurrentMap<String, Template> templates = new ConcurrentHashMap<>();
+
+	private final ThreadLocal<Output> outputs = new ThreadLocal<Output>() {
+		@Override
+		protected Output initialValue() {
+			return new Output();
+		}
+	};
+
+	private int cacheLimit = 10000;
+
+	/**
+	 * The maximum number of commands to cache the constant JSON for (default 10000).
+	 * If there are more the cache is cleared and starts again.
+	 *
+	 * @param cacheLimit the cache limit to set
+	 */
+	public void setCacheLimit(int cacheLimit) {
+		Assert.isTrue(cacheLimit > 0, "Cache limit must be positive");
+		this.cacheLimit = cacheLimit;
+	}
+
+	/**
+	 * Encode some metrics as a frame, one event per command.
+	 *
+	 * @param metrics the metrics to write
+	 * @return a frame, or {@link HystrixStreamFrame#PING} if there are no metrics
+	 */
+	public HystrixStreamFrame write(List<HystrixMetrics> metrics) {
+		if (metrics.isEmpty()) {
+			return HystrixStreamFrame.PING;
+		}
+		Output output = this.outputs.get();
+		output.reset();
+		for (HystrixMetrics item : metrics) {
+			write(item, output);
+		}
+		return new HystrixStreamFrame(output.toByteArray(), metrics.size());
+	}
+
+	/**
+	 * Encode the metrics for a single command as a server sent event.
+	 *
+	 * @param metrics the metrics to write
+	 * @return the encoded event
+	 */
+	public byte[] write(HystrixMetrics metrics) {
+		Output output = this.outputs.get();
+		output.reset();
+		write(metrics, output);
+		return output.toByteArray();
+	}
+
+	void write(HystrixMetrics metrics, Output out) {
+		Template template = template(metrics);
+		out.write(DATA);
+		out.write(template.prefix);
+		out.write(metrics.getRollingCountFallbackMissing());
+		out.write(FALLBACK_FAILURE, metrics.getRollingCountFallbackFailure());
+		out.write(FALLBACK_EMIT, metrics.getRollingCountFallbackEmit());
+		out.write(FAILURE, metrics.getRollingCountFailure());
+		out.write(EXCEPTIONS_THROWN, metrics.getRollingCountExceptionsThrown());
+		out.write(EMIT, metrics.getRollingCountEmit());
+		out.write(COLLAPSED_REQUESTS, metrics.getRollingCountCollapsedRequests());
+		out.write(BAD_REQUESTS, metrics.getRollingCountBadRequests());
+		out.write(template.middle);
+		out.write(metrics.getCurrentTime());
+		out.write(ERROR_PERCENTAGE);
+		out.write(metrics.getErrorPercentage());
+		out.write(ERROR_COUNT, metrics.getErrorCount());
+		out.write(REQUEST_COUNT, metrics.getRequestCount());
+		out.write(FALLBACK_REJECTION, metrics.getRollingCountFallbackRejection());
+		out.write(FALLBACK_SUCCESS, metrics.getRollingCountFallbackSuccess());
+		out.write(RESPONSES_FROM_CACHE, metrics.getRollingCountResponsesFromCache());
+		out.write(SEMAPHORE_REJECTED, metrics.getRollingCountSemaphoreRejected());
+		out.write(SHORT_CIRCUITED, metrics.getRollingCountShortCircuited());
+		out.write(SUCCESS, metrics.getRollingCountSuccess());
+		out.write(THREAD_POOL_REJECTED, metrics.getRollingCountThreadPoolRejected());
+		out.write(TIMEOUT, metrics.getRollingCountTimeout());
+		out.write(MAX_CONCURRENT, metrics.getRollingMaxConcurrentExecutionCount());
+		out.write(CURRENT_CONCURRENT, metrics.getCurrentConcurrentExecutionCount());
+		out.write(EXECUTE_MEAN, metrics.getLatencyExecute_mean());
+		out.write(EXECUTE);
+		write(metrics.getLatencyExecute(), out);
+		out.write(TOTAL_MEAN, metrics.getLatencyTotal_mean());
+		out.write(TOTAL);
+		write(metrics.getLatencyTotal(), out);
+		out.write(BATCH_MEAN, metrics.getBatchSize_mean());
+		out.write(BATCH);
+		write(metrics.getBatchSize(), out);
+		out.write(RETRIES_DENIED, metrics.getRollingCountRetriesDenied());
+		out.write(RETRY_BUDGET, metrics.getCurrentRetryBudget());
+		out.write(GLOBAL_RETRY_BUDGET, metrics.getCurrentGlobalRetryBudget());
+		out.write(CIRCUIT_OPEN);
+		out.write(metrics.isCircuitBreakerOpen() ? TRUE : FALSE);
+		out.write(IS_CIRCUIT_OPEN);
+		out.write(metrics.isCircuitBreakerOpen() ? TRUE : FALSE);
+		out.write(END);
+	}
+
+	private void write(Latency latency, Output out) {
+		out.write(latency.getV100());
+		out.write(P0, latency.getV0());
+		out.write(P25, latency.getV25());
+		out.write(P50, latency.getV50());
+		out.write(P75, latency.getV75());
+		out.write(P90, latency.getV90());
+		out.write(P95, latency.getV95());
+		out.write(P99, latency.getV99());
+		out.write(P995, latency.getV995());
+	}
+
+	private Template template(HystrixMetrics metrics) {
+		String name = metrics.getName();
+		Template template = this.templates.get(name);
+		if (template == null || !template.matches(metrics)) {
+			if (this.templates.size() >= this.cacheLimit) {
+				this.templates.clear();
+			}
+			template = new Template(metrics);
+			this.templates.put(name, template);
+		}
+		return template;
+	}
+
+	private static byte[] bytes(String value) {
+		return value.getBytes(UTF8);
+	}
+
+	private static byte[] field(String name) {
+		return bytes(",\"" + name + "\":");
+	}
+
+	/**
+	 * The pre-encoded JSON for the fields of a command that do not change from one tick
+	 * to the next, along with the values it was encoded from, so it can be checked
+	 * cheaply for a match.
+	 */
+	private static class Template {
+
+		private final HystrixMetrics source = new HystrixMetrics();
+
+		private final byte[] prefix;
+
+		private final byte[] middle;
+
+		private Template(HystrixMetrics metrics) {
+			HystrixMetrics source = this.source;
+			source.setThreadPool(metrics.getThreadPool());
+			source.setReportingHosts(metrics.getReportingHosts());
+			source.setPropertyValue_requestLogEnabled(
+					metrics.isPropertyValue_requestLogEnabled());
+			source.setPropertyValue_requestCacheEnabled(
+					metrics.isPropertyValue_requestCacheEnabled());
+			source.setPropertyValue_metricsRollingStatisticalWindowInMilliseconds(
+					metrics.getPropertyValue_metricsRollingStatisticalWindowInMilliseconds());
+			source.setPropertyValue_fallbackIsolationSemaphoreMaxConcurrentRequests(
+					metrics.getPropertyValue_fallbackIsolationSemaphoreMaxConcurrentRequests());
+			source.setPropertyValue_executionIsolationSemaphoreMaxConcurrentRequests(
+					metrics.getPropertyValue_executionIsolationSemaphoreMaxConcurrentRequests());
+			source.setPropertyValue_executionIsolationThreadPoolKeyOverride(
+					metrics.getPropertyValue_executionIsolationThreadPoolKeyOverride());
+			source.setPropertyValue_executionIsolationThreadInterruptOnTimeout(
+					metrics.isPropertyValue_executionIsolationThreadInterruptOnTimeout());
+			source.setPropertyValue_executionTimeoutInMilliseconds(
+					metrics.getPropertyValue_executionTimeoutInMilliseconds());
+			source.setPropertyValue_executionIsolationThreadTimeoutInMilliseconds(
+					metrics.getPropertyValue_executionIsolationThreadTimeoutInMilliseconds());
+			source.setPropertyValue_executionIsolationStrategy(
+					metrics.getPropertyValue_executionIsolationStrategy());
+			source.setPropertyValue_circuitBreakerEnabled(
+					metrics.isPropertyValue_circuitBreakerEnabled());
+			source.setPropertyValue_circuitBreakerForceClosed(
+					metrics.isPropertyValue_circuitBreakerForceClosed());
+			source.setPropertyValue_circuitBreakerForceOpen(
+					metrics.isPropertyValue_circuitBreakerForceOpen());
+			source.setPropertyValue_circuitBreakerErrorThresholdPercentage(
+					metrics.getPropertyValue_circuitBreakerErrorThresholdPercentage());
+			source.setPropertyValue_circuitBreakerRequestVolumeThreshold(
+					metrics.getPropertyValue_circuitBreakerRequestVolumeThreshold());
+			source.setPropertyValue_circuitBreakerSleepWindowInMilliseconds(
+					metrics.getPropertyValue_circuitBreakerSleepWindowInMilliseconds());
+			source.setType(metrics.getType());
+			source.setName(metrics.getName());
+			source.setGroup(metrics.getGroup());
+			Output out = new Output();
+			out.write(bytes("{\"threadPool\":"));
+			out.write(source.getThreadPool());
+			out.write(field("reportingHosts"), source.getReportingHosts());
+			out.write(field("propertyValue_requestLogEnabled"));
+			out.write(source.isPropertyValue_requestLogEnabled());
+			out.write(field("propertyValue_requestCacheEnabled"));
+			out.write(source.isPropertyValue_requestCacheEnabled());
+			out.write(field("propertyValue_metricsRollingStatisticalWindowInMilliseconds"),
+					source.getPropertyValue_metricsRollingStatisticalWindowInMilliseconds());
+			out.write(
+					field("propertyValue_fallbackIsolationSemaphoreMaxConcurrentRequests"),
+					source.getPropertyValue_fallbackIsolationSemaphoreMaxConcurrentRequests());
+			out.write(
+					field("propertyValue_executionIsolationSemaphoreMaxConcurrentRequests"),
+					source.getPropertyValue_executionIsolationSemaphoreMaxConcurrentRequests());
+			out.write(field("propertyValue_executionIsolationThreadPoolKeyOverride"));
+			out.write(source.getPropertyValue_executionIsolationThreadPoolKeyOverride());
+			out.write(field("propertyValue_executionIsolationThreadInterruptOnTimeout"));
+			out.write(source.isPropertyValue_executionIsolationThreadInterruptOnTimeout());
+			out.write(field("propertyValue_executionTimeoutInMilliseconds"),
+					source.getPropertyValue_executionTimeoutInMilliseconds());
+			out.write(field("propertyValue_executionIsolationThreadTimeoutInMilliseconds"),
+					source.getPropertyValue_executionIsolationThreadTimeoutInMilliseconds());
+			out.write(field("propertyValue_executionIsolationStrategy"));
+			out.write(source.getPropertyValue_executionIsolationStrategy());
+			out.write(field("propertyValue_circuitBreakerEnabled"));
+			out.write(source.isPropertyValue_circuitBreakerEnabled());
+			out.write(field("propertyValue_circuitBreakerForceClosed"));
+			out.write(source.isPropertyValue_circuitBreakerForceClosed());
+			out.write(field("propertyValue_circuitBreakerForceOpen"));
+			out.write(source.isPropertyValue_circuitBreakerForceOpen());
+			out.write(field("propertyValue_circuitBreakerErrorThresholdPercentage"),
+					source.getPropertyValue_circuitBreakerErrorThresholdPercentage());
+			out.write(field("propertyValue_circuitBreakerRequestVolumeThreshold"),
+					source.getPropertyValue_circuitBreakerRequestVolumeThreshold());
+			out.write(field("propertyValue_circuitBreakerSleepWindowInMilliseconds"),
+					source.getPropertyValue_circuitBreakerSleepWindowInMilliseconds());
+			out.write(field("rollingCountFallbackMissing"));
+			this.prefix = out.toByteArray();
+			out.reset();
+			out.write(field("type"));
+			out.write(source.getType());
+			out.write(field("name"));
+			out.write(source.getName());
+			out.write(field("group"));
+			out.write(source.getGroup());
+			out.write(field("currentTime"));
+			this.middle = out.toByteArray();
+		}
+
+		private boolean matches(HystrixMetrics metrics) {
+			HystrixMetrics source = this.source;
+			return source.getReportingHosts() == metrics.getReportingHosts()
+					&& source.isPropertyValue_requestLogEnabled() == metrics
+							.isPropertyValue_requestLogEnabled()
+					&& source.isPropertyValue_requestCacheEnabled() == metrics
+							.isPropertyValue_requestCacheEnabled()
+					&& source
+							.getPropertyValue_metricsRollingStatisticalWindowInMilliseconds() == metrics
+									.getPropertyValue_metricsRollingStatisticalWindowInMilliseconds()
+					&& source
+							.getPropertyValue_fallbackIsolationSemaphoreMaxConcurrentRequests() == metrics
+									.getPropertyValue_fallbackIsolationSemaphoreMaxConcurrentRequests()
+					&& source
+							.getPropertyValue_executionIsolationSemaphoreMaxConcurrentRequests() == metrics
+									.getPropertyValue_executionIsolationSemaphoreMaxConcurrentRequests()
+					&& source
+							.isPropertyValue_executionIsolationThreadInterruptOnTimeout() == metrics
+									.isPropertyValue_executionIsolationThreadInterruptOnTimeout()
+					&& source.getPropertyValue_executionTimeoutInMilliseconds() == metrics
+							.getPropertyValue_executionTimeoutInMilliseconds()
+					&& source
+							.getPropertyValue_executionIsolationThreadTimeoutInMilliseconds() == metrics
+									.getPropertyValue_executionIsolationThreadTimeoutInMilliseconds()
+					&& source.isPropertyValue_circuitBreakerEnabled() == metrics
+							.isPropertyValue_circuitBreakerEnabled()
+					&& source.isPropertyValue_circuitBreakerForceClosed() == metrics
+							.isPropertyValue_circuitBreakerForceClosed()
+					&& source.isPropertyValue_circuitBreakerForceOpen() == metrics
+							.isPropertyValue_circuitBreakerForceOpen()
+					&& source.getPropertyValue_circuitBreakerErrorThresholdPercentage() == metrics
+							.getPropertyValue_circuitBreakerErrorThresholdPercentage()
+					&& source.getPropertyValue_circuitBreakerRequestVolumeThreshold() == metrics
+							.getPropertyValue_circuitBreakerRequestVolumeThreshold()
+					&& source.getPropertyValue_circuitBreakerSleepWindowInMilliseconds() == metrics
+							.getPropertyValue_circuitBreakerSleepWindowInMilliseconds()
+					&& ObjectUtils.nullSafeEquals(source.getThreadPool(),
+							metrics.getThreadPool())
+					&& ObjectUtils.nullSafeEquals(
+							source.getPropertyValue_executionIsolationThreadPoolKeyOverride(),
+							metrics.getPropertyValue_executionIsolationThreadPoolKeyOverride())
+					&& ObjectUtils.nullSafeEquals(
+							source.getPropertyValue_executionIsolationStrategy(),
+							metrics.getPropertyValue_executionIsolationStrategy())
+					&& ObjectUtils.nullSafeEquals(source.getType(), metrics.getType())
+					&& ObjectUtils.nullSafeEquals(source.getGroup(), metrics.getGroup());
+		}
+
+	}
+
+	/**
+	 * A growable byte buffer that knows how to write JSON values in the same format as
+	 * Jackson.
+	 */
+	static class Output {
+
+		private byte[] buffer = new byte[8192];
+
+		private int count;
+
+		private final StringBuilder digits = new StringBuilder(32);
+
+		void reset() {
+			this.count = 0;
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(this.buffer, this.count);
+		}
+
+		void write(byte[] bytes) {
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, this.buffer, this.count, bytes.length);
+			this.count += bytes.length;
+		}
+
+		void write(byte[] field, long value) {
+			write(field);
+			write(value);
+		}
+
+		void write(boolean value) {
+			write(value ? TRUE : FALSE);
+		}
+
+		void write(String value) {
+			if (value == null) {
+				write(NULL);
+				return;
+			}
+			ensure(1);
+			this.buffer[this.count++] = '"';
+			write(JsonStringEncoder.getInstance().quoteAsUTF8(value));
+			ensure(1);
+			this.buffer[this.count++] = '"';
+		}
+
+		void write(double value) {
+			if (value == (long) value && Math.abs(value) < 1e7
+					&& Double.doubleToRawLongBits(value) != NEGATIVE_ZERO) {
+				// Same as Double.toString() but without the garbage
+				write((long) value);
+				ensure(2);
+				this.buffer[this.count++] = '.';
+				this.buffer[this.count++] = '0';
+			}
+			else if (Double.isNaN(value) || Double.isInfinite(value)) {
+				write(String.valueOf(value));
+			}
+			else if (Math.abs(value) < 1e7) {
+				writeFixed(value);
+			}
+			else {
+				// Too big for fixed point (never for a percentage), so the same digits
+				// as Double.toString(), reusing the buffers
+				StringBuilder digits = this.digits;
+				digits.setLength(0);
+				digits.append(value);
+				int length = digits.length();
+				ensure(length);
+				for (int i = 0; i < length; i++) {
+					this.buffer[this.count++] = (byte) digits.charAt(i);
+				}
+			}
+		}
+
+		private void writeFixed(double value) {
+			ensure(1);
+			if (Double.doubleToRawLongBits(value) < 0) {
+				this.buffer[this.count++] = '-';
+			}
+			long scaled = Math.round(Math.abs(value) * FRACTION);
+			write(scaled / FRACTION);
+			long fraction = scaled % FRACTION;
+			int digits = 6;
+			while (digits > 1 && fraction % 10 == 0) {
+				fraction /= 10;
+				digits--;
+			}
+			ensure(digits + 1);
+			this.buffer[this.count++] = '.';
+			int end = this.count + digits;
+			for (int i = end - 1; i >= this.count; i--) {
+				this.buffer[i] = (byte) ('0' + fraction % 10);
+				fraction /= 10;
+			}
+			this.count = end;
+		}
+
+		void write(long value) {
+			ensure(20);
+			if (value == Long.MIN_VALUE) {
+				write(bytes(Long.toString(value)));
+				return;
+			}
+			if (value < 0) {
+				this.buffer[this.count++] = '-';
+				value = -value;
+			}
+			int digits = 1;
+			for (long limit = 10; digits < 19 && value >= limit; limit *= 10) {
+				digits++;
+			}
+			int end = this.count + digits;
+			for (int i = end - 1; i >= this.count; i--) {
+				this.buffer[i] = (byte) ('0' + value % 10);
+				value /= 10;
+			}
+			this.count = end;
+		}
+
+		private void ensure(int length) {
+			if (this.count + length > this.buffer.length) {
+				this.buffer = Arrays.copyOf(this.buffer,
+						Math.max(this.buffer.length * 2, this.count + length));
+			}
+		}
+
+	}
+
+}
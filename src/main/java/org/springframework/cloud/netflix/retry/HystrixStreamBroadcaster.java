@@ -0,0 +1,397 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.util.Assert;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * Fans frames out to a set of {@link SseEmitter subscribers} without blocking the
+ * caller. Each subscriber has its own bounded queue of frames, drained by a task on a
+ * shared {@link Executor}, so a slow or stalled client only ever holds up its own
+ * frames. When a queue is full the {@link OverflowStrategy} decides whether to drop
+ * the oldest frame or to disconnect the client.
+ * <p>
+ * A task only sends the frames that were queued when it started and then goes to the
+ * back of the executor's queue if there are more, so the subscribers take turns when
+ * the executor has fewer threads than there are subscribers. Sending blocks while a
+ * client is not reading, so a stalled client holds on to one thread (and never more)
+ * until the container times the write out.
+ * <p>
+ * Subscribers are held in a concurrent map keyed by emitter, so connecting and
+ * disconnecting are constant time and never contend with a broadcast in progress.
+ * Subscribers are removed as soon as their emitter completes or times out.
+ * <p>
+ * A subscriber can ask for deltas, in which case it only receives the commands that
+ * have changed recently, plus a full keyframe when it first connects, on every
+ * {@link HystrixStreamSnapshot#isKeyframe() keyframe} tick, and after it has lost
+ * frames because it was too slow. A subscriber can also ask for only some of the
+ * commands with a {@link LabelFilter}, and subscribers with the same filter share
+ * their frames.
+ *
+ * @author Dave Syer
+ *
+ */
+public class HystrixStreamBroadcaster {
+
+	private static Log logger = LogFactory.getLog(HystrixStreamBroadcaster.class);
+
+	/**
+	 * What to do with a subscriber whose queue is full.
+	 */
+	public enum OverflowStrategy {
+
+		/**
+		 * Discard the oldest queued frame to make room for the new one.
+		 */
+		DROP_OLDEST,
+
+		/**
+		 * Disconnect the subscriber.
+		 */
+		DISCONNECT;
+
+	}
+
+	private final Executor executor;
+
+	private final ConcurrentMap<SseEmitter, Subscriber> subscribers;
+
+	private int capacity = 16;
+
+	private OverflowStrategy overflowStrategy = OverflowStrategy.DROP_OLDEST;
+
+	public HystrixStreamBroadcaster(Executor executor) {
+		this.executor = executor;
+		this.subscribers = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * The maximum number of frames queued for a single subscriber (default 16).
+	 *
+	 * @param capacity the capacity to set
+	 */
+	public void setCapacity(int capacity) {
+		Assert.isTrue(capacity > 0, "Capacity must be positive");
+		this.capacity = capacity;
+	}
+
+	/**
+	 * The strategy for dealing with a subscriber that cannot keep up (default
+	 * {@link OverflowStrategy#DROP_OLDEST}).
+	 *
+	 * @param overflowStrategy the overflow strategy to set
+	 */
+	public void setOverflowStrategy(OverflowStrategy overflowStrategy) {
+		Assert.notNull(overflowStrategy, "Overflow strategy must not be null");
+		this.overflowStrategy = overflowStrategy;
+	}
+
+	/**
+	 * Register an emitter to receive frames. The subscriber is removed automatically
+	 * when the emitter completes or times out.
+	 *
+	 * @param emitter the emitter to send frames to
+	 * @return the subscriber
+	 */
+	public Subscriber subscribe(SseEmitter emitter) {
+		return subscribe(emitter, false);
+	}
+
+	/**
+	 * Register an emitter to receive frames. The subscriber is removed automatically
+	 * when the emitter completes or times out.
+	 *
+	 * @param emitter the emitter to send frames to
+	 * @param delta true if the subscriber only wants the commands that have changed
+	 * @return the subscriber
+	 */
+	public Subscriber subscribe(SseEmitter emitter, boolean delta) {
+		return subscribe(emitter, delta, null);
+	}
+
+	/**
+	 * Register an emitter to receive frames. The subscriber is removed automatically
+	 * when the emitter completes or times out.
+	 *
+	 * @param emitter the emitter to send frames to
+	 * @param delta true if the subscriber only wants the commands that have changed
+	 * @param filter the commands the subscriber wants (null for all of them). Only
+	 * applies to snapshots, not to frames that are broadcast as they are.
+	 * @return the subscriber
+	 */
+	public Subscriber subscribe(SseEmitter emitter, boolean delta, LabelFilter filter) {
+		return subscribe(emitter, delta, filter, null);
+	}
+
+	/**
+	 * Register an emitter to receive frames, starting with a frame of its own, e.g. a
+	 * replay of recent history. The subscriber is removed automatically when the
+	 * emitter completes or times out.
+	 *
+	 * @param emitter the emitter to send frames to
+	 * @param delta true if the subscriber only wants the commands that have changed
+	 * @param filter the commands the subscriber wants (null for all of them)
+	 * @param first a frame to send before any that are broadcast (may be null)
+	 * @return the subscriber
+	 */
+	public Subscriber subscribe(SseEmitter emitter, boolean delta, LabelFilter filter,
+			HystrixStreamFrame first) {
+		final Subscriber subscriber = new Subscriber(emitter, this.capacity, delta,
+				filter);
+		if (first != null) {
+			// Queued before the subscriber is visible, so nothing can overtake it
+			subscriber.queue.offer(first);
+		}
+		Runnable remove = new Runnable() {
+			@Override
+			public void run() {
+				subscriber.remove();
+			}
+		};
+		emitter.onCompletion(remove);
+		emitter.onTimeout(remove);
+		this.subscribers.put(emitter, subscriber);
+		if (subscriber.closed) {
+			// Completed before it was registered
+			this.subscribers.remove(emitter, subscriber);
+		}
+		else if (first != null) {
+			subscriber.schedule();
+		}
+		return subscriber;
+	}
+
+	/**
+	 * Queue a frame for every subscriber. Never blocks on a subscriber's connection.
+	 *
+	 * @param frame the frame to send
+	 */
+	public void broadcast(HystrixStreamFrame frame) {
+		for (Subscriber subscriber : this.subscribers.values()) {
+			subscriber.offer(frame);
+		}
+	}
+
+	/**
+	 * Queue a frame from the snapshot for every subscriber, full or delta depending on
+	 * what the subscriber asked for. Never blocks on a subscriber's connection.
+	 *
+	 * @param snapshot the snapshot to send
+	 */
+	public void broadcast(HystrixStreamSnapshot snapshot) {
+		for (Subscriber subscriber : this.subscribers.values()) {
+			subscriber.offer(subscriber.select(snapshot));
+		}
+	}
+
+	public boolean hasSubscribers() {
+		return !this.subscribers.isEmpty();
+	}
+
+	public int size() {
+		return this.subscribers.size();
+	}
+
+	public List<Subscriber> getSubscribers() {
+		return new ArrayList<>(this.subscribers.values());
+	}
+
+	/**
+	 * Forget all the current subscribers.
+	 */
+	public void clear() {
+		for (Subscriber subscriber : this.subscribers.values()) {
+			subscriber.remove();
+		}
+	}
+
+	/**
+	 * A single client of the stream with its own queue of pending frames.
+	 */
+	public class Subscriber {
+
+		private final SseEmitter emitter;
+
+		private final BlockingQueue<HystrixStreamFrame> queue;
+
+		private final AtomicLong dropped = new AtomicLong();
+
+		private final AtomicBoolean draining = new AtomicBoolean();
+
+		private final boolean delta;
+
+		private final LabelFilter filter;
+
+		private volatile boolean keyframeDue = true;
+
+		private volatile boolean closed;
+
+		private volatile boolean evicted;
+
+		private Subscriber(SseEmitter emitter, int capacity, boolean delta,
+				LabelFilter filter) {
+			this.emitter = emitter;
+			this.queue = new ArrayBlockingQueue<>(capacity);
+			this.delta = delta;
+			this.filter = filter;
+		}
+
+		public SseEmitter getEmitter() {
+			return this.emitter;
+		}
+
+		/**
+		 * @return the number of frames discarded because this subscriber was too slow
+		 */
+		public long getDropped() {
+			return this.dropped.get();
+		}
+
+		public boolean isClosed() {
+			return this.closed;
+		}
+
+		/**
+		 * @return true if this subscriber only receives the commands that have changed
+		 */
+		public boolean isDelta() {
+			return this.delta;
+		}
+
+		/**
+		 * @return the commands this subscriber wants, or null for all of them
+		 */
+		public LabelFilter getFilter() {
+			return this.filter;
+		}
+
+		private HystrixStreamFrame select(HystrixStreamSnapshot snapshot) {
+			if (!this.delta) {
+				return snapshot.getFull(this.filter);
+			}
+			if (snapshot.isKeyframe() || this.keyframeDue) {
+				this.keyframeDue = false;
+				return snapshot.getFull(this.filter);
+			}
+			return snapshot.getDelta(this.filter);
+		}
+
+		private void offer(HystrixStreamFrame frame) {
+			if (this.closed) {
+				return;
+			}
+			while (!this.queue.offer(frame)) {
+				if (overflowStrategy == OverflowStrategy.DISCONNECT) {
+					this.dropped.incrementAndGet();
+					logger.debug("Slow Hystrix stream client, disconnecting.");
+					disconnect();
+					return;
+				}
+				if (this.queue.poll() != null) {
+					this.dropped.incrementAndGet();
+					// A delta subscriber has missed some changes, so it needs a keyframe
+					this.keyframeDue = true;
+				}
+			}
+			schedule();
+		}
+
+		private void schedule() {
+			if (this.draining.compareAndSet(false, true)) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						drain();
+					}
+				});
+			}
+		}
+
+		private void drain() {
+			try {
+				HystrixStreamFrame frame;
+				// Only what is there already, then give the thread back
+				int pending = this.queue.size();
+				while (pending-- > 0 && !this.closed
+						&& (frame = this.queue.poll()) != null) {
+					this.emitter.send(frame.event());
+				}
+			}
+			catch (Exception e) {
+				logger.debug("Failed to write Hystrix metrics, disconnecting client.", e);
+				disconnect();
+			}
+			finally {
+				this.draining.set(false);
+			}
+			if (this.evicted) {
+				complete();
+			}
+			else if (!this.queue.isEmpty()) {
+				// More frames arrived while this batch was being sent
+				schedule();
+			}
+		}
+
+		private void remove() {
+			this.closed = true;
+			subscribers.remove(this.emitter, this);
+			this.queue.clear();
+		}
+
+		private void disconnect() {
+			this.evicted = true;
+			remove();
+			if (!this.draining.get()) {
+				// Completing the emitter may block if it is mid-write, so do it
+				// asynchronously
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						complete();
+					}
+				});
+			}
+		}
+
+		private void complete() {
+			try {
+				this.emitter.complete();
+			}
+			catch (Exception e) {
+				logger.trace("Failed to complete Hystrix stream client.", e);
+			}
+		}
+
+	}
+
+}
@@ -17,216 +17,462 @@
 package org.springframework.cloud.netflix.retry;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.actuate.endpoint.mvc.AbstractNamedMvcEndpoint;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.cloud.netflix.retry.HystrixStreamBroadcaster.OverflowStrategy;
 import org.springframework.context.SmartLifecycle;
-import org.springframework.core.AttributeAccessor;
-import org.springframework.http.MediaType;
-import org.springframework.retry.RetryStatistics;
-import org.springframework.retry.policy.CircuitBreakerRetryPolicy;
-import org.springframework.retry.stats.ExponentialAverageRetryStatistics;
 import org.springframework.retry.stats.StatisticsRepository;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 /**
+ * Endpoint that streams the retry statistics in the format of the Hystrix metrics
+ * stream. Clients that add <code>?delta=true</code> to the request only receive the
+ * commands whose counters or circuit state changed in the last rolling window, with a
+ * full keyframe every so often so that they can resynchronize.
+ * <p>
+ * Clients can also ask for frames at a different interval with
+ * <code>?delay=</code>, within limits set on the server. Clients whose intervals are
+ * close share a schedule, and all the clients on one schedule share each frame.
+ * <p>
+ * Clients that only care about some of the commands can list them with
+ * <code>?label=</code>, repeated or separated by commas, as exact labels, prefixes
+ * (<code>foo*</code>) or globs (<code>*.foo.*</code>). Only the matching commands are
+ * mapped and serialized for them, once per tick for each distinct set of labels.
+ * <p>
+ * If a history retention is set, the metrics are also recorded at a fixed resolution
+ * whether or not anyone is listening (see {@link HystrixMetricsHistory}), on the same
+ * shared scheduler as the ticks of the stream. Clients that add
+ * <code>?replay=true</code> then get the recorded history in a burst before the live
+ * frames, and <code>/history</code> returns it as JSON, optionally filtered with
+ * <code>?label=</code>.
+ * <p>
+ * Metrics are only collected while there is at least one client connected: the ticks
+ * start with the first and stop with the last, see {@link HystrixStreamTicker}.
+ *
  * @author Dave Syer
  *
  */
 @Component
+@ConfigurationProperties(prefix = "endpoints.hystrix")
 public class HystrixStreamEndpoint extends AbstractNamedMvcEndpoint
-		implements SmartLifecycle {
+		implements SmartLifecycle, DisposableBean {
 
 	private static Log logger = LogFactory.getLog(HystrixStreamEndpoint.class);
 
 	private long delay = 500;
 
-	private AtomicBoolean running = new AtomicBoolean(false);
+	private long minDelay = 100;
+
+	private long maxDelay = 10000;
+
+	private int queueCapacity = 16;
+
+	private OverflowStrategy overflowStrategy = OverflowStrategy.DROP_OLDEST;
+
+	private boolean running;
+
+	private long historyRetention = 0;
+
+	private long historyResolution = 1000;
+
+	private final HystrixMetricsCollector collector;
+
+	private final HystrixMetricsWriter writer;
+
+	private final Executor executor;
+
+	/**
+	 * The executor that was created here and not passed in, if any, so it can be shut
+	 * down with the endpoint.
+	 */
+	private final ThreadPoolExecutor ownExecutor;
+
+	private HystrixMetricsHistory history;
 
-	private final StatisticsRepository repository;
+	private ScheduledFuture<?> recorder;
 
-	private final ObjectMapper objectMapper;
+	private long recorded;
 
-	private final List<SseEmitter> emitters = new ArrayList<>();
+	private final ConcurrentMap<Long, Channel> channels = new ConcurrentHashMap<>();
 
+	@Autowired
+	public HystrixStreamEndpoint(StatisticsRepository repository) {
+		this(repository, new HystrixMetricsWriter(), null);
+	}
+
+	/**
+	 * @param repository the source of the metrics
+	 * @param objectMapper not used
+	 * @deprecated as of 1.0.0 the frames are written without an {@link ObjectMapper},
+	 * use {@link #HystrixStreamEndpoint(StatisticsRepository)}
+	 */
+	@Deprecated
 	public HystrixStreamEndpoint(StatisticsRepository repository,
 			ObjectMapper objectMapper) {
+		this(repository);
+	}
+
+	HystrixStreamEndpoint(StatisticsRepository repository, HystrixMetricsWriter writer,
+			Executor executor) {
 		super("hystrix", "/hystrix.stream", false);
-		this.repository = repository;
-		this.objectMapper = objectMapper;
+		this.collector = new HystrixMetricsCollector(repository, writer);
+		this.writer = writer;
+		if (executor == null) {
+			// There is at most one task queued per client, so the queue is bounded too
+			this.ownExecutor = new ThreadPoolExecutor(10, 10, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					daemon(new CustomizableThreadFactory("hystrixStream-")));
+			this.ownExecutor.allowCoreThreadTimeOut(true);
+			this.executor = this.ownExecutor;
+		}
+		else {
+			this.ownExecutor = null;
+			this.executor = executor;
+		}
+	}
+
+	private static CustomizableThreadFactory daemon(CustomizableThreadFactory factory) {
+		factory.setDaemon(true);
+		return factory;
+	}
+
+	/**
+	 * Extra sources of metrics for each command, e.g. latency percentiles.
+	 *
+	 * @param contributors the contributors to set
+	 */
+	@Autowired(required = false)
+	public void setContributors(List<HystrixMetricsContributor> contributors) {
+		this.collector.setContributors(contributors);
+	}
+
+	/**
+	 * The interval between frames in milliseconds for clients that do not ask for one
+	 * (default 500).
+	 *
+	 * @param delay the delay to set
+	 */
+	public void setDelay(long delay) {
+		this.delay = delay;
+	}
+
+	/**
+	 * The shortest interval between frames that a client can ask for with
+	 * <code>?delay=</code> (default 100).
+	 *
+	 * @param minDelay the min delay to set
+	 */
+	public void setMinDelay(long minDelay) {
+		this.minDelay = minDelay;
+	}
+
+	/**
+	 * The longest interval between frames that a client can ask for with
+	 * <code>?delay=</code> (default 10000).
+	 *
+	 * @param maxDelay the max delay to set
+	 */
+	public void setMaxDelay(long maxDelay) {
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * The maximum number of frames buffered for a client that is slow to read them.
+	 *
+	 * @param queueCapacity the queue capacity to set
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+		for (Channel channel : this.channels.values()) {
+			channel.broadcaster.setCapacity(queueCapacity);
+		}
+	}
+
+	/**
+	 * What to do when a client is so slow that its queue of frames is full.
+	 *
+	 * @param overflowStrategy the overflow strategy to set
+	 */
+	public void setOverflowStrategy(OverflowStrategy overflowStrategy) {
+		this.overflowStrategy = overflowStrategy;
+		for (Channel channel : this.channels.values()) {
+			channel.broadcaster.setOverflowStrategy(overflowStrategy);
+		}
+	}
+
+	/**
+	 * The number of threads that send the frames to the clients (default 10, the same
+	 * as a Hystrix thread pool). A client that stops reading holds on to one until the
+	 * container times the write out, so this also limits how many stalled clients can
+	 * hold up the others. Idle threads are stopped after a minute. Has no effect if
+	 * the endpoint was given an executor.
+	 *
+	 * @param threads the number of threads to set
+	 */
+	public void setThreads(int threads) {
+		Assert.isTrue(threads > 0, "Threads must be positive");
+		if (this.ownExecutor == null) {
+			return;
+		}
+		// The maximum can never be below the core size, even in between
+		if (threads > this.ownExecutor.getMaximumPoolSize()) {
+			this.ownExecutor.setMaximumPoolSize(threads);
+			this.ownExecutor.setCorePoolSize(threads);
+		}
+		else {
+			this.ownExecutor.setCorePoolSize(threads);
+			this.ownExecutor.setMaximumPoolSize(threads);
+		}
+	}
+
+	/**
+	 * How far back to keep the history of the metrics in milliseconds (default 0,
+	 * meaning no history is kept).
+	 *
+	 * @param historyRetention the history retention to set
+	 */
+	public void setHistoryRetention(long historyRetention) {
+		this.historyRetention = historyRetention;
+	}
+
+	/**
+	 * The interval between recordings of the history in milliseconds (default 1000).
+	 *
+	 * @param historyResolution the history resolution to set
+	 */
+	public void setHistoryResolution(long historyResolution) {
+		this.historyResolution = historyResolution;
+	}
+
+	/**
+	 * The number of ticks between full frames for clients that only want deltas
+	 * (default 20).
+	 *
+	 * @param keyframeInterval the keyframe interval to set
+	 */
+	public void setKeyframeInterval(int keyframeInterval) {
+		this.collector.setKeyframeInterval(keyframeInterval);
 	}
 
 	@RequestMapping(path = "", produces = "text/event-stream")
-	public SseEmitter handle() {
+	public SseEmitter handle(
+			@RequestParam(name = "delta", defaultValue = "false") boolean delta,
+			@RequestParam(name = "delay", required = false) Long delay,
+			@RequestParam(name = "label", required = false) List<String> labels,
+			@RequestParam(name = "replay", defaultValue = "false") boolean replay) {
 		// No timeout, otherwise the container will disconnect the client
-		SseEmitter emitter = new SseEmitter(Long.MAX_VALUE);
-		emitters.add(emitter);
-		return emitter;
-
-	}
-
-	private List<String> fetchMetrics() throws JsonProcessingException {
-		List<String> list = new ArrayList<>();
-		for (RetryStatistics stats : repository.findAll()) {
-			if (stats.getStartedCount() > 0) {
-				HystrixMetrics metrics = new HystrixMetrics();
-				metrics.setName(stats.getName());
-				metrics.setErrorCount(stats.getErrorCount());
-				// The "request count" actually gets divided by the window size to
-				// calculate a rate in the hystrix dashboard, so it's the rolling value we
-				// need here, not the total count:
-				metrics.setRequestCount(getRollingStartedCount(stats));
-				metrics.setErrorPercentage(getRollingErrorRate(stats) * 100);
-				metrics.setCurrentConcurrentExecutionCount(getConcurrentCount(stats));
-				metrics.setRollingCountFailure(getRollingFailureCount(stats));
-				metrics.setRollingCountSuccess(getRollingSuccessCount(stats));
-				metrics.setRollingCountShortCircuited(
-						getRollingFallbackShortCircuitedCount(stats));
-				metrics.setRollingCountFallbackSuccess(
-						getRollingFallbackSuccessCount(stats));
-				metrics.setCircuitBreakerOpen(isCircuitBreakerOpen(stats));
-				list.add(objectMapper.writeValueAsString(metrics));
-			}
-		}
-		return list;
+		return register(new SseEmitter(Long.MAX_VALUE), delta,
+				delay == null ? this.delay : coalesce(delay),
+				LabelFilter.compile(labels), replay);
 	}
 
-	private double getRollingErrorRate(RetryStatistics stats) {
-		if (stats instanceof ExponentialAverageRetryStatistics) {
-			ExponentialAverageRetryStatistics average = (ExponentialAverageRetryStatistics) stats;
-			return average.getRollingErrorRate();
+	@RequestMapping(path = "/history", produces = "application/json")
+	@ResponseBody
+	public Map<String, Map<String, Object>> history(
+			@RequestParam(name = "label", required = false) List<String> labels) {
+		HystrixMetricsHistory history = getHistory();
+		if (history == null) {
+			return Collections.emptyMap();
 		}
-		return 0;
+		return history.getColumns(LabelFilter.compile(labels));
 	}
 
-	private long getConcurrentCount(RetryStatistics stats) {
-		return 0;
+	SseEmitter register(SseEmitter emitter) {
+		return register(emitter, false);
+	}
+
+	SseEmitter register(SseEmitter emitter, boolean delta) {
+		return register(emitter, delta, this.delay);
+	}
+
+	SseEmitter register(SseEmitter emitter, boolean delta, long delay) {
+		return register(emitter, delta, delay, null);
 	}
 
-	private boolean isCircuitBreakerOpen(RetryStatistics stats) {
-		if (stats instanceof AttributeAccessor) {
-			Object attribute = ((AttributeAccessor) stats)
-					.getAttribute(CircuitBreakerRetryPolicy.CIRCUIT_OPEN);
-			return attribute == null ? false : (Boolean) attribute;
+	SseEmitter register(SseEmitter emitter, boolean delta, long delay,
+			LabelFilter filter) {
+		return register(emitter, delta, delay, filter, false);
+	}
+
+	SseEmitter register(SseEmitter emitter, boolean delta, long delay,
+			LabelFilter filter, boolean replay) {
+		HystrixStreamFrame first = null;
+		HystrixMetricsHistory history = getHistory();
+		if (replay && history != null) {
+			first = this.writer.write(history.replay(filter));
 		}
-		return false;
+		Channel channel = channel(delay);
+		SseEmitter result = channel.broadcaster
+				.subscribe(emitter, delta, filter, first).getEmitter();
+		channel.ticker.resume();
+		return result;
 	}
 
-	private int getRollingFallbackShortCircuitedCount(RetryStatistics stats) {
-		if (stats instanceof AttributeAccessor) {
-			Object attribute = ((AttributeAccessor) stats)
-					.getAttribute(CircuitBreakerRetryPolicy.CIRCUIT_SHORT_COUNT);
-			return attribute == null ? 0 : (Integer) attribute;
+	/**
+	 * Map the interval a client asked for onto one of a small number of schedules, so
+	 * that clients asking for similar intervals share the work of building each
+	 * frame. The interval is limited to the allowed range and then rounded down to 1, 2
+	 * or 5 times a power of ten, so a client never gets frames less often than it
+	 * wanted.
+	 *
+	 * @param delay the interval the client asked for in milliseconds
+	 * @return the interval it will get
+	 */
+	long coalesce(long delay) {
+		long min = Math.max(1, this.minDelay);
+		delay = Math.max(min, Math.min(delay, Math.max(min, this.maxDelay)));
+		long scale = 1;
+		while (scale * 10 <= delay) {
+			scale *= 10;
 		}
-		return 0;
+		long step = delay >= 5 * scale ? 5 * scale
+				: delay >= 2 * scale ? 2 * scale : scale;
+		return Math.max(min, step);
 	}
 
-	private int getRollingFallbackSuccessCount(RetryStatistics stats) {
-		if (stats instanceof ExponentialAverageRetryStatistics) {
-			ExponentialAverageRetryStatistics average = (ExponentialAverageRetryStatistics) stats;
-			return average.getRollingRecoveryCount();
+	/**
+	 * @return the intervals that have a schedule (whether or not anyone is listening)
+	 */
+	Set<Long> getDelays() {
+		return this.channels.keySet();
+	}
+
+	HystrixStreamSnapshot snapshot() {
+		return this.collector.snapshot();
+	}
+
+	/**
+	 * @return the history of the metrics, or null if none is kept
+	 */
+	synchronized HystrixMetricsHistory getHistory() {
+		if (this.history == null && this.historyRetention > 0) {
+			this.history = new HystrixMetricsHistory((int) Math.max(1,
+					this.historyRetention / Math.max(1, this.historyResolution)));
 		}
-		return 0;
+		return this.history;
 	}
 
-	private int getRollingStartedCount(RetryStatistics stats) {
-		if (stats instanceof ExponentialAverageRetryStatistics) {
-			ExponentialAverageRetryStatistics average = (ExponentialAverageRetryStatistics) stats;
-			return average.getRollingStartedCount();
+	/**
+	 * Record one tick of history for all the commands.
+	 */
+	void record() {
+		HystrixMetricsHistory history = getHistory();
+		if (history == null) {
+			return;
 		}
-		return 0;
+		HystrixStreamSnapshot snapshot;
+		synchronized (this) {
+			snapshot = this.collector.snapshot(this.recorded++);
+		}
+		List<HystrixMetrics> metrics = new ArrayList<>(snapshot.getEntries().size());
+		for (HystrixStreamSnapshot.Entry entry : snapshot.getEntries()) {
+			metrics.add(entry.getMetrics());
+		}
+		history.record(metrics, System.currentTimeMillis());
 	}
 
-	private int getRollingSuccessCount(RetryStatistics stats) {
-		return getRollingStartedCount(stats) - getRollingFailureCount(stats);
+	private Channel channel(long delay) {
+		Channel channel = this.channels.get(delay);
+		if (channel == null) {
+			synchronized (this.channels) {
+				channel = this.channels.get(delay);
+				if (channel == null) {
+					channel = new Channel(delay);
+					if (this.running) {
+						channel.ticker.start();
+					}
+					this.channels.put(delay, channel);
+				}
+			}
+		}
+		return channel;
 	}
 
-	private int getRollingFailureCount(RetryStatistics stats) {
-		if (stats instanceof ExponentialAverageRetryStatistics) {
-			ExponentialAverageRetryStatistics average = (ExponentialAverageRetryStatistics) stats;
-			return average.getRollingAbortCount() + getRollingFallbackSuccessCount(stats);
+	/**
+	 * Queue a single frame for all the current subscribers, whatever interval they
+	 * asked for.
+	 */
+	void publish() {
+		for (Channel channel : this.channels.values()) {
+			channel.publish();
 		}
-		return 0;
 	}
 
 	@Override
 	public void start() {
-		if (running.compareAndSet(false, true)) {
-			Thread thread = new Thread(new Runnable() {
-				@Override
-				public void run() {
-					while (running.get()) {
-						List<SseEmitter> emitters;
-						synchronized (this) {
-							emitters = new ArrayList<>(
-									HystrixStreamEndpoint.this.emitters);
-						}
-						for (SseEmitter emitter : emitters) {
-							try {
-								List<String> jsonMessages = fetchMetrics();
-								if (jsonMessages.isEmpty()) {
-									emitter.send(SseEmitter.event().name("ping"));
-								}
-								else {
-									for (String json : jsonMessages) {
-										emitter.send(SseEmitter.event().data(json,
-												MediaType.TEXT_PLAIN));
-									}
-								}
-							}
-							catch (Exception e) {
-								logger.debug(
-										"Failed to write Hystrix metrics, disconnecting client.",
-										e);
-								synchronized (this) {
-									HystrixStreamEndpoint.this.emitters
-											.remove(HystrixStreamEndpoint.this.emitters
-													.indexOf(emitter));
-								}
-							}
-							if (!running.get()) {
-								break;
-							}
-						}
+		synchronized (this.channels) {
+			if (!this.running && getHistory() != null) {
+				// On the tickers' thread, so there is no thread just for the history
+				Runnable recording = new Runnable() {
+					@Override
+					public void run() {
 						try {
-							// now wait the 'delay' time
-							Thread.sleep(delay);
+							record();
 						}
-						catch (InterruptedException e) {
-							stop();
-							logger.debug("InterruptedException.");
-							Thread.currentThread().interrupt();
+						catch (Exception e) {
+							// An exception would cancel the schedule
+							logger.debug("Failed to record Hystrix metrics.", e);
 						}
 					}
-
-					logger.debug("Stopping stream to connection");
-				}
-			}, "hystrixEmitters");
-			thread.start();
+				};
+				this.recorder = HystrixStreamTicker.getSharedScheduler()
+						.scheduleWithFixedDelay(recording, 0, this.historyResolution,
+								TimeUnit.MILLISECONDS);
+			}
+			this.running = true;
+			for (Channel channel : this.channels.values()) {
+				channel.ticker.start();
+			}
 		}
 	}
 
 	@Override
 	public void stop() {
-		if (running.compareAndSet(true, false)) {
-			synchronized (this) {
-				this.emitters.clear();
+		synchronized (this.channels) {
+			if (this.running) {
+				this.running = false;
+				if (this.recorder != null) {
+					this.recorder.cancel(false);
+					this.recorder = null;
+				}
+				for (Channel channel : this.channels.values()) {
+					channel.ticker.stop();
+					channel.broadcaster.clear();
+				}
 			}
 		}
 	}
 
 	@Override
 	public boolean isRunning() {
-		return running.get();
+		synchronized (this.channels) {
+			return this.running;
+		}
 	}
 
 	@Override
@@ -245,4 +491,56 @@ public class HystrixStreamEndpoint extends AbstractNamedMvcEndpoint
 		callback.run();
 	}
 
+	@Override
+	public void destroy() {
+		stop();
+		if (this.ownExecutor != null) {
+			this.ownExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * The subscribers that share an interval, with the schedule that publishes to them.
+	 * Each has its own sequence of ticks, so that keyframes come at regular intervals.
+	 */
+	private class Channel {
+
+		private final HystrixStreamBroadcaster broadcaster;
+
+		private final HystrixStreamTicker ticker;
+
+		private final AtomicLong ticks = new AtomicLong();
+
+		private Channel(long delay) {
+			this.broadcaster = new HystrixStreamBroadcaster(executor);
+			this.broadcaster.setCapacity(queueCapacity);
+			this.broadcaster.setOverflowStrategy(overflowStrategy);
+			this.ticker = new HystrixStreamTicker(this.broadcaster, new Runnable() {
+				@Override
+				public void run() {
+					publish();
+				}
+			});
+			this.ticker.setDelay(delay);
+		}
+
+		/**
+		 * Queue a single frame for all the subscribers. Slow clients are handled by the
+		 * broadcaster and do not hold up this thread or each other.
+		 */
+		private void publish() {
+			if (!this.broadcaster.hasSubscribers()) {
+				return;
+			}
+			try {
+				this.broadcaster
+						.broadcast(collector.snapshot(this.ticks.getAndIncrement()));
+			}
+			catch (Exception e) {
+				logger.debug("Failed to publish Hystrix metrics.", e);
+			}
+		}
+
+	}
+
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter.DataWithMediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter.SseEventBuilder;
+
+/**
+ * One tick of the Hystrix stream, encoded once as the exact bytes of
+ * the server sent events that carry it, so that the same frame can be written to any
+ * number of subscribers without further work.
+ *
+ * @author Dave Syer
+ *
+ */
+public class HystrixStreamFrame {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Frame sent when there are no metrics to report, to keep the connection alive.
+	 */
+	static final HystrixStreamFrame PING = new HystrixStreamFrame(
+			"event:ping\n\n".getBytes(UTF8), 0);
+
+	private final byte[] bytes;
+
+	private final int count;
+
+	private final Set<DataWithMediaType> data;
+
+	HystrixStreamFrame(byte[] bytes, int count) {
+		this.bytes = bytes;
+		this.count = count;
+		this.data = Collections
+				.singleton(new DataWithMediaType(bytes, MediaType.TEXT_PLAIN));
+	}
+
+	/**
+	 * @return the encoded events in this frame
+	 */
+	public byte[] getBytes() {
+		return this.bytes;
+	}
+
+	/**
+	 * @return the number of commands reported in this frame
+	 */
+	public int getCount() {
+		return this.count;
+	}
+
+	/**
+	 * An event builder that can be sent to an {@link SseEmitter} as is. The
+	 * bytes are already encoded so they are written without any further conversion.
+	 * Anything added to the builder is encoded as usual and sent after the frame.
+	 *
+	 * @return an event builder for this frame
+	 */
+	public SseEventBuilder event() {
+		return new FrameEventBuilder();
+	}
+
+	/**
+	 * Sends the encoded frame followed by whatever a standard builder would send. The
+	 * emitter wraps anything passed to it directly in a data field, so a builder is the
+	 * only way to hand it bytes that are already framed.
+	 */
+	private class FrameEventBuilder implements SseEventBuilder {
+
+		private final SseEventBuilder next = SseEmitter.event();
+
+		@Override
+		public SseEventBuilder comment(String comment) {
+			this.next.comment(comment);
+			return this;
+		}
+
+		@Override
+		public SseEventBuilder name(String eventName) {
+			this.next.name(eventName);
+			return this;
+		}
+
+		@Override
+		public SseEventBuilder id(String id) {
+			this.next.id(id);
+			return this;
+		}
+
+		@Override
+		public SseEventBuilder reconnectTime(long reconnectTimeMillis) {
+			this.next.reconnectTime(reconnectTimeMillis);
+			return this;
+		}
+
+		@Override
+		public SseEventBuilder data(Object object) {
+			this.next.data(object);
+			return this;
+		}
+
+		@Override
+		public SseEventBuilder data(Object object, MediaType mediaType) {
+			this.next.data(object, mediaType);
+			return this;
+		}
+
+		@Override
+		public Set<DataWithMediaType> build() {
+			Set<DataWithMediaType> added = this.next.build();
+			if (added.isEmpty()) {
+				return HystrixStreamFrame.this.data;
+			}
+			Set<DataWithMediaType> result = new LinkedHashSet<DataWithMediaType>(
+					HystrixStreamFrame.this.data);
+			result.addAll(added);
+			return result;
+		}
+
+	}
+
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.reactivestreams.Publisher;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.retry.stats.StatisticsRepository;
+import org.springframework.stereotype.Component;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.SynchronousSink;
+
+/**
+ * Reactive source of Hystrix stream frames for non-blocking servers. All subscribers
+ * share a single hot {@link Flux} of snapshots, so the metrics are collected and
+ * serialized once per tick however many clients there are, and the ticks stop
+ * altogether while nobody is listening. Each subscriber gets only as many frames as it
+ * requests: a client that is slow to read skips straight to the latest frame instead
+ * of buffering old ones, and never holds up the others.
+ * <p>
+ * A web handler can return {@link #stream(boolean)} directly, writing the
+ * {@link HystrixStreamFrame#getBytes() bytes} of each frame as they come.
+ *
+ * @author Dave Syer
+ *
+ */
+@Component
+@ConditionalOnClass(name = "reactor.core.publisher.Flux")
+@ConfigurationProperties(prefix = "endpoints.hystrix")
+public class HystrixStreamPublisher {
+
+	private long delay = 500;
+
+	private final HystrixMetricsCollector collector;
+
+	private volatile Flux<HystrixStreamSnapshot> snapshots;
+
+	@Autowired
+	public HystrixStreamPublisher(StatisticsRepository repository) {
+		this(repository, new HystrixMetricsWriter());
+	}
+
+	HystrixStreamPublisher(StatisticsRepository repository, HystrixMetricsWriter writer) {
+		this.collector = new HystrixMetricsCollector(repository, writer);
+	}
+
+	/**
+	 * The interval between frames in milliseconds (default 500).
+	 *
+	 * @param delay the delay to set
+	 */
+	public void setDelay(long delay) {
+		this.delay = delay;
+	}
+
+	/**
+	 * Extra sources of metrics for each command, e.g. latency percentiles.
+	 *
+	 * @param contributors the contributors to set
+	 */
+	@Autowired(required = false)
+	public void setContributors(List<HystrixMetricsContributor> contributors) {
+		this.collector.setContributors(contributors);
+	}
+
+	/**
+	 * The number of ticks between full frames for subscribers that only want deltas
+	 * (default 20).
+	 *
+	 * @param keyframeInterval the keyframe interval to set
+	 */
+	public void setKeyframeInterval(int keyframeInterval) {
+		this.collector.setKeyframeInterval(keyframeInterval);
+	}
+
+	/**
+	 * @return a stream of frames with all the commands
+	 */
+	public Flux<HystrixStreamFrame> stream() {
+		return stream(false);
+	}
+
+	/**
+	 * A stream of frames, one per tick, that a client can consume at its own pace.
+	 *
+	 * @param delta true if the subscriber only wants the commands that have changed
+	 * (plus a keyframe to start with, periodically, and whenever it skipped a frame)
+	 * @return a stream of frames
+	 */
+	public Flux<HystrixStreamFrame> stream(boolean delta) {
+		return stream(delta, null);
+	}
+
+	/**
+	 * A stream of frames, one per tick, with only the commands that match a filter.
+	 * Subscribers with the same filter share the frames.
+	 *
+	 * @param delta true if the subscriber only wants the commands that have changed
+	 * @param filter the commands the subscriber wants (null for all of them)
+	 * @return a stream of frames
+	 */
+	public Flux<HystrixStreamFrame> stream(final boolean delta,
+			final LabelFilter filter) {
+		return Flux.defer(new Supplier<Publisher<HystrixStreamFrame>>() {
+			@Override
+			public Publisher<HystrixStreamFrame> get() {
+				return snapshots().onBackpressureLatest()
+						.handle(new FrameSelector(delta, filter));
+			}
+		});
+	}
+
+	private Flux<HystrixStreamSnapshot> snapshots() {
+		if (this.snapshots == null) {
+			synchronized (this) {
+				if (this.snapshots == null) {
+					this.snapshots = Flux.interval(Duration.ofMillis(this.delay))
+							.onBackpressureDrop()
+							.map(new Function<Long, HystrixStreamSnapshot>() {
+								@Override
+								public HystrixStreamSnapshot apply(Long tick) {
+									return collector.snapshot();
+								}
+							}).publish().refCount();
+				}
+			}
+		}
+		return this.snapshots;
+	}
+
+	/**
+	 * Chooses the frame for a single subscriber from each snapshot.
+	 */
+	private static class FrameSelector implements
+			BiConsumer<HystrixStreamSnapshot, SynchronousSink<HystrixStreamFrame>> {
+
+		private final boolean delta;
+
+		private final LabelFilter filter;
+
+		private long last = Long.MIN_VALUE;
+
+		private FrameSelector(boolean delta, LabelFilter filter) {
+			this.delta = delta;
+			this.filter = filter;
+		}
+
+		@Override
+		public void accept(HystrixStreamSnapshot snapshot,
+				SynchronousSink<HystrixStreamFrame> sink) {
+			// A gap in the ticks means this subscriber skipped some changes
+			boolean full = !this.delta || snapshot.isKeyframe()
+					|| snapshot.getTick() != this.last + 1;
+			this.last = snapshot.getTick();
+			sink.next(full ? snapshot.getFull(this.filter)
+					: snapshot.getDelta(this.filter));
+		}
+
+	}
+
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.retry.RetryStatistics;
+
+/**
+ * The metrics for all commands at one tick of the Hystrix stream, shared by all the
+ * subscribers. Each kind of frame is only built if a subscriber needs it, and then only
+ * once, even if the subscribers are served by different threads.
+ * <p>
+ * Subscribers can ask for a {@link LabelFilter subset} of the commands, in which case
+ * they get a frame of their own, built once per distinct filter. The metrics for a
+ * command are only mapped from its statistics when a frame needs them, so if all the
+ * subscribers are filtered the commands that none of them wants cost almost nothing.
+ *
+ * @author Dave Syer
+ *
+ */
+public class HystrixStreamSnapshot {
+
+	private final List<Entry> entries;
+
+	private final HystrixMetricsCollector collector;
+
+	private final HystrixMetricsWriter writer;
+
+	private final long tick;
+
+	private final boolean keyframe;
+
+	private HystrixStreamFrame full;
+
+	private HystrixStreamFrame delta;
+
+	private LabelFilter.Index index;
+
+	private Map<LabelFilter, HystrixStreamFrame> filteredFull;
+
+	private Map<LabelFilter, HystrixStreamFrame> filteredDelta;
+
+	HystrixStreamSnapshot(List<Entry> entries, HystrixMetricsCollector collector,
+			HystrixMetricsWriter writer, long tick, boolean keyframe) {
+		this.entries = entries;
+		this.collector = collector;
+		this.writer = writer;
+		this.tick = tick;
+		this.keyframe = keyframe;
+	}
+
+	/**
+	 * @return the sequence number of this snapshot, so subscribers can tell if they
+	 * missed one
+	 */
+	public long getTick() {
+		return this.tick;
+	}
+
+	/**
+	 * @return true if this is a tick where all subscribers should see all the commands
+	 */
+	public boolean isKeyframe() {
+		return this.keyframe;
+	}
+
+	public List<Entry> getEntries() {
+		return this.entries;
+	}
+
+	/**
+	 * @return a frame with all the commands
+	 */
+	public synchronized HystrixStreamFrame getFull() {
+		if (this.full == null) {
+			List<HystrixMetrics> metrics = new ArrayList<>(this.entries.size());
+			for (Entry entry : this.entries) {
+				metrics.add(entry.getMetrics());
+			}
+			this.full = this.writer.write(metrics);
+		}
+		return this.full;
+	}
+
+	/**
+	 * @return a frame with only the commands that have changed recently
+	 */
+	public synchronized HystrixStreamFrame getDelta() {
+		if (this.delta == null) {
+			List<HystrixMetrics> metrics = new ArrayList<>();
+			for (Entry entry : this.entries) {
+				if (entry.isChanged()) {
+					metrics.add(entry.getMetrics());
+				}
+			}
+			this.delta = this.writer.write(metrics);
+		}
+		return this.delta;
+	}
+
+	/**
+	 * @param filter the commands to include (null for all)
+	 * @return a frame with all the commands that match the filter
+	 */
+	public synchronized HystrixStreamFrame getFull(LabelFilter filter) {
+		if (filter == null) {
+			return getFull();
+		}
+		if (this.filteredFull == null) {
+			this.filteredFull = new HashMap<>();
+		}
+		HystrixStreamFrame frame = this.filteredFull.get(filter);
+		if (frame == null) {
+			frame = filter(filter, false);
+			this.filteredFull.put(filter, frame);
+		}
+		return frame;
+	}
+
+	/**
+	 * @param filter the commands to include (null for all)
+	 * @return a frame with only the commands that match the filter and have changed
+	 * recently
+	 */
+	public synchronized HystrixStreamFrame getDelta(LabelFilter filter) {
+		if (filter == null) {
+			return getDelta();
+		}
+		if (this.filteredDelta == null) {
+			this.filteredDelta = new HashMap<>();
+		}
+		HystrixStreamFrame frame = this.filteredDelta.get(filter);
+		if (frame == null) {
+			frame = filter(filter, true);
+			this.filteredDelta.put(filter, frame);
+		}
+		return frame;
+	}
+
+	private HystrixStreamFrame filter(LabelFilter filter, boolean delta) {
+		if (this.index == null) {
+			List<String> names = new ArrayList<>(this.entries.size());
+			for (Entry entry : this.entries) {
+				names.add(entry.getName());
+			}
+			this.index = new LabelFilter.Index(names);
+		}
+		BitSet selected = filter.select(this.index);
+		List<HystrixMetrics> metrics = new ArrayList<>(selected.cardinality());
+		for (int i = selected.nextSetBit(0); i >= 0; i = selected.nextSetBit(i + 1)) {
+			Entry entry = this.entries.get(i);
+			if (!delta || entry.isChanged()) {
+				metrics.add(entry.getMetrics());
+			}
+		}
+		return this.writer.write(metrics);
+	}
+
+	/**
+	 * The metrics for a single command.
+	 */
+	public class Entry {
+
+		private final RetryStatistics statistics;
+
+		private final boolean changed;
+
+		private HystrixMetrics metrics;
+
+		Entry(RetryStatistics statistics, boolean changed) {
+			this.statistics = statistics;
+			this.changed = changed;
+		}
+
+		public String getName() {
+			return this.statistics.getName();
+		}
+
+		/**
+		 * @return the metrics, mapped from the statistics the first time they are
+		 * needed
+		 */
+		public HystrixMetrics getMetrics() {
+			synchronized (HystrixStreamSnapshot.this) {
+				if (this.metrics == null) {
+					this.metrics = collector.fetchMetrics(this.statistics);
+				}
+				return this.metrics;
+			}
+		}
+
+		public boolean isChanged() {
+			return this.changed;
+		}
+
+	}
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Runs the publishing task of a stream endpoint at a fixed interval, but only while
+ * the {@link HystrixStreamBroadcaster} has subscribers. Nothing is scheduled until
+ * {@link #resume()} is called after a subscriber connects, and the first tick that
+ * finds nobody listening cancels the schedule again. The ticks run on a scheduler that
+ * is shared by all the endpoints and whose thread exits when there is nothing to do,
+ * so an application that is never watched has no thread and does no work.
+ * <p>
+ * Stopping cancels the schedule without interrupting a tick that is in progress,
+ * because interrupting a thread in the middle of a write closes the client's
+ * connection. The tick checks whether it is still wanted before it does any work, so
+ * at most one tick that had already started runs after {@link #stop()}.
+ *
+ * @author Dave Syer
+ *
+ */
+public class HystrixStreamTicker {
+
+	private static Log logger = LogFactory.getLog(HystrixStreamTicker.class);
+
+	private static final ScheduledExecutorService SHARED = scheduler(1000);
+
+	private final ScheduledExecutorService scheduler;
+
+	private final HystrixStreamBroadcaster broadcaster;
+
+	private final Runnable task;
+
+	private long delay = 500;
+
+	private boolean running;
+
+	private ScheduledFuture<?> future;
+
+	public HystrixStreamTicker(HystrixStreamBroadcaster broadcaster, Runnable task) {
+		this(SHARED, broadcaster, task);
+	}
+
+	public HystrixStreamTicker(ScheduledExecutorService scheduler,
+			HystrixStreamBroadcaster broadcaster, Runnable task) {
+		this.scheduler = scheduler;
+		this.broadcaster = broadcaster;
+		this.task = task;
+	}
+
+	/**
+	 * @return the scheduler that is shared by all the endpoints, for other periodic
+	 * work that should not need a thread of its own
+	 */
+	static ScheduledExecutorService getSharedScheduler() {
+		return SHARED;
+	}
+
+	static ScheduledThreadPoolExecutor scheduler(long keepAlive) {
+		CustomizableThreadFactory factory = new CustomizableThreadFactory(
+				"hystrixTicker-");
+		factory.setDaemon(true);
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+				factory);
+		// Cancelled ticks leave the queue, so the thread times out when idle
+		scheduler.setRemoveOnCancelPolicy(true);
+		scheduler.setKeepAliveTime(keepAlive, TimeUnit.MILLISECONDS);
+		scheduler.allowCoreThreadTimeOut(true);
+		return scheduler;
+	}
+
+	/**
+	 * The interval between ticks in milliseconds (default 500). Takes effect the next
+	 * time the ticks are resumed.
+	 *
+	 * @param delay the delay to set
+	 */
+	public synchronized void setDelay(long delay) {
+		Assert.isTrue(delay > 0, "Delay must be positive");
+		this.delay = delay;
+	}
+
+	public synchronized long getDelay() {
+		return this.delay;
+	}
+
+	/**
+	 * Allow ticks to be scheduled, starting with the next subscriber, or straight
+	 * away if there are subscribers already.
+	 */
+	public synchronized void start() {
+		this.running = true;
+		resume();
+	}
+
+	/**
+	 * Cancel the ticks and do not schedule any more until started again.
+	 */
+	public synchronized void stop() {
+		this.running = false;
+		suspend();
+	}
+
+	public synchronized boolean isRunning() {
+		return this.running;
+	}
+
+	/**
+	 * @return true if ticks are currently scheduled
+	 */
+	public synchronized boolean isActive() {
+		return this.future != null;
+	}
+
+	/**
+	 * Start ticking if there are subscribers and the ticks are not already scheduled.
+	 * Call this after adding a subscriber to the broadcaster.
+	 */
+	public synchronized void resume() {
+		if (!this.running || this.future != null
+				|| !this.broadcaster.hasSubscribers()) {
+			return;
+		}
+		this.future = this.scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				tick();
+			}
+		}, 0, this.delay, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void suspend() {
+		if (this.future != null) {
+			this.future.cancel(false);
+			this.future = null;
+		}
+	}
+
+	private void tick() {
+		synchronized (this) {
+			if (this.future == null) {
+				// Stopped or suspended since this tick was scheduled
+				return;
+			}
+			// Checked with the lock held so that a subscriber that arrives now is
+			// either seen here or resumes the ticks itself
+			if (!this.broadcaster.hasSubscribers()) {
+				logger.debug("No more Hystrix stream subscribers, suspending.");
+				suspend();
+				return;
+			}
+		}
+		try {
+			this.task.run();
+		}
+		catch (Exception e) {
+			// An exception would cancel the schedule without resetting the future
+			logger.debug("Failed to publish Hystrix metrics.", e);
+		}
+	}
+
+}
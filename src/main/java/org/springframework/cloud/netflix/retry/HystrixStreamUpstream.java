@@ -0,0 +1,190 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Reads the Hystrix stream of a single upstream node and feeds each command it reports
+ * into a {@link HystrixMetricsAggregator}. Reconnects with an exponential back off if
+ * the connection fails. Lines are read into a fixed buffer, and events too large for
+ * it are skipped, so a misbehaving upstream cannot use up unbounded memory.
+ *
+ * @author Dave Syer
+ *
+ */
+class HystrixStreamUpstream implements Runnable {
+
+	private static Log logger = LogFactory.getLog(HystrixStreamUpstream.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte[] DATA = "data:".getBytes(UTF8);
+
+	private final String url;
+
+	private final HystrixMetricsAggregator aggregator;
+
+	private final ObjectReader reader;
+
+	private final byte[] buffer;
+
+	private int timeout = 10000;
+
+	private volatile boolean running = true;
+
+	private volatile InputStream stream;
+
+	HystrixStreamUpstream(String url, HystrixMetricsAggregator aggregator,
+			ObjectMapper objectMapper, int maxEventSize) {
+		this.url = url;
+		this.aggregator = aggregator;
+		this.reader = objectMapper.readerFor(HystrixMetrics.class)
+				.without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+		this.buffer = new byte[maxEventSize];
+	}
+
+	/**
+	 * The connect and read timeout in milliseconds (default 10000). Upstreams send at
+	 * least a ping on every tick, so a read that takes this long means the connection
+	 * is dead.
+	 *
+	 * @param timeout the timeout to set
+	 */
+	void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	String getUrl() {
+		return this.url;
+	}
+
+	@Override
+	public void run() {
+		long backoff = 1000;
+		while (this.running) {
+			try {
+				consume();
+				backoff = 1000;
+			}
+			catch (Exception e) {
+				if (this.running) {
+					logger.debug("Failed to read Hystrix stream from " + this.url, e);
+				}
+			}
+			if (!this.running) {
+				break;
+			}
+			try {
+				Thread.sleep(backoff);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			backoff = Math.min(backoff * 2, 30000);
+		}
+		this.aggregator.remove(this.url);
+	}
+
+	void stop() {
+		this.running = false;
+		InputStream stream = this.stream;
+		if (stream != null) {
+			try {
+				stream.close();
+			}
+			catch (IOException e) {
+				logger.trace("Failed to close Hystrix stream from " + this.url, e);
+			}
+		}
+	}
+
+	private void consume() throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(this.url)
+				.openConnection();
+		connection.setRequestProperty("Accept", "text/event-stream");
+		connection.setConnectTimeout(this.timeout);
+		connection.setReadTimeout(this.timeout);
+		try (InputStream stream = new BufferedInputStream(
+				connection.getInputStream())) {
+			this.stream = stream;
+			if (!this.running) {
+				return;
+			}
+			byte[] buffer = this.buffer;
+			int length = 0;
+			boolean overflow = false;
+			int next;
+			while (this.running && (next = stream.read()) >= 0) {
+				if (next == '\n') {
+					if (!overflow) {
+						line(buffer, length);
+					}
+					length = 0;
+					overflow = false;
+				}
+				else if (length < buffer.length) {
+					buffer[length++] = (byte) next;
+				}
+				else if (!overflow) {
+					logger.debug("Skipping oversized event from " + this.url);
+					overflow = true;
+				}
+			}
+		}
+		finally {
+			this.stream = null;
+			connection.disconnect();
+		}
+	}
+
+	private void line(byte[] buffer, int length) {
+		if (length <= DATA.length) {
+			return;
+		}
+		for (int i = 0; i < DATA.length; i++) {
+			if (buffer[i] != DATA[i]) {
+				return;
+			}
+		}
+		try {
+			HystrixMetrics metrics = this.reader.readValue(buffer, DATA.length,
+					length - DATA.length);
+			if (metrics.getName() != null
+					&& "HystrixCommand".equals(metrics.getType())) {
+				this.aggregator.update(this.url, metrics);
+			}
+		}
+		catch (IOException e) {
+			logger.debug("Skipping malformed event from " + this.url, e);
+		}
+	}
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+/**
+ * Callback for components that keep their own state per label, so that they can drop
+ * it when the label is evicted from a {@link BoundedStatisticsRepository}. Beans of
+ * this type are picked up by the repository if it is a bean itself. The callback is
+ * made while the repository is adding a new label, so it has to be quick.
+ *
+ * @author Dave Syer
+ *
+ */
+public interface LabelEvictionListener {
+
+	/**
+	 * Forget the state for a label.
+	 *
+	 * @param name the label that was evicted
+	 */
+	void evicted(String name);
+
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.springframework.util.PatternMatchUtils;
+import org.springframework.util.StringUtils;
+
+/**
+ * A set of patterns that a subscriber to a Hystrix stream uses to choose the labels it
+ * wants to see. A pattern without a <code>*</code> is an exact label, a pattern with
+ * a single <code>*</code> at the end is a prefix, and any other pattern is a glob where
+ * <code>*</code> matches any number of characters.
+ * <p>
+ * The patterns are compiled once, when the subscriber connects, into a set of exact
+ * labels, a sorted list of prefixes and a list of globs. Against an {@link Index} of
+ * the labels in a snapshot, the exact labels are hash lookups and the prefixes are
+ * binary searches, so only the globs have to look at every label. Filters with the
+ * same patterns are equal, so that subscribers asking for the same labels can share
+ * their frames.
+ *
+ * @author Dave Syer
+ *
+ */
+public final class LabelFilter {
+
+	private final Set<String> names = new TreeSet<>();
+
+	private final List<String> prefixes = new ArrayList<>();
+
+	private final Set<String> globs = new TreeSet<>();
+
+	private LabelFilter(Collection<String> patterns) {
+		Set<String> prefixes = new TreeSet<>();
+		for (String pattern : patterns) {
+			int star = pattern.indexOf('*');
+			if (star < 0) {
+				this.names.add(pattern);
+			}
+			else if (star == pattern.length() - 1) {
+				prefixes.add(pattern.substring(0, star));
+			}
+			else {
+				this.globs.add(pattern);
+			}
+		}
+		String last = null;
+		for (String prefix : prefixes) {
+			// Sorted, so a prefix that extends one already added is redundant
+			if (last == null || !prefix.startsWith(last)) {
+				this.prefixes.add(prefix);
+				last = prefix;
+			}
+		}
+	}
+
+	/**
+	 * Compile some patterns into a filter. Blank patterns are ignored.
+	 *
+	 * @param patterns the patterns (may be null)
+	 * @return a filter, or null if there are no patterns, meaning all labels
+	 */
+	public static LabelFilter compile(Collection<String> patterns) {
+		if (patterns == null) {
+			return null;
+		}
+		Set<String> values = new LinkedHashSet<>();
+		for (String pattern : patterns) {
+			if (StringUtils.hasText(pattern)) {
+				values.add(pattern.trim());
+			}
+		}
+		if (values.isEmpty() || values.contains("*")) {
+			return null;
+		}
+		return new LabelFilter(values);
+	}
+
+	/**
+	 * Compile some patterns into a filter.
+	 *
+	 * @param patterns the patterns
+	 * @return a filter, or null if there are no patterns, meaning all labels
+	 */
+	public static LabelFilter compile(String... patterns) {
+		return compile(Arrays.asList(patterns));
+	}
+
+	/**
+	 * @param label a label
+	 * @return true if the label matches one of the patterns
+	 */
+	public boolean matches(String label) {
+		if (this.names.contains(label)) {
+			return true;
+		}
+		for (String prefix : this.prefixes) {
+			if (label.startsWith(prefix)) {
+				return true;
+			}
+		}
+		for (String glob : this.globs) {
+			if (PatternMatchUtils.simpleMatch(glob, label)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Find the labels in an index that match this filter.
+	 *
+	 * @param index the labels
+	 * @return the positions of the matching labels in the index
+	 */
+	BitSet select(Index index) {
+		BitSet selected = new BitSet(index.labels.length);
+		for (String name : this.names) {
+			Integer position = index.positions.get(name);
+			if (position != null) {
+				selected.set(position);
+			}
+		}
+		for (String prefix : this.prefixes) {
+			for (int i = index.lowerBound(prefix); i < index.sorted.length
+					&& index.sorted[i].startsWith(prefix); i++) {
+				selected.set(index.positions.get(index.sorted[i]));
+			}
+		}
+		if (!this.globs.isEmpty()) {
+			for (int i = 0; i < index.labels.length; i++) {
+				if (!selected.get(i)) {
+					for (String glob : this.globs) {
+						if (PatternMatchUtils.simpleMatch(glob, index.labels[i])) {
+							selected.set(i);
+							break;
+						}
+					}
+				}
+			}
+		}
+		return selected;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof LabelFilter)) {
+			return false;
+		}
+		LabelFilter other = (LabelFilter) obj;
+		return this.names.equals(other.names) && this.prefixes.equals(other.prefixes)
+				&& this.globs.equals(other.globs);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (31 * this.names.hashCode() + this.prefixes.hashCode())
+				+ this.globs.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "LabelFilter [names=" + this.names + ", prefixes=" + this.prefixes
+				+ ", globs=" + this.globs + "]";
+	}
+
+	/**
+	 * The labels in a snapshot, in their original order, with a hash index for exact
+	 * lookups and a sorted copy for prefix searches.
+	 */
+	static class Index {
+
+		private final String[] labels;
+
+		private final String[] sorted;
+
+		private final Map<String, Integer> positions;
+
+		Index(List<String> labels) {
+			this.labels = labels.toArray(new String[labels.size()]);
+			this.positions = new HashMap<>(labels.size() * 2);
+			for (int i = 0; i < this.labels.length; i++) {
+				this.positions.put(this.labels[i], i);
+			}
+			this.sorted = this.labels.clone();
+			Arrays.sort(this.sorted);
+		}
+
+		private int lowerBound(String prefix) {
+			int index = Arrays.binarySearch(this.sorted, prefix);
+			return index < 0 ? -index - 1 : index;
+		}
+
+	}
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.util.Assert;
+
+/**
+ * A lock-free, fixed-size histogram of latencies in milliseconds over a rolling time
+ * window. Values are counted in log-linear slots (like HdrHistogram) with 8 slots per
+ * power of two, so any reported value is within about 12% of the recorded one. The
+ * window is a ring of interval buckets that are recycled as time moves on, so memory
+ * is fixed at construction and recording never allocates.
+ * <p>
+ * A bucket is cleared by the first thread to record into it after it expires, so a
+ * handful of samples recorded concurrently with the rotation may be lost. That is the
+ * price of not locking and is invisible at the resolution of a dashboard.
+ *
+ * @author Dave Syer
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * Largest power of two that is counted accurately (about 9 hours in milliseconds).
+	 * Larger values are counted in the last slot.
+	 */
+	private static final int MAX_MAGNITUDE = 24;
+
+	static final int SLOTS = SUB_BUCKETS * (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2);
+
+	private static final int COUNT = SLOTS;
+
+	private static final int SUM = SLOTS + 1;
+
+	private static final int MAX = SLOTS + 2;
+
+	private final long interval;
+
+	private final Bucket[] buckets;
+
+	/**
+	 * Create a histogram covering the last 60 seconds in 6 buckets.
+	 */
+	public LatencyHistogram() {
+		this(60000, 6);
+	}
+
+	/**
+	 * @param window the length of the rolling window in milliseconds
+	 * @param bucketCount the number of intervals the window is divided into
+	 */
+	public LatencyHistogram(long window, int bucketCount) {
+		Assert.isTrue(bucketCount > 0, "Bucket count must be positive");
+		Assert.isTrue(window >= bucketCount,
+				"Window must be at least one millisecond per bucket");
+		this.interval = window / bucketCount;
+		this.buckets = new Bucket[bucketCount];
+		for (int i = 0; i < bucketCount; i++) {
+			this.buckets[i] = new Bucket();
+		}
+	}
+
+	/**
+	 * Record a single latency.
+	 *
+	 * @param millis the latency in milliseconds
+	 */
+	public void record(long millis) {
+		record(millis, System.currentTimeMillis());
+	}
+
+	void record(long millis, long now) {
+		if (millis < 0) {
+			millis = 0;
+		}
+		bucket(now / this.interval).add(slot(millis), millis);
+	}
+
+	/**
+	 * @return the distribution of latencies recorded in the current window
+	 */
+	public Snapshot snapshot() {
+		return snapshot(System.currentTimeMillis());
+	}
+
+	Snapshot snapshot(long now) {
+		long current = now / this.interval;
+		long oldest = current - this.buckets.length;
+		long[] counts = new long[SLOTS];
+		long count = 0;
+		long sum = 0;
+		long max = 0;
+		for (Bucket bucket : this.buckets) {
+			long time = bucket.time.get();
+			if (time <= oldest || time > current) {
+				continue;
+			}
+			for (int i = 0; i < SLOTS; i++) {
+				counts[i] += bucket.values.get(i);
+			}
+			count += bucket.values.get(COUNT);
+			sum += bucket.values.get(SUM);
+			max = Math.max(max, bucket.values.get(MAX));
+		}
+		return new Snapshot(counts, count, sum, max);
+	}
+
+	private Bucket bucket(long time) {
+		Bucket bucket = this.buckets[(int) (time % this.buckets.length)];
+		long current = bucket.time.get();
+		if (current < time && bucket.time.compareAndSet(current, time)) {
+			bucket.clear();
+		}
+		return bucket;
+	}
+
+	static int slot(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		if (magnitude > MAX_MAGNITUDE) {
+			return SLOTS - 1;
+		}
+		int shift = magnitude - SUB_BUCKET_BITS;
+		int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+	}
+
+	static long highestEquivalentValue(int slot) {
+		if (slot < SUB_BUCKETS) {
+			return slot;
+		}
+		int shift = (slot - SUB_BUCKETS) / SUB_BUCKETS;
+		int sub = (slot - SUB_BUCKETS) % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+	}
+
+	private static class Bucket {
+
+		private final AtomicLong time = new AtomicLong(-1);
+
+		private final AtomicLongArray values = new AtomicLongArray(SLOTS + 3);
+
+		public void add(int slot, long value) {
+			this.values.incrementAndGet(slot);
+			this.values.incrementAndGet(COUNT);
+			this.values.addAndGet(SUM, value);
+			long max = this.values.get(MAX);
+			while (value > max && !this.values.compareAndSet(MAX, max, value)) {
+				max = this.values.get(MAX);
+			}
+		}
+
+		public void clear() {
+			for (int i = 0; i < this.values.length(); i++) {
+				this.values.set(i, 0);
+			}
+		}
+
+	}
+
+	/**
+	 * An immutable view of the latencies in a window.
+	 */
+	public static class Snapshot {
+
+		private final long[] counts;
+
+		private final long count;
+
+		private final long sum;
+
+		private final long max;
+
+		Snapshot(long[] counts, long count, long sum, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return this.count;
+		}
+
+		public long getMax() {
+			return this.max;
+		}
+
+		public long getSum() {
+			return this.sum;
+		}
+
+		public long getMean() {
+			return this.count == 0 ? 0 : this.sum / this.count;
+		}
+
+		/**
+		 * @param percentile a percentile between 0 and 100
+		 * @return the value below which the given percentage of latencies fall
+		 */
+		public long getPercentile(double percentile) {
+			if (this.count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100 * this.count));
+			long total = 0;
+			for (int i = 0; i < this.counts.length; i++) {
+				total += this.counts[i];
+				if (total >= rank) {
+					return Math.min(highestEquivalentValue(i), this.max);
+				}
+			}
+			return this.max;
+		}
+
+	}
+
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.retry.RetryCallback;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.RetryStatistics;
+import org.springframework.retry.listener.RetryListenerSupport;
+
+/**
+ * A {@link org.springframework.retry.RetryListener} that records the latency of calls
+ * per label in {@link LatencyHistogram histograms}, and contributes the percentiles to
+ * the Hystrix stream. The "total" latency runs from opening the retry to closing it,
+ * including any retries and recovery. The "execute" latency is the time spent in each
+ * attempt that failed or succeeded (so it excludes calls that were short circuited).
+ * <p>
+ * Retry contexts for circuit breakers are shared between concurrent callers, so the
+ * start times are kept in a stack per thread instead of in the context. Async calls
+ * (see {@link AsyncRetryPostProcessor}) only reach the listener when they are over,
+ * so they are timed from when they really started. Nothing is
+ * allocated on the recording path once a thread and a label have been seen.
+ *
+ * @author Dave Syer
+ *
+ */
+public class LatencyListener extends RetryListenerSupport
+		implements HystrixMetricsContributor, LabelEvictionListener {
+
+	private final ConcurrentMap<String, Latencies> latencies = new ConcurrentHashMap<>();
+
+	private final ThreadLocal<Timers> timers = new ThreadLocal<Timers>() {
+		@Override
+		protected Timers initialValue() {
+			return new Timers();
+		}
+	};
+
+	private long window = 60000;
+
+	private int bucketCount = 6;
+
+	/**
+	 * The length of the rolling window for percentiles in milliseconds (default 60000).
+	 *
+	 * @param window the window to set
+	 */
+	public void setWindow(long window) {
+		this.window = window;
+	}
+
+	/**
+	 * The number of buckets the rolling window is divided into (default 6).
+	 *
+	 * @param bucketCount the bucket count to set
+	 */
+	public void setBucketCount(int bucketCount) {
+		this.bucketCount = bucketCount;
+	}
+
+	/**
+	 * @param name the label of a retry or circuit breaker
+	 * @return the histogram of total latencies or null if none have been recorded
+	 */
+	public LatencyHistogram getTotalLatency(String name) {
+		Latencies latencies = this.latencies.get(name);
+		return latencies == null ? null : latencies.total;
+	}
+
+	/**
+	 * @param name the label of a retry or circuit breaker
+	 * @return the histogram of execution latencies or null if none have been recorded
+	 */
+	public LatencyHistogram getExecuteLatency(String name) {
+		Latencies latencies = this.latencies.get(name);
+		return latencies == null ? null : latencies.execute;
+	}
+
+	@Override
+	public <T, E extends Throwable> boolean open(RetryContext context,
+			RetryCallback<T, E> callback) {
+		long now = System.nanoTime();
+		// An async call only reaches the listeners when it is over
+		this.timers.get().push(AsyncRetryPostProcessor.getStarted(now),
+				AsyncRetryPostProcessor.getAttempted(now));
+		return true;
+	}
+
+	@Override
+	public <T, E extends Throwable> void onError(RetryContext context,
+			RetryCallback<T, E> callback, Throwable throwable) {
+		Timers timers = this.timers.get();
+		String name = getName(context);
+		if (timers.isEmpty() || name == null) {
+			return;
+		}
+		long now = System.nanoTime();
+		getLatencies(name).execute.record(millis(now - timers.attempt()));
+		timers.attempt(now);
+	}
+
+	@Override
+	public <T, E extends Throwable> void close(RetryContext context,
+			RetryCallback<T, E> callback, Throwable throwable) {
+		Timers timers = this.timers.get();
+		if (timers.isEmpty()) {
+			return;
+		}
+		long now = System.nanoTime();
+		long start = timers.start();
+		long attempt = timers.attempt();
+		timers.pop();
+		String name = getName(context);
+		if (name == null) {
+			return;
+		}
+		Latencies latencies = getLatencies(name);
+		latencies.total.record(millis(now - start));
+		if (throwable == null && !context.hasAttribute(RetryContext.EXHAUSTED)) {
+			latencies.execute.record(millis(now - attempt));
+		}
+	}
+
+	@Override
+	public void contribute(RetryStatistics statistics, HystrixMetrics metrics) {
+		Latencies latencies = this.latencies.get(statistics.getName());
+		if (latencies == null) {
+			return;
+		}
+		LatencyHistogram.Snapshot execute = latencies.execute.snapshot();
+		metrics.setLatencyExecute_mean(execute.getMean());
+		metrics.setLatencyExecute(latency(execute));
+		LatencyHistogram.Snapshot total = latencies.total.snapshot();
+		metrics.setLatencyTotal_mean(total.getMean());
+		metrics.setLatencyTotal(latency(total));
+	}
+
+	static HystrixMetrics.Latency latency(LatencyHistogram.Snapshot snapshot) {
+		HystrixMetrics.Latency latency = new HystrixMetrics.Latency();
+		latency.setV0(snapshot.getPercentile(0));
+		latency.setV25(snapshot.getPercentile(25));
+		latency.setV50(snapshot.getPercentile(50));
+		latency.setV75(snapshot.getPercentile(75));
+		latency.setV90(snapshot.getPercentile(90));
+		latency.setV95(snapshot.getPercentile(95));
+		latency.setV99(snapshot.getPercentile(99));
+		latency.setV995(snapshot.getPercentile(99.5));
+		latency.setV100(snapshot.getMax());
+		return latency;
+	}
+
+	@Override
+	public void evicted(String name) {
+		this.latencies.remove(name);
+	}
+
+	private Latencies getLatencies(String name) {
+		Latencies latencies = this.latencies.get(name);
+		if (latencies == null) {
+			latencies = new Latencies(this.window, this.bucketCount);
+			Latencies existing = this.latencies.putIfAbsent(name, latencies);
+			if (existing != null) {
+				latencies = existing;
+			}
+		}
+		return latencies;
+	}
+
+	private static long millis(long nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+
+	private String getName(RetryContext context) {
+		return (String) context.getAttribute(RetryContext.NAME);
+	}
+
+	private static class Latencies {
+
+		private final LatencyHistogram execute;
+
+		private final LatencyHistogram total;
+
+		Latencies(long window, int bucketCount) {
+			this.execute = new LatencyHistogram(window, bucketCount);
+			this.total = new LatencyHistogram(window, bucketCount);
+		}
+
+	}
+
+	/**
+	 * Start times of the retries in progress on one thread (more than one if they are
+	 * nested), each with the start of its current attempt.
+	 */
+	private static class Timers {
+
+		private long[] times = new long[8];
+
+		private int depth;
+
+		public boolean isEmpty() {
+			return this.depth == 0;
+		}
+
+		public void push(long start, long attempt) {
+			if (2 * this.depth + 2 > this.times.length) {
+				this.times = Arrays.copyOf(this.times, this.times.length * 2);
+			}
+			this.times[2 * this.depth] = start;
+			this.times[2 * this.depth + 1] = attempt;
+			this.depth++;
+		}
+
+		public long start() {
+			return this.times[2 * this.depth - 2];
+		}
+
+		public long attempt() {
+			return this.times[2 * this.depth - 1];
+		}
+
+		public void attempt(long now) {
+			this.times[2 * this.depth - 1] = now;
+		}
+
+		public void pop() {
+			this.depth--;
+		}
+
+	}
+
+}
@@ -0,0 +1,471 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+import org.springframework.aop.Advisor;
+import org.springframework.aop.framework.AbstractAdvisingBeanPostProcessor;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.support.DefaultPointcutAdvisor;
+import org.springframework.aop.support.annotation.AnnotationMatchingPointcut;
+import org.springframework.cache.interceptor.SimpleKey;
+import org.springframework.retry.RetryStatistics;
+import org.springframework.retry.annotation.CircuitBreaker;
+import org.springframework.util.Assert;
+import org.springframework.util.ClassUtils;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+/**
+ * Caches the results of <code>@CircuitBreaker</code> methods, keyed by the target, the
+ * method and the arguments, so that identical calls do not all go to the downstream
+ * and do not all count against the circuit breaker. There are two caches:
+ * <ul>
+ * <li>a request cache, held in the attributes of the current web request (if there is
+ * one), so that a call is made at most once per request. It is off unless
+ * {@link #setRequestCacheEnabled(boolean) enabled}, because it applies to every
+ * <code>@CircuitBreaker</code> method, and only suits those that are idempotent;</li>
+ * <li>a shared cache for labels that have a time to live, bounded in size. When it is
+ * full an entry is evicted by a clock (second chance) sweep, which approximates LRU:
+ * a lookup only sets a flag on the entry, so lookups never wait for each other, and
+ * only storing a new result takes a lock.</li>
+ * </ul>
+ * A result is only cached if it came from the method itself, and not from a
+ * <code>@Recover</code> method because the call failed or the circuit was open. A
+ * cached result is returned before the circuit breaker is reached, so it does not show
+ * in the retry statistics, but it is counted in the
+ * <code>rollingCountResponsesFromCache</code> of the Hystrix stream. Cached results
+ * are shared between callers, so they should not be modified.
+ * <p>
+ * Register it as a <code>static</code> bean so that it is in place before the beans
+ * it has to advise are created.
+ *
+ * @author Dave Syer
+ *
+ */
+@SuppressWarnings("serial")
+public class ResponseCachePostProcessor extends AbstractAdvisingBeanPostProcessor
+		implements HystrixMetricsContributor {
+
+	private static final boolean WEB_PRESENT = ClassUtils.isPresent(
+			"org.springframework.web.context.request.RequestContextHolder",
+			ResponseCachePostProcessor.class.getClassLoader());
+
+	private static final String REQUEST_CACHE = ResponseCachePostProcessor.class
+			.getName() + ".REQUEST_CACHE";
+
+	private static final Object NULL = new Object();
+
+	private final Advisor outcomeAdvisor;
+
+	private final ConcurrentMap<Method, String> labels = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<String, RollingCounters> hits = new ConcurrentHashMap<>();
+
+	private final ThreadLocal<Deque<Call>> calls = new ThreadLocal<Deque<Call>>() {
+		@Override
+		protected Deque<Call> initialValue() {
+			return new ArrayDeque<>();
+		}
+	};
+
+	private final ConcurrentMap<Key, Entry> cache = new ConcurrentHashMap<>();
+
+	/**
+	 * The entries of the shared cache in the order the clock hand visits them. Guarded
+	 * by the lock on the cache, along with the hand and the number of slots in use.
+	 */
+	private Entry[] clock = new Entry[1000];
+
+	private int hand;
+
+	private int used;
+
+	private boolean requestCacheEnabled = false;
+
+	private long timeToLive = 0;
+
+	private Map<String, Long> timesToLive = Collections.emptyMap();
+
+	private int maxEntries = 1000;
+
+	private long window = 10000;
+
+	private int bucketCount = 10;
+
+	public ResponseCachePostProcessor() {
+		AnnotationMatchingPointcut pointcut = AnnotationMatchingPointcut
+				.forMethodAnnotation(CircuitBreaker.class);
+		this.advisor = new DefaultPointcutAdvisor(pointcut, new CacheInterceptor());
+		this.outcomeAdvisor = new DefaultPointcutAdvisor(pointcut,
+				new OutcomeInterceptor());
+		setBeforeExistingAdvisors(true);
+	}
+
+	/**
+	 * Flag to say whether results are cached for the rest of the current web request
+	 * (default false). Only switch it on if all the <code>@CircuitBreaker</code>
+	 * methods are safe to call once for several identical calls in the same request.
+	 *
+	 * @param requestCacheEnabled the flag to set
+	 */
+	public void setRequestCacheEnabled(boolean requestCacheEnabled) {
+		this.requestCacheEnabled = requestCacheEnabled;
+	}
+
+	/**
+	 * The time in milliseconds that results are kept in the shared cache unless there
+	 * is a specific time for the label (default 0, meaning they are not kept).
+	 *
+	 * @param timeToLive the time to live to set
+	 */
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * Times to live in the shared cache for specific labels, overriding the default.
+	 *
+	 * @param timesToLive the times to live in milliseconds keyed by label
+	 */
+	public void setTimesToLive(Map<String, Long> timesToLive) {
+		this.timesToLive = new HashMap<>(timesToLive);
+	}
+
+	/**
+	 * The maximum number of results in the shared cache (default 1000).
+	 *
+	 * @param maxEntries the maximum to set
+	 */
+	public void setMaxEntries(int maxEntries) {
+		Assert.isTrue(maxEntries > 0, "Maximum entries must be positive");
+		synchronized (this.cache) {
+			this.maxEntries = maxEntries;
+			Entry[] clock = new Entry[maxEntries];
+			int used = 0;
+			for (int i = 0; i < this.used; i++) {
+				Entry entry = this.clock[(this.hand + i) % this.used];
+				if (used < maxEntries) {
+					entry.slot = used;
+					clock[used++] = entry;
+				}
+				else {
+					this.cache.remove(entry.key, entry);
+				}
+			}
+			this.clock = clock;
+			this.used = used;
+			this.hand = 0;
+		}
+	}
+
+	/**
+	 * The length of the rolling window for the cache hits in milliseconds (default
+	 * 10000).
+	 *
+	 * @param window the window to set
+	 */
+	public void setWindow(long window) {
+		this.window = window;
+	}
+
+	/**
+	 * The number of buckets the rolling window is divided into (default 10).
+	 *
+	 * @param bucketCount the bucket count to set
+	 */
+	public void setBucketCount(int bucketCount) {
+		this.bucketCount = bucketCount;
+	}
+
+	/**
+	 * Remove all the results from the shared cache.
+	 */
+	public void clear() {
+		synchronized (this.cache) {
+			this.cache.clear();
+			this.clock = new Entry[this.maxEntries];
+			this.used = 0;
+			this.hand = 0;
+		}
+	}
+
+	@Override
+	public Object postProcessAfterInitialization(Object bean, String beanName) {
+		Object result = super.postProcessAfterInitialization(bean, beanName);
+		if (result instanceof Advised && isEligible(bean, beanName)) {
+			// Innermost, so it sees whether the method itself returned
+			((Advised) result).addAdvisor(this.outcomeAdvisor);
+		}
+		return result;
+	}
+
+	@Override
+	public void contribute(RetryStatistics statistics, HystrixMetrics metrics) {
+		RollingCounters hits = this.hits.get(statistics.getName());
+		if (hits == null) {
+			return;
+		}
+		metrics.setPropertyValue_requestCacheEnabled(this.requestCacheEnabled);
+		metrics.setRollingCountResponsesFromCache(
+				metrics.getRollingCountResponsesFromCache()
+						+ hits.sum(0, System.currentTimeMillis()));
+	}
+
+	private String getLabel(MethodInvocation invocation) {
+		Method method = invocation.getMethod();
+		String label = this.labels.get(method);
+		if (label == null) {
+			label = CircuitBreakerLabels.getLabel(method, invocation.getThis());
+			this.hits.putIfAbsent(label,
+					new RollingCounters(1, this.window, this.bucketCount));
+			this.labels.put(method, label);
+		}
+		return label;
+	}
+
+	private long getTimeToLive(String label) {
+		Long timeToLive = this.timesToLive.get(label);
+		return timeToLive == null ? this.timeToLive : timeToLive;
+	}
+
+	private Map<Key, Object> getRequestCache() {
+		return this.requestCacheEnabled && WEB_PRESENT ? RequestCache.get() : null;
+	}
+
+	private Object lookup(Map<Key, Object> request, Key key, long timeToLive,
+			long now) {
+		Object result = request == null ? null : request.get(key);
+		if (result == null && timeToLive > 0) {
+			Entry entry = this.cache.get(key);
+			if (entry != null) {
+				if (entry.expires > now) {
+					if (!entry.referenced) {
+						entry.referenced = true;
+					}
+					result = entry.value;
+				}
+				else {
+					this.cache.remove(key, entry);
+				}
+			}
+		}
+		return result;
+	}
+
+	private void store(Map<Key, Object> request, Key key, Object value,
+			long timeToLive, long now) {
+		if (request != null) {
+			request.put(key, value);
+		}
+		if (timeToLive > 0) {
+			Entry entry = new Entry(key, value, now + timeToLive);
+			synchronized (this.cache) {
+				Entry old = this.cache.put(key, entry);
+				entry.slot = old != null ? old.slot : slot(now);
+				this.clock[entry.slot] = entry;
+			}
+		}
+	}
+
+	/**
+	 * Find a slot in the clock for a new entry, evicting one if the cache is full. The
+	 * hand passes over entries that have been used since it last came round, clearing
+	 * their flag, and stops at the first expired or unused one. Must be called while
+	 * holding the lock on the cache.
+	 */
+	private int slot(long now) {
+		if (this.used < this.clock.length) {
+			return this.used++;
+		}
+		while (true) {
+			int slot = this.hand;
+			this.hand = (slot + 1) % this.clock.length;
+			Entry entry = this.clock[slot];
+			if (entry.referenced && entry.expires > now) {
+				entry.referenced = false;
+				continue;
+			}
+			this.cache.remove(entry.key, entry);
+			return slot;
+		}
+	}
+
+	private class CacheInterceptor implements MethodInterceptor {
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			String label = getLabel(invocation);
+			long timeToLive = getTimeToLive(label);
+			Map<Key, Object> request = getRequestCache();
+			if (request == null && timeToLive <= 0) {
+				return invocation.proceed();
+			}
+			Key key = new Key(invocation.getThis(), invocation.getMethod(),
+					invocation.getArguments());
+			Object result = lookup(request, key, timeToLive,
+					System.currentTimeMillis());
+			if (result != null) {
+				hits.get(label).increment(0, System.currentTimeMillis());
+				return result == NULL ? null : result;
+			}
+			Deque<Call> calls = ResponseCachePostProcessor.this.calls.get();
+			Call call = new Call(invocation.getMethod());
+			calls.push(call);
+			try {
+				result = invocation.proceed();
+			}
+			finally {
+				calls.pop();
+			}
+			if (call.returned) {
+				store(request, key, result == null ? NULL : result, timeToLive,
+						System.currentTimeMillis());
+			}
+			return result;
+		}
+
+	}
+
+	/**
+	 * Records whether the last attempt at a call returned normally, as opposed to
+	 * throwing an exception or not being made at all.
+	 */
+	private class OutcomeInterceptor implements MethodInterceptor {
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			Call call = calls.get().peek();
+			if (call == null || !call.method.equals(invocation.getMethod())) {
+				return invocation.proceed();
+			}
+			call.returned = false;
+			Object result = invocation.proceed();
+			call.returned = true;
+			return result;
+		}
+
+	}
+
+	/**
+	 * Keeps the optional web dependencies out of the way if they are not there.
+	 */
+	private static class RequestCache {
+
+		@SuppressWarnings("unchecked")
+		private static Map<Key, Object> get() {
+			RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+			if (attributes == null) {
+				return null;
+			}
+			Map<Key, Object> cache = (Map<Key, Object>) attributes
+					.getAttribute(REQUEST_CACHE, RequestAttributes.SCOPE_REQUEST);
+			if (cache == null) {
+				cache = new ConcurrentHashMap<>();
+				attributes.setAttribute(REQUEST_CACHE, cache,
+						RequestAttributes.SCOPE_REQUEST);
+			}
+			return cache;
+		}
+
+	}
+
+	/**
+	 * A call in progress on the current thread.
+	 */
+	private static class Call {
+
+		private final Method method;
+
+		private boolean returned;
+
+		private Call(Method method) {
+			this.method = method;
+		}
+
+	}
+
+	private static class Entry {
+
+		private final Key key;
+
+		private final Object value;
+
+		private final long expires;
+
+		private volatile boolean referenced;
+
+		private int slot;
+
+		private Entry(Key key, Object value, long expires) {
+			this.key = key;
+			this.value = value;
+			this.expires = expires;
+		}
+
+	}
+
+	/**
+	 * The arguments of a call to a method on a particular target.
+	 */
+	private static class Key {
+
+		private final Object target;
+
+		private final Method method;
+
+		private final SimpleKey arguments;
+
+		private Key(Object target, Method method, Object[] arguments) {
+			this.target = target;
+			this.method = method;
+			this.arguments = new SimpleKey(arguments);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return this.target == other.target && this.method.equals(other.method)
+					&& this.arguments.equals(other.arguments);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * System.identityHashCode(this.target)
+					+ this.method.hashCode()) + this.arguments.hashCode();
+		}
+
+	}
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.util.Assert;
+
+/**
+ * A token bucket that limits retries to a fraction of the calls that succeeded first
+ * time. Each successful first attempt deposits the fraction of a token, and each retry
+ * has to withdraw a whole one, so once a downstream starts failing the retries soon
+ * stop, instead of multiplying the load on it. The bucket starts full, and never holds
+ * more than its capacity, which is the largest burst of retries that can happen after
+ * a quiet period.
+ * <p>
+ * The tokens are kept in thousandths in a single {@link AtomicLong}, so depositing and
+ * withdrawing are lock-free, and a deposit into a full bucket (the normal state of a
+ * healthy service) does not write anything at all.
+ *
+ * @author Dave Syer
+ *
+ */
+public class RetryBudget {
+
+	private static final long UNIT = 1000;
+
+	private final AtomicLong tokens;
+
+	private final long capacity;
+
+	private final long deposit;
+
+	/**
+	 * @param capacity the most tokens the bucket can hold
+	 * @param ratio the number of retries allowed per successful first attempt
+	 */
+	public RetryBudget(int capacity, double ratio) {
+		Assert.isTrue(capacity > 0, "Capacity must be positive");
+		Assert.isTrue(ratio > 0, "Ratio must be positive");
+		this.capacity = capacity * UNIT;
+		this.deposit = Math.max(1, Math.round(ratio * UNIT));
+		this.tokens = new AtomicLong(this.capacity);
+	}
+
+	/**
+	 * @return the number of whole tokens available
+	 */
+	public long getTokens() {
+		return this.tokens.get() / UNIT;
+	}
+
+	/**
+	 * Record a successful first attempt.
+	 */
+	public void deposit() {
+		add(this.deposit);
+	}
+
+	/**
+	 * Try to take a token for a retry.
+	 *
+	 * @return true if there was one
+	 */
+	public boolean tryWithdraw() {
+		while (true) {
+			long tokens = this.tokens.get();
+			if (tokens < UNIT) {
+				return false;
+			}
+			if (this.tokens.compareAndSet(tokens, tokens - UNIT)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Give back a token that was taken for a retry that did not happen.
+	 */
+	public void refund() {
+		add(UNIT);
+	}
+
+	private void add(long amount) {
+		while (true) {
+			long tokens = this.tokens.get();
+			if (tokens >= this.capacity) {
+				return;
+			}
+			if (this.tokens.compareAndSet(tokens,
+					Math.min(this.capacity, tokens + amount))) {
+				return;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "RetryBudget [tokens=" + this.tokens.get() / (double) UNIT + ", capacity="
+				+ this.capacity / UNIT + "]";
+	}
+
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.retry.RetryCallback;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.RetryStatistics;
+import org.springframework.retry.listener.RetryListenerSupport;
+
+/**
+ * A {@link org.springframework.retry.RetryListener} that keeps a {@link RetryBudget}
+ * per label and one shared by all labels, and stops a retry that would overdraw either
+ * of them, so that when a downstream browns out the retries do not multiply the load on
+ * it. The budgets and the number of retries denied per label are contributed to the
+ * Hystrix stream.
+ * <p>
+ * A token is taken for the next attempt when an attempt fails, and if there is none
+ * the retry context is marked exhausted, so the call ends there and goes to its
+ * recovery (or throws) as if it had run out of attempts. If the retry policy decides
+ * not to make another attempt anyway, the token is given back when the retry closes.
+ * Stateful retries, including circuit breakers, are left alone, because their
+ * attempts are separate calls.
+ *
+ * @author Dave Syer
+ *
+ */
+public class RetryBudgetListener extends RetryListenerSupport
+		implements HystrixMetricsContributor, LabelEvictionListener {
+
+	private static final String TOKEN = "retryBudget.token";
+
+	private final ConcurrentMap<String, RetryBudget> budgets = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<String, RollingCounters> denied = new ConcurrentHashMap<>();
+
+	private double ratio = 0.1;
+
+	private int capacity = 10;
+
+	private int globalCapacity = 100;
+
+	private volatile RetryBudget global = new RetryBudget(this.globalCapacity,
+			this.ratio);
+
+	private long window = 10000;
+
+	private int bucketCount = 10;
+
+	/**
+	 * The number of retries allowed per successful first attempt (default 0.1).
+	 *
+	 * @param ratio the ratio to set
+	 */
+	public void setRatio(double ratio) {
+		this.ratio = ratio;
+		this.global = new RetryBudget(this.globalCapacity, ratio);
+	}
+
+	/**
+	 * The most retries that can be saved up for each label (default 10).
+	 *
+	 * @param capacity the capacity to set
+	 */
+	public void setCapacity(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * The most retries that can be saved up for all the labels together (default 100).
+	 *
+	 * @param globalCapacity the global capacity to set
+	 */
+	public void setGlobalCapacity(int globalCapacity) {
+		this.globalCapacity = globalCapacity;
+		this.global = new RetryBudget(globalCapacity, this.ratio);
+	}
+
+	/**
+	 * The length of the rolling window for the denied retries in milliseconds
+	 * (default 10000).
+	 *
+	 * @param window the window to set
+	 */
+	public void setWindow(long window) {
+		this.window = window;
+	}
+
+	/**
+	 * The number of buckets the rolling window is divided into (default 10).
+	 *
+	 * @param bucketCount the bucket count to set
+	 */
+	public void setBucketCount(int bucketCount) {
+		this.bucketCount = bucketCount;
+	}
+
+	/**
+	 * @param name the label of a retry
+	 * @return the budget for the label or null if it has not been used
+	 */
+	public RetryBudget getBudget(String name) {
+		return this.budgets.get(name);
+	}
+
+	/**
+	 * @return the budget shared by all the labels
+	 */
+	public RetryBudget getGlobalBudget() {
+		return this.global;
+	}
+
+	/**
+	 * The number of failed attempts that found no token for a retry in the rolling
+	 * window. A listener cannot tell whether the retry policy would have made another
+	 * attempt, so this includes last attempts that failed when the budget was empty.
+	 *
+	 * @param name the label of a retry
+	 * @return the number of retries denied in the rolling window
+	 */
+	public long getRollingDeniedCount(String name) {
+		RollingCounters denied = this.denied.get(name);
+		return denied == null ? 0 : denied.sum(0, System.currentTimeMillis());
+	}
+
+	@Override
+	public <T, E extends Throwable> void onError(RetryContext context,
+			RetryCallback<T, E> callback, Throwable throwable) {
+		if (context.hasAttribute(RetryContext.STATE_KEY)) {
+			return;
+		}
+		// Any token held from the last error was spent on the attempt that just failed
+		context.removeAttribute(TOKEN);
+		if (context.isExhaustedOnly()) {
+			return;
+		}
+		String name = getName(context);
+		RetryBudget budget = name == null ? null : getOrCreateBudget(name);
+		if (budget == null || budget.tryWithdraw()) {
+			if (this.global.tryWithdraw()) {
+				context.setAttribute(TOKEN, budget == null ? this.global : budget);
+				return;
+			}
+			if (budget != null) {
+				budget.refund();
+			}
+		}
+		context.setExhaustedOnly();
+		if (name != null) {
+			getDenied(name).increment(0, System.currentTimeMillis());
+		}
+	}
+
+	@Override
+	public <T, E extends Throwable> void close(RetryContext context,
+			RetryCallback<T, E> callback, Throwable throwable) {
+		if (context.hasAttribute(RetryContext.STATE_KEY)) {
+			return;
+		}
+		if (throwable == null) {
+			if (context.getRetryCount() == 0) {
+				String name = getName(context);
+				if (name != null) {
+					getOrCreateBudget(name).deposit();
+				}
+				this.global.deposit();
+			}
+			return;
+		}
+		RetryBudget budget = (RetryBudget) context.removeAttribute(TOKEN);
+		if (budget != null) {
+			// The policy decided not to retry after all
+			if (budget != this.global) {
+				budget.refund();
+			}
+			this.global.refund();
+		}
+	}
+
+	@Override
+	public void contribute(RetryStatistics statistics, HystrixMetrics metrics) {
+		RetryBudget budget = this.budgets.get(statistics.getName());
+		if (budget == null) {
+			return;
+		}
+		metrics.setCurrentRetryBudget(budget.getTokens());
+		metrics.setCurrentGlobalRetryBudget(this.global.getTokens());
+		metrics.setRollingCountRetriesDenied(metrics.getRollingCountRetriesDenied()
+				+ getRollingDeniedCount(statistics.getName()));
+	}
+
+	@Override
+	public void evicted(String name) {
+		this.budgets.remove(name);
+		this.denied.remove(name);
+	}
+
+	private RetryBudget getOrCreateBudget(String name) {
+		RetryBudget budget = this.budgets.get(name);
+		if (budget == null) {
+			budget = new RetryBudget(this.capacity, this.ratio);
+			RetryBudget existing = this.budgets.putIfAbsent(name, budget);
+			if (existing != null) {
+				budget = existing;
+			}
+		}
+		return budget;
+	}
+
+	private RollingCounters getDenied(String name) {
+		RollingCounters denied = this.denied.get(name);
+		if (denied == null) {
+			denied = new RollingCounters(1, this.window, this.bucketCount);
+			RollingCounters existing = this.denied.putIfAbsent(name, denied);
+			if (existing != null) {
+				denied = existing;
+			}
+		}
+		return denied;
+	}
+
+	private String getName(RetryContext context) {
+		return (String) context.getAttribute(RetryContext.NAME);
+	}
+
+}
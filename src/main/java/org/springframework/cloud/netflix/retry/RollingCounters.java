@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.util.Assert;
+
+/**
+ * A few counters over a rolling time window, for {@link RollingRetryStatistics} and
+ * for listeners that keep their own counts per label. The window is a ring of buckets
+ * of primitive counters in a single {@link AtomicLongArray}, so incrementing is
+ * lock-free, and a rolling sum is computed from the live buckets when it is needed.
+ *
+ * @author Dave Syer
+ *
+ */
+class RollingCounters {
+
+	private final int stride;
+
+	private final long interval;
+
+	private final int bucketCount;
+
+	private final AtomicLongArray buckets;
+
+	/**
+	 * @param fields the number of counters
+	 * @param window the length of the rolling window in milliseconds
+	 * @param bucketCount the number of intervals the window is divided into
+	 */
+	RollingCounters(int fields, long window, int bucketCount) {
+		Assert.isTrue(bucketCount > 0, "Bucket count must be positive");
+		Assert.isTrue(window >= bucketCount,
+				"Window must be at least one millisecond per bucket");
+		// The time and the counters, padded so a bucket is at least 64 bytes
+		this.stride = Math.max(8, fields + 1);
+		this.interval = window / bucketCount;
+		this.bucketCount = bucketCount;
+		this.buckets = new AtomicLongArray(bucketCount * this.stride);
+		for (int i = 0; i < bucketCount; i++) {
+			this.buckets.set(i * this.stride, -1);
+		}
+	}
+
+	/**
+	 * @param field the index of a counter
+	 * @param now the current time
+	 */
+	void increment(int field, long now) {
+		add(field, 1, now);
+	}
+
+	/**
+	 * @param field the index of a counter
+	 * @param delta the amount to add
+	 * @param now the current time
+	 */
+	void add(int field, long delta, long now) {
+		int index = roll(now / this.interval);
+		this.buckets.addAndGet(index + 1 + field, delta);
+	}
+
+	/**
+	 * Add counts that were recorded earlier to the bucket for the time they were
+	 * recorded, so they expire together one window after that. They are ignored if
+	 * that is already in the past, or if the bucket has been reused for a later
+	 * interval.
+	 *
+	 * @param counts the amounts to add indexed by counter
+	 * @param time the time the counts were recorded
+	 * @param now the current time
+	 */
+	void add(long[] counts, long time, long now) {
+		long bucket = time / this.interval;
+		long current = now / this.interval;
+		if (bucket <= current - this.bucketCount || bucket > current) {
+			return;
+		}
+		if (this.buckets.get(slot(bucket)) > bucket) {
+			return;
+		}
+		int index = roll(bucket);
+		for (int field = 0; field < counts.length; field++) {
+			this.buckets.addAndGet(index + 1 + field, counts[field]);
+		}
+	}
+
+	private int roll(long time) {
+		int index = slot(time);
+		long bucket = this.buckets.get(index);
+		if (bucket < time && this.buckets.compareAndSet(index, bucket, time)) {
+			for (int i = 1; i < this.stride; i++) {
+				this.buckets.set(index + i, 0);
+			}
+		}
+		return index;
+	}
+
+	private int slot(long time) {
+		return (int) (time % this.bucketCount) * this.stride;
+	}
+
+	/**
+	 * @param field the index of a counter
+	 * @param now the current time
+	 * @return the sum of the counter over the window ending now
+	 */
+	long sum(int field, long now) {
+		long current = now / this.interval;
+		long sum = 0;
+		for (int i = 0; i < this.bucketCount; i++) {
+			long time = this.buckets.get(i * this.stride);
+			if (time > current - this.bucketCount && time <= current) {
+				sum += this.buckets.get(i * this.stride + 1 + field);
+			}
+		}
+		return sum;
+	}
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import org.springframework.retry.policy.CircuitBreakerRetryPolicy;
+import org.springframework.retry.stats.DefaultRetryStatistics;
+
+/**
+ * Retry statistics with exact counts over a rolling time window, like the ones in
+ * Hystrix, as opposed to the exponential decay in
+ * {@link org.springframework.retry.stats.ExponentialAverageRetryStatistics}. The counts
+ * are kept in {@link RollingCounters}, so incrementing is lock-free, and a rolling sum
+ * is computed from the live buckets when it is needed.
+ * <p>
+ * Short circuits are counted from the changes in the
+ * {@link CircuitBreakerRetryPolicy#CIRCUIT_SHORT_COUNT} attribute that the
+ * {@link org.springframework.retry.stats.StatisticsListener} copies from the circuit
+ * breaker.
+ *
+ * @author Dave Syer
+ *
+ */
+@SuppressWarnings("serial")
+public class RollingRetryStatistics extends DefaultRetryStatistics {
+
+	static final int STARTED = 1;
+
+	static final int COMPLETE = 2;
+
+	static final int RECOVERY = 3;
+
+	static final int ERROR = 4;
+
+	static final int ABORT = 5;
+
+	static final int SHORT_CIRCUIT = 6;
+
+	private final long window;
+
+	// Counter 0 is not used, so the fields have the same indexes as persisted counts
+	private final RollingCounters counters;
+
+	private volatile int shortCircuits;
+
+	/**
+	 * Create statistics over the last 10 seconds in 10 buckets.
+	 *
+	 * @param name the name of the retry
+	 */
+	public RollingRetryStatistics(String name) {
+		this(name, 10000, 10);
+	}
+
+	/**
+	 * @param name the name of the retry
+	 * @param window the length of the rolling window in milliseconds
+	 * @param bucketCount the number of intervals the window is divided into
+	 */
+	public RollingRetryStatistics(String name, long window, int bucketCount) {
+		super(name);
+		this.window = window;
+		this.counters = new RollingCounters(SHORT_CIRCUIT + 1, window, bucketCount);
+	}
+
+	/**
+	 * @return the length of the rolling window in milliseconds
+	 */
+	public long getWindow() {
+		return this.window;
+	}
+
+	public int getRollingStartedCount() {
+		return (int) sum(STARTED, System.currentTimeMillis());
+	}
+
+	public int getRollingCompleteCount() {
+		return (int) sum(COMPLETE, System.currentTimeMillis());
+	}
+
+	public int getRollingRecoveryCount() {
+		return (int) sum(RECOVERY, System.currentTimeMillis());
+	}
+
+	public int getRollingErrorCount() {
+		return (int) sum(ERROR, System.currentTimeMillis());
+	}
+
+	public int getRollingAbortCount() {
+		return (int) sum(ABORT, System.currentTimeMillis());
+	}
+
+	public int getRollingShortCircuitCount() {
+		return (int) sum(SHORT_CIRCUIT, System.currentTimeMillis());
+	}
+
+	public double getRollingErrorRate() {
+		long now = System.currentTimeMillis();
+		long started = sum(STARTED, now);
+		if (started == 0) {
+			return 0.;
+		}
+		return (double) (sum(ABORT, now) + sum(RECOVERY, now)) / started;
+	}
+
+	@Override
+	public void incrementStartedCount() {
+		super.incrementStartedCount();
+		increment(STARTED, System.currentTimeMillis());
+	}
+
+	@Override
+	public void incrementCompleteCount() {
+		super.incrementCompleteCount();
+		increment(COMPLETE, System.currentTimeMillis());
+	}
+
+	@Override
+	public void incrementRecoveryCount() {
+		super.incrementRecoveryCount();
+		increment(RECOVERY, System.currentTimeMillis());
+	}
+
+	@Override
+	public void incrementErrorCount() {
+		super.incrementErrorCount();
+		increment(ERROR, System.currentTimeMillis());
+	}
+
+	@Override
+	public void incrementAbortCount() {
+		super.incrementAbortCount();
+		increment(ABORT, System.currentTimeMillis());
+	}
+
+	@Override
+	public void setAttribute(String name, Object value) {
+		if (CircuitBreakerRetryPolicy.CIRCUIT_SHORT_COUNT.equals(name)
+				&& value instanceof Integer) {
+			int count = (Integer) value;
+			int delta = count - this.shortCircuits;
+			this.shortCircuits = count;
+			if (delta > 0) {
+				this.counters.add(SHORT_CIRCUIT, delta, System.currentTimeMillis());
+			}
+		}
+		super.setAttribute(name, value);
+	}
+
+	void increment(int field, long now) {
+		this.counters.increment(field, now);
+	}
+
+	/**
+	 * Restore rolling counts that were recorded before a restart. The counts all go
+	 * into the bucket for the time they were recorded, so they expire together one
+	 * window after that, and they are ignored if that is already in the past. The
+	 * circuit breaker counts its short circuits from zero again after a restart, so
+	 * the short circuit count is restored as an attribute without being counted.
+	 *
+	 * @param counts the rolling counts indexed by field (index 0 is not used)
+	 * @param shortCircuits the short circuit count of the circuit breaker
+	 * @param time the time the counts were recorded
+	 * @param now the current time
+	 */
+	void restore(long[] counts, int shortCircuits, long time, long now) {
+		super.setAttribute(CircuitBreakerRetryPolicy.CIRCUIT_SHORT_COUNT,
+				shortCircuits);
+		this.counters.add(counts, time, now);
+	}
+
+	long sum(int field, long now) {
+		return this.counters.sum(field, now);
+	}
+
+	@Override
+	public String toString() {
+		return "RollingRetryStatistics [name=" + getName() + ", window=" + this.window
+				+ ", startedCount=" + getStartedCount() + ", completeCount="
+				+ getCompleteCount() + ", recoveryCount=" + getRecoveryCount()
+				+ ", errorCount=" + getErrorCount() + ", abortCount=" + getAbortCount()
+				+ "]";
+	}
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import org.springframework.retry.stats.MutableRetryStatistics;
+import org.springframework.retry.stats.RetryStatisticsFactory;
+
+/**
+ * Factory for {@link RollingRetryStatistics}, for use with a
+ * {@link org.springframework.retry.stats.DefaultStatisticsRepository}.
+ *
+ * @author Dave Syer
+ *
+ */
+public class RollingRetryStatisticsFactory implements RetryStatisticsFactory {
+
+	private long window = 10000;
+
+	private int bucketCount = 10;
+
+	/**
+	 * The length of the rolling window in milliseconds (default 10000).
+	 *
+	 * @param window the window to set
+	 */
+	public void setWindow(long window) {
+		this.window = window;
+	}
+
+	/**
+	 * The number of buckets the rolling window is divided into (default 10).
+	 *
+	 * @param bucketCount the bucket count to set
+	 */
+	public void setBucketCount(int bucketCount) {
+		this.bucketCount = bucketCount;
+	}
+
+	@Override
+	public MutableRetryStatistics create(String name) {
+		return new RollingRetryStatistics(name, this.window, this.bucketCount);
+	}
+
+}
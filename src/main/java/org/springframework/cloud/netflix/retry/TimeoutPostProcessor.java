@@ -0,0 +1,255 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+import org.springframework.aop.framework.AbstractAdvisingBeanPostProcessor;
+import org.springframework.aop.support.DefaultPointcutAdvisor;
+import org.springframework.aop.support.annotation.AnnotationMatchingPointcut;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.retry.RetryStatistics;
+import org.springframework.retry.annotation.CircuitBreaker;
+import org.springframework.util.Assert;
+
+/**
+ * Enforces an execution timeout on every attempt at a <code>@CircuitBreaker</code>
+ * method, per label, and contributes the timeouts and the number of calls that timed
+ * out to the Hystrix stream.
+ * <p>
+ * The call runs on the caller's thread, so a call that times out is interrupted, and
+ * fails with an {@link ExecutionTimeoutException} (whatever it returns or throws after
+ * that) which goes to the <code>@Recover</code> method like any other failure. A call
+ * that does not respond to interrupts still holds the thread until it finishes, but it
+ * is counted as a timeout. The interrupt is cleared before the exception is thrown, so
+ * it does not leak into the fallback or the caller.
+ * <p>
+ * All the timeouts are scheduled on one {@link HashedWheelTimer}, so arming and
+ * cancelling them is cheap however many calls there are, at the cost of firing up to
+ * one tick late.
+ * <p>
+ * Register it as a <code>static</code> bean so that it is in place before the beans
+ * it has to advise are created.
+ *
+ * @author Dave Syer
+ *
+ */
+@SuppressWarnings("serial")
+public class TimeoutPostProcessor extends AbstractAdvisingBeanPostProcessor
+		implements HystrixMetricsContributor, DisposableBean {
+
+	private final ConcurrentMap<Method, String> labels = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<String, RollingCounters> counts = new ConcurrentHashMap<>();
+
+	private final HashedWheelTimer timer;
+
+	private long timeout = 60000;
+
+	private Map<String, Long> timeouts = Collections.emptyMap();
+
+	private long window = 10000;
+
+	private int bucketCount = 10;
+
+	/**
+	 * Create a processor with a timer that ticks every 10ms.
+	 */
+	public TimeoutPostProcessor() {
+		this(10, 512);
+	}
+
+	/**
+	 * @param tick the resolution of the timeouts in milliseconds
+	 * @param wheelSize the number of ticks in a turn of the timer wheel
+	 */
+	public TimeoutPostProcessor(long tick, int wheelSize) {
+		this.timer = new HashedWheelTimer(tick, wheelSize);
+		this.advisor = new DefaultPointcutAdvisor(
+				AnnotationMatchingPointcut.forMethodAnnotation(CircuitBreaker.class),
+				new TimeoutInterceptor());
+	}
+
+	/**
+	 * The execution timeout in milliseconds unless there is a specific one for the
+	 * label (default 60000). Zero or less means no timeout.
+	 *
+	 * @param timeout the timeout to set
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Timeouts for specific labels, overriding the default.
+	 *
+	 * @param timeouts the timeouts in milliseconds keyed by label
+	 */
+	public void setTimeouts(Map<String, Long> timeouts) {
+		this.timeouts = new HashMap<>(timeouts);
+	}
+
+	/**
+	 * The length of the rolling window for the timeouts in milliseconds (default
+	 * 10000).
+	 *
+	 * @param window the window to set
+	 */
+	public void setWindow(long window) {
+		this.window = window;
+	}
+
+	/**
+	 * The number of buckets the rolling window is divided into (default 10).
+	 *
+	 * @param bucketCount the bucket count to set
+	 */
+	public void setBucketCount(int bucketCount) {
+		this.bucketCount = bucketCount;
+	}
+
+	/**
+	 * @param name the label of a circuit breaker
+	 * @return the execution timeout in milliseconds
+	 */
+	public long getTimeout(String name) {
+		Long timeout = this.timeouts.get(name);
+		return timeout == null ? this.timeout : timeout;
+	}
+
+	/**
+	 * @param name the label of a circuit breaker
+	 * @return the number of calls that timed out in the rolling window
+	 */
+	public long getRollingTimeoutCount(String name) {
+		RollingCounters counts = this.counts.get(name);
+		return counts == null ? 0 : counts.sum(0, System.currentTimeMillis());
+	}
+
+	@Override
+	public void destroy() {
+		this.timer.stop();
+	}
+
+	@Override
+	public void contribute(RetryStatistics statistics, HystrixMetrics metrics) {
+		RollingCounters counts = this.counts.get(statistics.getName());
+		if (counts == null) {
+			return;
+		}
+		long timeout = Math.max(0, getTimeout(statistics.getName()));
+		metrics.setPropertyValue_executionTimeoutInMilliseconds(timeout);
+		metrics.setPropertyValue_executionIsolationThreadTimeoutInMilliseconds(timeout);
+		metrics.setPropertyValue_executionIsolationThreadInterruptOnTimeout(true);
+		metrics.setRollingCountTimeout(metrics.getRollingCountTimeout()
+				+ counts.sum(0, System.currentTimeMillis()));
+	}
+
+	private String getLabel(MethodInvocation invocation) {
+		Method method = invocation.getMethod();
+		String label = this.labels.get(method);
+		if (label == null) {
+			label = CircuitBreakerLabels.getLabel(method, invocation.getThis());
+			this.counts.putIfAbsent(label,
+					new RollingCounters(1, this.window, this.bucketCount));
+			this.labels.put(method, label);
+		}
+		return label;
+	}
+
+	private class TimeoutInterceptor implements MethodInterceptor {
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			String label = getLabel(invocation);
+			long timeout = getTimeout(label);
+			Execution execution = new Execution(Thread.currentThread());
+			if (timeout <= 0 || !timer.schedule(execution, timeout)) {
+				return invocation.proceed();
+			}
+			Throwable cause = null;
+			try {
+				Object result = invocation.proceed();
+				if (execution.finish()) {
+					return result;
+				}
+			}
+			catch (Throwable e) {
+				if (execution.finish()) {
+					throw e;
+				}
+				cause = e;
+			}
+			counts.get(label).increment(0, System.currentTimeMillis());
+			throw new ExecutionTimeoutException(label, timeout, cause);
+		}
+
+	}
+
+	/**
+	 * The timeout for a call in progress, which interrupts the calling thread if it
+	 * expires.
+	 */
+	private static class Execution extends HashedWheelTimer.Timeout {
+
+		private final Thread thread;
+
+		private volatile boolean interrupted;
+
+		private Execution(Thread thread) {
+			this.thread = thread;
+		}
+
+		@Override
+		protected void expired() {
+			try {
+				this.thread.interrupt();
+			}
+			finally {
+				this.interrupted = true;
+			}
+		}
+
+		/**
+		 * Called by the calling thread when the call is over.
+		 *
+		 * @return true if it finished in time, false if it timed out
+		 */
+		private boolean finish() {
+			if (cancel()) {
+				return true;
+			}
+			Assert.state(isExpired(), "Timeout was cancelled twice");
+			while (!this.interrupted) {
+				// The timer thread is about to interrupt
+				Thread.yield();
+			}
+			Thread.interrupted();
+			return false;
+		}
+
+	}
+
+}
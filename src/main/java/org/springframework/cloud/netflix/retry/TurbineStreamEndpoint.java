@@ -0,0 +1,218 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.mvc.AbstractNamedMvcEndpoint;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * Endpoint that merges the Hystrix streams of a list of upstream nodes into a single
+ * cluster-wide stream, like Turbine. Each command is reported once, with the number of
+ * nodes that reported it in <code>reportingHosts</code>. Switched on with
+ * <code>endpoints.turbine.enabled=true</code> and a list of
+ * <code>endpoints.turbine.upstreams</code>.
+ *
+ * @author Dave Syer
+ *
+ */
+@Component
+@ConditionalOnProperty(prefix = "endpoints.turbine", name = "enabled")
+@ConfigurationProperties(prefix = "endpoints.turbine")
+public class TurbineStreamEndpoint extends AbstractNamedMvcEndpoint
+		implements SmartLifecycle {
+
+	private int timeout = 10000;
+
+	private int maxEventSize = 64 * 1024;
+
+	private List<String> upstreams = new ArrayList<>();
+
+	private AtomicBoolean running = new AtomicBoolean(false);
+
+	private final ObjectMapper objectMapper;
+
+	private final HystrixMetricsWriter writer = new HystrixMetricsWriter();
+
+	private final HystrixMetricsAggregator aggregator = new HystrixMetricsAggregator();
+
+	private final HystrixStreamBroadcaster broadcaster;
+
+	private final HystrixStreamTicker ticker;
+
+	private final List<HystrixStreamUpstream> readers = new ArrayList<>();
+
+	private ExecutorService connections;
+
+	@Autowired
+	public TurbineStreamEndpoint(ObjectMapper objectMapper) {
+		this(objectMapper, Executors.newCachedThreadPool(
+				daemon(new CustomizableThreadFactory("turbineStream-"))));
+	}
+
+	TurbineStreamEndpoint(ObjectMapper objectMapper, Executor executor) {
+		super("turbine", "/turbine.stream", false);
+		this.objectMapper = objectMapper;
+		this.broadcaster = new HystrixStreamBroadcaster(executor);
+		this.ticker = new HystrixStreamTicker(this.broadcaster, new Runnable() {
+			@Override
+			public void run() {
+				publish();
+			}
+		});
+	}
+
+	private static CustomizableThreadFactory daemon(CustomizableThreadFactory factory) {
+		factory.setDaemon(true);
+		return factory;
+	}
+
+	/**
+	 * The URLs of the upstream Hystrix streams.
+	 *
+	 * @return the upstreams
+	 */
+	public List<String> getUpstreams() {
+		return this.upstreams;
+	}
+
+	public void setUpstreams(List<String> upstreams) {
+		this.upstreams = upstreams;
+	}
+
+	/**
+	 * The interval between frames in milliseconds (default 500).
+	 *
+	 * @param delay the delay to set
+	 */
+	public void setDelay(long delay) {
+		this.ticker.setDelay(delay);
+	}
+
+	/**
+	 * The connect and read timeout for upstreams in milliseconds (default 10000). An
+	 * upstream that has not reported a command for three times this long is dropped
+	 * from the totals for that command.
+	 *
+	 * @param timeout the timeout to set
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+		this.aggregator.setTimeout(3L * timeout);
+	}
+
+	/**
+	 * The largest event accepted from an upstream in bytes (default 64K).
+	 *
+	 * @param maxEventSize the max event size to set
+	 */
+	public void setMaxEventSize(int maxEventSize) {
+		this.maxEventSize = maxEventSize;
+	}
+
+	HystrixMetricsAggregator getAggregator() {
+		return this.aggregator;
+	}
+
+	@RequestMapping(path = "", produces = "text/event-stream")
+	public SseEmitter handle() {
+		// No timeout, otherwise the container will disconnect the client
+		return register(new SseEmitter(Long.MAX_VALUE));
+	}
+
+	SseEmitter register(SseEmitter emitter) {
+		SseEmitter result = this.broadcaster.subscribe(emitter).getEmitter();
+		this.ticker.resume();
+		return result;
+	}
+
+	/**
+	 * Queue a single frame of merged metrics for all the current subscribers.
+	 */
+	void publish() {
+		if (!this.broadcaster.hasSubscribers()) {
+			return;
+		}
+		this.broadcaster.broadcast(this.writer.write(this.aggregator.getMetrics()));
+	}
+
+	@Override
+	public void start() {
+		if (running.compareAndSet(false, true)) {
+			this.connections = Executors.newCachedThreadPool(
+					daemon(new CustomizableThreadFactory("turbineUpstream-")));
+			for (String url : this.upstreams) {
+				HystrixStreamUpstream reader = new HystrixStreamUpstream(url,
+						this.aggregator, this.objectMapper, this.maxEventSize);
+				reader.setTimeout(this.timeout);
+				this.readers.add(reader);
+				this.connections.execute(reader);
+			}
+			this.ticker.start();
+		}
+	}
+
+	@Override
+	public void stop() {
+		if (running.compareAndSet(true, false)) {
+			for (HystrixStreamUpstream reader : this.readers) {
+				reader.stop();
+			}
+			this.readers.clear();
+			this.connections.shutdownNow();
+			this.ticker.stop();
+			this.broadcaster.clear();
+		}
+	}
+
+	@Override
+	public boolean isRunning() {
+		return running.get();
+	}
+
+	@Override
+	public int getPhase() {
+		return 0;
+	}
+
+	@Override
+	public boolean isAutoStartup() {
+		return true;
+	}
+
+	@Override
+	public void stop(Runnable callback) {
+		stop();
+		callback.run();
+	}
+
+}
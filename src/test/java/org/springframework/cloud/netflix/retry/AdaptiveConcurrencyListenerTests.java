@@ -0,0 +1,171 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.retry.annotation.CircuitBreaker;
+import org.springframework.retry.annotation.EnableRetry;
+import org.springframework.retry.annotation.Recover;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class AdaptiveConcurrencyListenerTests {
+
+	private static final int CALLERS = 32;
+
+	private AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext(
+			TestConfiguration.class);
+
+	private ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+
+	@After
+	public void close() {
+		this.executor.shutdownNow();
+		this.context.close();
+	}
+
+	@Test
+	public void downstreamQueueBoundedUnderOverload() throws Exception {
+		Downstream downstream = this.context.getBean(Downstream.class);
+		AtomicInteger shed = new AtomicInteger();
+		long end = System.currentTimeMillis() + 2000;
+		List<Future<?>> futures = new ArrayList<>();
+		for (int i = 0; i < CALLERS; i++) {
+			futures.add(this.executor.submit(() -> {
+				while (System.currentTimeMillis() < end) {
+					if ("shed".equals(downstream.call())) {
+						shed.incrementAndGet();
+						// A real caller would not come straight back
+						Thread.sleep(1);
+					}
+				}
+				return null;
+			}));
+		}
+		// Give the limit time to settle, then see how deep the queue gets
+		Thread.sleep(1000);
+		downstream.reset();
+		for (Future<?> future : futures) {
+			future.get(10, TimeUnit.SECONDS);
+		}
+		GradientLimit limit = this.context.getBean(AdaptiveConcurrencyListener.class)
+				.getLimit("downstream");
+		// With all the callers let through there would be 28 waiting, and the latency
+		// would be 8 times what it is with no queue
+		assertThat(downstream.getMaxQueue()).isLessThanOrEqualTo(CALLERS / 2);
+		assertThat(limit.getLimit()).isLessThan(CALLERS / 2);
+		assertThat(limit.getMinRtt())
+				.isLessThan(TimeUnit.MILLISECONDS.toNanos(Downstream.LATENCY * 2));
+		assertThat(shed.get()).isGreaterThan(0);
+		BulkheadPostProcessor bulkheads = this.context
+				.getBean(BulkheadPostProcessor.class);
+		assertThat(bulkheads.getBulkhead("downstream").getLimit())
+				.isEqualTo(limit.getLimit());
+	}
+
+	@Configuration
+	@EnableRetry
+	protected static class TestConfiguration {
+
+		@Bean
+		public static BulkheadPostProcessor bulkheadPostProcessor() {
+			return new BulkheadPostProcessor();
+		}
+
+		@Bean
+		public AdaptiveConcurrencyListener adaptiveConcurrencyListener(
+				BulkheadPostProcessor bulkheads) {
+			AdaptiveConcurrencyListener listener = new AdaptiveConcurrencyListener(
+					bulkheads);
+			listener.setInitialLimit(CALLERS);
+			listener.setProbeInterval(200);
+			return listener;
+		}
+
+		@Bean
+		public Downstream downstream() {
+			return new Downstream();
+		}
+
+	}
+
+	/**
+	 * Serves a few calls at a time and queues the rest.
+	 */
+	protected static class Downstream {
+
+		private static final int CAPACITY = 4;
+
+		private static final long LATENCY = 5;
+
+		private final Semaphore workers = new Semaphore(CAPACITY, true);
+
+		private final AtomicInteger maxQueue = new AtomicInteger();
+
+		// The bean is a proxy, so the state has to be reached through methods
+
+		public int getMaxQueue() {
+			return this.maxQueue.get();
+		}
+
+		public void reset() {
+			this.maxQueue.set(0);
+		}
+
+		// Rejections count as failures, so do not let them open the circuit
+		@CircuitBreaker(label = "downstream", maxAttempts = Integer.MAX_VALUE)
+		public String call() throws InterruptedException {
+			int queue = this.workers.getQueueLength();
+			if (queue > this.maxQueue.get()) {
+				this.maxQueue.set(queue);
+			}
+			this.workers.acquire();
+			try {
+				Thread.sleep(LATENCY);
+				return "ok";
+			}
+			finally {
+				this.workers.release();
+			}
+		}
+
+		@Recover
+		public String recover(BulkheadRejectedException e) {
+			return "shed";
+		}
+
+	}
+
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.retry.RetryListener;
+import org.springframework.retry.RetryStatistics;
+import org.springframework.retry.annotation.CircuitBreaker;
+import org.springframework.retry.annotation.EnableRetry;
+import org.springframework.retry.annotation.Recover;
+import org.springframework.retry.backoff.FixedBackOffPolicy;
+import org.springframework.retry.policy.CircuitBreakerRetryPolicy;
+import org.springframework.retry.stats.DefaultRetryStatistics;
+import org.springframework.retry.stats.DefaultStatisticsRepository;
+import org.springframework.retry.stats.StatisticsListener;
+import org.springframework.retry.stats.StatisticsRepository;
+
+import reactor.core.publisher.Mono;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class AsyncRetryPostProcessorTests {
+
+	private AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext(
+			TestConfiguration.class);
+
+	private Service service = this.context.getBean(Service.class);
+
+	private AsyncRetryPostProcessor processor = this.context
+			.getBean(AsyncRetryPostProcessor.class);
+
+	private StatisticsRepository repository = this.context
+			.getBean(StatisticsRepository.class);
+
+	@After
+	public void close() {
+		this.context.close();
+	}
+
+	@Test
+	public void callerNotBlocked() throws Exception {
+		CompletableFuture<String> pending = new CompletableFuture<>();
+		this.service.pending(pending);
+		CompletableFuture<String> result = this.service.call();
+		assertThat(result.isDone()).isFalse();
+		assertThat(this.processor.getInFlight("async")).isEqualTo(1);
+		Thread.sleep(100);
+		pending.complete("foo");
+		assertThat(result.get(1, TimeUnit.SECONDS)).isEqualTo("foo");
+		assertThat(this.processor.getInFlight("async")).isEqualTo(0);
+		RetryStatistics statistics = this.repository.findOne("async");
+		assertThat(statistics.getCompleteCount()).isEqualTo(1);
+		assertThat(statistics.getErrorCount()).isEqualTo(0);
+		// Timed from when the call started, not when it passed through the breaker
+		assertThat(this.context.getBean(LatencyListener.class).getTotalLatency("async")
+				.snapshot().getMax()).isGreaterThanOrEqualTo(100);
+	}
+
+	@Test
+	public void failedAttemptsRetried() throws Exception {
+		this.service.failures(2);
+		assertThat(this.service.call().get(1, TimeUnit.SECONDS)).isEqualTo("foo");
+		assertThat(this.service.calls()).isEqualTo(3);
+		// The circuit breaker only sees the outcome of the call
+		RetryStatistics statistics = this.repository.findOne("async");
+		assertThat(statistics.getCompleteCount()).isEqualTo(1);
+		assertThat(statistics.getErrorCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void recoveredWhenAttemptsRunOut() throws Exception {
+		this.service.failures(5);
+		assertThat(this.service.call().get(1, TimeUnit.SECONDS)).isEqualTo("fallback");
+		assertThat(this.service.calls()).isEqualTo(3);
+		assertThat(this.service.recovered()).isInstanceOf(IllegalStateException.class);
+		RetryStatistics statistics = this.repository.findOne("async");
+		assertThat(statistics.getErrorCount()).isEqualTo(1);
+		assertThat(statistics.getRecoveryCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void openCircuitNotCalled() throws Exception {
+		this.service.failures(100);
+		for (int i = 0; i < 2; i++) {
+			assertThat(this.service.single().get(1, TimeUnit.SECONDS))
+					.isEqualTo("fallback");
+		}
+		// Two attempts per call by default
+		assertThat(this.service.calls()).isEqualTo(4);
+		DefaultRetryStatistics statistics = (DefaultRetryStatistics) this.repository
+				.findOne("single");
+		assertThat(statistics.getAttribute(CircuitBreakerRetryPolicy.CIRCUIT_OPEN))
+				.isEqualTo(true);
+		for (int i = 0; i < 3; i++) {
+			assertThat(this.service.single().get(1, TimeUnit.SECONDS))
+					.isEqualTo("fallback");
+		}
+		assertThat(this.service.calls()).isEqualTo(4);
+		assertThat(statistics.getRecoveryCount()).isEqualTo(5);
+	}
+
+	@Test
+	public void monoRetriedWhenSubscribed() throws Exception {
+		this.service.failures(1);
+		Mono<String> mono = this.service.mono();
+		assertThat(this.service.calls()).isEqualTo(0);
+		assertThat(mono.block()).isEqualTo("foo");
+		assertThat(this.service.calls()).isEqualTo(2);
+	}
+
+	@Test
+	public void attemptsGoThroughBulkhead() throws Exception {
+		assertThat(this.service.bulkhead().get(1, TimeUnit.SECONDS)).isEqualTo("foo");
+		Bulkhead bulkhead = this.context.getBean(BulkheadPostProcessor.class)
+				.getBulkhead("bulkhead");
+		assertThat(bulkhead.tryAcquire()).isTrue();
+		CompletableFuture<String> result = this.service.bulkhead();
+		// The first attempt was rejected, and the retry is after the backoff
+		bulkhead.release();
+		assertThat(result.get(1, TimeUnit.SECONDS)).isEqualTo("foo");
+		assertThat(this.service.calls()).isEqualTo(2);
+		assertThat(bulkhead.getRollingRejectedCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void rejectedAttemptsRecovered() throws Exception {
+		assertThat(this.service.bulkhead().get(1, TimeUnit.SECONDS)).isEqualTo("foo");
+		Bulkhead bulkhead = this.context.getBean(BulkheadPostProcessor.class)
+				.getBulkhead("bulkhead");
+		assertThat(bulkhead.tryAcquire()).isTrue();
+		assertThat(this.service.bulkhead().get(1, TimeUnit.SECONDS))
+				.isEqualTo("fallback");
+		bulkhead.release();
+		assertThat(this.service.calls()).isEqualTo(1);
+		assertThat(this.service.recovered())
+				.isInstanceOf(BulkheadRejectedException.class);
+		// Only the attempts went through the bulkhead, not the outcome
+		assertThat(bulkhead.getRollingRejectedCount()).isEqualTo(2);
+	}
+
+	@Test
+	public void inFlightContributed() throws Exception {
+		CompletableFuture<String> pending = new CompletableFuture<>();
+		this.service.pending(pending);
+		this.service.call();
+		HystrixMetrics metrics = new HystrixMetrics();
+		metrics.setCurrentConcurrentExecutionCount(1);
+		this.processor.contribute(new DefaultRetryStatistics("async"), metrics);
+		assertThat(metrics.getCurrentConcurrentExecutionCount()).isEqualTo(2);
+		pending.complete("foo");
+	}
+
+	@Configuration
+	@EnableRetry
+	protected static class TestConfiguration {
+
+		@Bean
+		public static AsyncRetryPostProcessor asyncRetryPostProcessor() {
+			AsyncRetryPostProcessor processor = new AsyncRetryPostProcessor();
+			processor.setMaxAttemptsPerLabel(Collections.singletonMap("async", 3));
+			processor.setMaxAttempts(2);
+			FixedBackOffPolicy backOff = new FixedBackOffPolicy();
+			backOff.setBackOffPeriod(50);
+			processor.setBackOffPolicy(backOff);
+			return processor;
+		}
+
+		@Bean
+		public static BulkheadPostProcessor bulkheadPostProcessor() {
+			BulkheadPostProcessor processor = new BulkheadPostProcessor();
+			processor.setLimits(Collections.singletonMap("bulkhead", 1));
+			return processor;
+		}
+
+		@Bean
+		public StatisticsRepository statisticsRepository() {
+			return new DefaultStatisticsRepository();
+		}
+
+		@Bean
+		public RetryListener statisticsListener(StatisticsRepository repository) {
+			return new StatisticsListener(repository);
+		}
+
+		@Bean
+		public LatencyListener latencyListener() {
+			return new LatencyListener();
+		}
+
+		@Bean
+		public Service service() {
+			return new Service();
+		}
+
+	}
+
+	protected static class Service {
+
+		private final AtomicInteger calls = new AtomicInteger();
+
+		private final AtomicInteger failures = new AtomicInteger();
+
+		private volatile CompletableFuture<String> pending;
+
+		private volatile Throwable recovered;
+
+		// The bean is a proxy, so the state has to be reached through methods
+
+		public int calls() {
+			return this.calls.get();
+		}
+
+		public void failures(int failures) {
+			this.failures.set(failures);
+		}
+
+		public void pending(CompletableFuture<String> pending) {
+			this.pending = pending;
+		}
+
+		public Throwable recovered() {
+			return this.recovered;
+		}
+
+		@CircuitBreaker(label = "async", maxAttempts = 100)
+		public CompletableFuture<String> call() {
+			if (this.pending != null) {
+				return this.pending;
+			}
+			return CompletableFuture.supplyAsync(this::attempt);
+		}
+
+		@CircuitBreaker(label = "single", maxAttempts = 2, openTimeout = 10000)
+		public CompletableFuture<String> single() {
+			return CompletableFuture.supplyAsync(this::attempt);
+		}
+
+		@CircuitBreaker(label = "bulkhead", maxAttempts = 100)
+		public CompletableFuture<String> bulkhead() {
+			return CompletableFuture.supplyAsync(this::attempt);
+		}
+
+		@CircuitBreaker(label = "mono", maxAttempts = 100)
+		public Mono<String> mono() {
+			return Mono.fromCallable(this::attempt);
+		}
+
+		@Recover
+		public CompletableFuture<String> recover(Throwable e) {
+			this.recovered = e;
+			return CompletableFuture.completedFuture("fallback");
+		}
+
+		@Recover
+		public Mono<String> recoverMono(Throwable e) {
+			this.recovered = e;
+			return Mono.just("fallback");
+		}
+
+		private String attempt() {
+			this.calls.incrementAndGet();
+			if (this.failures.getAndDecrement() > 0) {
+				throw new IllegalStateException("Planned");
+			}
+			return "foo";
+		}
+
+	}
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import org.springframework.retry.RetryStatistics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class BoundedStatisticsRepositoryTests {
+
+	private BoundedStatisticsRepository repository = new BoundedStatisticsRepository(1);
+
+	@Test
+	public void recordsCounts() {
+		repository.addStarted("foo");
+		repository.addError("foo");
+		repository.addRecovery("foo");
+		repository.addStarted("foo");
+		repository.addComplete("foo");
+		repository.addAbort("bar");
+		RetryStatistics foo = repository.findOne("foo");
+		assertThat(foo.getStartedCount()).isEqualTo(2);
+		assertThat(foo.getErrorCount()).isEqualTo(1);
+		assertThat(foo.getRecoveryCount()).isEqualTo(1);
+		assertThat(foo.getCompleteCount()).isEqualTo(1);
+		assertThat(repository.findOne("bar").getAbortCount()).isEqualTo(1);
+		assertThat(repository.findOne("spam")).isNull();
+		assertThat(repository.findAll()).hasSize(2);
+		assertThat(repository.getLiveCount()).isEqualTo(2);
+	}
+
+	@Test
+	public void evictsLeastRecentlyRecorded() {
+		repository.setMaxLabels(2);
+		repository.getStatistics("foo", 0).incrementStartedCount();
+		repository.getStatistics("bar", 1).incrementStartedCount();
+		repository.getStatistics("foo", 2).incrementStartedCount();
+		repository.getStatistics("spam", 3).incrementStartedCount();
+		assertThat(repository.findOne("bar")).isNull();
+		assertThat(repository.findOne("foo").getStartedCount()).isEqualTo(2);
+		assertThat(repository.findOne("spam")).isNotNull();
+		assertThat(repository.getLiveCount()).isEqualTo(2);
+		assertThat(repository.getEvictedCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void neverHoldsMoreThanTheMaximum() {
+		BoundedStatisticsRepository repository = new BoundedStatisticsRepository(4);
+		repository.setMaxLabels(10);
+		for (int i = 0; i < 1000; i++) {
+			repository.addStarted("label-" + i);
+		}
+		assertThat(repository.getLiveCount()).isLessThanOrEqualTo(10);
+	}
+
+	@Test
+	public void evictionListenersTold() {
+		List<String> evicted = new ArrayList<>();
+		repository.setEvictionListeners(
+				Collections.<LabelEvictionListener>singletonList(evicted::add));
+		repository.setMaxLabels(1);
+		repository.getStatistics("foo", 0).incrementStartedCount();
+		repository.getStatistics("bar", 1).incrementStartedCount();
+		assertThat(evicted).containsExactly("foo");
+		repository.setTimeToIdle(100);
+		repository.expire(200);
+		assertThat(evicted).containsExactly("foo", "bar");
+	}
+
+	@Test
+	public void readingDoesNotKeepLabelsAlive() {
+		repository.setMaxLabels(2);
+		repository.getStatistics("foo", 0).incrementStartedCount();
+		repository.getStatistics("bar", 1).incrementStartedCount();
+		repository.findOne("foo");
+		repository.findAll();
+		repository.getStatistics("spam", 2).incrementStartedCount();
+		assertThat(repository.findOne("foo")).isNull();
+	}
+
+	@Test
+	public void expiresIdleLabels() {
+		repository.setTimeToIdle(100);
+		repository.getStatistics("foo", 0).incrementStartedCount();
+		repository.getStatistics("bar", 80).incrementStartedCount();
+		repository.expire(150);
+		assertThat(repository.findOne("foo")).isNull();
+		assertThat(repository.findOne("bar")).isNotNull();
+		assertThat(repository.getEvictedCount()).isEqualTo(1);
+		// An evicted label starts again from scratch
+		repository.getStatistics("foo", 160).incrementStartedCount();
+		assertThat(repository.findOne("foo").getStartedCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void boundedUnderConcurrentChurn() throws Exception {
+		final BoundedStatisticsRepository repository = new BoundedStatisticsRepository(
+				4);
+		repository.setMaxLabels(100);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		final CountDownLatch latch = new CountDownLatch(4);
+		List<Runnable> tasks = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			final int offset = t * 10000;
+			tasks.add(() -> {
+				for (int i = 0; i < 10000; i++) {
+					repository.addStarted("label-" + (offset + i));
+					repository.addStarted("hot");
+				}
+				latch.countDown();
+			});
+		}
+		for (Runnable task : tasks) {
+			executor.execute(task);
+		}
+		assertThat(latch.await(30, TimeUnit.SECONDS)).isTrue();
+		executor.shutdown();
+		assertThat(repository.getLiveCount()).isLessThanOrEqualTo(100);
+		// Every label was added at least once (and the hot one maybe more often, if it
+		// was evicted in a millisecond when it was not the most recent)
+		assertThat(repository.getEvictedCount() + repository.getLiveCount())
+				.isGreaterThanOrEqualTo(40001);
+	}
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.retry.annotation.CircuitBreaker;
+import org.springframework.retry.annotation.EnableRetry;
+import org.springframework.retry.annotation.Recover;
+import org.springframework.retry.stats.DefaultRetryStatistics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class BulkheadPostProcessorTests {
+
+	private AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext(
+			TestConfiguration.class);
+
+	private ExecutorService executor = Executors.newSingleThreadExecutor();
+
+	@After
+	public void close() {
+		this.executor.shutdownNow();
+		this.context.close();
+	}
+
+	@Test
+	public void excessCallRecoveredImmediately() throws Exception {
+		Service service = this.context.getBean(Service.class);
+		BulkheadPostProcessor processor = this.context
+				.getBean(BulkheadPostProcessor.class);
+		Future<String> slow = this.executor.submit(() -> service.call());
+		assertThat(service.entered().await(10, TimeUnit.SECONDS)).isTrue();
+		assertThat(service.call()).isEqualTo("fallback");
+		assertThat(service.rejected()).isEqualTo(1);
+		service.release().countDown();
+		assertThat(slow.get(10, TimeUnit.SECONDS)).isEqualTo("foo");
+		Bulkhead bulkhead = processor.getBulkhead("foo");
+		assertThat(bulkhead.getInFlight()).isEqualTo(0);
+		assertThat(bulkhead.getRollingRejectedCount()).isEqualTo(1);
+		// Room again now
+		assertThat(service.call()).isEqualTo("foo");
+		HystrixMetrics metrics = new HystrixMetrics();
+		processor.contribute(new DefaultRetryStatistics("foo"), metrics);
+		assertThat(
+				metrics.getPropertyValue_executionIsolationSemaphoreMaxConcurrentRequests())
+						.isEqualTo(1);
+		assertThat(metrics.getRollingCountSemaphoreRejected()).isEqualTo(1);
+	}
+
+	@Test
+	public void limitCanBeRaised() throws Exception {
+		Service service = this.context.getBean(Service.class);
+		BulkheadPostProcessor processor = this.context
+				.getBean(BulkheadPostProcessor.class);
+		Future<String> slow = this.executor.submit(() -> service.call());
+		assertThat(service.entered().await(10, TimeUnit.SECONDS)).isTrue();
+		Bulkhead bulkhead = processor.getBulkhead("foo");
+		assertThat(bulkhead.tryAcquire()).isFalse();
+		processor.setMaxConcurrentRequests(2);
+		// The label has its own limit
+		assertThat(bulkhead.tryAcquire()).isFalse();
+		processor.setLimits(Collections.singletonMap("foo", 2));
+		assertThat(bulkhead.tryAcquire()).isTrue();
+		bulkhead.release();
+		service.release().countDown();
+		assertThat(slow.get(10, TimeUnit.SECONDS)).isEqualTo("foo");
+		assertThat(bulkhead.getInFlight()).isEqualTo(0);
+		assertThat(bulkhead.getRollingRejectedCount()).isEqualTo(2);
+	}
+
+	@Configuration
+	@EnableRetry
+	protected static class TestConfiguration {
+
+		@Bean
+		public static BulkheadPostProcessor bulkheadPostProcessor() {
+			BulkheadPostProcessor processor = new BulkheadPostProcessor();
+			processor.setLimits(Collections.singletonMap("foo", 1));
+			return processor;
+		}
+
+		@Bean
+		public Service service() {
+			return new Service();
+		}
+
+	}
+
+	protected static class Service {
+
+		private final CountDownLatch entered = new CountDownLatch(1);
+
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		private volatile int rejected;
+
+		// The bean is a proxy, so the state has to be reached through methods
+
+		public CountDownLatch entered() {
+			return this.entered;
+		}
+
+		public CountDownLatch release() {
+			return this.release;
+		}
+
+		public int rejected() {
+			return this.rejected;
+		}
+
+		@CircuitBreaker(label = "foo")
+		public String call() throws InterruptedException {
+			this.entered.countDown();
+			this.release.await(10, TimeUnit.SECONDS);
+			return "foo";
+		}
+
+		@Recover
+		public String recover(BulkheadRejectedException e) {
+			this.rejected++;
+			return "fallback";
+		}
+
+	}
+
+}
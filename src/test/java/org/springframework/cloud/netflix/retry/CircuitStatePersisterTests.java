@@ -0,0 +1,271 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.springframework.cloud.netflix.retry.CircuitStateFile.CircuitState;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.retry.RetryListener;
+import org.springframework.retry.annotation.CircuitBreaker;
+import org.springframework.retry.annotation.EnableRetry;
+import org.springframework.retry.annotation.Recover;
+import org.springframework.retry.policy.CircuitBreakerRetryPolicy;
+import org.springframework.retry.stats.StatisticsListener;
+import org.springframework.retry.stats.StatisticsRepository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class CircuitStatePersisterTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File file;
+
+	private AtomicInteger calls = new AtomicInteger();
+
+	private AtomicBoolean failing = new AtomicBoolean(true);
+
+	private AtomicReference<Throwable> recovered = new AtomicReference<>();
+
+	private AnnotationConfigApplicationContext context;
+
+	private CircuitStatePersister persister;
+
+	private Service service;
+
+	@Before
+	public void init() throws Exception {
+		this.file = new File(this.folder.getRoot(), "circuits.dat");
+		start();
+	}
+
+	@After
+	public void close() {
+		this.context.close();
+	}
+
+	@Test
+	public void warmRestartKeepsOpenCircuitsOpen() throws Exception {
+		openCircuit();
+		restart();
+		for (int i = 0; i < 5; i++) {
+			assertThat(this.service.call()).isEqualTo("fallback");
+		}
+		assertThat(this.calls.get()).isEqualTo(0);
+		assertThat(this.persister.isHeldOpen("foo")).isTrue();
+		RollingRetryStatistics statistics = statistics();
+		assertThat(statistics.getAttribute(CircuitBreakerRetryPolicy.CIRCUIT_OPEN))
+				.isEqualTo(true);
+		assertThat(statistics.getRollingShortCircuitCount()).isGreaterThanOrEqualTo(5);
+		// And again, without any calls in between
+		restart();
+		assertThat(this.service.call()).isEqualTo("fallback");
+		assertThat(this.calls.get()).isEqualTo(0);
+	}
+
+	@Test
+	public void heldCallGoesToRecovery() throws Exception {
+		openCircuit();
+		restart();
+		this.failing.set(false);
+		assertThat(this.service.call()).isEqualTo("fallback");
+		assertThat(this.calls.get()).isEqualTo(0);
+		assertThat(this.recovered.get()).isInstanceOf(CircuitHeldOpenException.class);
+	}
+
+	@Test
+	public void circuitClosesWhenHeldLongEnough() throws Exception {
+		openCircuit();
+		restart();
+		this.service.call();
+		this.service.call();
+		assertThat(this.calls.get()).isEqualTo(0);
+		this.persister.setResetTimeout(0);
+		this.failing.set(false);
+		assertThat(this.service.call()).isEqualTo("foo");
+		assertThat(this.service.call()).isEqualTo("foo");
+		assertThat(this.calls.get()).isEqualTo(2);
+		assertThat(this.persister.isHeldOpen("foo")).isFalse();
+	}
+
+	@Test
+	public void rollingCountsRestored() throws Exception {
+		this.failing.set(false);
+		for (int i = 0; i < 3; i++) {
+			this.service.call();
+		}
+		restart();
+		this.service.call();
+		this.service.call();
+		assertThat(this.persister.isHeldOpen("foo")).isFalse();
+		// The restored counts plus the calls since
+		assertThat(statistics().getRollingStartedCount()).isEqualTo(5);
+		assertThat(statistics().getStartedCount()).isEqualTo(2);
+	}
+
+	@Test
+	public void checkpointBeforeFirstCallKeepsRestoredCounts() throws Exception {
+		this.failing.set(false);
+		for (int i = 0; i < 3; i++) {
+			this.service.call();
+		}
+		restart();
+		// The statistics exist before the label is called for the first time
+		this.context.getBean(StatisticsRepository.class).addStarted("foo");
+		this.persister.checkpoint();
+		this.service.call();
+		this.service.call();
+		assertThat(statistics().getRollingStartedCount()).isEqualTo(6);
+	}
+
+	@Test
+	public void tornSlotIgnored() throws Exception {
+		CircuitStateFile states = new CircuitStateFile(this.file, 4);
+		CircuitState state = new CircuitState("foo");
+		state.open = true;
+		state.opened = System.currentTimeMillis();
+		states.write(state);
+		state = new CircuitState("bar");
+		states.write(state);
+		states.force();
+		try (RandomAccessFile raf = new RandomAccessFile(this.file, "rw")) {
+			// Odd sequence in the first slot, as if the process died mid-write
+			raf.seek(64);
+			raf.writeLong(3);
+		}
+		assertThat(names(new CircuitStateFile(this.file, 4))).containsExactly("bar");
+		// A different layout is not read at all
+		assertThat(new CircuitStateFile(this.file, 8).read()).isEmpty();
+	}
+
+	private void openCircuit() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			this.service.call();
+		}
+		assertThat(statistics().getAttribute(CircuitBreakerRetryPolicy.CIRCUIT_OPEN))
+				.isEqualTo(true);
+		this.persister.checkpoint();
+	}
+
+	private void restart() {
+		this.context.close();
+		this.calls.set(0);
+		start();
+	}
+
+	private void start() {
+		this.context = new AnnotationConfigApplicationContext();
+		this.context.getBeanFactory().registerSingleton("circuitStateFile", this.file);
+		this.context.getBeanFactory().registerSingleton("calls", this.calls);
+		this.context.getBeanFactory().registerSingleton("failing", this.failing);
+		this.context.getBeanFactory().registerSingleton("recovered", this.recovered);
+		this.context.register(TestConfiguration.class);
+		this.context.refresh();
+		this.persister = this.context.getBean(CircuitStatePersister.class);
+		this.service = this.context.getBean(Service.class);
+	}
+
+	private RollingRetryStatistics statistics() {
+		return (RollingRetryStatistics) this.context.getBean(StatisticsRepository.class)
+				.findOne("foo");
+	}
+
+	private String[] names(CircuitStateFile states) {
+		return states.read().stream().map(state -> state.name).toArray(String[]::new);
+	}
+
+	@Configuration
+	@EnableRetry
+	protected static class TestConfiguration {
+
+		@Bean
+		public static CircuitStatePersister circuitStatePersister(
+				StatisticsRepository repository, File circuitStateFile) {
+			return new CircuitStatePersister(repository, circuitStateFile, 16);
+		}
+
+		@Bean
+		public StatisticsRepository statisticsRepository() {
+			BoundedStatisticsRepository repository = new BoundedStatisticsRepository();
+			repository.setRetryStatisticsFactory(new RollingRetryStatisticsFactory());
+			return repository;
+		}
+
+		@Bean
+		public RetryListener statisticsListener(StatisticsRepository repository) {
+			return new StatisticsListener(repository);
+		}
+
+		@Bean
+		public Service service(AtomicInteger calls, AtomicBoolean failing,
+				AtomicReference<Throwable> recovered) {
+			return new Service(calls, failing, recovered);
+		}
+
+	}
+
+	protected static class Service {
+
+		private final AtomicInteger calls;
+
+		private final AtomicBoolean failing;
+
+		private final AtomicReference<Throwable> recovered;
+
+		public Service(AtomicInteger calls, AtomicBoolean failing,
+				AtomicReference<Throwable> recovered) {
+			this.calls = calls;
+			this.failing = failing;
+			this.recovered = recovered;
+		}
+
+		@CircuitBreaker(label = "foo", maxAttempts = 3)
+		public String call() {
+			this.calls.incrementAndGet();
+			if (this.failing.get()) {
+				throw new IllegalStateException("Planned");
+			}
+			return "foo";
+		}
+
+		@Recover
+		public String recover(RuntimeException e) {
+			this.recovered.set(e);
+			return "fallback";
+		}
+
+	}
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Test;
+
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.retry.annotation.CircuitBreaker;
+import org.springframework.retry.annotation.EnableRetry;
+import org.springframework.retry.annotation.Recover;
+import org.springframework.retry.stats.DefaultRetryStatistics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class CollapserPostProcessorTests {
+
+	private AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext(
+			TestConfiguration.class);
+
+	private ExecutorService executor = Executors.newFixedThreadPool(4);
+
+	private Service service = this.context.getBean(Service.class);
+
+	@After
+	public void close() {
+		this.executor.shutdownNow();
+		this.context.close();
+	}
+
+	@Test
+	public void concurrentCallsCollapsed() throws Exception {
+		// A full batch goes straight away, without waiting for the delay
+		assertThat(find(0, 1, 2, 3)).containsExactly("value-0", "value-1", "value-2",
+				"value-3");
+		assertThat(this.service.batches()).hasSize(1);
+		assertThat(this.service.batches().get(0)).containsOnly(0, 1, 2, 3);
+		HystrixMetrics metrics = new HystrixMetrics();
+		this.context.getBean(CollapserPostProcessor.class)
+				.contribute(new DefaultRetryStatistics("lookup"), metrics);
+		assertThat(metrics.getRollingCountCollapsedRequests()).isEqualTo(4);
+		assertThat(metrics.getBatchSize_mean()).isEqualTo(4);
+		assertThat(metrics.getBatchSize().getV100()).isEqualTo(4);
+	}
+
+	@Test
+	public void sameKeySharesSlot() throws Exception {
+		assertThat(find(1, 2, 1, 2)).containsExactly("value-1", "value-2", "value-1",
+				"value-2");
+		assertThat(this.service.batches()).hasSize(1);
+		assertThat(this.service.batches().get(0)).containsOnly(1, 2);
+		assertThat(this.context.getBean(CollapserPostProcessor.class)
+				.getBatchSizes("lookup").snapshot().getSum()).isEqualTo(4);
+	}
+
+	@Test
+	public void partialBatchSentAfterDelay() throws Exception {
+		assertThat(this.service.quick(5)).isEqualTo("value-5");
+		assertThat(this.service.batches()).containsExactly(Arrays.asList(5));
+	}
+
+	@Test
+	public void failedBatchRecovered() throws Exception {
+		this.service.fail();
+		assertThat(this.service.quick(5)).isEqualTo("fallback-5");
+	}
+
+	private List<String> find(int... ids) throws Exception {
+		List<Future<String>> futures = new ArrayList<>();
+		for (int id : ids) {
+			futures.add(this.executor.submit(() -> this.service.find(id)));
+		}
+		List<String> results = new ArrayList<>();
+		for (Future<String> future : futures) {
+			results.add(future.get(5, TimeUnit.SECONDS));
+		}
+		return results;
+	}
+
+	@Configuration
+	@EnableRetry
+	protected static class TestConfiguration {
+
+		@Bean
+		public static CollapserPostProcessor collapserPostProcessor() {
+			return new CollapserPostProcessor();
+		}
+
+		@Bean
+		public Service service() {
+			return new Service();
+		}
+
+	}
+
+	protected static class Service {
+
+		private final List<List<Integer>> batches = new CopyOnWriteArrayList<>();
+
+		private volatile boolean failing;
+
+		// The bean is a proxy, so the state has to be reached through methods
+
+		public List<List<Integer>> batches() {
+			return this.batches;
+		}
+
+		public void fail() {
+			this.failing = true;
+		}
+
+		@Collapser(batchMethod = "findAll", delay = 10000, maxBatchSize = 4)
+		public String find(Integer id) {
+			throw new IllegalStateException("Not collapsed");
+		}
+
+		@Collapser(batchMethod = "findAll")
+		public String quick(Integer id) {
+			throw new IllegalStateException("Not collapsed");
+		}
+
+		@CircuitBreaker(label = "lookup")
+		public List<String> findAll(List<Integer> ids) {
+			this.batches.add(ids);
+			if (this.failing) {
+				throw new IllegalStateException("Planned");
+			}
+			return ids.stream().map(id -> "value-" + id).collect(Collectors.toList());
+		}
+
+		@Recover
+		public List<String> recover(IllegalStateException e, List<Integer> ids) {
+			return ids.stream().map(id -> "fallback-" + id)
+					.collect(Collectors.toList());
+		}
+
+	}
+
+}
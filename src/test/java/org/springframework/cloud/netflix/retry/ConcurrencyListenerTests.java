@@ -0,0 +1,116 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.context.RetryContextSupport;
+import org.springframework.retry.stats.DefaultRetryStatistics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class ConcurrencyListenerTests {
+
+	private ConcurrencyListener listener = new ConcurrencyListener();
+
+	@Test
+	public void firstCallNotCounted() {
+		RetryContext context = new RetryContextSupport(null);
+		listener.open(context, null);
+		context.setAttribute(RetryContext.NAME, "foo");
+		listener.close(context, null, null);
+		assertThat(listener.getGauge("foo").getCurrent()).isEqualTo(0);
+		assertThat(listener.getGauge("foo").getRollingMax()).isEqualTo(0);
+	}
+
+	@Test
+	public void concurrentCallsCounted() throws Exception {
+		int threads = 8;
+		RetryContext context = new RetryContextSupport(null);
+		context.setAttribute(RetryContext.NAME, "foo");
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		CyclicBarrier opened = new CyclicBarrier(threads + 1);
+		CountDownLatch release = new CountDownLatch(1);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			futures.add(executor.submit(() -> {
+				listener.open(context, null);
+				opened.await();
+				release.await();
+				listener.close(context, null, null);
+				return null;
+			}));
+		}
+		opened.await(10, TimeUnit.SECONDS);
+		ConcurrencyGauge gauge = listener.getGauge("foo");
+		assertThat(gauge.getCurrent()).isEqualTo(threads);
+		release.countDown();
+		for (Future<?> future : futures) {
+			future.get(10, TimeUnit.SECONDS);
+		}
+		executor.shutdown();
+		assertThat(gauge.getCurrent()).isEqualTo(0);
+		assertThat(gauge.getRollingMax()).isEqualTo(threads);
+		HystrixMetrics metrics = new HystrixMetrics();
+		listener.contribute(new DefaultRetryStatistics("foo"), metrics);
+		assertThat(metrics.getCurrentConcurrentExecutionCount()).isEqualTo(0);
+		assertThat(metrics.getRollingMaxConcurrentExecutionCount()).isEqualTo(threads);
+	}
+
+	@Test
+	public void nestedCallsBalanced() {
+		RetryContext outer = new RetryContextSupport(null);
+		outer.setAttribute(RetryContext.NAME, "foo");
+		RetryContext inner = new RetryContextSupport(null);
+		inner.setAttribute(RetryContext.NAME, "bar");
+		listener.open(outer, null);
+		listener.open(inner, null);
+		assertThat(listener.getGauge("foo").getCurrent()).isEqualTo(1);
+		assertThat(listener.getGauge("bar").getCurrent()).isEqualTo(1);
+		listener.close(inner, null, null);
+		listener.close(outer, null, null);
+		assertThat(listener.getGauge("foo").getCurrent()).isEqualTo(0);
+		assertThat(listener.getGauge("bar").getCurrent()).isEqualTo(0);
+	}
+
+	@Test
+	public void peakExpires() {
+		ConcurrencyGauge gauge = new ConcurrencyGauge(10000, 10);
+		gauge.increment(0);
+		gauge.increment(0);
+		gauge.decrement();
+		gauge.increment(5000);
+		assertThat(gauge.getRollingMax(5000)).isEqualTo(2);
+		assertThat(gauge.getRollingMax(10500)).isEqualTo(2);
+		assertThat(gauge.getRollingMax(15500)).isEqualTo(0);
+	}
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+import org.springframework.cloud.netflix.retry.ErrorClassifyingListener.ErrorType;
+import org.springframework.http.HttpStatus;
+import org.springframework.retry.RecoveryCallback;
+import org.springframework.retry.RetryCallback;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.policy.SimpleRetryPolicy;
+import org.springframework.retry.stats.DefaultRetryStatistics;
+import org.springframework.retry.support.RetryTemplate;
+import org.springframework.web.client.HttpClientErrorException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class ErrorClassifyingListenerTests {
+
+	private ErrorClassifyingListener listener = new ErrorClassifyingListener();
+
+	@Test
+	public void defaultRules() {
+		assertThat(listener.classify(new SocketTimeoutException()))
+				.isEqualTo(ErrorType.TIMEOUT);
+		assertThat(listener.classify(new HttpClientErrorException(HttpStatus.NOT_FOUND)))
+				.isEqualTo(ErrorType.BAD_REQUEST);
+		assertThat(listener.classify(new IllegalStateException()))
+				.isEqualTo(ErrorType.FAILURE);
+	}
+
+	@Test
+	public void nearestSuperclassWins() {
+		listener.setRules(Collections.singletonMap(IllegalStateException.class,
+				ErrorType.SEMAPHORE_REJECTED));
+		assertThat(listener.classify(new Rejected()))
+				.isEqualTo(ErrorType.SEMAPHORE_REJECTED);
+		assertThat(listener.classify(new RuntimeException()))
+				.isEqualTo(ErrorType.FAILURE);
+		// Changing the rules forgets what was cached
+		listener.setRules(Collections.singletonMap(Rejected.class, ErrorType.TIMEOUT));
+		assertThat(listener.classify(new Rejected())).isEqualTo(ErrorType.TIMEOUT);
+		assertThat(listener.classify(new TimeoutException()))
+				.isEqualTo(ErrorType.FAILURE);
+	}
+
+	@Test
+	public void attemptsCountedAndContributed() throws Exception {
+		RetryTemplate template = new RetryTemplate();
+		template.setRetryPolicy(new SimpleRetryPolicy(3));
+		template.registerListener(listener);
+		String result = template.execute(context -> {
+			context.setAttribute(RetryContext.NAME, "foo");
+			if (context.getRetryCount() == 0) {
+				throw new TimeoutException("Planned");
+			}
+			if (context.getRetryCount() == 1) {
+				throw new HttpClientErrorException(HttpStatus.BAD_REQUEST);
+			}
+			return "bar";
+		});
+		assertThat(result).isEqualTo("bar");
+		assertThat(listener.getRollingCount("foo", ErrorType.TIMEOUT)).isEqualTo(1);
+		assertThat(listener.getRollingCount("foo", ErrorType.BAD_REQUEST)).isEqualTo(1);
+		assertThat(listener.getRollingExceptionsThrown("foo")).isEqualTo(0);
+		HystrixMetrics metrics = new HystrixMetrics();
+		listener.contribute(new DefaultRetryStatistics("foo"), metrics);
+		assertThat(metrics.getRollingCountTimeout()).isEqualTo(1);
+		assertThat(metrics.getRollingCountBadRequests()).isEqualTo(1);
+		assertThat(metrics.getRollingCountSemaphoreRejected()).isEqualTo(0);
+		assertThat(metrics.getRollingCountExceptionsThrown()).isEqualTo(0);
+	}
+
+	@Test
+	public void exceptionsThrownUnlessRecovered() throws Exception {
+		RetryTemplate template = new RetryTemplate();
+		template.setRetryPolicy(new SimpleRetryPolicy(1));
+		template.registerListener(listener);
+		RetryCallback<String, Exception> callback = context -> {
+			context.setAttribute(RetryContext.NAME, "foo");
+			throw new IllegalStateException("Planned");
+		};
+		try {
+			template.execute(callback);
+		}
+		catch (IllegalStateException e) {
+		}
+		RecoveryCallback<String> recovery = context -> "fallback";
+		assertThat(template.execute(callback, recovery)).isEqualTo("fallback");
+		assertThat(listener.getRollingCount("foo", ErrorType.FAILURE)).isEqualTo(2);
+		assertThat(listener.getRollingExceptionsThrown("foo")).isEqualTo(1);
+	}
+
+	@SuppressWarnings("serial")
+	private static class Rejected extends IllegalStateException {
+	}
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class GradientLimitTests {
+
+	private GradientLimit limit = new GradientLimit(20, 1, 200);
+
+	@Test
+	public void latencyBoundedUnderOverload() {
+		this.limit.setProbeInterval(100);
+		// A downstream that serves 4 calls at a time in 10ms each, and queues the
+		// rest, with far more callers than that all the time
+		long worst = 0;
+		for (int i = 0; i < 950; i++) {
+			int inFlight = this.limit.getLimit();
+			long rtt = 10 * Math.max(4, inFlight) / 4;
+			this.limit.update(rtt, inFlight, false);
+			if (i >= 500) {
+				worst = Math.max(worst, rtt);
+			}
+		}
+		// With no limit it would be 10ms per 4 callers
+		assertThat(worst).isLessThanOrEqualTo(30);
+		assertThat(this.limit.getMinRtt()).isEqualTo(10);
+		assertThat(this.limit.getLimit()).isBetween(4, 12);
+	}
+
+	@Test
+	public void firstMeasurementRepeatedAfterDraining() {
+		// Started under load, so the first samples are slow
+		for (int i = 0; i < 20; i++) {
+			this.limit.update(50, this.limit.getLimit(), false);
+		}
+		assertThat(this.limit.getMinRtt()).isEqualTo(50);
+		assertThat(this.limit.getLimit()).isEqualTo(4);
+		// Calls from before the probe are ignored until they have drained
+		this.limit.update(40, 10, false);
+		for (int i = 0; i < 10; i++) {
+			this.limit.update(10, 1, false);
+		}
+		assertThat(this.limit.getMinRtt()).isEqualTo(10);
+	}
+
+	@Test
+	public void growsWhenThereIsHeadroom() {
+		probed();
+		assertThat(this.limit.getLimit()).isEqualTo(4);
+		// About one more per round trip
+		for (int i = 0; i < 50; i++) {
+			this.limit.update(10, this.limit.getLimit(), false);
+		}
+		assertThat(this.limit.getLimit()).isEqualTo(10);
+	}
+
+	@Test
+	public void notRaisedWithoutLoad() {
+		probed();
+		for (int i = 0; i < 20; i++) {
+			this.limit.update(10, 1, false);
+		}
+		assertThat(this.limit.getLimit()).isEqualTo(4);
+	}
+
+	@Test
+	public void errorsBackOff() {
+		this.limit.update(10, 20, true);
+		assertThat(this.limit.getLimit()).isEqualTo(18);
+		for (int i = 0; i < 100; i++) {
+			this.limit.update(10, 20, true);
+		}
+		assertThat(this.limit.getLimit()).isEqualTo(1);
+	}
+
+	private void probed() {
+		for (int i = 0; i < 30; i++) {
+			this.limit.update(10, 1, false);
+		}
+		assertThat(this.limit.getMinRtt()).isEqualTo(10);
+	}
+
+}
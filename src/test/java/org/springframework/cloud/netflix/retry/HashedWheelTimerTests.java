@@ -0,0 +1,111 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class HashedWheelTimerTests {
+
+	// A small wheel, so that longer timeouts go round more than once
+	private HashedWheelTimer timer = new HashedWheelTimer(1, 8);
+
+	@After
+	public void close() {
+		this.timer.stop();
+	}
+
+	@Test
+	public void expiresAfterDelay() throws Exception {
+		Latch timeout = new Latch();
+		long start = System.nanoTime();
+		assertThat(this.timer.schedule(timeout, 50)).isTrue();
+		assertThat(timeout.latch.await(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(System.nanoTime() - start)
+				.isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50));
+		assertThat(timeout.isExpired()).isTrue();
+		assertThat(timeout.cancel()).isFalse();
+	}
+
+	@Test
+	public void cancelledNeverExpires() throws Exception {
+		Latch timeout = new Latch();
+		this.timer.schedule(timeout, 20);
+		assertThat(timeout.cancel()).isTrue();
+		assertThat(timeout.cancel()).isFalse();
+		assertThat(timeout.latch.await(100, TimeUnit.MILLISECONDS)).isFalse();
+		assertThat(timeout.isExpired()).isFalse();
+	}
+
+	@Test
+	public void onlyUncancelledExpire() throws Exception {
+		AtomicInteger expired = new AtomicInteger();
+		List<HashedWheelTimer.Timeout> timeouts = new ArrayList<>();
+		for (int i = 0; i < 10000; i++) {
+			HashedWheelTimer.Timeout timeout = new HashedWheelTimer.Timeout() {
+				@Override
+				protected void expired() {
+					expired.incrementAndGet();
+				}
+			};
+			this.timer.schedule(timeout, i % 50);
+			timeouts.add(timeout);
+		}
+		int cancelled = 0;
+		for (int i = 0; i < timeouts.size(); i += 2) {
+			if (timeouts.get(i).cancel()) {
+				cancelled++;
+			}
+		}
+		Latch last = new Latch();
+		this.timer.schedule(last, 100);
+		assertThat(last.latch.await(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(expired.get()).isEqualTo(timeouts.size() - cancelled);
+		assertThat(cancelled).isGreaterThan(0);
+	}
+
+	@Test
+	public void stoppedTimerRefusesTimeouts() throws Exception {
+		this.timer.schedule(new Latch(), 10);
+		this.timer.stop();
+		assertThat(this.timer.schedule(new Latch(), 10)).isFalse();
+	}
+
+	private static class Latch extends HashedWheelTimer.Timeout {
+
+		private final CountDownLatch latch = new CountDownLatch(1);
+
+		@Override
+		protected void expired() {
+			this.latch.countDown();
+		}
+
+	}
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import org.junit.Test;
+
+import org.springframework.cloud.netflix.retry.HystrixMetrics.Latency;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class HystrixMetricsAggregatorTests {
+
+	private HystrixMetricsAggregator aggregator = new HystrixMetricsAggregator();
+
+	@Test
+	public void countsSummedAcrossHosts() {
+		aggregator.update("a", metrics("foo", 10, 2, false));
+		aggregator.update("b", metrics("foo", 30, 1, true));
+		HystrixMetrics foo = aggregator.getMetrics("foo");
+		assertThat(foo.getReportingHosts()).isEqualTo(2);
+		assertThat(foo.getRequestCount()).isEqualTo(40);
+		assertThat(foo.getRollingCountFailure()).isEqualTo(3);
+		assertThat(foo.isCircuitBreakerOpen()).isTrue();
+	}
+
+	@Test
+	public void percentagesWeightedByRequests() {
+		HystrixMetrics a = metrics("foo", 10, 5, false);
+		a.setErrorPercentage(50);
+		a.getLatencyExecute().setV99(100);
+		a.getBatchSize().setV50(8);
+		HystrixMetrics b = metrics("foo", 30, 0, false);
+		b.setErrorPercentage(10);
+		b.getLatencyExecute().setV99(20);
+		b.getBatchSize().setV50(4);
+		aggregator.update("a", a);
+		aggregator.update("b", b);
+		HystrixMetrics foo = aggregator.getMetrics("foo");
+		assertThat(foo.getErrorPercentage()).isEqualTo(20.);
+		assertThat(foo.getLatencyExecute().getV99()).isEqualTo(40);
+		assertThat(foo.getBatchSize().getV50()).isEqualTo(5);
+	}
+
+	@Test
+	public void latestReportReplacesPrevious() {
+		aggregator.update("a", metrics("foo", 10, 2, true));
+		aggregator.update("b", metrics("foo", 5, 0, false));
+		aggregator.update("a", metrics("foo", 20, 0, false));
+		HystrixMetrics foo = aggregator.getMetrics("foo");
+		assertThat(foo.getReportingHosts()).isEqualTo(2);
+		assertThat(foo.getRequestCount()).isEqualTo(25);
+		assertThat(foo.getRollingCountFailure()).isEqualTo(0);
+		assertThat(foo.isCircuitBreakerOpen()).isFalse();
+	}
+
+	@Test
+	public void silentHostsExpire() {
+		aggregator.setTimeout(1000);
+		aggregator.update("a", metrics("foo", 10, 0, false), 0);
+		aggregator.update("b", metrics("foo", 5, 0, false), 900);
+		aggregator.update("a", metrics("bar", 1, 0, false), 0);
+		aggregator.expire(1500);
+		assertThat(aggregator.getMetrics("foo").getRequestCount()).isEqualTo(5);
+		assertThat(aggregator.getMetrics("foo").getReportingHosts()).isEqualTo(1);
+		assertThat(aggregator.getMetrics("bar")).isNull();
+		assertThat(aggregator.size()).isEqualTo(1);
+	}
+
+	@Test
+	public void removedHostDropsOut() {
+		aggregator.update("a", metrics("foo", 10, 0, false));
+		aggregator.update("b", metrics("foo", 5, 0, false));
+		aggregator.remove("a");
+		assertThat(aggregator.getMetrics()).hasSize(1);
+		assertThat(aggregator.getMetrics("foo").getRequestCount()).isEqualTo(5);
+	}
+
+	private HystrixMetrics metrics(String name, long requests, long failures,
+			boolean open) {
+		HystrixMetrics metrics = new HystrixMetrics();
+		metrics.setName(name);
+		metrics.setRequestCount(requests);
+		metrics.setRollingCountFailure(failures);
+		metrics.setCircuitBreakerOpen(open);
+		metrics.setLatencyExecute(new Latency());
+		return metrics;
+	}
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class HystrixMetricsHistoryTests {
+
+	private HystrixMetricsHistory history = new HystrixMetricsHistory(3);
+
+	@Test
+	public void replayInTimeOrder() {
+		history.record(Arrays.asList(metrics("foo", 1), metrics("bar", 1)), 1000);
+		history.record(Arrays.asList(metrics("foo", 2)), 2000);
+		List<String> replay = new ArrayList<>();
+		for (HystrixMetrics metrics : history.replay(null)) {
+			replay.add(metrics.getName() + "@" + metrics.getCurrentTime() + "="
+					+ metrics.getRequestCount());
+		}
+		assertThat(replay).containsExactly("bar@1000=1", "foo@1000=1", "foo@2000=2");
+	}
+
+	@Test
+	public void meanLatenciesKeptApart() {
+		HystrixMetrics metrics = metrics("foo", 1);
+		metrics.setLatencyExecute_mean(10);
+		metrics.setLatencyTotal_mean(250);
+		history.record(Collections.singletonList(metrics), 1000);
+		HystrixMetrics replayed = history.replay(null).get(0);
+		assertThat(replayed.getLatencyExecute_mean()).isEqualTo(10);
+		assertThat(replayed.getLatencyTotal_mean()).isEqualTo(250);
+		assertThat((long[]) history.getColumns(null).get("foo").get("latencyTotal_mean"))
+				.containsExactly(250);
+	}
+
+	@Test
+	public void oldestTicksOverwritten() {
+		for (int i = 1; i <= 5; i++) {
+			history.record(Collections.singletonList(metrics("foo", i)), i * 1000);
+		}
+		Map<String, Object> columns = history.getColumns(null).get("foo");
+		assertThat((long[]) columns.get("currentTime")).containsExactly(3000, 4000,
+				5000);
+		assertThat((long[]) columns.get("requestCount")).containsExactly(3, 4, 5);
+		assertThat((double[]) columns.get("errorPercentage")).containsExactly(1.5, 1.5,
+				1.5);
+		assertThat((boolean[]) columns.get("isCircuitBreakerOpen"))
+				.containsExactly(false, true, false);
+	}
+
+	@Test
+	public void quietCommandsForgotten() {
+		history.record(Arrays.asList(metrics("foo", 1), metrics("bar", 1)), 1000);
+		history.record(Collections.singletonList(metrics("foo", 2)), 2000);
+		history.record(Collections.singletonList(metrics("foo", 3)), 3000);
+		assertThat(history.getNames()).containsExactly("bar", "foo");
+		assertThat(history.getColumns(null).get("bar").get("requestCount"))
+				.isEqualTo(new long[] { 1 });
+		history.record(Collections.singletonList(metrics("foo", 4)), 4000);
+		assertThat(history.getNames()).containsExactly("foo");
+		assertThat(history.replay(LabelFilter.compile("bar"))).isEmpty();
+	}
+
+	private HystrixMetrics metrics(String name, int count) {
+		HystrixMetrics metrics = new HystrixMetrics();
+		metrics.setName(name);
+		metrics.setRequestCount(count);
+		metrics.setErrorPercentage(1.5);
+		metrics.setCircuitBreakerOpen(count % 2 == 0);
+		return metrics;
+	}
+
+}
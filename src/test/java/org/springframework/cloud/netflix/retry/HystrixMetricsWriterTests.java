@@ -0,0 +1,180 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class HystrixMetricsWriterTests {
+
+	private ObjectMapper mapper = new ObjectMapper();
+
+	private HystrixMetricsWriter writer = new HystrixMetricsWriter();
+
+	@Test
+	public void sameAsJacksonForDefaults() throws Exception {
+		HystrixMetrics metrics = new HystrixMetrics();
+		metrics.setName("foo");
+		assertThat(json(writer.write(metrics))).isEqualTo(jackson(metrics));
+	}
+
+	@Test
+	public void sameAsJacksonForRandomValues() throws Exception {
+		Random random = new Random(0);
+		for (int i = 0; i < 1000; i++) {
+			HystrixMetrics metrics = random(random, "command-" + (i % 10));
+			assertThat(json(writer.write(metrics))).isEqualTo(jackson(metrics));
+		}
+	}
+
+	@Test
+	public void sameAsJacksonForAwkwardValues() throws Exception {
+		HystrixMetrics metrics = new HystrixMetrics();
+		metrics.setName("quote\" slash\\ tab\t unicodeé☃ control\u0001");
+		metrics.setGroup(null);
+		metrics.setPropertyValue_executionIsolationThreadPoolKeyOverride("pool");
+		metrics.setCurrentTime(Long.MAX_VALUE);
+		metrics.setErrorCount(Long.MIN_VALUE);
+		metrics.setRequestCount(-1);
+		for (double value : new double[] { 0, -0., 50, 33.333333333333336, 1e-5, 1e7,
+				9999999, -12, -12.5, 5e-7, 99.9999999, Double.NaN,
+				Double.POSITIVE_INFINITY, Double.MIN_VALUE, Double.MAX_VALUE }) {
+			metrics.setErrorPercentage(value);
+			// Small fractions are in scientific notation from Jackson
+			assertThat(this.mapper.readTree(json(writer.write(metrics))))
+					.isEqualTo(this.mapper.readTree(jackson(metrics)));
+		}
+	}
+
+	@Test
+	public void templateFollowsChangedSettings() throws Exception {
+		HystrixMetrics metrics = new HystrixMetrics();
+		metrics.setName("foo");
+		writer.write(metrics);
+		metrics.setReportingHosts(3);
+		metrics.setPropertyValue_circuitBreakerForceOpen(true);
+		metrics.setGroup("other");
+		assertThat(json(writer.write(metrics))).isEqualTo(jackson(metrics));
+	}
+
+	@Test
+	public void frameConcatenatesEvents() throws Exception {
+		List<HystrixMetrics> metrics = Arrays.asList(random(new Random(1), "foo"),
+				random(new Random(2), "bar"));
+		HystrixStreamFrame frame = writer.write(metrics);
+		assertThat(frame.getCount()).isEqualTo(2);
+		assertThat(new String(frame.getBytes(), "UTF-8")).isEqualTo("data:"
+				+ jackson(metrics.get(0)) + "\n\ndata:" + jackson(metrics.get(1)) + "\n\n");
+		assertThat(writer.write(new ArrayList<HystrixMetrics>()))
+				.isSameAs(HystrixStreamFrame.PING);
+	}
+
+	@Test
+	public void onlyAllocatesTheFrame() throws Exception {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+		Random random = new Random(0);
+		List<HystrixMetrics> metrics = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			metrics.add(random(random, "command-" + i));
+		}
+		int length = 0;
+		for (int i = 0; i < 1000; i++) {
+			length = writer.write(metrics).getBytes().length;
+		}
+		long id = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(id);
+		for (int i = 0; i < 1000; i++) {
+			writer.write(metrics);
+		}
+		long allocated = threads.getThreadAllocatedBytes(id) - before;
+		// The frame itself, plus a little for its wrapper, but nothing per command
+		assertThat(allocated / 1000).isLessThan(length + 1000);
+	}
+
+	private String json(byte[] event) throws Exception {
+		String value = new String(event, "UTF-8");
+		assertThat(value).startsWith("data:").endsWith("\n\n");
+		return value.substring(5, value.length() - 2);
+	}
+
+	private String jackson(HystrixMetrics metrics) throws Exception {
+		// Fractions are written in fixed point to six places
+		double percentage = metrics.getErrorPercentage();
+		if (Math.abs(percentage) < 1e7) {
+			metrics.setErrorPercentage(Math.signum(percentage)
+					* Math.round(Math.abs(percentage) * 1e6) / 1e6);
+		}
+		try {
+			return new String(mapper.writeValueAsBytes(metrics), "UTF-8");
+		}
+		finally {
+			metrics.setErrorPercentage(percentage);
+		}
+	}
+
+	private HystrixMetrics random(Random random, String name) {
+		HystrixMetrics metrics = new HystrixMetrics();
+		metrics.setName(name);
+		metrics.setCurrentTime(random.nextLong());
+		metrics.setReportingHosts(1 + random.nextInt(3));
+		metrics.setErrorCount(random.nextInt(1000));
+		metrics.setRequestCount(random.nextInt(100000));
+		metrics.setErrorPercentage(random.nextBoolean() ? random.nextInt(100)
+				: random.nextDouble() * 100);
+		metrics.setRollingCountFailure(random.nextInt());
+		metrics.setRollingCountSuccess(random.nextLong());
+		metrics.setRollingCountShortCircuited(random.nextInt(10));
+		metrics.setRollingCountFallbackSuccess(random.nextInt(10));
+		metrics.setRollingCountTimeout(random.nextInt(10));
+		metrics.setRollingCountBadRequests(random.nextInt(10));
+		metrics.setRollingMaxConcurrentExecutionCount(random.nextInt(100));
+		metrics.setCurrentConcurrentExecutionCount(random.nextInt(100));
+		metrics.setLatencyExecute_mean(random.nextInt(1000));
+		metrics.setLatencyTotal_mean(random.nextInt(1000));
+		metrics.getLatencyExecute().setV50(random.nextInt(1000));
+		metrics.getLatencyExecute().setV995(random.nextInt(100000));
+		metrics.getLatencyTotal().setV100(random.nextInt(100000));
+		metrics.setRollingCountCollapsedRequests(random.nextInt(1000));
+		metrics.setBatchSize_mean(random.nextInt(100));
+		metrics.getBatchSize().setV99(random.nextInt(1000));
+		metrics.setRollingCountRetriesDenied(random.nextInt(100));
+		metrics.setCurrentRetryBudget(random.nextInt(10));
+		metrics.setCurrentGlobalRetryBudget(random.nextInt(100));
+		metrics.setCircuitBreakerOpen(random.nextBoolean());
+		metrics.setPropertyValue_metricsRollingStatisticalWindowInMilliseconds(
+				1000 * (1 + random.nextInt(10)));
+		return metrics;
+	}
+
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import org.springframework.cloud.netflix.retry.HystrixStreamBroadcaster.OverflowStrategy;
+import org.springframework.cloud.netflix.retry.HystrixStreamBroadcaster.Subscriber;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class HystrixStreamBroadcasterTests {
+
+	private ExecutorService executor = Executors.newCachedThreadPool();
+
+	private HystrixStreamBroadcaster broadcaster = new HystrixStreamBroadcaster(
+			executor);
+
+	@After
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void slowClientDoesNotBlockOthers() throws Exception {
+		broadcaster.setCapacity(2);
+		StalledEmitter stalled = new StalledEmitter();
+		CountingEmitter fast = new CountingEmitter();
+		Subscriber slow = broadcaster.subscribe(stalled);
+		broadcaster.subscribe(fast);
+		broadcaster.broadcast(frame());
+		assertThat(stalled.sending.await(5, TimeUnit.SECONDS)).isTrue();
+		for (int i = 2; i <= 5; i++) {
+			broadcaster.broadcast(frame());
+			assertThat(fast.await(i)).isTrue();
+		}
+		// One frame in flight, two queued, the rest dropped
+		assertThat(slow.getDropped()).isEqualTo(2);
+		assertThat(slow.isClosed()).isFalse();
+		stalled.release.countDown();
+	}
+
+	@Test
+	public void slowClientDisconnected() throws Exception {
+		broadcaster.setCapacity(2);
+		broadcaster.setOverflowStrategy(OverflowStrategy.DISCONNECT);
+		StalledEmitter stalled = new StalledEmitter();
+		CountingEmitter fast = new CountingEmitter();
+		Subscriber slow = broadcaster.subscribe(stalled);
+		broadcaster.subscribe(fast);
+		broadcaster.broadcast(frame());
+		assertThat(stalled.sending.await(5, TimeUnit.SECONDS)).isTrue();
+		for (int i = 2; i <= 5; i++) {
+			broadcaster.broadcast(frame());
+			assertThat(fast.await(i)).isTrue();
+		}
+		assertThat(slow.isClosed()).isTrue();
+		assertThat(slow.getDropped()).isEqualTo(1);
+		assertThat(broadcaster.getSubscribers()).hasSize(1);
+		stalled.release.countDown();
+		assertThat(stalled.completed.await(5, TimeUnit.SECONDS)).isTrue();
+	}
+
+	@Test
+	public void clientTakesTurnsOnTheExecutor() throws Exception {
+		List<Runnable> tasks = new ArrayList<>();
+		HystrixStreamBroadcaster broadcaster = new HystrixStreamBroadcaster(tasks::add);
+		// Every frame sent brings another one, up to a point
+		CountingEmitter busy = new CountingEmitter() {
+			@Override
+			public void send(SseEventBuilder builder) throws IOException {
+				super.send(builder);
+				if (getCount() < 100) {
+					broadcaster.broadcast(frame());
+				}
+			}
+		};
+		broadcaster.subscribe(busy);
+		broadcaster.broadcast(frame());
+		broadcaster.broadcast(frame());
+		assertThat(tasks).hasSize(1);
+		tasks.remove(0).run();
+		// Only the frames that were queued when the task started
+		assertThat(busy.getCount()).isEqualTo(2);
+		assertThat(tasks).hasSize(1);
+		tasks.remove(0).run();
+		assertThat(busy.getCount()).isEqualTo(4);
+	}
+
+	@Test
+	public void failedClientRemoved() throws Exception {
+		CountingEmitter failing = new CountingEmitter() {
+			@Override
+			public void send(SseEventBuilder builder) throws IOException {
+				super.send(builder);
+				throw new IOException("Planned");
+			}
+		};
+		Subscriber subscriber = broadcaster.subscribe(failing);
+		broadcaster.broadcast(frame());
+		assertThat(failing.await(1)).isTrue();
+		for (int i = 0; i < 100 && broadcaster.hasSubscribers(); i++) {
+			Thread.sleep(10);
+		}
+		assertThat(subscriber.isClosed()).isTrue();
+		assertThat(broadcaster.hasSubscribers()).isFalse();
+	}
+
+	@Test
+	public void completedClientRemovedImmediately() throws Exception {
+		LifecycleEmitter completed = new LifecycleEmitter();
+		LifecycleEmitter timedOut = new LifecycleEmitter();
+		broadcaster.subscribe(completed);
+		broadcaster.subscribe(timedOut);
+		broadcaster.subscribe(new LifecycleEmitter());
+		completed.completion.run();
+		timedOut.timeout.run();
+		assertThat(broadcaster.size()).isEqualTo(1);
+	}
+
+	@Test
+	public void concurrentConnectAndDisconnect() throws Exception {
+		int threads = 8;
+		int connections = 5000;
+		ExecutorService clients = Executors.newFixedThreadPool(threads);
+		AtomicBoolean running = new AtomicBoolean(true);
+		Thread publisher = new Thread(() -> {
+			while (running.get()) {
+				broadcaster.broadcast(frame());
+			}
+		});
+		publisher.start();
+		List<Future<Integer>> results = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			results.add(clients.submit(() -> {
+				int open = 0;
+				for (int i = 0; i < connections; i++) {
+					LifecycleEmitter emitter = new LifecycleEmitter();
+					broadcaster.subscribe(emitter);
+					if (i % 100 == 0) {
+						open++;
+					}
+					else if (i % 2 == 0) {
+						emitter.completion.run();
+					}
+					else {
+						emitter.timeout.run();
+					}
+				}
+				return open;
+			}));
+		}
+		int open = 0;
+		for (Future<Integer> result : results) {
+			open += result.get(30, TimeUnit.SECONDS);
+		}
+		running.set(false);
+		publisher.join();
+		clients.shutdown();
+		assertThat(broadcaster.size()).isEqualTo(open);
+		for (Subscriber subscriber : broadcaster.getSubscribers()) {
+			assertThat(subscriber.isClosed()).isFalse();
+		}
+		broadcaster.clear();
+		assertThat(broadcaster.hasSubscribers()).isFalse();
+	}
+
+	private HystrixStreamFrame frame() {
+		return new HystrixStreamFrame("data:{}\n\n".getBytes(), 1);
+	}
+
+	private static class CountingEmitter extends SseEmitter {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public void send(SseEventBuilder builder) throws IOException {
+			count.incrementAndGet();
+		}
+
+		int getCount() {
+			return count.get();
+		}
+
+		boolean await(int expected) throws InterruptedException {
+			for (int i = 0; i < 500 && count.get() < expected; i++) {
+				Thread.sleep(10);
+			}
+			return count.get() >= expected;
+		}
+
+	}
+
+	private static class LifecycleEmitter extends SseEmitter {
+
+		private volatile Runnable completion;
+
+		private volatile Runnable timeout;
+
+		@Override
+		public synchronized void onCompletion(Runnable callback) {
+			super.onCompletion(callback);
+			this.completion = callback;
+		}
+
+		@Override
+		public synchronized void onTimeout(Runnable callback) {
+			super.onTimeout(callback);
+			this.timeout = callback;
+		}
+
+		@Override
+		public void send(SseEventBuilder builder) throws IOException {
+		}
+
+	}
+
+	private static class StalledEmitter extends SseEmitter {
+
+		private final CountDownLatch sending = new CountDownLatch(1);
+
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		private final CountDownLatch completed = new CountDownLatch(1);
+
+		@Override
+		public void send(SseEventBuilder builder) throws IOException {
+			sending.countDown();
+			try {
+				release.await();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public synchronized void complete() {
+			super.complete();
+			completed.countDown();
+		}
+
+	}
+
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.retry.stats.DefaultStatisticsRepository;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter.DataWithMediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class HystrixStreamEndpointTests {
+
+	private DefaultStatisticsRepository repository = new DefaultStatisticsRepository();
+
+	private DefaultStatisticsRepository quiet = new DefaultStatisticsRepository();
+
+	private CountingWriter writer = new CountingWriter();
+
+	private HystrixStreamEndpoint endpoint = new HystrixStreamEndpoint(repository,
+			writer, new SyncTaskExecutor());
+
+	@Before
+	public void init() {
+		for (String name : new String[] { "foo", "bar", "spam" }) {
+			repository.addStarted(name);
+			repository.addComplete(name);
+		}
+	}
+
+	@Test
+	public void serializationIndependentOfClientCount() throws Exception {
+		List<RecordingEmitter> emitters = new ArrayList<>();
+		for (int clients : new int[] { 1, 10, 100 }) {
+			while (emitters.size() < clients) {
+				emitters.add((RecordingEmitter) endpoint.register(new RecordingEmitter()));
+			}
+			writer.count.set(0);
+			endpoint.publish();
+			assertThat(writer.count.get()).isEqualTo(3);
+		}
+		Object first = emitters.get(0).last;
+		assertThat(first).isInstanceOf(byte[].class);
+		for (RecordingEmitter emitter : emitters) {
+			assertThat(emitter.last).isSameAs(first);
+		}
+	}
+
+	@Test
+	public void frameContainsOneEventPerCommand() throws Exception {
+		HystrixStreamFrame frame = endpoint.snapshot().getFull();
+		assertThat(frame.getCount()).isEqualTo(3);
+		String body = new String(frame.getBytes(), "UTF-8");
+		assertThat(body.split("\n\n")).hasSize(3);
+		assertThat(body).startsWith("data:{").contains("\"name\":\"spam\"");
+	}
+
+	@Test
+	public void pingWhenNoMetrics() throws Exception {
+		HystrixStreamEndpoint endpoint = new HystrixStreamEndpoint(
+				new DefaultStatisticsRepository());
+		assertThat(endpoint.snapshot().getFull()).isSameAs(HystrixStreamFrame.PING);
+		assertThat(new String(HystrixStreamFrame.PING.getBytes(), "UTF-8"))
+				.isEqualTo("event:ping\n\n");
+	}
+
+	@Test
+	public void frameEventAppendsExtraFields() throws Exception {
+		HystrixStreamFrame frame = HystrixStreamFrame.PING;
+		assertThat(frame.event().build()).hasSize(1);
+		List<DataWithMediaType> data = new ArrayList<>(
+				frame.event().comment("extra").build());
+		assertThat(data.get(0).getData()).isSameAs(frame.getBytes());
+		assertThat(data.get(1).getData()).isEqualTo(":extra\n\n");
+	}
+
+	@Test
+	public void ownExecutorShutDownOnDestroy() throws Exception {
+		HystrixStreamEndpoint endpoint = new HystrixStreamEndpoint(repository);
+		ExecutorService executor = (ExecutorService) ReflectionTestUtils
+				.getField(endpoint, "ownExecutor");
+		endpoint.start();
+		endpoint.destroy();
+		assertThat(executor.isShutdown()).isTrue();
+		assertThat(ReflectionTestUtils.getField(this.endpoint, "ownExecutor")).isNull();
+	}
+
+	@Test
+	public void ownExecutorBounded() throws Exception {
+		HystrixStreamEndpoint endpoint = new HystrixStreamEndpoint(repository);
+		ThreadPoolExecutor executor = (ThreadPoolExecutor) ReflectionTestUtils
+				.getField(endpoint, "ownExecutor");
+		assertThat(executor.getMaximumPoolSize()).isEqualTo(10);
+		endpoint.setThreads(20);
+		assertThat(executor.getCorePoolSize()).isEqualTo(20);
+		assertThat(executor.getMaximumPoolSize()).isEqualTo(20);
+		endpoint.setThreads(2);
+		assertThat(executor.getCorePoolSize()).isEqualTo(2);
+		assertThat(executor.getMaximumPoolSize()).isEqualTo(2);
+		endpoint.destroy();
+	}
+
+	@Test
+	public void failedClientIsDisconnected() throws Exception {
+		RecordingEmitter good = (RecordingEmitter) endpoint
+				.register(new RecordingEmitter());
+		RecordingEmitter bad = (RecordingEmitter) endpoint
+				.register(new RecordingEmitter());
+		bad.fail = true;
+		endpoint.publish();
+		endpoint.publish();
+		assertThat(good.sent).isEqualTo(2);
+		assertThat(bad.sent).isEqualTo(1);
+	}
+
+	@Test
+	public void deltaClientOnlySeesChangedCommands() throws Exception {
+		HystrixStreamEndpoint endpoint = quietEndpoint();
+		RecordingEmitter delta = (RecordingEmitter) endpoint
+				.register(new RecordingEmitter(), true);
+		RecordingEmitter full = (RecordingEmitter) endpoint
+				.register(new RecordingEmitter());
+		endpoint.publish();
+		// Everything is new on the first tick
+		assertThat(delta.names()).containsExactlyInAnyOrder("foo", "bar", "spam");
+		Thread.sleep(20L);
+		endpoint.publish();
+		assertThat(delta.ping()).isTrue();
+		assertThat(full.names()).hasSize(3);
+		quiet.addStarted("foo");
+		endpoint.publish();
+		assertThat(delta.names()).containsExactly("foo");
+		assertThat(full.names()).hasSize(3);
+		writer.count.set(0);
+		Thread.sleep(20L);
+		endpoint.publish();
+		assertThat(delta.ping()).isTrue();
+		// Only serialized once for the full subscriber
+		assertThat(writer.count.get()).isEqualTo(3);
+	}
+
+	@Test
+	public void deltaOnlySerializesChangedCommands() throws Exception {
+		HystrixStreamEndpoint endpoint = quietEndpoint();
+		endpoint.register(new RecordingEmitter(), true);
+		endpoint.publish();
+		Thread.sleep(20L);
+		quiet.addStarted("foo");
+		writer.count.set(0);
+		endpoint.publish();
+		assertThat(writer.count.get()).isEqualTo(1);
+	}
+
+	@Test
+	public void periodicKeyframe() throws Exception {
+		HystrixStreamEndpoint endpoint = quietEndpoint();
+		endpoint.setKeyframeInterval(3);
+		RecordingEmitter delta = (RecordingEmitter) endpoint
+				.register(new RecordingEmitter(), true);
+		endpoint.publish();
+		Thread.sleep(20L);
+		endpoint.publish();
+		assertThat(delta.ping()).isTrue();
+		endpoint.publish();
+		assertThat(delta.ping()).isTrue();
+		endpoint.publish();
+		assertThat(delta.names()).hasSize(3);
+	}
+
+	@Test
+	public void lateJoinerGetsKeyframe() throws Exception {
+		HystrixStreamEndpoint endpoint = quietEndpoint();
+		endpoint.register(new RecordingEmitter(), true);
+		endpoint.publish();
+		Thread.sleep(20L);
+		RecordingEmitter late = (RecordingEmitter) endpoint
+				.register(new RecordingEmitter(), true);
+		endpoint.publish();
+		assertThat(late.names()).hasSize(3);
+		endpoint.publish();
+		assertThat(late.ping()).isTrue();
+	}
+
+	@Test
+	public void requestedDelaysAreCoalesced() throws Exception {
+		assertThat(endpoint.coalesce(500)).isEqualTo(500);
+		assertThat(endpoint.coalesce(700)).isEqualTo(500);
+		assertThat(endpoint.coalesce(1500)).isEqualTo(1000);
+		assertThat(endpoint.coalesce(3000)).isEqualTo(2000);
+		// Floor and ceiling
+		assertThat(endpoint.coalesce(0)).isEqualTo(100);
+		assertThat(endpoint.coalesce(60000)).isEqualTo(10000);
+		endpoint.setMinDelay(250);
+		assertThat(endpoint.coalesce(200)).isEqualTo(250);
+	}
+
+	@Test
+	public void sameIntervalSharesSnapshot() throws Exception {
+		RecordingEmitter first = (RecordingEmitter) endpoint
+				.register(new RecordingEmitter(), false, 1000);
+		RecordingEmitter second = (RecordingEmitter) endpoint
+				.register(new RecordingEmitter(), false, 1000);
+		RecordingEmitter other = (RecordingEmitter) endpoint
+				.register(new RecordingEmitter(), false, 500);
+		assertThat(endpoint.getDelays()).containsOnly(500L, 1000L);
+		writer.count.set(0);
+		endpoint.publish();
+		// Once per command per schedule
+		assertThat(writer.count.get()).isEqualTo(6);
+		assertThat(first.last).isSameAs(second.last);
+		assertThat(other.last).isNotSameAs(first.last);
+		assertThat(other.names()).isEqualTo(first.names());
+	}
+
+	@Test
+	public void fasterClientGetsMoreFrames() throws Exception {
+		RecordingEmitter fast = (RecordingEmitter) endpoint
+				.register(new RecordingEmitter(), false, 20);
+		RecordingEmitter slow = (RecordingEmitter) endpoint
+				.register(new RecordingEmitter(), false, 10000);
+		endpoint.start();
+		try {
+			long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (fast.sent < 5 && System.nanoTime() < end) {
+				Thread.sleep(10L);
+			}
+		}
+		finally {
+			endpoint.stop();
+		}
+		assertThat(fast.sent).isGreaterThanOrEqualTo(5);
+		assertThat(slow.sent).isEqualTo(1);
+	}
+
+	@Test
+	public void filteredClientOnlySeesMatchingCommands() throws Exception {
+		RecordingEmitter filtered = (RecordingEmitter) endpoint.register(
+				new RecordingEmitter(), false, 500, LabelFilter.compile("foo", "sp*"));
+		RecordingEmitter same = (RecordingEmitter) endpoint.register(
+				new RecordingEmitter(), false, 500, LabelFilter.compile("sp*", "foo"));
+		RecordingEmitter all = (RecordingEmitter) endpoint
+				.register(new RecordingEmitter());
+		writer.count.set(0);
+		endpoint.publish();
+		assertThat(filtered.names()).containsExactlyInAnyOrder("foo", "spam");
+		assertThat(same.last).isSameAs(filtered.last);
+		assertThat(all.names()).hasSize(3);
+		// Once for the filter and once for everything
+		assertThat(writer.count.get()).isEqualTo(5);
+	}
+
+	@Test
+	public void unwantedCommandsNotMapped() throws Exception {
+		AtomicInteger mapped = new AtomicInteger();
+		endpoint.setContributors(Collections.<HystrixMetricsContributor>singletonList(
+				(statistics, metrics) -> mapped.incrementAndGet()));
+		RecordingEmitter delta = (RecordingEmitter) endpoint.register(
+				new RecordingEmitter(), true, 500, LabelFilter.compile("ba*"));
+		writer.count.set(0);
+		endpoint.publish();
+		assertThat(delta.names()).containsExactly("bar");
+		assertThat(mapped.get()).isEqualTo(1);
+		assertThat(writer.count.get()).isEqualTo(1);
+	}
+
+	@Test
+	public void replayedHistoryComesBeforeLiveFrames() throws Exception {
+		endpoint.setHistoryRetention(5000);
+		endpoint.record();
+		endpoint.record();
+		RecordingEmitter replayed = (RecordingEmitter) endpoint.register(
+				new RecordingEmitter(), false, 500, LabelFilter.compile("foo"), true);
+		// Both ticks in a single burst
+		assertThat(replayed.sent).isEqualTo(1);
+		assertThat(replayed.names()).containsExactly("foo", "foo");
+		endpoint.publish();
+		assertThat(replayed.sent).isEqualTo(2);
+		assertThat(replayed.names()).containsExactly("foo");
+	}
+
+	@Test
+	public void historyRecordedOnTickerThread() throws Exception {
+		endpoint.setHistoryRetention(5000);
+		endpoint.setHistoryResolution(10);
+		endpoint.start();
+		for (int i = 0; i < 100 && endpoint.history(null).isEmpty(); i++) {
+			Thread.sleep(10);
+		}
+		assertThat(endpoint.history(null)).isNotEmpty();
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			assertThat(thread.getName()).doesNotStartWith("hystrixHistory-");
+		}
+		ScheduledFuture<?> recorder = (ScheduledFuture<?>) ReflectionTestUtils
+				.getField(endpoint, "recorder");
+		endpoint.stop();
+		assertThat(recorder.isCancelled()).isTrue();
+	}
+
+	@Test
+	public void historyAsJson() throws Exception {
+		assertThat(endpoint.history(null)).isEmpty();
+		endpoint.setHistoryRetention(2000);
+		for (int i = 0; i < 3; i++) {
+			endpoint.record();
+		}
+		Map<String, Map<String, Object>> history = endpoint
+				.history(Collections.singletonList("ba*"));
+		assertThat(history).containsOnlyKeys("bar");
+		assertThat((long[]) history.get("bar").get("currentTime")).hasSize(2);
+		String json = new ObjectMapper().writeValueAsString(history);
+		assertThat(json).startsWith("{\"bar\":{\"currentTime\":[")
+				.contains("\"isCircuitBreakerOpen\":[false,false]");
+	}
+
+	private HystrixStreamEndpoint quietEndpoint() {
+		// A very short window so that commands go quiet quickly
+		RollingRetryStatisticsFactory factory = new RollingRetryStatisticsFactory();
+		factory.setWindow(10);
+		factory.setBucketCount(1);
+		quiet.setRetryStatisticsFactory(factory);
+		for (String name : new String[] { "foo", "bar", "spam" }) {
+			quiet.addStarted(name);
+			quiet.addComplete(name);
+		}
+		return new HystrixStreamEndpoint(quiet, writer, new SyncTaskExecutor());
+	}
+
+	private static class CountingWriter extends HystrixMetricsWriter {
+
+		private AtomicInteger count = new AtomicInteger();
+
+		@Override
+		void write(HystrixMetrics metrics, Output out) {
+			count.incrementAndGet();
+			super.write(metrics, out);
+		}
+
+	}
+
+	private static class RecordingEmitter extends SseEmitter {
+
+		private volatile Object last;
+
+		private volatile int sent;
+
+		private boolean fail;
+
+		private String body() throws IOException {
+			return new String((byte[]) last, "UTF-8");
+		}
+
+		private boolean ping() throws IOException {
+			return body().startsWith("event:ping");
+		}
+
+		private List<String> names() throws IOException {
+			List<String> names = new ArrayList<>();
+			for (String event : body().split("\n\n")) {
+				if (event.startsWith("data:")) {
+					names.add(new ObjectMapper().readTree(event.substring(5))
+							.get("name").asText());
+				}
+			}
+			return names;
+		}
+
+		@Override
+		public void send(SseEventBuilder builder) throws IOException {
+			sent++;
+			if (fail) {
+				throw new IOException("Planned");
+			}
+			for (DataWithMediaType data : builder.build()) {
+				last = data.getData();
+			}
+		}
+
+	}
+
+}
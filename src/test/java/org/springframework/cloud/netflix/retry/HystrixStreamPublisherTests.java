@@ -0,0 +1,160 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.reactivestreams.Subscription;
+
+import org.springframework.retry.stats.DefaultStatisticsRepository;
+
+import reactor.core.publisher.BaseSubscriber;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class HystrixStreamPublisherTests {
+
+	private DefaultStatisticsRepository repository = new DefaultStatisticsRepository();
+
+	private CountingWriter writer = new CountingWriter();
+
+	private HystrixStreamPublisher publisher = new HystrixStreamPublisher(repository,
+			writer);
+
+	@Before
+	public void init() {
+		for (String name : new String[] { "foo", "bar", "spam" }) {
+			repository.addStarted(name);
+			repository.addComplete(name);
+		}
+		publisher.setDelay(10);
+	}
+
+	@Test
+	public void subscribersShareFrames() throws Exception {
+		FrameSubscriber first = new FrameSubscriber(Long.MAX_VALUE);
+		FrameSubscriber second = new FrameSubscriber(Long.MAX_VALUE);
+		publisher.stream().subscribe(first);
+		publisher.stream().subscribe(second);
+		first.await(5);
+		second.await(5);
+		first.dispose();
+		second.dispose();
+		// Both have seen the same frame instance, so it was only serialized once
+		assertThat(Collections.disjoint(first.frames, second.frames)).isFalse();
+	}
+
+	@Test
+	public void slowSubscriberDoesNotHoldUpOthers() throws Exception {
+		FrameSubscriber slow = new FrameSubscriber(1);
+		FrameSubscriber fast = new FrameSubscriber(Long.MAX_VALUE);
+		publisher.stream().subscribe(slow);
+		publisher.stream().subscribe(fast);
+		fast.await(10);
+		assertThat(slow.frames).hasSize(1);
+		// When the slow one asks for more it gets the latest, not a backlog
+		slow.request(1);
+		slow.await(2);
+		assertThat(slow.frames).hasSize(2);
+		slow.dispose();
+		fast.dispose();
+	}
+
+	@Test
+	public void deltaSubscriberSeesKeyframeThenPings() throws Exception {
+		RollingRetryStatisticsFactory factory = new RollingRetryStatisticsFactory();
+		factory.setWindow(10);
+		factory.setBucketCount(1);
+		DefaultStatisticsRepository repository = new DefaultStatisticsRepository();
+		repository.setRetryStatisticsFactory(factory);
+		repository.addStarted("foo");
+		HystrixStreamPublisher publisher = new HystrixStreamPublisher(repository,
+				writer);
+		publisher.setDelay(20);
+		FrameSubscriber delta = new FrameSubscriber(Long.MAX_VALUE);
+		publisher.stream(true).subscribe(delta);
+		delta.await(3);
+		delta.dispose();
+		assertThat(delta.frames.get(0).getCount()).isEqualTo(1);
+		assertThat(delta.frames.get(2)).isSameAs(HystrixStreamFrame.PING);
+	}
+
+	@Test
+	public void idleWithoutSubscribers() throws Exception {
+		FrameSubscriber subscriber = new FrameSubscriber(Long.MAX_VALUE);
+		publisher.stream().subscribe(subscriber);
+		subscriber.await(1);
+		subscriber.dispose();
+		Thread.sleep(30L);
+		int count = writer.count.get();
+		Thread.sleep(50L);
+		assertThat(writer.count.get()).isEqualTo(count);
+	}
+
+	private static class FrameSubscriber extends BaseSubscriber<HystrixStreamFrame> {
+
+		private final long initial;
+
+		private final List<HystrixStreamFrame> frames = new CopyOnWriteArrayList<>();
+
+		private FrameSubscriber(long initial) {
+			this.initial = initial;
+		}
+
+		@Override
+		protected void hookOnSubscribe(Subscription subscription) {
+			request(this.initial);
+		}
+
+		@Override
+		protected void hookOnNext(HystrixStreamFrame value) {
+			this.frames.add(value);
+		}
+
+		private void await(int count) throws InterruptedException {
+			long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (this.frames.size() < count && System.nanoTime() < end) {
+				Thread.sleep(5L);
+			}
+			assertThat(this.frames.size()).isGreaterThanOrEqualTo(count);
+		}
+
+	}
+
+	private static class CountingWriter extends HystrixMetricsWriter {
+
+		private AtomicInteger count = new AtomicInteger();
+
+		@Override
+		void write(HystrixMetrics metrics, Output out) {
+			count.incrementAndGet();
+			super.write(metrics, out);
+		}
+
+	}
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class HystrixStreamTickerTests {
+
+	private ScheduledThreadPoolExecutor scheduler = HystrixStreamTicker.scheduler(10);
+
+	private HystrixStreamBroadcaster broadcaster = new HystrixStreamBroadcaster(
+			new SyncTaskExecutor());
+
+	private AtomicInteger ticks = new AtomicInteger();
+
+	private boolean fail;
+
+	private HystrixStreamTicker ticker = new HystrixStreamTicker(scheduler, broadcaster,
+			new Runnable() {
+				@Override
+				public void run() {
+					ticks.incrementAndGet();
+					if (fail) {
+						throw new IllegalStateException("Planned");
+					}
+				}
+			});
+
+	@Before
+	public void init() {
+		ticker.setDelay(5);
+	}
+
+	@After
+	public void close() {
+		scheduler.shutdownNow();
+	}
+
+	@Test
+	public void idleUntilFirstSubscriber() throws Exception {
+		ticker.start();
+		Thread.sleep(50L);
+		assertThat(ticker.isActive()).isFalse();
+		assertThat(ticks.get()).isEqualTo(0);
+		assertThat(scheduler.getPoolSize()).isEqualTo(0);
+		subscribe();
+		awaitTicks(3);
+		assertThat(ticker.isActive()).isTrue();
+	}
+
+	@Test
+	public void suspendsWhenLastSubscriberLeaves() throws Exception {
+		ticker.start();
+		subscribe();
+		awaitTicks(3);
+		broadcaster.clear();
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while ((ticker.isActive() || scheduler.getPoolSize() > 0)
+				&& System.nanoTime() < end) {
+			Thread.sleep(5L);
+		}
+		assertThat(ticker.isActive()).isFalse();
+		// No thread is kept waiting for the next subscriber
+		assertThat(scheduler.getPoolSize()).isEqualTo(0);
+		int count = ticks.get();
+		Thread.sleep(50L);
+		assertThat(ticks.get()).isEqualTo(count);
+		subscribe();
+		awaitTicks(count + 3);
+	}
+
+	@Test
+	public void stopCancelsTicks() throws Exception {
+		ticker.start();
+		subscribe();
+		awaitTicks(3);
+		ticker.stop();
+		assertThat(ticker.isActive()).isFalse();
+		Thread.sleep(20L);
+		int count = ticks.get();
+		ticker.resume();
+		Thread.sleep(50L);
+		assertThat(ticks.get()).isEqualTo(count);
+		assertThat(ticker.isActive()).isFalse();
+	}
+
+	@Test
+	public void failedTickDoesNotCancelTheRest() throws Exception {
+		fail = true;
+		ticker.start();
+		subscribe();
+		awaitTicks(3);
+		assertThat(ticker.isActive()).isTrue();
+	}
+
+	private void subscribe() {
+		broadcaster.subscribe(new SseEmitter());
+		ticker.resume();
+	}
+
+	private void awaitTicks(int count) throws InterruptedException {
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (ticks.get() < count && System.nanoTime() < end) {
+			Thread.sleep(5L);
+		}
+		assertThat(ticks.get()).isGreaterThanOrEqualTo(count);
+	}
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class LabelFilterTests {
+
+	private LabelFilter.Index index = new LabelFilter.Index(Arrays.asList("orders.get",
+			"orders.list", "users.get", "users.admin.get", "order", "payments"));
+
+	@Test
+	public void exactNames() {
+		LabelFilter filter = LabelFilter.compile("users.get", "order", "missing");
+		assertThat(selected(filter)).containsExactly("users.get", "order");
+		assertThat(filter.matches("order")).isTrue();
+		assertThat(filter.matches("orders.get")).isFalse();
+	}
+
+	@Test
+	public void prefixes() {
+		LabelFilter filter = LabelFilter.compile("order*", "orders.*", "pay*");
+		assertThat(selected(filter)).containsExactly("orders.get", "orders.list",
+				"order", "payments");
+		assertThat(filter.matches("orderly")).isTrue();
+		assertThat(filter.matches("users.get")).isFalse();
+	}
+
+	@Test
+	public void globs() {
+		LabelFilter filter = LabelFilter.compile("*.get", "users.*.get");
+		assertThat(selected(filter)).containsExactly("orders.get", "users.get",
+				"users.admin.get");
+		assertThat(filter.matches("orders.list")).isFalse();
+	}
+
+	@Test
+	public void samePatternsAreEqual() {
+		assertThat(LabelFilter.compile("foo", "bar*", "*baz"))
+				.isEqualTo(LabelFilter.compile(" *baz", "bar*", "barbar*", "foo", ""));
+		assertThat(LabelFilter.compile("foo").hashCode())
+				.isEqualTo(LabelFilter.compile("foo", "foo").hashCode());
+		assertThat(LabelFilter.compile("foo")).isNotEqualTo(LabelFilter.compile("foo*"));
+	}
+
+	@Test
+	public void noPatternsMeansEverything() {
+		assertThat(LabelFilter.compile()).isNull();
+		assertThat(LabelFilter.compile((List<String>) null)).isNull();
+		assertThat(LabelFilter.compile("", " ")).isNull();
+		assertThat(LabelFilter.compile("foo", "*")).isNull();
+	}
+
+	private List<String> selected(LabelFilter filter) {
+		List<String> labels = Arrays.asList("orders.get", "orders.list", "users.get",
+				"users.admin.get", "order", "payments");
+		BitSet selected = filter.select(this.index);
+		List<String> result = new ArrayList<>();
+		for (int i = selected.nextSetBit(0); i >= 0; i = selected.nextSetBit(i + 1)) {
+			result.add(labels.get(i));
+		}
+		return result;
+	}
+
+}
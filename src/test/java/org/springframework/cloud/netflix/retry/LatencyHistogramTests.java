@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import org.junit.Test;
+
+import org.springframework.cloud.netflix.retry.LatencyHistogram.Snapshot;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class LatencyHistogramTests {
+
+	private LatencyHistogram histogram = new LatencyHistogram(10000, 10);
+
+	@Test
+	public void slotsRoundTrip() {
+		for (long value = 0; value < 100000; value++) {
+			int slot = LatencyHistogram.slot(value);
+			assertThat(slot).isLessThan(LatencyHistogram.SLOTS);
+			long highest = LatencyHistogram.highestEquivalentValue(slot);
+			assertThat(highest).isGreaterThanOrEqualTo(value);
+			assertThat((double) highest).isCloseTo(value, within(value * 0.125 + 1));
+		}
+	}
+
+	@Test
+	public void percentiles() {
+		for (long value = 1; value <= 1000; value++) {
+			histogram.record(value, 0);
+		}
+		Snapshot snapshot = histogram.snapshot(0);
+		assertThat(snapshot.getCount()).isEqualTo(1000);
+		assertThat(snapshot.getMean()).isEqualTo(500);
+		assertThat(snapshot.getMax()).isEqualTo(1000);
+		assertThat(snapshot.getPercentile(0)).isEqualTo(1);
+		assertThat((double) snapshot.getPercentile(50)).isCloseTo(500, within(64.));
+		assertThat((double) snapshot.getPercentile(99)).isCloseTo(990, within(124.));
+		assertThat(snapshot.getPercentile(100)).isEqualTo(1000);
+	}
+
+	@Test
+	public void empty() {
+		Snapshot snapshot = histogram.snapshot();
+		assertThat(snapshot.getCount()).isEqualTo(0);
+		assertThat(snapshot.getMean()).isEqualTo(0);
+		assertThat(snapshot.getPercentile(99)).isEqualTo(0);
+	}
+
+	@Test
+	public void oldValuesExpire() {
+		histogram.record(1000, 0);
+		histogram.record(10, 5000);
+		assertThat(histogram.snapshot(5000).getMax()).isEqualTo(1000);
+		assertThat(histogram.snapshot(10000).getMax()).isEqualTo(10);
+		assertThat(histogram.snapshot(15000).getCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void bucketsRecycled() {
+		histogram.record(1000, 0);
+		histogram.record(10, 10000);
+		Snapshot snapshot = histogram.snapshot(10000);
+		assertThat(snapshot.getCount()).isEqualTo(1);
+		assertThat(snapshot.getMax()).isEqualTo(10);
+	}
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.context.RetryContextSupport;
+import org.springframework.retry.policy.SimpleRetryPolicy;
+import org.springframework.retry.stats.DefaultRetryStatistics;
+import org.springframework.retry.support.RetryTemplate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class LatencyListenerTests {
+
+	private LatencyListener listener = new LatencyListener();
+
+	@Test
+	public void recordsTotalAndExecute() throws Exception {
+		RetryTemplate template = new RetryTemplate();
+		template.setRetryPolicy(new SimpleRetryPolicy(2));
+		template.registerListener(listener);
+		String result = template.execute(context -> {
+			context.setAttribute(RetryContext.NAME, "foo");
+			Thread.sleep(20);
+			if (context.getRetryCount() == 0) {
+				throw new IllegalStateException("Planned");
+			}
+			return "bar";
+		});
+		assertThat(result).isEqualTo("bar");
+		LatencyHistogram.Snapshot execute = listener.getExecuteLatency("foo").snapshot();
+		LatencyHistogram.Snapshot total = listener.getTotalLatency("foo").snapshot();
+		assertThat(execute.getCount()).isEqualTo(2);
+		assertThat(execute.getPercentile(0)).isGreaterThanOrEqualTo(19);
+		assertThat(total.getCount()).isEqualTo(1);
+		assertThat(total.getMax()).isGreaterThanOrEqualTo(40);
+	}
+
+	@Test
+	public void contributesPercentiles() throws Exception {
+		RetryContext context = new RetryContextSupport(null);
+		context.setAttribute(RetryContext.NAME, "foo");
+		listener.open(context, null);
+		listener.close(context, null, null);
+		HystrixMetrics metrics = new HystrixMetrics();
+		listener.contribute(new DefaultRetryStatistics("foo"), metrics);
+		@SuppressWarnings("unchecked")
+		Map<String, Object> map = new ObjectMapper()
+				.convertValue(metrics.getLatencyExecute(), Map.class);
+		assertThat(map).containsOnlyKeys("0", "25", "50", "75", "90", "95", "99", "99.5",
+				"100");
+	}
+
+	@Test
+	public void recordingDoesNotAllocate() throws Exception {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+		RetryContext context = new RetryContextSupport(null);
+		context.setAttribute(RetryContext.NAME, "foo");
+		for (int i = 0; i < 20000; i++) {
+			listener.open(context, null);
+			listener.close(context, null, null);
+		}
+		long id = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(id);
+		for (int i = 0; i < 20000; i++) {
+			listener.open(context, null);
+			listener.close(context, null, null);
+		}
+		long allocated = threads.getThreadAllocatedBytes(id) - before;
+		// Allow for the measurement itself, but nothing per call
+		assertThat(allocated).isLessThan(20000);
+	}
+
+}
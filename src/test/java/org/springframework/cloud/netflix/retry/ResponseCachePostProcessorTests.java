@@ -0,0 +1,233 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.retry.RetryListener;
+import org.springframework.retry.annotation.CircuitBreaker;
+import org.springframework.retry.annotation.EnableRetry;
+import org.springframework.retry.annotation.Recover;
+import org.springframework.retry.stats.DefaultRetryStatistics;
+import org.springframework.retry.stats.DefaultStatisticsRepository;
+import org.springframework.retry.stats.StatisticsListener;
+import org.springframework.retry.stats.StatisticsRepository;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class ResponseCachePostProcessorTests {
+
+	private AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext(
+			TestConfiguration.class);
+
+	private Service service = this.context.getBean(Service.class);
+
+	private ResponseCachePostProcessor processor = this.context
+			.getBean(ResponseCachePostProcessor.class);
+
+	@After
+	public void close() {
+		RequestContextHolder.resetRequestAttributes();
+		this.context.close();
+	}
+
+	@Test
+	public void duplicatesInRequestServedFromCache() throws Exception {
+		this.processor.setRequestCacheEnabled(true);
+		startRequest();
+		assertThat(this.service.find("a")).isEqualTo("a-1");
+		assertThat(this.service.find("a")).isEqualTo("a-1");
+		assertThat(this.service.find("b")).isEqualTo("b-2");
+		assertThat(this.service.calls()).isEqualTo(2);
+		assertThat(fromCache("plain")).isEqualTo(1);
+		// The cache hit did not go through the circuit breaker
+		assertThat(this.context.getBean(StatisticsRepository.class).findOne("plain")
+				.getStartedCount()).isEqualTo(2);
+		startRequest();
+		assertThat(this.service.find("a")).isEqualTo("a-3");
+		RequestContextHolder.resetRequestAttributes();
+		assertThat(this.service.find("a")).isEqualTo("a-4");
+		assertThat(this.service.find("a")).isEqualTo("a-5");
+	}
+
+	@Test
+	public void requestCacheDisabledByDefault() throws Exception {
+		startRequest();
+		assertThat(this.service.find("a")).isEqualTo("a-1");
+		assertThat(this.service.find("a")).isEqualTo("a-2");
+		assertThat(fromCache("plain")).isEqualTo(0);
+	}
+
+	@Test
+	public void sharedCacheExpires() throws Exception {
+		this.processor.setTimesToLive(Collections.singletonMap("shared", 100L));
+		assertThat(this.service.shared("a")).isEqualTo("a-1");
+		assertThat(this.service.shared("a")).isEqualTo("a-1");
+		assertThat(fromCache("shared")).isEqualTo(1);
+		Thread.sleep(150);
+		assertThat(this.service.shared("a")).isEqualTo("a-2");
+		assertThat(this.service.calls()).isEqualTo(2);
+	}
+
+	@Test
+	public void leastRecentlyUsedEvicted() throws Exception {
+		this.processor.setTimeToLive(10000);
+		this.processor.setMaxEntries(2);
+		this.service.shared("a");
+		this.service.shared("b");
+		this.service.shared("a");
+		this.service.shared("c");
+		assertThat(this.service.calls()).isEqualTo(3);
+		assertThat(this.service.shared("a")).isEqualTo("a-1");
+		assertThat(this.service.shared("b")).isEqualTo("b-4");
+	}
+
+	@Test
+	public void concurrentStoresEvictOnlyTheOverflow() throws Exception {
+		this.processor.setTimeToLive(10000);
+		this.processor.setMaxEntries(50);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < 8; i++) {
+				String prefix = "key" + i + "-";
+				futures.add(executor.submit(() -> {
+					for (int j = 0; j < 100; j++) {
+						this.service.shared(prefix + j);
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get(10, TimeUnit.SECONDS);
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+		assertThat((Map<?, ?>) ReflectionTestUtils.getField(this.processor, "cache"))
+				.hasSize(50);
+	}
+
+	@Test
+	public void recoveredResultsNotCached() throws Exception {
+		this.processor.setRequestCacheEnabled(true);
+		startRequest();
+		this.service.fail(true);
+		assertThat(this.service.find("a")).isEqualTo("fallback");
+		this.service.fail(false);
+		assertThat(this.service.find("a")).isEqualTo("a-2");
+		assertThat(this.service.find("a")).isEqualTo("a-2");
+		assertThat(fromCache("plain")).isEqualTo(1);
+	}
+
+	private void startRequest() {
+		RequestContextHolder.setRequestAttributes(
+				new ServletRequestAttributes(new MockHttpServletRequest()));
+	}
+
+	private long fromCache(String name) {
+		HystrixMetrics metrics = new HystrixMetrics();
+		this.processor.contribute(new DefaultRetryStatistics(name), metrics);
+		return metrics.getRollingCountResponsesFromCache();
+	}
+
+	@Configuration
+	@EnableRetry
+	protected static class TestConfiguration {
+
+		@Bean
+		public static ResponseCachePostProcessor responseCachePostProcessor() {
+			return new ResponseCachePostProcessor();
+		}
+
+		@Bean
+		public StatisticsRepository statisticsRepository() {
+			return new DefaultStatisticsRepository();
+		}
+
+		@Bean
+		public RetryListener statisticsListener(StatisticsRepository repository) {
+			return new StatisticsListener(repository);
+		}
+
+		@Bean
+		public Service service() {
+			return new Service();
+		}
+
+	}
+
+	protected static class Service {
+
+		private final AtomicInteger calls = new AtomicInteger();
+
+		private volatile boolean failing;
+
+		// The bean is a proxy, so the state has to be reached through methods
+
+		public int calls() {
+			return this.calls.get();
+		}
+
+		public void fail(boolean failing) {
+			this.failing = failing;
+		}
+
+		@CircuitBreaker(label = "plain", maxAttempts = Integer.MAX_VALUE)
+		public String find(String key) {
+			int count = this.calls.incrementAndGet();
+			if (this.failing) {
+				throw new IllegalStateException("Planned");
+			}
+			return key + "-" + count;
+		}
+
+		@CircuitBreaker(label = "shared")
+		public String shared(String key) {
+			return key + "-" + this.calls.incrementAndGet();
+		}
+
+		@Recover
+		public String recover(IllegalStateException e, String key) {
+			return "fallback";
+		}
+
+	}
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.springframework.retry.RetryCallback;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.RetryListener;
+import org.springframework.retry.policy.SimpleRetryPolicy;
+import org.springframework.retry.stats.DefaultRetryStatistics;
+import org.springframework.retry.support.RetryTemplate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class RetryBudgetListenerTests {
+
+	private RetryBudgetListener listener = new RetryBudgetListener();
+
+	private RetryTemplate template;
+
+	private AtomicInteger calls = new AtomicInteger();
+
+	@Before
+	public void init() {
+		this.listener.setCapacity(2);
+		this.listener.setRatio(0.5);
+		this.template = new RetryTemplate();
+		this.template.setRetryPolicy(new SimpleRetryPolicy(3));
+		this.template.setListeners(new RetryListener[] { this.listener });
+	}
+
+	@Test
+	public void retriesDeniedWhenBudgetSpent() throws Exception {
+		// Two retries from the budget, then the third attempt is denied
+		assertThat(call("foo", 5)).isEqualTo("recovered");
+		assertThat(this.calls.get()).isEqualTo(3);
+		assertThat(this.listener.getBudget("foo").getTokens()).isEqualTo(0);
+		this.calls.set(0);
+		assertThat(call("foo", 5)).isEqualTo("recovered");
+		assertThat(this.calls.get()).isEqualTo(1);
+		// The last attempt of the first call also found the budget empty
+		assertThat(this.listener.getRollingDeniedCount("foo")).isEqualTo(2);
+	}
+
+	@Test
+	public void successesRefillBudget() throws Exception {
+		call("foo", 5);
+		assertThat(this.listener.getBudget("foo").getTokens()).isEqualTo(0);
+		// Successful first attempts earn half a token each
+		call("foo", 0);
+		call("foo", 0);
+		assertThat(this.listener.getBudget("foo").getTokens()).isEqualTo(1);
+		this.calls.set(0);
+		assertThat(call("foo", 1)).isEqualTo("foo");
+		assertThat(this.calls.get()).isEqualTo(2);
+		// A success after a retry earns nothing
+		assertThat(this.listener.getBudget("foo").getTokens()).isEqualTo(0);
+	}
+
+	@Test
+	public void unusedTokenRefunded() throws Exception {
+		this.template.setRetryPolicy(new SimpleRetryPolicy(2));
+		assertThat(call("foo", 5)).isEqualTo("recovered");
+		assertThat(this.calls.get()).isEqualTo(2);
+		// One retry was made, and the token taken after the last attempt came back
+		assertThat(this.listener.getBudget("foo").getTokens()).isEqualTo(1);
+		assertThat(this.listener.getGlobalBudget().getTokens()).isEqualTo(99);
+	}
+
+	@Test
+	public void globalBudgetSharedByLabels() throws Exception {
+		this.listener.setGlobalCapacity(3);
+		call("foo", 5);
+		assertThat(this.listener.getGlobalBudget().getTokens()).isEqualTo(1);
+		this.calls.set(0);
+		// The label still has tokens, but only one is left globally
+		assertThat(call("bar", 5)).isEqualTo("recovered");
+		assertThat(this.calls.get()).isEqualTo(2);
+		assertThat(this.listener.getGlobalBudget().getTokens()).isEqualTo(0);
+		assertThat(this.listener.getBudget("bar").getTokens()).isEqualTo(1);
+		assertThat(this.listener.getRollingDeniedCount("bar")).isEqualTo(1);
+	}
+
+	@Test
+	public void contributesBudgets() throws Exception {
+		call("foo", 5);
+		call("foo", 5);
+		HystrixMetrics metrics = new HystrixMetrics();
+		metrics.setRollingCountRetriesDenied(1);
+		this.listener.contribute(new DefaultRetryStatistics("foo"), metrics);
+		assertThat(metrics.getCurrentRetryBudget()).isEqualTo(0);
+		assertThat(metrics.getCurrentGlobalRetryBudget()).isEqualTo(98);
+		assertThat(metrics.getRollingCountRetriesDenied()).isEqualTo(3);
+	}
+
+	private String call(String name, int failures) throws Exception {
+		return this.template.execute(new RetryCallback<String, Exception>() {
+			@Override
+			public String doWithRetry(RetryContext context) throws Exception {
+				context.setAttribute(RetryContext.NAME, name);
+				if (calls.incrementAndGet() <= failures) {
+					throw new IllegalStateException("Planned");
+				}
+				return name;
+			}
+		}, context -> "recovered");
+	}
+
+}
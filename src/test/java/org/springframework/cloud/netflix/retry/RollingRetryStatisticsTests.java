@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import org.junit.Test;
+
+import org.springframework.retry.policy.CircuitBreakerRetryPolicy;
+import org.springframework.retry.stats.DefaultStatisticsRepository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.cloud.netflix.retry.RollingRetryStatistics.ABORT;
+import static org.springframework.cloud.netflix.retry.RollingRetryStatistics.STARTED;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class RollingRetryStatisticsTests {
+
+	private RollingRetryStatistics stats = new RollingRetryStatistics("foo", 10000, 10);
+
+	@Test
+	public void exactCountsInWindow() {
+		for (int i = 0; i < 10; i++) {
+			stats.incrementStartedCount();
+		}
+		stats.incrementAbortCount();
+		stats.incrementRecoveryCount();
+		assertThat(stats.getRollingStartedCount()).isEqualTo(10);
+		assertThat(stats.getRollingErrorRate()).isEqualTo(0.2);
+		assertThat(stats.getStartedCount()).isEqualTo(10);
+	}
+
+	@Test
+	public void countsLeaveWindow() {
+		stats.increment(STARTED, 0);
+		stats.increment(STARTED, 4000);
+		stats.increment(ABORT, 4000);
+		assertThat(stats.sum(STARTED, 9999)).isEqualTo(2);
+		assertThat(stats.sum(STARTED, 10000)).isEqualTo(1);
+		assertThat(stats.sum(ABORT, 13999)).isEqualTo(1);
+		assertThat(stats.sum(ABORT, 14000)).isEqualTo(0);
+	}
+
+	@Test
+	public void bucketsRecycled() {
+		stats.increment(STARTED, 500);
+		stats.increment(STARTED, 10500);
+		assertThat(stats.sum(STARTED, 10500)).isEqualTo(1);
+	}
+
+	@Test
+	public void shortCircuitsFromAttribute() {
+		stats.setAttribute(CircuitBreakerRetryPolicy.CIRCUIT_SHORT_COUNT, 0);
+		stats.setAttribute(CircuitBreakerRetryPolicy.CIRCUIT_SHORT_COUNT, 2);
+		stats.setAttribute(CircuitBreakerRetryPolicy.CIRCUIT_SHORT_COUNT, 3);
+		stats.setAttribute(CircuitBreakerRetryPolicy.CIRCUIT_SHORT_COUNT, 0);
+		stats.setAttribute(CircuitBreakerRetryPolicy.CIRCUIT_SHORT_COUNT, 1);
+		assertThat(stats.getRollingShortCircuitCount()).isEqualTo(4);
+	}
+
+	@Test
+	public void repositoryUsesFactory() {
+		DefaultStatisticsRepository repository = new DefaultStatisticsRepository();
+		repository.setRetryStatisticsFactory(new RollingRetryStatisticsFactory());
+		repository.addStarted("foo");
+		assertThat(repository.findOne("foo")).isInstanceOf(RollingRetryStatistics.class);
+		assertThat(((RollingRetryStatistics) repository.findOne("foo"))
+				.getRollingStartedCount()).isEqualTo(1);
+	}
+
+}
@@ -10,7 +10,6 @@ import org.springframework.retry.RetryStatistics;
 import org.springframework.retry.annotation.CircuitBreaker;
 import org.springframework.retry.annotation.EnableRetry;
 import org.springframework.retry.annotation.Recover;
-import org.springframework.retry.stats.DefaultStatisticsRepository;
 import org.springframework.retry.stats.StatisticsListener;
 import org.springframework.retry.stats.StatisticsRepository;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -23,7 +22,9 @@ public class SpringCloudNetflixRetryApplication {
 
 	@Bean
 	public StatisticsRepository statisticsRepository() {
-		return new DefaultStatisticsRepository();
+		BoundedStatisticsRepository repository = new BoundedStatisticsRepository();
+		repository.setRetryStatisticsFactory(new RollingRetryStatisticsFactory());
+		return repository;
 	}
 
 	@Bean
@@ -31,6 +32,51 @@ public class SpringCloudNetflixRetryApplication {
 		return new StatisticsListener(repository);
 	}
 
+	@Bean
+	public LatencyListener latencyListener() {
+		return new LatencyListener();
+	}
+
+	@Bean
+	public ConcurrencyListener concurrencyListener() {
+		return new ConcurrencyListener();
+	}
+
+	@Bean
+	public ErrorClassifyingListener errorClassifyingListener() {
+		return new ErrorClassifyingListener();
+	}
+
+	@Bean
+	public RetryBudgetListener retryBudgetListener() {
+		return new RetryBudgetListener();
+	}
+
+	@Bean
+	public static BulkheadPostProcessor bulkheadPostProcessor() {
+		return new BulkheadPostProcessor();
+	}
+
+	@Bean
+	public static CollapserPostProcessor collapserPostProcessor() {
+		return new CollapserPostProcessor();
+	}
+
+	@Bean
+	public static ResponseCachePostProcessor responseCachePostProcessor() {
+		return new ResponseCachePostProcessor();
+	}
+
+	@Bean
+	public static TimeoutPostProcessor timeoutPostProcessor() {
+		return new TimeoutPostProcessor();
+	}
+
+	@Bean
+	public static AsyncRetryPostProcessor asyncRetryPostProcessor() {
+		return new AsyncRetryPostProcessor();
+	}
+
 	public static void main(String[] args) {
 		SpringApplication.run(SpringCloudNetflixRetryApplication.class, args);
 	}
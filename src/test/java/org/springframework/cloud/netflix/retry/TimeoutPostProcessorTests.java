@@ -0,0 +1,133 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.retry.annotation.CircuitBreaker;
+import org.springframework.retry.annotation.EnableRetry;
+import org.springframework.retry.annotation.Recover;
+import org.springframework.retry.stats.DefaultRetryStatistics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class TimeoutPostProcessorTests {
+
+	private AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext(
+			TestConfiguration.class);
+
+	private Service service = this.context.getBean(Service.class);
+
+	private TimeoutPostProcessor processor = this.context
+			.getBean(TimeoutPostProcessor.class);
+
+	@After
+	public void close() {
+		this.context.close();
+	}
+
+	@Test
+	public void hungCallRecovered() throws Exception {
+		long start = System.nanoTime();
+		assertThat(this.service.call(10000)).isEqualTo("fallback");
+		assertThat(System.nanoTime() - start)
+				.isLessThan(TimeUnit.SECONDS.toNanos(5));
+		assertThat(this.service.recovered())
+				.isInstanceOf(ExecutionTimeoutException.class);
+		assertThat(this.service.recovered().getCause())
+				.isInstanceOf(InterruptedException.class);
+		// The fallback and the caller do not see the interrupt
+		assertThat(this.service.interruptedInFallback()).isFalse();
+		assertThat(Thread.currentThread().isInterrupted()).isFalse();
+		assertThat(this.processor.getRollingTimeoutCount("slow")).isEqualTo(1);
+		HystrixMetrics metrics = new HystrixMetrics();
+		this.processor.contribute(new DefaultRetryStatistics("slow"), metrics);
+		assertThat(metrics.getRollingCountTimeout()).isEqualTo(1);
+		assertThat(metrics.getPropertyValue_executionTimeoutInMilliseconds())
+				.isEqualTo(100);
+	}
+
+	@Test
+	public void fastCallNotInterrupted() throws Exception {
+		assertThat(this.service.call(0)).isEqualTo("foo");
+		// Long enough for the timeout to have fired if it was not cancelled
+		Thread.sleep(200);
+		assertThat(Thread.currentThread().isInterrupted()).isFalse();
+		assertThat(this.processor.getRollingTimeoutCount("slow")).isEqualTo(0);
+	}
+
+	@Configuration
+	@EnableRetry
+	protected static class TestConfiguration {
+
+		@Bean
+		public static TimeoutPostProcessor timeoutPostProcessor() {
+			TimeoutPostProcessor processor = new TimeoutPostProcessor();
+			processor.setTimeouts(Collections.singletonMap("slow", 100L));
+			return processor;
+		}
+
+		@Bean
+		public Service service() {
+			return new Service();
+		}
+
+	}
+
+	protected static class Service {
+
+		private volatile Throwable recovered;
+
+		private volatile boolean interruptedInFallback;
+
+		// The bean is a proxy, so the state has to be reached through methods
+
+		public Throwable recovered() {
+			return this.recovered;
+		}
+
+		public boolean interruptedInFallback() {
+			return this.interruptedInFallback;
+		}
+
+		@CircuitBreaker(label = "slow", maxAttempts = Integer.MAX_VALUE)
+		public String call(long sleep) throws InterruptedException {
+			Thread.sleep(sleep);
+			return "foo";
+		}
+
+		@Recover
+		public String recover(Throwable e, long sleep) {
+			this.recovered = e;
+			this.interruptedInFallback = Thread.currentThread().isInterrupted();
+			return "fallback";
+		}
+
+	}
+
+}
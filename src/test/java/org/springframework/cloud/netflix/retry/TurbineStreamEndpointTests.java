@@ -0,0 +1,194 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.netflix.retry;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.retry.stats.DefaultStatisticsRepository;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter.DataWithMediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class TurbineStreamEndpointTests {
+
+	private ObjectMapper mapper = new ObjectMapper();
+
+	private List<Node> nodes = new ArrayList<>();
+
+	private TurbineStreamEndpoint endpoint = new TurbineStreamEndpoint(mapper,
+			new SyncTaskExecutor());
+
+	@Before
+	public void init() throws Exception {
+		List<String> upstreams = new ArrayList<>();
+		for (int requests : new int[] { 2, 3 }) {
+			Node node = new Node();
+			for (int i = 0; i < requests; i++) {
+				node.repository.addStarted("foo");
+				node.repository.addComplete("foo");
+			}
+			node.repository.addStarted("bar");
+			this.nodes.add(node);
+			upstreams.add(node.start());
+		}
+		endpoint.setUpstreams(upstreams);
+		endpoint.setDelay(20);
+	}
+
+	@After
+	public void close() {
+		endpoint.stop();
+		for (Node node : nodes) {
+			node.server.stop(0);
+		}
+	}
+
+	@Test
+	public void mergesUpstreams() throws Exception {
+		endpoint.start();
+		HystrixMetrics foo = await("foo", 2);
+		assertThat(foo.getRequestCount()).isEqualTo(5);
+		assertThat(await("bar", 2).getRequestCount()).isEqualTo(2);
+	}
+
+	@Test
+	public void broadcastsMergedStream() throws Exception {
+		RecordingEmitter emitter = (RecordingEmitter) endpoint
+				.register(new RecordingEmitter());
+		endpoint.start();
+		await("foo", 2);
+		await("bar", 2);
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!emitter.body().contains("\"reportingHosts\":2")
+				&& System.nanoTime() < end) {
+			Thread.sleep(10L);
+		}
+		assertThat(emitter.body()).contains("\"name\":\"foo\"")
+				.contains("\"reportingHosts\":2");
+	}
+
+	@Test
+	public void stoppedUpstreamsDropOut() throws Exception {
+		endpoint.start();
+		await("foo", 2);
+		endpoint.stop();
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (endpoint.getAggregator().size() > 0 && System.nanoTime() < end) {
+			Thread.sleep(10L);
+		}
+		assertThat(endpoint.getAggregator().getMetrics()).isEmpty();
+	}
+
+	private HystrixMetrics await(String name, int hosts) throws InterruptedException {
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		HystrixMetrics metrics = endpoint.getAggregator().getMetrics(name);
+		while ((metrics == null || metrics.getReportingHosts() < hosts)
+				&& System.nanoTime() < end) {
+			Thread.sleep(10L);
+			metrics = endpoint.getAggregator().getMetrics(name);
+		}
+		assertThat(metrics).isNotNull();
+		assertThat(metrics.getReportingHosts()).isEqualTo(hosts);
+		return metrics;
+	}
+
+	/**
+	 * A stand in for an application node, serving its Hystrix stream from an in-process
+	 * HTTP server.
+	 */
+	private class Node implements HttpHandler {
+
+		private DefaultStatisticsRepository repository = new DefaultStatisticsRepository();
+
+		private HystrixMetricsCollector collector;
+
+		private HttpServer server;
+
+		private Node() {
+			repository.setRetryStatisticsFactory(new RollingRetryStatisticsFactory());
+			collector = new HystrixMetricsCollector(repository);
+		}
+
+		private String start() throws IOException {
+			server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+			server.createContext("/hystrix.stream", this);
+			server.setExecutor(Executors.newCachedThreadPool());
+			server.start();
+			return "http://localhost:" + server.getAddress().getPort()
+					+ "/hystrix.stream";
+		}
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			exchange.getResponseHeaders().add("Content-Type", "text/event-stream");
+			exchange.sendResponseHeaders(200, 0);
+			try (OutputStream out = exchange.getResponseBody()) {
+				while (true) {
+					out.write(collector.snapshot().getFull().getBytes());
+					out.flush();
+					Thread.sleep(20L);
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			catch (IOException e) {
+				// Client went away
+			}
+		}
+
+	}
+
+	private static class RecordingEmitter extends SseEmitter {
+
+		private volatile Object last;
+
+		private String body() throws IOException {
+			return last == null ? "" : new String((byte[]) last, "UTF-8");
+		}
+
+		@Override
+		public void send(SseEventBuilder builder) throws IOException {
+			for (DataWithMediaType data : builder.build()) {
+				last = data.getData();
+			}
+		}
+
+	}
+
+}